@@ -12,6 +12,7 @@ import engineering.taikun.distortion.store.api.DistortionStore;
 import engineering.taikun.distortion.store.api.DistortionStore.DistortionTransaction;
 import engineering.taikun.distortion.store.api.DistortionStore.StagedData;
 import engineering.taikun.distortion.store.api.KV;
+import engineering.taikun.distortion.store.api.KV.DoomedReadException;
 import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
 import engineering.taikun.distortion.structures.imp.DMap;
 import org.jetbrains.annotations.NotNull;
@@ -36,7 +37,7 @@ In essence, our goal is to run everything SUPER PARALLEL. We execute everything
 We create new, empty transactions and COMMIT() them to serve as our barriers.
 
 We also have children. Children shouldn't commit after an adult fails, which is possible. WE, as in THIS, do the
-work to make sure this doesn't happen. We use a MutableInt (un-init/pass/fail) and its monitor as a commit check.
+work to make sure this doesn't happen. We use a MutableInt (un-init/pass/fail) that children wait on as a commit check.
 
  */
 
@@ -65,14 +66,33 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 
 	volatile Throwable death_cause = null;
 
-	final ArrayBlockingQueue<QueueItem> queue = new ArrayBlockingQueue<>(16_384);
+	/*
+	Admission
+
+	At most max_active base transforms are in the pool at once. A transform takes a permit (active_count) and is
+	submitted by whoever gets it, either the submitting thread or the worker that just gave one back. Anything that
+	can't get a permit waits in the queue. queue_size is incremented before an item is added and decremented only
+	after it has been handed to the pool, so a fresh submitter can't jump over queued work.
+	 */
+
+	final int max_active;
+	final int queue_capacity;
+	final OverflowPolicy overflow_policy;
+
+	final boolean speculative_forwarding;
+
+	final ConcurrentLinkedQueue<QueueItem> queue = new ConcurrentLinkedQueue<>();
+	final AtomicInteger queue_size = new AtomicInteger(0);
 	final AtomicInteger active_count = new AtomicInteger(0);
-	final Thread prodder;
-	volatile boolean prodder_live = true;
+	final ConcurrentLinkedQueue<Thread> blocked_submitters = new ConcurrentLinkedQueue<>();
 
 	final LongAdder jobs_submitted = new LongAdder();
 	final LongAdder job_transactions = new LongAdder();
 	final LongAdder stall_transactions = new LongAdder();
+	final LongAdder fine_block_waits = new LongAdder();
+	final LongAdder forwarded_transactions = new LongAdder();
+	final LongAdder early_aborts = new LongAdder();
+	final LongAdder read_only_transactions = new LongAdder();
 
 	public static final Collection<Identifier> GLOBAL_STALL_IDENTIFIERS
 			= Collections.singleton(new Identifier("distortion", "global_stall"));
@@ -85,9 +105,50 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 	 * @param store DistortionStore for data storage
 	 * @param ai DistortionAI for workload behavior prediction
 	 * @param util A serialization Util (can be shared between multiple Distortion instances)
+	 * @param parallelism The number of worker threads
 	 */
 	public Distortion(
 			final DistortionStore<T> store, final DistortionAI ai, final SerializationUtil<BA> util, final int parallelism
+	) {
+		this(store, ai, util, parallelism, 16_384, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * <p>Create a new Distortion engine</p>
+	 *
+	 * <p>Note: Root maps have a concurrency level of 1</p>
+	 *
+	 * @param store DistortionStore for data storage
+	 * @param ai DistortionAI for workload behavior prediction
+	 * @param util A serialization Util (can be shared between multiple Distortion instances)
+	 * @param parallelism The number of worker threads
+	 * @param queue_capacity The number of transforms that can wait for admission before the overflow policy kicks in
+	 * @param overflow_policy What {@link #transform} does when the admission queue is full
+	 */
+	public Distortion(
+			final DistortionStore<T> store, final DistortionAI ai, final SerializationUtil<BA> util, final int parallelism,
+			final int queue_capacity, final OverflowPolicy overflow_policy
+	) {
+		this(store, ai, util, parallelism, queue_capacity, overflow_policy, false);
+	}
+
+	/**
+	 * <p>Create a new Distortion engine</p>
+	 *
+	 * <p>Note: Root maps have a concurrency level of 1</p>
+	 *
+	 * @param store DistortionStore for data storage
+	 * @param ai DistortionAI for workload behavior prediction
+	 * @param util A serialization Util (can be shared between multiple Distortion instances)
+	 * @param parallelism The number of worker threads
+	 * @param queue_capacity The number of transforms that can wait for admission before the overflow policy kicks in
+	 * @param overflow_policy What {@link #transform} does when the admission queue is full
+	 * @param speculative_forwarding Start optimistic transactions with the staged writes of predecessors that share an
+	 * identifier and have already run, instead of the (soon to be stale) committed state
+	 */
+	public Distortion(
+			final DistortionStore<T> store, final DistortionAI ai, final SerializationUtil<BA> util, final int parallelism,
+			final int queue_capacity, final OverflowPolicy overflow_policy, final boolean speculative_forwarding
 	) {
 		this.store = store;
 		this.ai = ai;
@@ -95,6 +156,12 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 
 		this.parallelism = parallelism;
 
+		this.max_active = Math.max(1, parallelism - 1);
+		this.queue_capacity = Math.max(0, queue_capacity);
+		this.overflow_policy = overflow_policy;
+
+		this.speculative_forwarding = speculative_forwarding;
+
 		this.pool = new ForkJoinPool(
 				parallelism,
 				FJWT::new,
@@ -132,79 +199,262 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 		} catch (InterruptedException | ExecutionException e) {
 			throw new RuntimeException(e);
 		}
+	}
 
-		this.prodder = new Thread(() -> {
-			while (this.prodder_live) {
+	/**
+	 * <p>Atomically transform Distortion's state with the given operation</p>
+	 *
+	 * <p>If a worker slot is free and nothing is waiting, the function is handed to the pool by the calling thread.
+	 * Otherwise it waits in the admission queue and the next worker to finish hands it over. If the queue is full, the
+	 * engine's {@link OverflowPolicy} applies.</p>
+	 *
+	 * <p>The returned future is completed by the worker that finishes the function, once the function, all of its
+	 * branches and its protected function have committed. Dependent stages that don't ask for an executor run on that
+	 * worker, so keep them short.</p>
+	 *
+	 * @param operation A DistortionFunction that will be executed against the current state
+	 * @return A future that follows the function's progress (and all of the function's children), cannot be cancelled
+	 * @throws InterruptedException If interrupted while blocked on a full queue
+	 * @throws RejectedExecutionException If the queue is full and the policy is {@link OverflowPolicy#REJECT}
+	 */
+	public DistortionFuture transform(final DistortionFunction operation) throws InterruptedException {
+		final DistortionFuture future = new DistortionFuture();
 
-				final boolean doProd;
+		if (this.queue_size.get() == 0 && tryAcquire()) {
+			reallyTransform(operation, future);
+			return future;
+		}
 
-				if (this.queue.size() < 16_000) {
-					Thread.interrupted();
-					LockSupport.parkNanos(16_000_000);
-					doProd = true;
-				} else {
-					Thread.yield();
-					doProd = false;
+		if (!admit(new QueueItem(operation, future))) {
+			// caller runs, over-admit and make the caller wait it out, the permit is given back as usual when it finishes
+			this.active_count.incrementAndGet();
+			reallyTransform(operation, future);
+			future.await();
+		}
+
+		return future;
+	}
+
+	/**
+	 * <p>Atomically transform Distortion's state with each of the given operations, in iteration order</p>
+	 *
+	 * <p>The batch is admitted as a single unit. Once admitted, a consecutive block of transactions is reserved from
+	 * the store in one call and every function is handed to the pool. Each function is still its own transaction, this
+	 * only cuts out the per-function admission and ordering overhead.</p>
+	 *
+	 * @param operations The DistortionFunctions that will be executed against the current state
+	 * @return A future that follows all of the functions, which also holds each function's own future
+	 * @throws InterruptedException If interrupted while blocked on a full queue
+	 * @throws RejectedExecutionException If the queue is full and the policy is {@link OverflowPolicy#REJECT}
+	 */
+	public BatchFuture transformAll(final Collection<? extends DistortionFunction> operations)
+			throws InterruptedException {
+		final ArrayList<DistortionFunction> functions = new ArrayList<>(operations);
+		final ArrayList<DistortionFuture> futures = new ArrayList<>(functions.size());
+
+		for (int i = 0; i < functions.size(); i++) {
+			futures.add(new DistortionFuture());
+		}
+
+		final BatchFuture batch = new BatchFuture(futures);
+
+		if (functions.isEmpty()) {
+			return batch;
+		}
+
+		if (this.queue_size.get() == 0 && tryAcquire()) {
+			reallyTransformAll(functions, futures);
+			return batch;
+		}
+
+		if (!admit(new QueueItem(functions, futures))) {
+			this.active_count.incrementAndGet();
+			reallyTransformAll(functions, futures);
+			batch.await();
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Queue an item that couldn't get a permit, applying the overflow policy if the queue is full
+	 *
+	 * @return false if the caller has to run the item itself
+	 */
+	private boolean admit(final QueueItem item) throws InterruptedException {
+		while (true) {
+			final int size = this.queue_size.get();
+
+			if (size < this.queue_capacity) {
+				if (this.queue_size.compareAndSet(size, size + 1)) {
+					this.queue.add(item);
+					break;
 				}
+				continue;
+			}
 
-				while (this.active_count.get() < this.parallelism - 1) {
-					final QueueItem item = this.queue.poll();
+			switch (this.overflow_policy) {
+				case REJECT:
+					throw new RejectedExecutionException("Distortion admission queue is full");
+				case CALLER_RUNS:
+					return false;
+				case BLOCK:
+				default: {
+					final Thread current = Thread.currentThread();
 
-					if (item == null)
-						break;
+					this.blocked_submitters.add(current);
 
-					item.future.setWrapped(reallyTransform(item.function, doProd));
+					// recheck after registering, #drain might have already gone by
+					if (this.queue_size.get() >= this.queue_capacity) {
+						LockSupport.park(this);
+					}
+
+					this.blocked_submitters.remove(current);
+
+					if (Thread.interrupted()) {
+						throw new InterruptedException();
+					}
 				}
 			}
-		}, "Distortion prodder");
-		this.prodder.setDaemon(true);
-		this.prodder.start();
+		}
+
+		// all permits could have been returned between our check and the enqueue
+		drain();
+
+		return true;
+	}
+
+	private void reallyTransform(final DistortionFunction operation, final DistortionFuture future) {
+		if (operation.getExecutionPolicy() == ExecutionPolicy.READ_ONLY) {
+			// takes no slot in time-space
+			this.pool.execute(compileReadOnly(operation, future, null));
+			return;
+		}
+
+		this.pool.execute(compileTransform(
+				operation, this.store.newTransaction(Collections.EMPTY_LIST, Collections.EMPTY_LIST), null, null, future, null
+		));
+	}
+
+	private void reallyTransformAll(final List<DistortionFunction> operations, final List<DistortionFuture> futures) {
+		int writers = 0;
+		for (final DistortionFunction operation : operations) {
+			if (operation.getExecutionPolicy() != ExecutionPolicy.READ_ONLY) {
+				writers++;
+			}
+		}
+
+		final List<? extends T> transactions = this.store.newTransactions(
+				writers, Collections.EMPTY_LIST, Collections.EMPTY_LIST
+		);
+
+		// the whole batch shares one permit, the last one out gives it back
+		final AtomicInteger remaining = new AtomicInteger(operations.size());
+
+		int next_transaction = 0;
+		for (int i = 0; i < operations.size(); i++) {
+			final DistortionFunction operation = operations.get(i);
+
+			if (operation.getExecutionPolicy() == ExecutionPolicy.READ_ONLY) {
+				this.pool.execute(compileReadOnly(operation, futures.get(i), remaining));
+			} else {
+				this.pool.execute(compileTransform(
+						operation, transactions.get(next_transaction++), null, null, futures.get(i), remaining
+				));
+			}
+		}
 	}
 
-//	private synchronized void prod() {
-//		while (this.active_count.get() < this.parallelism * 2) {
-//			final QueueItem item = this.queue.poll();
-//
-//			if (item == null)
-//				return;
-//
-//			item.future.setWrapped(reallyTransform(item.function));
-//		}
-//	}
+	private boolean tryAcquire() {
+		while (true) {
+			final int active = this.active_count.get();
+
+			if (active >= this.max_active) {
+				return false;
+			}
+
+			if (this.active_count.compareAndSet(active, active + 1)) {
+				return true;
+			}
+		}
+	}
 
 	/**
-	 * Atomically transform Distortion's state with the given operation
-	 *
-	 * @param operation A DistortionFunction that will be executed against the current state
-	 * @return A future that follows the function's progress (and all of the function's children), cannot be cancelled
+	 * Hand queued work to the pool for as long as there are permits, run by submitters and finishing workers alike
 	 */
-	@SuppressWarnings("unchecked")
-	public Future<?> transform(final DistortionFunction operation) throws InterruptedException {
-		final DistortionFuture future = new DistortionFuture();
-		this.queue.put(new QueueItem(operation, future));
-//		this.prodder.interrupt();
-		return future;
+	private void drain() {
+		if (this.pool.isShutdown()) {
+			flush();
+			return;
+		}
+
+		while (!this.queue.isEmpty() && !this.pool.isShutdown() && tryAcquire()) {
+			final QueueItem item = this.queue.poll();
+
+			if (item == null) {
+				// someone else got it
+				this.active_count.decrementAndGet();
+				continue;
+			}
+
+			if (item.batch == null) {
+				reallyTransform(item.function, item.future);
+			} else {
+				reallyTransformAll(item.batch, item.batch_futures);
+			}
+
+			this.queue_size.decrementAndGet();
+
+			final Thread waiter = this.blocked_submitters.poll();
+
+			if (waiter != null) {
+				LockSupport.unpark(waiter);
+			}
+		}
 	}
 
-	private Future<?> reallyTransform(final DistortionFunction operation, final boolean doProd) {
-		this.active_count.incrementAndGet();
-		return this.pool.submit(compileTransform(
-				operation, this.store.newTransaction(Collections.EMPTY_LIST, Collections.EMPTY_LIST), null, null, true, doProd
-		));
+	/**
+	 * Fail everything still in the queue once the pool is shut down, it will never get a permit, and wake everyone
+	 * blocked on it being full so they find out too
+	 */
+	private void flush() {
+		QueueItem item;
+
+		while ((item = this.queue.poll()) != null) {
+			this.queue_size.decrementAndGet();
+
+			final IllegalStateException e = new IllegalStateException("Distortion is in a failure state", this.death_cause);
+
+			if (item.batch_futures == null) {
+				item.future.completeExceptionally(e);
+			} else {
+				for (final DistortionFuture future : item.batch_futures) {
+					future.completeExceptionally(e);
+				}
+			}
+		}
+
+		Thread waiter;
+
+		while ((waiter = this.blocked_submitters.poll()) != null) {
+			LockSupport.unpark(waiter);
+		}
 	}
 
 	/**
 	 * <p>Shutdown the Distortion engine</p>
 	 *
+	 * <p>Functions still waiting in the admission queue are never run, their futures complete exceptionally</p>
+	 *
 	 * <p>WARNING: Distortion can throw an exception if work is still running/scheduled when you shutdown</p>
 	 */
 	public void shutdown() throws InterruptedException {
 		this.death_cause = new Exception("Distortion has been shutdown");
 
-		this.prodder_live = false;
-
 		this.pool.shutdown();
 
+		flush();
+
 		this.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 	}
 
@@ -212,16 +462,19 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 	This is method is complicated... and undocumented for the most part
 
 	Statuses are...
-	0 - untouched - do not idle with monitor unless owner
+	0 - untouched - children wait for it to settle
 	1 - commit SUCCESSFUL - ok to proceed and commit yourself
 	2 - commit FAILED - abandon work if child of failed parent
 
-	parentStatus will always be 1 or 2 when a child grabs monitor, no need to test for 0
+	A status only ever settles once: every attempt gets a fresh one, and so does the protected function once we've
+	committed (its failure mustn't fail our children), and the finally makes sure whatever attempt we end on settles so
+	no child waits forever. (The parent used to hold the monitor for its whole run instead, which deadlocked
+	a child against its parent's protected function and dropped the children of retried attempts.)
 
 	siblings will always succeed, so we can ignore them
 
 	A note on status 0, we cheat and read the status without synchronizing to avoid said synchronizing. 0 lets us know we
-	can't cheat and have to grab the monitor and wait it out.
+	can't cheat and have to wait it out.
 	 */
 
 	/**
@@ -229,24 +482,36 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 	 * @param trunk Transaction will be branched off this if present
 	 * @param sprout Transaction will be bound to this if present
 	 * @param parentStatus The optional status to be waited on if this transaction has a parent
+	 * @param completion Only set for base transforms, which also hold an admission permit that must be given back
+	 * @param batch_remaining If part of a batch, the count of batch members still running (they share the permit)
 	 */
 	private Runnable compileTransform(
 			final DistortionFunction operation, final @Nullable T trunk, final @Nullable T sprout,
-			@Nullable final MutableInt parentStatus, final boolean base, final boolean doProd
+			@Nullable final MutableInt parentStatus, final @Nullable DistortionFuture completion,
+			final @Nullable AtomicInteger batch_remaining
 	) {
 		return () -> {
 			if (this.death_cause != null) {
-				throw new IllegalStateException("Distortion is in a failure state", this.death_cause);
+				final IllegalStateException e = new IllegalStateException("Distortion is in a failure state", this.death_cause);
+
+				if (completion == null) {
+					throw e;
+				}
+
+				// nothing to join a base transform, don't kill the worker over it
+				finish(completion, batch_remaining, e);
+				return;
 			}
 
 			MutableInt myStatus = new MutableInt(0);
+			Throwable failure = null;
 
 			this.jobs_submitted.increment();
 
 			try {
 				ArrayList<ForkJoinTask> joinList = null;
 
-				synchronized (myStatus) {
+				try {
 
 					DistortionFunction activeOperation = operation;
 					T transaction = null;
@@ -279,10 +544,11 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 
 						} else if (policy != ExecutionPolicy.USE_AI) {
 
-							if (policy == ExecutionPolicy.FORCE_OPTIMISTIC) {
-								mode = ExecutionMode.OPTIMISTIC;
-							} else {
+							// READ_ONLY only gets here as a branch or protected function, where it has a place in the order
+							if (policy == ExecutionPolicy.FORCE_GLOBAL_BLOCK) {
 								mode = ExecutionMode.GLOBAL_STALL;
+							} else {
+								mode = ExecutionMode.OPTIMISTIC;
 							}
 							flags = null;
 
@@ -303,7 +569,6 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 						final int commit_status;
 						switch (mode) {
 							default:
-//							case FINE_BLOCK:
 							case OPTIMISTIC: {
 								// STRATEGY
 								// var = commit()
@@ -322,12 +587,21 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 									oldT.close();
 								}
 
-								transaction.start(null, null);
+								if (this.speculative_forwarding && pending != null) {
+									startForwarded(transaction, pending);
+								} else {
+									transaction.start(null, null);
+								}
 
 								int status = -1000;
 								try {
 									eval(transaction, activeOperation);
 
+									// a predecessor already overwrote our reads, don't fork the branches only to kill them
+									if (transaction.isDoomed()) {
+										throw new DoomedReadException();
+									}
+
 									final Collection<DistortionFunction> branchFunctions = activeOperation.getBranches();
 
 									if (branchFunctions != null) {
@@ -350,7 +624,7 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 											final ForkJoinTask task = ForkJoinTask.adapt(
 													compileTransform(
 															branch, null, transaction.chain(pending2_identifiers, branch.getIdentifiers()),
-															myStatus, false, false
+															myStatus, null, null
 													)
 											);
 
@@ -376,10 +650,8 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 											case 0:
 											default: {
 												final BooleanBlocker parentBlocker = new BooleanBlocker() {
-													@Override public boolean block() {
-														synchronized (parentStatus) {
-															setValue(parentStatus.getValue() == 1);
-														}
+													@Override public boolean block() throws InterruptedException {
+														setValue(parentStatus.await() == 1);
 														return true;
 													}
 												};
@@ -396,6 +668,15 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 										return;
 									}
 
+									// may have been a long wait
+									if (transaction.isDoomed()) {
+										throw new DoomedReadException();
+									}
+
+									if (activeOperation.getProtectedFunction() == null) {
+										transaction.seal();
+									}
+
 									final T transactionCapture = transaction;
 									final PositiveIntBlocker commitBlocker = new PositiveIntBlocker() {
 										@Override public boolean block() {
@@ -409,8 +690,14 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 									status = commitBlocker.getValue();
 
 								} catch (final Throwable t) {
-									force_stall = true;
-									status = t instanceof ExpiredReadException ? 10 : 40;
+									if (transaction.isDoomed()) {
+										// whatever was thrown, it came from a doomed run, just go again
+										this.early_aborts.increment();
+										status = 30;
+									} else {
+										force_stall = true;
+										status = t instanceof ExpiredReadException ? 10 : 40;
+									}
 								}
 
 								commit_status = status;
@@ -421,7 +708,6 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 
 								break;
 							}
-							//									case FINE_BLOCK:
 							case GLOBAL_STALL: {
 								// STRATEGY
 								// transaction: { commit() }
@@ -490,7 +776,7 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 										final ForkJoinTask task = ForkJoinTask.adapt(
 												compileTransform(
 														branch, null, transaction.chain(pending2_identifiers, branch.getIdentifiers()),
-														myStatus, false, false
+														myStatus, null, null
 												)
 										);
 
@@ -516,10 +802,8 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 										case 0:
 										default: {
 											final BooleanBlocker parentBlocker = new BooleanBlocker() {
-												@Override public boolean block() {
-													synchronized (parentStatus) {
-														setValue(parentStatus.getValue() == 1);
-													}
+												@Override public boolean block() throws InterruptedException {
+													setValue(parentStatus.await() == 1);
 													return true;
 												}
 											};
@@ -536,6 +820,10 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 									return;
 								}
 
+								if (activeOperation.getProtectedFunction() == null) {
+									transaction.seal();
+								}
+
 								if ((commit_status = transaction.commit(true)) != 0) {
 									throw new RuntimeException("Globally stalled transaction failed to commit with 0 status code");
 								}
@@ -544,14 +832,21 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 							}
 							case FINE_BLOCK: {
 								// STRATEGY
-								// bad_transaction.getStagedData()
+								// flagged_transaction.getStagedData() -> soft state
+								// var = commit()
+								// train(var)
 
 								final HashMap<ByteArray, BA> ephemeral_soft_state = new HashMap<>();
 								final HashMap<ByteArray, BA> persistent_soft_state = new HashMap<>();
-//								final MutableBoolean commit_optimistically = new MutableBoolean(true);
 
-								int j = 0;
+								// flags line up with pending, so every entry moves the index, skipped or not
+								int j = -1;
 								for (final T pending_transaction : pending) {
+									j++;
+
+									if (!flags[j]) {
+										continue;
+									}
 
 									// don't wait for a transaction set to complete after us
 									// and in the case of a sprout, don't wait on our parent
@@ -568,63 +863,34 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 										continue;
 									}
 
-//									if (commit_optimistically.getValue() && flags[j]) {
-									if (flags[j]) {
-
-										final Future<StagedData<BA>> stagedData_future = pending_transaction.getStagedData();
-
-										final ManagedBlocker blocker = new VoidBlocker() {
+									final Future<StagedData<BA>> stagedData_future = pending_transaction.getStagedData();
 
-//											boolean fresh = true;
+									this.fine_block_waits.increment();
 
-											@Override
-											public boolean block() throws InterruptedException {
-												try {
+									// pending is in commit order, so later writers overwrite earlier ones
+									ForkJoinPool.managedBlock(
+											new VoidBlocker() {
+												@Override public boolean block() throws InterruptedException {
+													try {
+														final @Nullable StagedData<BA> stagedData = stagedData_future.get();
 
-													final @Nullable StagedData<BA> stagedData;
+														// null means it failed validation, its retry has nothing for us yet
+														if (stagedData != null) {
+															if (stagedData.ephermal_map != null) {
+																ephemeral_soft_state.putAll(stagedData.ephermal_map);
+															}
 
-//													if (this.fresh) {
-//														stagedData = stagedData_future.get(Distortion.this.stabilization, TimeUnit.MILLISECONDS);
-//													} else {
-														stagedData = stagedData_future.get();
-//													}
-
-//													this.fresh = false;
-
-													if (stagedData == null) {
-														//																System.out.println(pending.size());
-//																														commit_optimistically.setValue(false);
-													} else {
-														if (stagedData.ephermal_map != null) {
-															ephemeral_soft_state.putAll(stagedData.ephermal_map);
+															if (stagedData.persistent_map != null) {
+																persistent_soft_state.putAll(stagedData.persistent_map);
+															}
 														}
+													} catch (final ExecutionException ignored) {}
 
-														if (stagedData.persistent_map != null) {
-															persistent_soft_state.putAll(stagedData.persistent_map);
-														}
-													}
-												} catch (final ExecutionException ignored) {
-//																												commit_optimistically.setValue(false);
+													markAsComplete();
+													return true;
 												}
-//												catch (final TimeoutException ignored) {
-//													Distortion.this.stabilization += 1000;
-//													System.out.println("timeout");
-//													return false;
-//												}
-												markAsComplete();
-												return true;
 											}
-										};
-
-//										if (shouldFineStall()) {
-//											blockInPlace(blocker);
-//										}
-
-										ForkJoinPool.managedBlock(blocker);
-
-									}
-
-									j++;
+									);
 								}
 
 								if (transaction == null) {
@@ -642,39 +908,15 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 
 								transaction.start(ephemeral_soft_state, persistent_soft_state);
 
-								// if not commit optimistically, do a blocking transaction like in GLOBAL_STALL
-
-//								if (commit_optimistically.getValue()) {
-//									transaction.start(ephemeral_soft_state, persistent_soft_state);
-//								} else {
-//
-//									System.out.println("bad");
-//
-//									transaction.start(null, null);
-//									final T transactionCapture1 = transaction;
-//									ForkJoinPool.managedBlock(
-//											new VoidBlocker() {
-//												@Override public boolean block() {
-//													transactionCapture1.commit();
-//													markAsComplete();
-//													return true;
-//												}
-//											}
-//									);
-//
-//									this.stall_transactions.increment();
-//
-//									final T oldT = transaction;
-//									transaction = transaction.chain(pending_identifiers, activeOperation.getIdentifiers());
-//									oldT.close();
-//
-//									transaction.start(null, null);
-//								}
-
 								int status = -1000;
 								try {
 									eval(transaction, activeOperation);
 
+									// a predecessor already overwrote our reads, don't fork the branches only to kill them
+									if (transaction.isDoomed()) {
+										throw new DoomedReadException();
+									}
+
 									final Collection<DistortionFunction> branchFunctions = activeOperation.getBranches();
 
 									if (branchFunctions != null) {
@@ -697,7 +939,7 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 											final ForkJoinTask task = ForkJoinTask.adapt(
 													compileTransform(
 															branch, null, transaction.chain(pending2_identifiers, branch.getIdentifiers()),
-															myStatus, false, false
+															myStatus, null, null
 													)
 											);
 
@@ -723,10 +965,8 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 											case 0:
 											default: {
 												final BooleanBlocker parentBlocker = new BooleanBlocker() {
-													@Override public boolean block() {
-														synchronized (parentStatus) {
-															setValue(parentStatus.getValue() == 1);
-														}
+													@Override public boolean block() throws InterruptedException {
+														setValue(parentStatus.await() == 1);
 														return true;
 													}
 												};
@@ -743,6 +983,15 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 										return;
 									}
 
+									// may have been a long wait
+									if (transaction.isDoomed()) {
+										throw new DoomedReadException();
+									}
+
+									if (activeOperation.getProtectedFunction() == null) {
+										transaction.seal();
+									}
+
 									boolean set = false;
 
 									for (int i = 0; i < 20; i++) {
@@ -770,12 +1019,20 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 									}
 
 								} catch (final Throwable t) {
-									force_stall = true;
-									status = t instanceof ExpiredReadException ? 10 : 40;
+									if (transaction.isDoomed()) {
+										// whatever was thrown, it came from a doomed run, just go again
+										this.early_aborts.increment();
+										status = 30;
+									} else {
+										force_stall = true;
+										status = t instanceof ExpiredReadException ? 10 : 40;
+									}
 								}
 
 								commit_status = status;
 
+								this.ai.train(transaction.getPendingIdentifiers(), transaction.getIdentifiers(), commit_status);
+
 								break;
 							}
 						}
@@ -785,7 +1042,7 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 								// success
 
 								// all operations after this will be a success, just leave it at 1
-								myStatus.setValue(1);
+								myStatus.settle(1);
 
 								// add children to join list if present
 								if (branches != null) {
@@ -802,6 +1059,9 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 									break loop;
 								}
 
+								// the protected function's branches wait on it alone, ours stay settled however it goes
+								myStatus = new MutableInt(0);
+
 								this.jobs_submitted.increment();
 
 								activeOperation = protectedFunction;
@@ -814,7 +1074,7 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 								// failure
 
 								// children could have a reference to this status, so create a new one when we try again
-								myStatus.setValue(2);
+								myStatus.settle(2);
 								myStatus = new MutableInt(0);
 
 								if (branches != null) {
@@ -833,6 +1093,10 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 					}
 
 					transaction.close();
+				} finally {
+					if (myStatus.getValue() == 0) {
+						myStatus.settle(2);
+					}
 				}
 
 				if (joinList != null) {
@@ -845,18 +1109,170 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 				} else {
 					this.death_cause = new Exception("Error in Distortion transform loop", t);
 				}
+
+				failure = this.death_cause;
 			}
 
-			if (base) {
-				this.active_count.decrementAndGet();
+			if (completion != null) {
+				finish(completion, batch_remaining, failure);
+			}
+		};
+	}
+
+	/**
+	 * <p>Run a base READ_ONLY function against a snapshot of the committed state</p>
+	 *
+	 * <p>Nothing is ordered, waited on or committed. If the snapshot expires under us we take a new one and run the
+	 * function again. Stores without snapshots get an ordinary optimistic transaction instead.</p>
+	 *
+	 * @param completion The future of the base transform, which also holds an admission permit that must be given back
+	 * @param batch_remaining If part of a batch, the count of batch members still running (they share the permit)
+	 */
+	private Runnable compileReadOnly(
+			final DistortionFunction operation, final DistortionFuture completion,
+			final @Nullable AtomicInteger batch_remaining
+	) {
+		return () -> {
+			if (this.death_cause != null) {
+				finish(
+						completion, batch_remaining,
+						new IllegalStateException("Distortion is in a failure state", this.death_cause)
+				);
+				return;
+			}
 
-				if (doProd) {
-					this.prodder.interrupt();
+			final @Nullable T first = this.store.newSnapshot();
+
+			if (first == null) {
+				compileTransform(
+						operation, this.store.newTransaction(Collections.EMPTY_LIST, Collections.EMPTY_LIST), null, null,
+						completion, batch_remaining
+				).run();
+				return;
+			}
+
+			this.jobs_submitted.increment();
+
+			Throwable failure = null;
+			T snapshot = first;
+
+			while (true) {
+				this.read_only_transactions.increment();
+
+				try {
+					snapshot.start(null, null);
+					eval(snapshot, operation);
+
+					if (operation.getBranches() != null || operation.getProtectedFunction() != null) {
+						failure = new IllegalStateException("Read-only functions can't have branches or a protected function");
+					}
+
+					break;
+				} catch (final ExpiredReadException e) {
+					operation.reset();
+				} catch (final Throwable t) {
+					// nothing was written, the failure is the function's alone
+					failure = t;
+					break;
+				} finally {
+					snapshot.close();
 				}
+
+				snapshot = this.store.newSnapshot();
 			}
+
+			finish(completion, batch_remaining, failure);
 		};
 	}
 
+	/**
+	 * Give back the permit (shared by a batch) and complete the base transform's future, right here on the worker
+	 */
+	private void finish(
+			final DistortionFuture completion, final @Nullable AtomicInteger batch_remaining, final @Nullable Throwable failure
+	) {
+		if (batch_remaining == null || batch_remaining.decrementAndGet() == 0) {
+			this.active_count.decrementAndGet();
+			drain();
+		}
+
+		if (failure == null) {
+			completion.complete(null);
+		} else {
+			completion.completeExceptionally(failure);
+		}
+	}
+
+	/**
+	 * <p>Start the transaction with, as soft state, the staged writes of pending predecessors that share one of its
+	 * identifiers and have already reached their commit</p>
+	 *
+	 * <p>Nothing is waited on, predecessors that are still running are left out. Soft reads are validated at commit like
+	 * any other read, so forwarding from a predecessor that goes on to fail only costs the retry we'd have had
+	 * anyway.</p>
+	 */
+	private void startForwarded(final T transaction, final Collection<T> pending) {
+		final @Nullable Collection<Identifier> identifiers = transaction.getIdentifiers();
+
+		HashMap<ByteArray, BA> ephemeral_soft_state = null;
+		HashMap<ByteArray, BA> persistent_soft_state = null;
+
+		if (identifiers != null) {
+			// pending is in commit order, so later writers overwrite earlier ones
+			for (final T pending_transaction : pending) {
+				if (pending_transaction.compareTo(transaction) >= 0) {
+					continue;
+				}
+
+				final @Nullable Collection<Identifier> pending_identifiers = pending_transaction.getIdentifiers();
+
+				if (pending_identifiers == null || Collections.disjoint(pending_identifiers, identifiers)) {
+					continue;
+				}
+
+				final Future<StagedData<BA>> stagedData_future = pending_transaction.getStagedData();
+
+				if (!stagedData_future.isDone()) {
+					continue;
+				}
+
+				final @Nullable StagedData<BA> stagedData;
+				try {
+					stagedData = stagedData_future.get();
+				} catch (InterruptedException | ExecutionException ignored) {
+					continue;
+				}
+
+				// null means it failed validation
+				if (stagedData == null) {
+					continue;
+				}
+
+				if (stagedData.ephermal_map != null && !stagedData.ephermal_map.isEmpty()) {
+					if (ephemeral_soft_state == null) {
+						ephemeral_soft_state = new HashMap<>();
+					}
+
+					ephemeral_soft_state.putAll(stagedData.ephermal_map);
+				}
+
+				if (stagedData.persistent_map != null && !stagedData.persistent_map.isEmpty()) {
+					if (persistent_soft_state == null) {
+						persistent_soft_state = new HashMap<>();
+					}
+
+					persistent_soft_state.putAll(stagedData.persistent_map);
+				}
+			}
+		}
+
+		if (ephemeral_soft_state != null || persistent_soft_state != null) {
+			this.forwarded_transactions.increment();
+		}
+
+		transaction.start(ephemeral_soft_state, persistent_soft_state);
+	}
+
 	private void eval(final T transaction, final DistortionFunction function) {
 		SerializationContext ephemeral_context = null;
 		SerializationContext persistent_context = null;
@@ -883,11 +1299,14 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 			function.transform(persistent_map, ephemeral_map);
 
 		} finally {
-			if (ephemeral_context != null)
-				ephemeral_context.close();
-
-			if (persistent_context != null)
-				persistent_context.close();
+			// both, even if the first throws, each closes a scope of the factory
+			try {
+				if (ephemeral_context != null)
+					ephemeral_context.close();
+			} finally {
+				if (persistent_context != null)
+					persistent_context.close();
+			}
 		}
 	}
 
@@ -899,86 +1318,97 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 		toreturn.put("jobs submitted", this.jobs_submitted.sum());
 		toreturn.put("job transactions", this.job_transactions.sum());
 		toreturn.put("stall transactions", this.stall_transactions.sum());
+		toreturn.put("fine block waits", this.fine_block_waits.sum());
+		toreturn.put("forwarded transactions", this.forwarded_transactions.sum());
+		toreturn.put("early aborts", this.early_aborts.sum());
+		toreturn.put("read only transactions", this.read_only_transactions.sum());
+
+		toreturn.put("active jobs", this.active_count.get());
+		toreturn.put("queued jobs", this.queue_size.get());
 
 		return toreturn;
 	}
 
-	@Override
-	protected void finalize() throws Throwable {
-		this.prodder_live = false;
-		super.finalize();
+	/**
+	 * What {@link #transform} does when the admission queue is full
+	 */
+	public enum OverflowPolicy {
+		/** Park the submitting thread until the queue has room */
+		BLOCK,
+		/** Throw a {@link RejectedExecutionException} */
+		REJECT,
+		/** Skip the queue, then have the submitting thread wait until its function (and its children) completes */
+		CALLER_RUNS
 	}
 
 	static class QueueItem {
 		public final DistortionFunction function;
 		public final DistortionFuture future;
 
+		public final @Nullable List<DistortionFunction> batch;
+		public final @Nullable List<DistortionFuture> batch_futures;
+
 		QueueItem(final DistortionFunction function, final DistortionFuture future) {
 			this.function = function;
 			this.future = future;
+			this.batch = null;
+			this.batch_futures = null;
+		}
+
+		QueueItem(final List<DistortionFunction> batch, final List<DistortionFuture> batch_futures) {
+			this.function = null;
+			this.future = null;
+			this.batch = batch;
+			this.batch_futures = batch_futures;
 		}
 	}
 
-	static class DistortionFuture<T> implements Future<T> {
-		private volatile Future<T> wrapped = null;
-		private boolean flagged = false;
+	/**
+	 * <p>The future returned by {@link #transform}, completed by the worker that finishes the transform</p>
+	 *
+	 * <p>Cannot be cancelled, {@link #cancel} does nothing</p>
+	 */
+	public static class DistortionFuture extends CompletableFuture<Void> {
 
 		DistortionFuture() {}
 
-		DistortionFuture(final Future<T> wrapped) {
-			this.wrapped = wrapped;
-		}
-
 		@Override public boolean cancel(final boolean mayInterruptIfRunning) {
 			return false;
 		}
 
-		@Override public boolean isCancelled() {
-			return false;
-		}
-
-		@Override public boolean isDone() {
-			if (this.wrapped == null) {
-				return false;
-			}
-
-			return this.wrapped.isDone();
+		/**
+		 * Wait for completion without throwing the failure, if any
+		 */
+		void await() throws InterruptedException {
+			try {
+				get();
+			} catch (final ExecutionException ignored) {}
 		}
+	}
 
-		@Override public T get() throws InterruptedException, ExecutionException {
-			while (this.wrapped == null) {
-				synchronized (this) {
-					flagged = true;
-					this.wait();
-				}
-			}
-
-			return this.wrapped.get();
-		}
+	/**
+	 * <p>The future returned by {@link #transformAll}, completes when every function in the batch has</p>
+	 *
+	 * <p>{@link #futures} holds each function's own future, in submission order</p>
+	 */
+	public static class BatchFuture extends DistortionFuture {
+		public final List<DistortionFuture> futures;
 
-		@Override public T get(final long timeout, final @NotNull TimeUnit unit)
-				throws InterruptedException, ExecutionException, TimeoutException {
-			final long end_time = System.currentTimeMillis() + unit.toMillis(timeout);
+		BatchFuture(final List<DistortionFuture> futures) {
+			this.futures = Collections.unmodifiableList(futures);
 
-			while (this.wrapped == null) {
-				synchronized (this) {
-					flagged = true;
-					this.wait(Math.max(0, end_time - System.currentTimeMillis()));
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).whenComplete((v, t) -> {
+				if (t == null) {
+					complete(null);
+				} else {
+					completeExceptionally(t);
 				}
-			}
-
-			return this.wrapped.get(timeout, unit);
-		}
-
-		public synchronized void setWrapped(final Future<T> wrapped) {
-			this.wrapped = wrapped;
-			if (flagged)
-				this.notifyAll();
+			});
 		}
 	}
 
 	static class MutableInt {
-		public int value;
+		public volatile int value;
 
 		MutableInt(final int value) {
 			this.value = value;
@@ -991,6 +1421,19 @@ public class Distortion<T extends DistortionTransaction<T, BA>, BA extends ByteA
 		public void setValue(final int value) {
 			this.value = value;
 		}
+
+		public synchronized void settle(final int value) {
+			this.value = value;
+			notifyAll();
+		}
+
+		public synchronized int await() throws InterruptedException {
+			while (this.value == 0) {
+				wait();
+			}
+
+			return this.value;
+		}
 	}
 
 	static class MutableBoolean {
@@ -19,6 +19,7 @@ import sun.misc.Unsafe;
 import java.io.*;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.Map.Entry;
@@ -43,6 +44,8 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 
 	public static final Unsafe unsafe;
 
+	public static final boolean BIG_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+
 	// Distortion object offsets
 	static final long struct_field_offset;
 
@@ -195,6 +198,11 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		return temp;
 	}
 
+	@Override
+	public BA wrap(final byte[] array) {
+		return this.factory.wrap(array);
+	}
+
 	/**
 	 * <p>A utility method to copy a generic {@link ByteArray} to the ByteArray imp</p>
 	 *
@@ -202,11 +210,9 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 	 * @return The {@link ByteArray} imp
 	 */
 	public BA BA(final ByteArray array) {
-		final BA temp = allocate(array.length());
-		for (int i = 0; i < array.length(); i++) {
-			temp.write(i, array.read(i));
-		}
-		return temp;
+		final byte[] bytes = new byte[array.length()];
+		array.copyTo(0, bytes, 0, bytes.length);
+		return wrap(bytes);
 	}
 
 	/**
@@ -523,8 +529,14 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		@SuppressWarnings("FieldAccessedSynchronizedAndUnsynchronized")
 		boolean no_unpack = false;
 
+		/**
+		 * <p>Opens a scope of the factory (see {@link ByteArrayFactory#openScope}) on this thread, until {@link #close}, which
+		 * has to be called on it too</p>
+		 */
 		public SerializationContext(final KV<BA> root) {
 			this.root = root;
+
+			SerializationUtil.this.factory.openScope();
 		}
 
 		/**
@@ -604,19 +616,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof short[]) {
 
 				final short[] shortar = (short[]) obj;
-				final byte[][] temp_array = new byte[shortar.length][];
+				final byte[] array = elementArray((byte) 0x09, shortar.length, 2);
 
-				for (int i = 0; i < shortar.length; i++) {
-					temp_array[i] = new ShortUnion(shortar[i]).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(shortar.length);
+				for (final short e : shortar) {
+					unsafe.putShort(array, offset, bigEndian(e));
+					offset += 2;
 				}
 
-				if (shortar.length < 256) {
-					return compose((byte) 0x09, (byte) (shortar.length - 128), temp_array);
-				} else if (shortar.length < 65536) {
-					return compose((byte) 0x0A, new ShortUnion((short) (shortar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x0B, new IntUnion(shortar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof Character) {
 
@@ -625,19 +633,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof char[]) {
 
 				final char[] charar = (char[]) obj;
-				final byte[][] temp_array = new byte[charar.length][];
+				final byte[] array = elementArray((byte) 0x0D, charar.length, 2);
 
-				for (int i = 0; i < charar.length; i++) {
-					temp_array[i] = new ShortUnion((short) (charar[i] - 32768)).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(charar.length);
+				for (final char e : charar) {
+					unsafe.putShort(array, offset, bigEndian((short) (e - 32768)));
+					offset += 2;
 				}
 
-				if (charar.length < 256) {
-					return compose((byte) 0x0D, (byte) (charar.length - 128), temp_array);
-				} else if (charar.length < 65536) {
-					return compose((byte) 0x0E, new ShortUnion((short) (charar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x0F, new IntUnion(charar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof Integer) {
 
@@ -646,19 +650,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof int[]) {
 
 				final int[] intar = (int[]) obj;
-				final byte[][] temp_array = new byte[intar.length][];
+				final byte[] array = elementArray((byte) 0x11, intar.length, 4);
 
-				for (int i = 0; i < intar.length; i++) {
-					temp_array[i] = new IntUnion(intar[i]).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(intar.length);
+				for (final int e : intar) {
+					unsafe.putInt(array, offset, bigEndian(e));
+					offset += 4;
 				}
 
-				if (intar.length < 256) {
-					return compose((byte) 0x11, (byte) (intar.length - 128), temp_array);
-				} else if (intar.length < 65536) {
-					return compose((byte) 0x12, new ShortUnion((short) (intar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x13, new IntUnion(intar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof Long) {
 
@@ -667,19 +667,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof long[]) {
 
 				final long[] longar = (long[]) obj;
-				final byte[][] temp_array = new byte[longar.length][];
+				final byte[] array = elementArray((byte) 0x15, longar.length, 8);
 
-				for (int i = 0; i < longar.length; i++) {
-					temp_array[i] = new LongUnion(longar[i]).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(longar.length);
+				for (final long e : longar) {
+					unsafe.putLong(array, offset, bigEndian(e));
+					offset += 8;
 				}
 
-				if (longar.length < 256) {
-					return compose((byte) 0x15, (byte) (longar.length - 128), temp_array);
-				} else if (longar.length < 65536) {
-					return compose((byte) 0x16, new ShortUnion((short) (longar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x17, new IntUnion(longar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof Float) {
 
@@ -688,19 +684,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof float[]) {
 
 				final float[] floatar = (float[]) obj;
-				final byte[][] temp_array = new byte[floatar.length][];
+				final byte[] array = elementArray((byte) 0x19, floatar.length, 4);
 
-				for (int i = 0; i < floatar.length; i++) {
-					temp_array[i] = new IntUnion(Float.floatToRawIntBits(floatar[i])).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(floatar.length);
+				for (final float e : floatar) {
+					unsafe.putInt(array, offset, bigEndian(Float.floatToRawIntBits(e)));
+					offset += 4;
 				}
 
-				if (floatar.length < 256) {
-					return compose((byte) 0x19, (byte) (floatar.length - 128), temp_array);
-				} else if (floatar.length < 65536) {
-					return compose((byte) 0x1A, new ShortUnion((short) (floatar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x1B, new IntUnion(floatar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof Double) {
 
@@ -709,19 +701,15 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			} else if (obj instanceof double[]) {
 
 				final double[] dublar = (double[]) obj;
-				final byte[][] temp_array = new byte[dublar.length][];
+				final byte[] array = elementArray((byte) 0x1D, dublar.length, 8);
 
-				for (int i = 0; i < dublar.length; i++) {
-					temp_array[i] = new LongUnion(Double.doubleToRawLongBits(dublar[i])).getBytes();
+				long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header(dublar.length);
+				for (final double e : dublar) {
+					unsafe.putLong(array, offset, bigEndian(Double.doubleToRawLongBits(e)));
+					offset += 8;
 				}
 
-				if (dublar.length < 256) {
-					return compose((byte) 0x1D, (byte) (dublar.length - 128), temp_array);
-				} else if (dublar.length < 65536) {
-					return compose((byte) 0x1E, new ShortUnion((short) (dublar.length - 32768)).getBytes(), temp_array);
-				} else {
-					return compose((byte) 0x1F, new IntUnion(dublar.length).getBytes(), temp_array);
-				}
+				return wrap(array);
 
 			} else if (obj instanceof String) {
 
@@ -786,6 +774,45 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			}
 		}
 
+		/**
+		 * <p>A byte[] the size of a whole primitive array's serialization, with the tag and the length written, for the
+		 * elements to be put straight in big-endian (the same bytes as the {@link ShortUnion}/{@link IntUnion}/
+		 * {@link LongUnion} encoding, element by element)</p>
+		 *
+		 * @param tag The tag for a length under 256, the next two are for under 65536 and the rest
+		 * @param width The size of an element
+		 */
+		private byte[] elementArray(final byte tag, final int length, final int width) {
+			final byte[] array = new byte[Math.addExact(header(length), Math.multiplyExact(length, width))];
+
+			if (length < 256) {
+				array[0] = tag;
+				array[1] = (byte) (length - 128);
+			} else if (length < 65536) {
+				final ShortUnion union = new ShortUnion((short) (length - 32768));
+				array[0] = (byte) (tag + 1);
+				array[1] = union.getByte1();
+				array[2] = union.getByte2();
+			} else {
+				final IntUnion union = new IntUnion(length);
+				array[0] = (byte) (tag + 2);
+				array[1] = union.getByte1();
+				array[2] = union.getByte2();
+				array[3] = union.getByte3();
+				array[4] = union.getByte4();
+			}
+
+			return array;
+		}
+
+		/**
+		 * @param tag The tag for a length under 256, as {@link #elementArray}
+		 * @return Where the elements of a serialized primitive array start
+		 */
+		private int elementsStart(final ByteArray bytes, final byte tag) {
+			return bytes.read(0) == tag ? 2 : bytes.read(0) == tag + 1 ? 3 : 5;
+		}
+
 		private Object deserialize(final ByteArray bytes) {
 			switch (bytes.read(0)) {
 				case 0x01:
@@ -799,225 +826,129 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 					return bytes.read(1);
 				case 0x05: {
 					final byte[] toreturn = new byte[bytes.length() - 2];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = bytes.read(i + 2);
-					}
+					bytes.copyTo(2, toreturn, 0, toreturn.length);
 					return toreturn;
 				}
 				case 0x06: {
 					final byte[] toreturn = new byte[bytes.length() - 3];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = bytes.read(i + 3);
-					}
+					bytes.copyTo(3, toreturn, 0, toreturn.length);
 					return toreturn;
 				}
 				case 0x07: {
 					final byte[] toreturn = new byte[bytes.length() - 5];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = bytes.read(i + 5);
-					}
+					bytes.copyTo(5, toreturn, 0, toreturn.length);
 					return toreturn;
 				}
 
 				case 0x08:
-					return new ShortUnion(bytes.read(1), bytes.read(2)).getShort();
-				case 0x09: {
-					final short[] toreturn = new short[(bytes.length() - 2) / 2];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new ShortUnion(bytes.read(i * 2 + 2), bytes.read(i * 2 + 3)).getShort();
-					}
-					return toreturn;
-				}
-				case 0x0A: {
-					final short[] toreturn = new short[(bytes.length() - 3) / 2];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new ShortUnion(bytes.read(i * 2 + 3), bytes.read(i * 2 + 4)).getShort();
-					}
-					return toreturn;
-				}
+					return bytes.getShort(1);
+				case 0x09:
+				case 0x0A:
 				case 0x0B: {
-					final short[] toreturn = new short[(bytes.length() - 5) / 2];
+					final int header = elementsStart(bytes, (byte) 0x09);
+					final byte[] array = bytes.toArray();
+					final short[] toreturn = new short[(array.length - header) / 2];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new ShortUnion(bytes.read(i * 2 + 5), bytes.read(i * 2 + 6)).getShort();
+						toreturn[i] = bigEndian(unsafe.getShort(array, offset));
+						offset += 2;
 					}
 					return toreturn;
 				}
 
 				case 0x0C:
-					return (char) (new ShortUnion(bytes.read(1), bytes.read(2)).getShort() + 32768);
-				case 0x0D: {
-					final char[] toreturn = new char[(bytes.length() - 2) / 2];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = (char) (new ShortUnion(bytes.read(i * 2 + 2), bytes.read(i * 2 + 3)).getShort() + 32768);
-					}
-					return toreturn;
-				}
-				case 0x0E: {
-					final char[] toreturn = new char[(bytes.length() - 3) / 2];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = (char) (new ShortUnion(bytes.read(i * 2 + 3), bytes.read(i * 2 + 4)).getShort() + 32768);
-					}
-					return toreturn;
-				}
+					return (char) (bytes.getShort(1) + 32768);
+				case 0x0D:
+				case 0x0E:
 				case 0x0F: {
-					final char[] toreturn = new char[(bytes.length() - 5) / 2];
+					final int header = elementsStart(bytes, (byte) 0x0D);
+					final byte[] array = bytes.toArray();
+					final char[] toreturn = new char[(array.length - header) / 2];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = (char) (new ShortUnion(bytes.read(i * 2 + 5), bytes.read(i * 2 + 6)).getShort() + 32768);
+						toreturn[i] = (char) (bigEndian(unsafe.getShort(array, offset)) + 32768);
+						offset += 2;
 					}
 					return toreturn;
 				}
 
 				case 0x10:
-					return new IntUnion(bytes.read(1), bytes.read(2), bytes.read(3), bytes.read(4)).getInt();
-				case 0x11: {
-					final int[] toreturn = new int[(bytes.length() - 2) / 4];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new IntUnion(
-								bytes.read(i * 4 + 2), bytes.read(i * 4 + 3), bytes.read(i * 4 + 4), bytes.read(i * 4 + 5)
-						).getInt();
-					}
-					return toreturn;
-				}
-				case 0x12: {
-					final int[] toreturn = new int[(bytes.length() - 3) / 4];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new IntUnion(
-								bytes.read(i * 4 + 3), bytes.read(i * 4 + 4), bytes.read(i * 4 + 5), bytes.read(i * 4 + 6)
-						).getInt();
-					}
-					return toreturn;
-				}
+					return bytes.getInt(1);
+				case 0x11:
+				case 0x12:
 				case 0x13: {
-					final int[] toreturn = new int[(bytes.length() - 5) / 4];
+					final int header = elementsStart(bytes, (byte) 0x11);
+					final byte[] array = bytes.toArray();
+					final int[] toreturn = new int[(array.length - header) / 4];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new IntUnion(
-								bytes.read(i * 4 + 5), bytes.read(i * 4 + 6), bytes.read(i * 4 + 7), bytes.read(i * 4 + 8)
-						).getInt();
+						toreturn[i] = bigEndian(unsafe.getInt(array, offset));
+						offset += 4;
 					}
 					return toreturn;
 				}
 
 				case 0x14:
-					return new LongUnion(
-							bytes.read(1), bytes.read(2), bytes.read(3), bytes.read(4),
-							bytes.read(5), bytes.read(6), bytes.read(7), bytes.read(8)
-					).getLong();
-				case 0x15: {
-					final long[] toreturn = new long[(bytes.length() - 2) / 8];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new LongUnion(
-								bytes.read(i * 8 + 2), bytes.read(i * 8 + 3), bytes.read(i * 8 + 4), bytes.read(i * 8 + 5),
-								bytes.read(i * 8 + 6), bytes.read(i * 8 + 7), bytes.read(i * 8 + 8), bytes.read(i * 8 + 9)
-						).getLong();
-					}
-					return toreturn;
-				}
-				case 0x16: {
-					final long[] toreturn = new long[(bytes.length() - 3) / 8];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new LongUnion(
-								bytes.read(i * 8 + 3), bytes.read(i * 8 + 4), bytes.read(i * 8 + 5), bytes.read(i * 8 + 6),
-								bytes.read(i * 8 + 7), bytes.read(i * 8 + 8), bytes.read(i * 8 + 9), bytes.read(i * 8 + 10)
-						).getLong();
-					}
-					return toreturn;
-				}
+					return bytes.getLong(1);
+				case 0x15:
+				case 0x16:
 				case 0x17: {
-					final long[] toreturn = new long[(bytes.length() - 5) / 8];
+					final int header = elementsStart(bytes, (byte) 0x15);
+					final byte[] array = bytes.toArray();
+					final long[] toreturn = new long[(array.length - header) / 8];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = new LongUnion(
-								bytes.read(i * 8 + 5), bytes.read(i * 8 + 6), bytes.read(i * 8 + 7), bytes.read(i * 8 + 8),
-								bytes.read(i * 8 + 9), bytes.read(i * 8 + 10), bytes.read(i * 8 + 11), bytes.read(i * 8 + 12)
-						).getLong();
+						toreturn[i] = bigEndian(unsafe.getLong(array, offset));
+						offset += 8;
 					}
 					return toreturn;
 				}
 
 				case 0x18:
-					return Float.intBitsToFloat(new IntUnion(bytes.read(1), bytes.read(2), bytes.read(3), bytes.read(4)).getInt());
-				case 0x19: {
-					final float[] toreturn = new float[(bytes.length() - 2) / 4];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Float.intBitsToFloat(new IntUnion(
-								bytes.read(i * 4 + 2), bytes.read(i * 4 + 3), bytes.read(i * 4 + 4), bytes.read(i * 4 + 5)
-						).getInt());
-					}
-					return toreturn;
-				}
-				case 0x1A: {
-					final float[] toreturn = new float[(bytes.length() - 3) / 4];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Float.intBitsToFloat(new IntUnion(
-								bytes.read(i * 4 + 3), bytes.read(i * 4 + 4), bytes.read(i * 4 + 5), bytes.read(i * 4 + 6)
-						).getInt());
-					}
-					return toreturn;
-				}
+					return Float.intBitsToFloat(bytes.getInt(1));
+				case 0x19:
+				case 0x1A:
 				case 0x1B: {
-					final float[] toreturn = new float[(bytes.length() - 5) / 4];
+					final int header = elementsStart(bytes, (byte) 0x19);
+					final byte[] array = bytes.toArray();
+					final float[] toreturn = new float[(array.length - header) / 4];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Float.intBitsToFloat(new IntUnion(
-								bytes.read(i * 4 + 5), bytes.read(i * 4 + 6), bytes.read(i * 4 + 7), bytes.read(i * 4 + 8)
-						).getInt());
+						toreturn[i] = Float.intBitsToFloat(bigEndian(unsafe.getInt(array, offset)));
+						offset += 4;
 					}
 					return toreturn;
 				}
 
 				case 0x1C:
-					return Double.longBitsToDouble(new LongUnion(
-							bytes.read(1), bytes.read(2), bytes.read(3), bytes.read(4),
-							bytes.read(5), bytes.read(6), bytes.read(7), bytes.read(8)
-					).getLong());
-				case 0x1D: {
-					final double[] toreturn = new double[(bytes.length() - 2) / 8];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Double.longBitsToDouble(new LongUnion(
-								bytes.read(i * 8 + 2), bytes.read(i * 8 + 3), bytes.read(i * 8 + 4), bytes.read(i * 8 + 5),
-								bytes.read(i * 8 + 6), bytes.read(i * 8 + 7), bytes.read(i * 8 + 8), bytes.read(i * 8 + 9)
-						).getLong());
-					}
-					return toreturn;
-				}
-				case 0x1E: {
-					final double[] toreturn = new double[(bytes.length() - 3) / 8];
-					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Double.longBitsToDouble(new LongUnion(
-								bytes.read(i * 8 + 3), bytes.read(i * 8 + 4), bytes.read(i * 8 + 5), bytes.read(i * 8 + 6),
-								bytes.read(i * 8 + 7), bytes.read(i * 8 + 8), bytes.read(i * 8 + 9), bytes.read(i * 8 + 10)
-						).getLong());
-					}
-					return toreturn;
-				}
+					return Double.longBitsToDouble(bytes.getLong(1));
+				case 0x1D:
+				case 0x1E:
 				case 0x1F: {
-					final double[] toreturn = new double[(bytes.length() - 5) / 8];
+					final int header = elementsStart(bytes, (byte) 0x1D);
+					final byte[] array = bytes.toArray();
+					final double[] toreturn = new double[(array.length - header) / 8];
+					long offset = Unsafe.ARRAY_BYTE_BASE_OFFSET + header;
 					for (int i = 0; i < toreturn.length; i++) {
-						toreturn[i] = Double.longBitsToDouble(new LongUnion(
-								bytes.read(i * 8 + 5), bytes.read(i * 8 + 6), bytes.read(i * 8 + 7), bytes.read(i * 8 + 8),
-								bytes.read(i * 8 + 9), bytes.read(i * 8 + 10), bytes.read(i * 8 + 11), bytes.read(i * 8 + 12)
-						).getLong());
+						toreturn[i] = Double.longBitsToDouble(bigEndian(unsafe.getLong(array, offset)));
+						offset += 8;
 					}
 					return toreturn;
 				}
 
 				case 0x20: {
 					final byte[] toreturn = new byte[bytes.length() - 2];
-					for (int i = 2; i < bytes.length(); i++) {
-						toreturn[i-2] = bytes.read(i);
-					}
+					bytes.copyTo(2, toreturn, 0, toreturn.length);
 					return new String(toreturn, StandardCharsets.UTF_8);
 				}
 				case 0x21: {
 					final byte[] toreturn = new byte[bytes.length() - 3];
-					for (int i = 3; i < bytes.length(); i++) {
-						toreturn[i-3] = bytes.read(i);
-					}
+					bytes.copyTo(3, toreturn, 0, toreturn.length);
 					return new String(toreturn, StandardCharsets.UTF_8);
 				}
 				case 0x22: {
 					final byte[] toreturn = new byte[bytes.length() - 5];
-					for (int i = 5; i < bytes.length(); i++) {
-						toreturn[i-5] = bytes.read(i);
-					}
+					bytes.copyTo(5, toreturn, 0, toreturn.length);
 					return new String(toreturn, StandardCharsets.UTF_8);
 				}
 
@@ -1033,7 +964,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 				case 0x24: {
 					final ArrayList<String> toreturn = new ArrayList<>();
 					for (int i = 5; i < bytes.length();) {
-						final int bytear_length = new ShortUnion(bytes.read(i), bytes.read(i + 1)).getShort() + 32768;
+						final int bytear_length = bytes.getShort(i) + 32768;
 						toreturn.add(new String(bytes.slice(i + 2, i + 2 + bytear_length).toArray(), StandardCharsets.UTF_8));
 						i += 2 + bytear_length;
 					}
@@ -1042,8 +973,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 				case 0x25: {
 					final ArrayList<String> toreturn = new ArrayList<>();
 					for (int i = 5; i < bytes.length();) {
-						final int bytear_length
-								= new IntUnion(bytes.read(i), bytes.read(i + 1), bytes.read(i + 2), bytes.read(i + 3)).getInt();
+						final int bytear_length = bytes.getInt(i);
 						toreturn.add(new String(bytes.slice(i + 4, i + 4 + bytear_length).toArray(), StandardCharsets.UTF_8));
 						i += 4 + bytear_length;
 					}
@@ -2334,7 +2264,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 						continue;
 					}
 
-					final int remote_kv_len = new ShortUnion(remote.read(0), remote.read(1)).getShort();
+					final int remote_kv_len = remote.getShort(0);
 					final ByteArray remote_kv = remote.slice(2, 2 + remote_kv_len);
 					final ByteArray remote_key = remote.slice(2 + remote_kv_len, remote.length());
 
@@ -2404,7 +2334,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 
 			for (final ByteArray remote : remotes) {
 
-				final short remote_len = new ShortUnion(remote.read(0), remote.read(1)).getShort();
+				final short remote_len = remote.getShort(0);
 
 				if (remote_len < length) {
 					toreturn = remote;
@@ -2434,7 +2364,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 			Pointer(final ByteArray array, final boolean raw) {
 				final int length = array.length();
 
-				final int pointer_len = new ShortUnion(array.read(length - 2), array.read(length - 1)).getShort();
+				final int pointer_len = array.getShort(length - 2);
 
 				if (raw) {
 					this.prefix = array.slice(0, array.length() - pointer_len);
@@ -2444,8 +2374,8 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 
 				final int offset = raw ? array.length() - pointer_len + 1 : 0;
 
-				final int kv_len = new ShortUnion(array.read(offset), array.read(offset + 1)).getShort();
-				final int descriptor_len = new ShortUnion(array.read(offset + 2), array.read(offset + 3)).getShort();
+				final int kv_len = array.getShort(offset);
+				final int descriptor_len = array.getShort(offset + 2);
 
 				this.kv = array.slice(offset + 4, offset + 4 + kv_len);
 				this.descriptor = array.slice(offset + 4 + kv_len, offset + 4 + kv_len + descriptor_len);
@@ -2665,7 +2595,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 
 							final ByteArray new_home = remoteWithShortestKV(remotes);
 
-							final short new_kv_length = new ShortUnion(new_home.read(0), new_home.read(1)).getShort();
+							final short new_kv_length = new_home.getShort(0);
 							final KV<BA> new_kv = this.root.drill(new_home.slice(2, 2 + new_kv_length));
 							final ByteArray new_key = new_home.slice(2 + new_kv_length, new_home.length());
 
@@ -2684,9 +2614,14 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 
 				this.live_structures.clear();
 
+				// what the KV keeps of what it was given has to outlive the scope
+				this.root.retain();
+
 			} finally {
 				SerializationUtil.this.set_thread_lock.accept(false);
 				this.lock.unlockWrite(write_stamp);
+
+				SerializationUtil.this.factory.closeScope();
 			}
 		}
 	}
@@ -2735,7 +2670,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		}
 
 		public ShortUnion(final ByteArray bytes) {
-			this(bytes.read(0), bytes.read(1));
+			this.value = bytes.getShort(0);
 		}
 
 		public short getShort() {
@@ -2794,7 +2729,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		}
 
 		public IntUnion(final ByteArray bytes) {
-			this(bytes.read(0), bytes.read(1), bytes.read(2), bytes.read(3));
+			this.value = bytes.getInt(0);
 		}
 
 		public int getInt() {
@@ -2882,10 +2817,7 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		}
 
 		public LongUnion(final ByteArray bytes) {
-			this(
-					bytes.read(0), bytes.read(1), bytes.read(2), bytes.read(3),
-					bytes.read(4), bytes.read(5), bytes.read(6), bytes.read(7)
-			);
+			this.value = bytes.getLong(0);
 		}
 
 		public long getLong() {
@@ -3076,6 +3008,143 @@ public final class SerializationUtil<BA extends ByteArray<BA>> implements ByteAr
 		return Integer.compare(left.length, right.length);
 	};
 
+	static int header(final int length) {
+		return length < 256 ? 2 : length < 65536 ? 3 : 5;
+	}
+
+	/**
+	 * <p>How many bytes the serialized object starting at index takes up, so whatever follows it (an OBJECT_PREFIX, a
+	 * nested key) can be told apart from it</p>
+	 *
+	 * @return The length, or -1 if it can't be told from the bytes alone: a raw ByteArray, a String[] (whose entries
+	 * aren't counted), a tag this doesn't know, or bytes that run out first
+	 */
+	public static int serializedLength(final ByteArray bytes, final int index) {
+		final int available = bytes.length() - index;
+
+		if (available < 1) return -1;
+
+		final int tag = bytes.read(index);
+
+		final int length;
+		switch (tag) {
+			case 0x01:
+			case 0x02:
+			case 0x03:
+				length = 1;
+				break;
+			case 0x04:
+				length = 2;
+				break;
+			case 0x08:
+			case 0x0C:
+				length = 3;
+				break;
+			case 0x10:
+			case 0x18:
+				length = 5;
+				break;
+			case 0x14:
+			case 0x1C:
+				length = 9;
+				break;
+
+			case 0x05:
+			case 0x06:
+			case 0x07:
+				return elementsLength(bytes, index, available, tag - 0x05, 1);
+
+			case 0x09: case 0x0A: case 0x0B:
+			case 0x0D: case 0x0E: case 0x0F:
+				return elementsLength(bytes, index, available, (tag - 0x09) % 4, 2);
+			case 0x11: case 0x12: case 0x13:
+			case 0x19: case 0x1A: case 0x1B:
+				return elementsLength(bytes, index, available, (tag - 0x09) % 4, 4);
+			case 0x15: case 0x16: case 0x17:
+			case 0x1D: case 0x1E: case 0x1F:
+				return elementsLength(bytes, index, available, (tag - 0x09) % 4, 8);
+
+			case 0x20:
+			case 0x21:
+			case 0x22: {
+				if (available < headerSize(tag - 0x20)) return -1;
+
+				// the header counts chars, so the UTF-8 has to be walked to find the end
+				int chars = headerLength(bytes, index, tag - 0x20);
+				int i = index + headerSize(tag - 0x20);
+
+				while (chars > 0) {
+					if (i >= bytes.length()) return -1;
+
+					final int lead = bytes.read(i) & 0xFF;
+
+					if (lead < 0x80) {
+						i += 1;
+						chars -= 1;
+					} else if (lead < 0xE0) {
+						i += 2;
+						chars -= 1;
+					} else if (lead < 0xF0) {
+						i += 3;
+						chars -= 1;
+					} else {
+						i += 4;
+						chars -= 2;
+					}
+				}
+
+				return within(available, i - index);
+			}
+
+			default:
+				return -1;
+		}
+
+		return within(available, length);
+	}
+
+	/**
+	 * @param size 0, 1 or 2 for the byte, short and int forms of a length header
+	 */
+	private static int headerSize(final int size) {
+		return size == 0 ? 2 : size == 1 ? 3 : 5;
+	}
+
+	private static int headerLength(final ByteArray bytes, final int index, final int size) {
+		return size == 0 ? bytes.read(index + 1) + 128 : size == 1 ? bytes.getShort(index + 1) + 32768 : bytes.getInt(index + 1);
+	}
+
+	private static int elementsLength(
+			final ByteArray bytes, final int index, final int available, final int size, final int width
+	) {
+		if (available < headerSize(size)) return -1;
+
+		final long length = headerSize(size) + (long) headerLength(bytes, index, size) * width;
+
+		return length > available ? -1 : within(available, (int) length);
+	}
+
+	private static int within(final int available, final int length) {
+		return length < 0 || length > available ? -1 : length;
+	}
+
+	/*
+	 * The primitive arrays are read and written a whole element at a time with Unsafe, unaligned (fine on x86 and
+	 * AArch64), and swapped to big-endian here on little-endian machines
+	 */
+
+	public static short bigEndian(final short value) {
+		return BIG_ENDIAN ? value : Short.reverseBytes(value);
+	}
+
+	public static int bigEndian(final int value) {
+		return BIG_ENDIAN ? value : Integer.reverseBytes(value);
+	}
+
+	public static long bigEndian(final long value) {
+		return BIG_ENDIAN ? value : Long.reverseBytes(value);
+	}
+
 	public static short short_(final int value) {
 		if ((short) value != value) {
 			throw new ArithmeticException("key length overflow");
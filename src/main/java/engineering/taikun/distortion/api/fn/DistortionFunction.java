@@ -189,10 +189,14 @@ public interface DistortionFunction {
 	 * <p>This can be used as a way to statically declare global dependencies (or lack thereof). It can also be used to
 	 * force transactions to execute optimistically, eliminating the overhead of the AI systems.</p>
 	 *
+	 * <p>READ_ONLY functions submitted directly (not as branches or protected functions) skip the ordering entirely:
+	 * they read a snapshot of the latest committed state, never commit and can't write. As a branch or a protected
+	 * function they run like FORCE_OPTIMISTIC ones.</p>
+	 *
 	 * @return The {@link ExecutionPolicy} for this function, defaults to USE_AI
 	 */
 	default ExecutionPolicy getExecutionPolicy() { return ExecutionPolicy.USE_AI; }
 
-	enum ExecutionPolicy { USE_AI, FORCE_OPTIMISTIC, FORCE_GLOBAL_BLOCK }
+	enum ExecutionPolicy { USE_AI, FORCE_OPTIMISTIC, FORCE_GLOBAL_BLOCK, READ_ONLY }
 
 }
\ No newline at end of file
@@ -0,0 +1,26 @@
+package engineering.taikun.distortion.api.fn;
+
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+
+/**
+ * <p>A SAM class for functions that only read the state, such as queries and dashboards</p>
+ *
+ * <p>These run against a snapshot of the latest committed state without waiting on (or holding up) any writer. They
+ * never commit, and writing to the maps throws an {@link UnsupportedOperationException}.</p>
+ *
+ * <p>This function won't invoke the AI for a scheduling prediction, nor will its execution train the AI</p>
+ */
+public abstract class ReadOnlyFunction implements DistortionFunction {
+	@Override
+	@Nullable public Collection<Identifier> getIdentifiers() {
+		return null;
+	}
+
+	@Override
+	public ExecutionPolicy getExecutionPolicy() {
+		return ExecutionPolicy.READ_ONLY;
+	}
+}
@@ -3,6 +3,9 @@ package engineering.taikun.distortion.serialization.api;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 /**
  * <p>An abstract class representing a byte array</p>
  *
@@ -21,6 +24,15 @@ public abstract class ByteArray<T extends ByteArray> implements Comparable<ByteA
 	 */
 	int hashcode = 0;
 
+	// powers of 31, for hashing eight bytes at a time
+	private static final int P2 = 31 * 31;
+	private static final int P3 = P2 * 31;
+	private static final int P4 = P3 * 31;
+	private static final int P5 = P4 * 31;
+	private static final int P6 = P5 * 31;
+	private static final int P7 = P6 * 31;
+	private static final int P8 = P7 * 31;
+
 	/**
 	 * Read the byte at the specified index
 	 *
@@ -86,6 +98,98 @@ public abstract class ByteArray<T extends ByteArray> implements Comparable<ByteA
 	 */
 	public abstract ByteArray slice(int start, int end);
 
+	/**
+	 * <p>Copy length bytes from index on into dest</p>
+	 *
+	 * <p>Implementations backed by something that can be copied from in bulk should override this</p>
+	 *
+	 * @param index The first byte to copy
+	 * @param dest Where to copy to
+	 * @param dest_index Where in dest the first byte goes
+	 * @param length How many bytes to copy
+	 */
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		for (int i = 0; i < length; i++) {
+			dest[dest_index + i] = read(index + i);
+		}
+	}
+
+	/**
+	 * <p>Copy length bytes from index on into dest, at its position, and move its position past them</p>
+	 *
+	 * @param index The first byte to copy
+	 * @param dest Where to copy to
+	 * @param length How many bytes to copy
+	 */
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		if (dest.remaining() < length)
+			throw new BufferOverflowException();
+
+		if (dest.hasArray()) {
+			copyTo(index, dest.array(), dest.arrayOffset() + dest.position(), length);
+			dest.position(dest.position() + length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				dest.put(read(index + i));
+			}
+		}
+	}
+
+	/**
+	 * @param index The first of the two bytes
+	 * @return The big-endian short at index, as {@link java.io.DataInput#readShort}
+	 */
+	public short getShort(final int index) {
+		return (short) (read(index) << 8 | read(index + 1) & 0xFF);
+	}
+
+	/**
+	 * @param index The first of the four bytes
+	 * @return The big-endian int at index, as {@link java.io.DataInput#readInt}
+	 */
+	public int getInt(final int index) {
+		return read(index) << 24 | (read(index + 1) & 0xFF) << 16 | (read(index + 2) & 0xFF) << 8
+				| read(index + 3) & 0xFF;
+	}
+
+	/**
+	 * @param index The first of the eight bytes
+	 * @return The big-endian long at index, as {@link java.io.DataInput#readLong}
+	 */
+	public long getLong(final int index) {
+		return (long) getInt(index) << 32 | getInt(index + 4) & 0xFFFFFFFFL;
+	}
+
+	/**
+	 * <p>Find the first byte this and that differ at, as {@link java.util.Arrays}.mismatch does for arrays</p>
+	 *
+	 * <p>This compares eight bytes at a time through {@link #getLong}, implementations that can do better for some
+	 * kinds of that should override it</p>
+	 *
+	 * @param that The ByteArray to compare to
+	 * @return The index of the first byte that differs, the length of the shorter if it's a prefix of the other, or -1
+	 * if they're the same
+	 */
+	public int mismatch(final ByteArray that) {
+		final int length = Math.min(this.length(), that.length());
+
+		int i = 0;
+
+		for (; i + 8 <= length; i += 8) {
+			final long difference = this.getLong(i) ^ that.getLong(i);
+
+			if (difference != 0)
+				return i + (Long.numberOfLeadingZeros(difference) >>> 3);
+		}
+
+		for (; i < length; i++) {
+			if (this.read(i) != that.read(i))
+				return i;
+		}
+
+		return this.length() == that.length() ? -1 : length;
+	}
+
 	/**
 	 * <p>Return a byte[] with this ByteArray's contents, possibly mapped</p>
 	 *
@@ -96,21 +200,20 @@ public abstract class ByteArray<T extends ByteArray> implements Comparable<ByteA
 	public byte[] toArray() {
 		final byte[] toreturn = new byte[length()];
 
-		for (int i = 0; i < toreturn.length; i++) {
-			toreturn[i] = read(i);
-		}
+		copyTo(0, toreturn, 0, toreturn.length);
 
 		return toreturn;
 	}
 
 	@Override
 	public final int compareTo(final @NotNull ByteArray that) {
-		for (int i = 0; i < this.length() && i < that.length(); i++) {
-			final int compare = Byte.compare(this.read(i), that.read(i));
+		final int mismatch = mismatch(that);
 
-			if (compare != 0)
-				return compare;
-		}
+		if (mismatch == -1)
+			return 0;
+
+		if (mismatch < this.length() && mismatch < that.length())
+			return Byte.compare(this.read(mismatch), that.read(mismatch));
 
 		// fallthrough, if beginnings are ==
 		// longer array is greater
@@ -133,8 +236,21 @@ public abstract class ByteArray<T extends ByteArray> implements Comparable<ByteA
 		if (this.hashcode != 0)
 			return this.hashcode;
 
+		final int length = length();
+
 		int toreturn = 1;
-		for (int i = 0; i < length(); i++) {
+		int i = 0;
+
+		// eight steps of the loop below at once: h * 31^8 + b0 * 31^7 + ... + b6 * 31 + b7
+		for (; i + 8 <= length; i += 8) {
+			final long chunk = getLong(i);
+
+			toreturn = toreturn * P8 + (byte) (chunk >>> 56) * P7 + (byte) (chunk >>> 48) * P6
+					+ (byte) (chunk >>> 40) * P5 + (byte) (chunk >>> 32) * P4 + (byte) (chunk >>> 24) * P3
+					+ (byte) (chunk >>> 16) * P2 + (byte) (chunk >>> 8) * 31 + (byte) chunk;
+		}
+
+		for (; i < length; i++) {
 			toreturn = 31 * toreturn + read(i);
 		}
 
@@ -172,13 +288,7 @@ public abstract class ByteArray<T extends ByteArray> implements Comparable<ByteA
 			return false;
 		}
 
-		for (int i = 0; i < that_length; i++) {
-			if (this.read(i) != that.read(i)) {
-				return false;
-			}
-		}
-
-		return true;
+		return mismatch(that) == -1;
 	}
 
 	/**
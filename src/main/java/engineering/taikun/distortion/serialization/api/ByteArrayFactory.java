@@ -17,4 +17,59 @@ public interface ByteArrayFactory<T extends ByteArray> {
 	 */
 	T allocate(int length);
 
+	/**
+	 * <p>A {@link ByteArray} with the contents of array</p>
+	 *
+	 * <p>Implementations that can use the array as it is, rather than copying it, should. The caller doesn't touch it
+	 * again.</p>
+	 *
+	 * <p>Unlike {@link #allocate}, this never returns memory of a scope (see {@link #openScope}), so it's what bytes
+	 * that are kept (by a history, say) should be made with.</p>
+	 *
+	 * @param array The contents
+	 * @return A {@link ByteArray} of the same length
+	 */
+	default T wrap(final byte[] array) {
+		final T toreturn = allocate(array.length);
+
+		for (int i = 0; i < array.length; i++) {
+			toreturn.write(i, array[i]);
+		}
+
+		return toreturn;
+	}
+
+	/**
+	 * <p>Open a scope on this thread. Until the matching {@link #closeScope}, what {@link #allocate} returns on this
+	 * thread may be memory that's freed as the scope closes, so anything that has to outlive it goes through
+	 * {@link #retain}. Scopes nest, the memory of all of them is freed as the outermost closes.</p>
+	 *
+	 * <p>A {@link engineering.taikun.distortion.SerializationUtil.SerializationContext} is a scope, from when it's made
+	 * to when it's closed.</p>
+	 *
+	 * <p>The default has no scopes, everything it allocates lives until it's collected</p>
+	 */
+	default void openScope() {}
+
+	/**
+	 * <p>Close the innermost scope this thread opened</p>
+	 */
+	default void closeScope() {}
+
+	/**
+	 * @param value A value allocated by this factory
+	 * @return value, or a copy of it, that outlives the scope it was allocated in (value's bytes may be moved out of it)
+	 */
+	default T retain(final T value) {
+		return value;
+	}
+
+	/**
+	 * @param key Any {@link ByteArray}, possibly a view of ones allocated by this factory
+	 * @return key, or a copy of it that outlives the scope it or what it views was allocated in
+	 */
+	default ByteArray retainKey(final ByteArray key) {
+		return key;
+	}
+
 }
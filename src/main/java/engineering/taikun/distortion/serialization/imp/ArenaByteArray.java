@@ -0,0 +1,211 @@
+package engineering.taikun.distortion.serialization.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArenaByteArrayFactory.Arena;
+import engineering.taikun.distortion.serialization.util.ByteArraySlice;
+import sun.misc.Unsafe;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static engineering.taikun.distortion.SerializationUtil.bigEndian;
+import static engineering.taikun.distortion.SerializationUtil.unsafe;
+
+/**
+ * <p>A {@link ByteArray} that's either a slice of an {@link ArenaByteArrayFactory}'s arena, freed with the rest of the
+ * arena as its scope closes, or a byte[] of its own</p>
+ *
+ * <p>Using one out of an arena that's since been freed throws an {@link IllegalStateException}</p>
+ */
+public class ArenaByteArray extends ByteArray<ArenaByteArray> {
+
+	byte[] array;
+	int offset;
+	int length;
+	int capacity;
+
+	Arena arena; // the factory's unscoped arena for a byte[] of its own
+	int generation;
+
+	ArenaByteArray(final byte[] array, final Arena unscoped) {
+		this.array = array;
+		this.offset = 0;
+		this.length = array.length;
+		this.capacity = array.length;
+		this.arena = unscoped;
+		this.generation = unscoped.generation;
+	}
+
+	ArenaByteArray(final byte[] chunk, final int offset, final int length, final Arena arena) {
+		this.array = chunk;
+		this.offset = offset;
+		this.length = length;
+		this.capacity = length;
+		this.arena = arena;
+		this.generation = arena.generation;
+	}
+
+	public ArenaByteArrayFactory factory() {
+		return this.arena.factory();
+	}
+
+	/**
+	 * @return Whether this is a slice of an arena, rather than a byte[] of its own
+	 */
+	public boolean isScoped() {
+		return this.arena != this.arena.factory().unscoped;
+	}
+
+	@Override
+	public byte read(final int index) {
+		check(index, 1);
+		return this.array[this.offset + index];
+	}
+
+	@Override
+	protected void internalWrite(final int index, final byte value) {
+		check(index, 1);
+		this.array[this.offset + index] = value;
+	}
+
+	@Override
+	public int length() {
+		return this.length;
+	}
+
+	@Override
+	protected void internalResize(final int newLength) {
+		live();
+
+		if (newLength < 0)
+			throw new NegativeArraySizeException(String.valueOf(newLength));
+
+		if (newLength > this.capacity)
+			this.arena.factory().grow(this, newLength);
+
+		if (newLength > this.length)
+			Arrays.fill(this.array, this.offset + this.length, this.offset + newLength, (byte) 0);
+
+		this.length = newLength;
+	}
+
+	/**
+	 * Always a byte[] of its own, whatever scope it's copied in
+	 */
+	@Override
+	public ArenaByteArray copy() {
+		final ArenaByteArrayFactory factory = this.arena.factory();
+
+		return new ArenaByteArray(copyOut(), factory.unscoped);
+	}
+
+	@Override
+	public ByteArraySlice<ArenaByteArray> slice(final int start, final int end) {
+		return new ByteArraySlice<>(this.arena.factory(), this, start, end);
+	}
+
+	@Override
+	public byte[] toArray() {
+		if (!isScoped() && this.offset == 0 && this.array.length == this.length)
+			return this.array;
+
+		return copyOut();
+	}
+
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		check(index, length);
+		System.arraycopy(this.array, this.offset + index, dest, dest_index, length);
+	}
+
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		check(index, length);
+		dest.put(this.array, this.offset + index, length);
+	}
+
+	@Override
+	public short getShort(final int index) {
+		check(index, 2);
+		return bigEndian(unsafe.getShort(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + this.offset + index));
+	}
+
+	@Override
+	public int getInt(final int index) {
+		check(index, 4);
+		return bigEndian(unsafe.getInt(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + this.offset + index));
+	}
+
+	@Override
+	public long getLong(final int index) {
+		check(index, 8);
+		return bigEndian(unsafe.getLong(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + this.offset + index));
+	}
+
+	@Override
+	public int mismatch(final ByteArray that) {
+		final byte[] that_array;
+		final int that_offset;
+
+		if (that instanceof ArenaByteArray) {
+			final ArenaByteArray arena_that = (ArenaByteArray) that;
+			arena_that.live();
+
+			that_array = arena_that.array;
+			that_offset = arena_that.offset;
+		} else if (that instanceof ArrayWrapper) {
+			that_array = ((ArrayWrapper) that).array;
+			that_offset = 0;
+		} else {
+			return super.mismatch(that);
+		}
+
+		live();
+
+		final int that_length = that.length();
+		final int length = Math.min(this.length, that_length);
+
+		final int mismatch = ArrayWrapper.mismatch(this.array, this.offset, that_array, that_offset, length);
+
+		if (mismatch != -1)
+			return mismatch;
+
+		return this.length == that_length ? -1 : length;
+	}
+
+	/**
+	 * @return A byte[] of exactly this
+	 */
+	byte[] copyOut() {
+		live();
+		return Arrays.copyOfRange(this.array, this.offset, this.offset + this.length);
+	}
+
+	/**
+	 * Move to new storage, with the bytes held so far, which have to still be there
+	 */
+	void move(final byte[] array, final int offset, final int capacity, final Arena arena) {
+		live();
+
+		System.arraycopy(this.array, this.offset, array, offset, this.length);
+
+		this.array = array;
+		this.offset = offset;
+		this.capacity = capacity;
+		this.arena = arena;
+		this.generation = arena.generation;
+	}
+
+	private void live() {
+		if (this.arena.generation != this.generation)
+			throw new IllegalStateException("A ByteArray used after the scope it was allocated in closed");
+	}
+
+	private void check(final int index, final int size) {
+		live();
+
+		if (index < 0 || size < 0 || index > this.length - size)
+			throw new ArrayIndexOutOfBoundsException("index: " + index + ", array-length: " + this.length);
+	}
+
+}
@@ -0,0 +1,225 @@
+package engineering.taikun.distortion.serialization.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Most of what a transaction allocates dies with it: keys composed for every structure operation, unions, glomps,
+ * serialized values read once. So while a scope is open on a thread (a SerializationContext, which Distortion opens for
+ * each transaction it runs), allocate hands out slices of large chunks (an arena) rather than arrays of their own:
+ *
+ *   allocating: a bump of the arena's position in its current chunk, a new chunk when that one's full
+ *   freeing:    all at once, as the outermost scope closes, the chunks go back to a pool for the next arena
+ *
+ * What has to outlive the scope (what the transaction stages, the keys it read) is copied out of the arena exactly
+ * once, through retain and retainKey, by whoever keeps it: DistortionStoreShim's transactions do it as the context
+ * closes, before the arena is freed. Outside a scope, and for anything bigger than a quarter of a chunk, arrays get
+ * a byte[] of their own, as ArrayWrappers do.
+ *
+ * Each thread has one arena, reused from scope to scope. Its generation goes up as it's freed, and an array out of an
+ * earlier generation throws if it's used, rather than reading whatever the chunk holds now.
+ */
+public class ArenaByteArrayFactory implements ByteArrayFactory<ArenaByteArray> {
+
+	public static final int DEFAULT_CHUNK_BYTES = 64 << 10;
+
+	public final LongAdder scoped_arrays = new LongAdder(); // arrays allocated out of an arena
+	public final LongAdder unscoped_arrays = new LongAdder(); // arrays allocated with a byte[] of their own
+	public final LongAdder retained = new LongAdder(); // arrays copied out of an arena to outlive their scope
+	public final LongAdder chunks = new LongAdder(); // chunks allocated, as opposed to taken from the pool
+
+	final int chunk_bytes;
+	final int max_pooled;
+
+	final Arena unscoped = new Arena(); // never opened or freed, the arena of every array with a byte[] of its own
+
+	private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+	private final ThreadLocal<Arena> arenas = ThreadLocal.withInitial(Arena::new);
+
+	public ArenaByteArrayFactory() {
+		this(DEFAULT_CHUNK_BYTES, 64);
+	}
+
+	/**
+	 * @param chunk_bytes How big each chunk is
+	 * @param max_pooled How many freed chunks to keep for later arenas, the rest are left to the collector
+	 */
+	public ArenaByteArrayFactory(final int chunk_bytes, final int max_pooled) {
+		this.chunk_bytes = chunk_bytes;
+		this.max_pooled = max_pooled;
+	}
+
+	@Override
+	public ArenaByteArray allocate(final int length) {
+		final Arena arena = this.arenas.get();
+
+		if (arena.depth == 0 || length > this.chunk_bytes >>> 2) {
+			this.unscoped_arrays.increment();
+			return new ArenaByteArray(new byte[length], this.unscoped);
+		}
+
+		return arena.allocate(length);
+	}
+
+	@Override
+	public ArenaByteArray wrap(final byte[] array) {
+		this.unscoped_arrays.increment();
+		return new ArenaByteArray(array, this.unscoped);
+	}
+
+	@Override
+	public void openScope() {
+		this.arenas.get().depth++;
+	}
+
+	@Override
+	public void closeScope() {
+		final Arena arena = this.arenas.get();
+
+		if (arena.depth == 0)
+			throw new IllegalStateException("No scope open on this thread");
+
+		if (--arena.depth == 0)
+			arena.free();
+	}
+
+	/**
+	 * A value out of an arena is moved out of it, into a byte[] of its own, rather than copied: the same array might be
+	 * kept more than once (a key read and written, say), and it's still only copied the once.
+	 */
+	@Override
+	public ArenaByteArray retain(final ArenaByteArray value) {
+		if (value.isScoped()) {
+			value.move(new byte[value.length], 0, value.length, this.unscoped);
+			this.retained.increment();
+		}
+
+		return value;
+	}
+
+	@Override
+	public ByteArray retainKey(final ByteArray key) {
+		if (key instanceof ArenaByteArray)
+			return retain((ArenaByteArray) key);
+
+		// never in an arena
+		if (key instanceof ArrayWrapper)
+			return key;
+
+		// views (slices, glomps) of who knows what, flattened
+		final byte[] bytes = new byte[key.length()];
+		key.copyTo(0, bytes, 0, bytes.length);
+
+		this.retained.increment();
+
+		return new ArenaByteArray(bytes, this.unscoped);
+	}
+
+	/**
+	 * Move array into storage for at least length bytes, keeping what it holds. It stays in its arena if that's this
+	 * thread's, and otherwise gets a byte[] of its own. What's past its length isn't cleared.
+	 */
+	void grow(final ArenaByteArray array, final int length) {
+		final Arena arena = this.arenas.get();
+
+		if (array.arena != arena || arena.depth == 0 || length > this.chunk_bytes >>> 2) {
+			array.move(new byte[length], 0, length, this.unscoped);
+			return;
+		}
+
+		// the last slice of the chunk, with nothing after it to get in the way
+		if (array.array == arena.chunk && array.offset + array.capacity == arena.position
+				&& array.offset + length <= arena.chunk.length) {
+			arena.position = array.offset + length;
+			array.capacity = length;
+			return;
+		}
+
+		// doubling, so that as the last slice of the chunk it grows in place next time
+		final int capacity = Math.min(Math.max(length, array.capacity * 2), this.chunk_bytes >>> 2);
+		final int offset = arena.take(capacity);
+
+		array.move(arena.chunk, offset, capacity, arena);
+	}
+
+	private byte[] chunk() {
+		synchronized (this.pool) {
+			final byte[] pooled = this.pool.poll();
+
+			if (pooled != null)
+				return pooled;
+		}
+
+		this.chunks.increment();
+
+		return new byte[this.chunk_bytes];
+	}
+
+	/**
+	 * The chunks of one thread's scopes
+	 */
+	final class Arena {
+		int depth = 0;
+		int generation = 0;
+
+		@Nullable byte[] chunk = null;
+		int position = 0;
+
+		final ArrayList<byte[]> used = new ArrayList<>();
+
+		ArenaByteArrayFactory factory() {
+			return ArenaByteArrayFactory.this;
+		}
+
+		ArenaByteArray allocate(final int length) {
+			final int offset = take(length);
+
+			ArenaByteArrayFactory.this.scoped_arrays.increment();
+
+			return new ArenaByteArray(this.chunk, offset, length, this);
+		}
+
+		/**
+		 * @return Where capacity cleared bytes start in chunk, which may be a new one
+		 */
+		int take(final int capacity) {
+			if (this.chunk == null || this.position + capacity > this.chunk.length) {
+				this.chunk = chunk();
+				this.position = 0;
+				this.used.add(this.chunk);
+			}
+
+			final int offset = this.position;
+
+			// chunks come back dirty
+			Arrays.fill(this.chunk, offset, offset + capacity, (byte) 0);
+
+			this.position += capacity;
+
+			return offset;
+		}
+
+		void free() {
+			this.generation++;
+
+			synchronized (ArenaByteArrayFactory.this.pool) {
+				for (final byte[] chunk : this.used) {
+					if (ArenaByteArrayFactory.this.pool.size() < ArenaByteArrayFactory.this.max_pooled)
+						ArenaByteArrayFactory.this.pool.push(chunk);
+				}
+			}
+
+			this.used.clear();
+			this.chunk = null;
+			this.position = 0;
+		}
+	}
+}
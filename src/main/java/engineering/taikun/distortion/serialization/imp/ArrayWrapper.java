@@ -3,9 +3,14 @@ package engineering.taikun.distortion.serialization.imp;
 import engineering.taikun.distortion.SerializationUtil;
 import engineering.taikun.distortion.serialization.api.ByteArray;
 import engineering.taikun.distortion.serialization.util.ByteArraySlice;
+import sun.misc.Unsafe;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import static engineering.taikun.distortion.SerializationUtil.bigEndian;
+import static engineering.taikun.distortion.SerializationUtil.unsafe;
+
 /**
  * A heap-allocating, simple implementation of {@link ByteArray} using native byte arrays
  */
@@ -56,4 +61,99 @@ public class ArrayWrapper extends ByteArray<ArrayWrapper> {
 		return this.array;
 	}
 
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		System.arraycopy(this.array, index, dest, dest_index, length);
+	}
+
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		dest.put(this.array, index, length);
+	}
+
+	@Override
+	public short getShort(final int index) {
+		check(index, 2);
+		return bigEndian(unsafe.getShort(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + index));
+	}
+
+	@Override
+	public int getInt(final int index) {
+		check(index, 4);
+		return bigEndian(unsafe.getInt(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + index));
+	}
+
+	@Override
+	public long getLong(final int index) {
+		check(index, 8);
+		return bigEndian(unsafe.getLong(this.array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + index));
+	}
+
+	@Override
+	public int mismatch(final ByteArray that) {
+		if (!(that instanceof ArrayWrapper))
+			return super.mismatch(that);
+
+		final byte[] that_array = ((ArrayWrapper) that).array;
+		final int length = Math.min(this.array.length, that_array.length);
+
+		final int mismatch = mismatch(this.array, 0, that_array, 0, length);
+
+		if (mismatch != -1)
+			return mismatch;
+
+		return this.array.length == that_array.length ? -1 : length;
+	}
+
+	/**
+	 * <p>Find the first byte two ranges of arrays differ at, comparing eight bytes at a time</p>
+	 *
+	 * @return The index in the ranges of the first byte that differs, or -1 if they're the same
+	 */
+	public static int mismatch(final byte[] a, final int a_index, final byte[] b, final int b_index, final int length) {
+		if (a_index < 0 || b_index < 0 || length < 0 || a_index > a.length - length || b_index > b.length - length)
+			throw new IndexOutOfBoundsException();
+
+		return mismatch(
+				a, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + a_index, b, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET + b_index, length
+		);
+	}
+
+	/**
+	 * <p>The same for any two ranges of memory, as {@link Unsafe} addresses them (an array and an offset into it, or
+	 * null and an address)</p>
+	 *
+	 * <p>Nothing's bounds-checked here, that's the caller's job</p>
+	 *
+	 * @return The index in the ranges of the first byte that differs, or -1 if they're the same
+	 */
+	public static int mismatch(
+			final Object a, final long a_offset, final Object b, final long b_offset, final int length
+	) {
+		int i = 0;
+
+		for (; i + 8 <= length; i += 8) {
+			final long difference = unsafe.getLong(a, a_offset + i) ^ unsafe.getLong(b, b_offset + i);
+
+			if (difference != 0) {
+				// the first byte in memory is the low one on a little-endian machine
+				return i + ((SerializationUtil.BIG_ENDIAN
+						? Long.numberOfLeadingZeros(difference)
+						: Long.numberOfTrailingZeros(difference)) >>> 3);
+			}
+		}
+
+		for (; i < length; i++) {
+			if (unsafe.getByte(a, a_offset + i) != unsafe.getByte(b, b_offset + i))
+				return i;
+		}
+
+		return -1;
+	}
+
+	private void check(final int index, final int size) {
+		if (index < 0 || index > this.array.length - size)
+			throw new ArrayIndexOutOfBoundsException("index: " + index + ", array-length: " + this.array.length);
+	}
+
 }
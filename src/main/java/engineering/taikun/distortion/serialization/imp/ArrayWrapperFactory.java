@@ -13,4 +13,9 @@ public class ArrayWrapperFactory implements ByteArrayFactory<ArrayWrapper> {
 		return new ArrayWrapper(new byte[length]);
 	}
 
+	@Override
+	public ArrayWrapper wrap(final byte[] array) {
+		return new ArrayWrapper(array);
+	}
+
 }
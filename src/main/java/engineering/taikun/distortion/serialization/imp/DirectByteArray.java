@@ -0,0 +1,198 @@
+package engineering.taikun.distortion.serialization.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.DirectByteArrayFactory.Recycler;
+import engineering.taikun.distortion.serialization.util.ByteArraySlice;
+import sun.misc.Unsafe;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static engineering.taikun.distortion.SerializationUtil.bigEndian;
+import static engineering.taikun.distortion.SerializationUtil.unsafe;
+
+/**
+ * <p>A {@link ByteArray} in direct memory, a block out of a {@link DirectByteArrayFactory}'s pool</p>
+ *
+ * <p>The block's given back once this is collected, there's nothing to free</p>
+ */
+public class DirectByteArray extends ByteArray<DirectByteArray> {
+
+	public final DirectByteArrayFactory factory;
+
+	private final Recycler recycler;
+
+	long address;
+	private int length;
+	private volatile int fence; // never written, see reachabilityFence
+
+	DirectByteArray(final DirectByteArrayFactory factory, final int length) {
+		if (length < 0)
+			throw new NegativeArraySizeException(String.valueOf(length));
+
+		this.factory = factory;
+		this.recycler = factory.take(this, length);
+		this.address = this.recycler.address;
+		this.length = length;
+	}
+
+	@Override
+	public byte read(final int index) {
+		check(index, 1);
+
+		final byte value = unsafe.getByte(this.address + index);
+		reachabilityFence();
+
+		return value;
+	}
+
+	@Override
+	protected void internalWrite(final int index, final byte value) {
+		check(index, 1);
+
+		unsafe.putByte(this.address + index, value);
+		reachabilityFence();
+	}
+
+	@Override
+	public int length() {
+		return this.length;
+	}
+
+	/**
+	 * Grows in place while the block has room, otherwise into a new block (and the old one's given back straight away)
+	 */
+	@Override
+	protected void internalResize(final int newLength) {
+		if (newLength < 0)
+			throw new NegativeArraySizeException(String.valueOf(newLength));
+
+		if (newLength > DirectByteArrayFactory.capacity(this.recycler)) {
+			this.factory.move(this.recycler, newLength, Math.min(this.length, newLength));
+			this.address = this.recycler.address;
+		}
+
+		if (newLength > this.length)
+			unsafe.setMemory(this.address + this.length, newLength - this.length, (byte) 0);
+
+		this.length = newLength;
+	}
+
+	@Override
+	public DirectByteArray copy() {
+		final DirectByteArray toreturn = new DirectByteArray(this.factory, this.length);
+
+		unsafe.copyMemory(this.address, toreturn.address, this.length);
+		reachabilityFence();
+
+		return toreturn;
+	}
+
+	@Override
+	public ByteArraySlice<DirectByteArray> slice(final int start, final int end) {
+		return new ByteArraySlice<>(this.factory, this, start, end);
+	}
+
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		check(index, length);
+
+		if (dest_index < 0 || dest_index > dest.length - length)
+			throw new ArrayIndexOutOfBoundsException("index: " + dest_index + ", array-length: " + dest.length);
+
+		unsafe.copyMemory(null, this.address + index, dest, Unsafe.ARRAY_BYTE_BASE_OFFSET + dest_index, length);
+		reachabilityFence();
+	}
+
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		if (!dest.isDirect() || dest.isReadOnly()) {
+			super.copyTo(index, dest, length);
+			return;
+		}
+
+		check(index, length);
+
+		if (dest.remaining() < length)
+			throw new BufferOverflowException();
+
+		final long dest_address = unsafe.getLong(dest, DirectByteArrayFactory.ADDRESS_OFFSET);
+
+		unsafe.copyMemory(this.address + index, dest_address + dest.position(), length);
+		reachabilityFence();
+
+		dest.position(dest.position() + length);
+	}
+
+	@Override
+	public short getShort(final int index) {
+		check(index, 2);
+
+		final short value = unsafe.getShort(this.address + index);
+		reachabilityFence();
+
+		return bigEndian(value);
+	}
+
+	@Override
+	public int getInt(final int index) {
+		check(index, 4);
+
+		final int value = unsafe.getInt(this.address + index);
+		reachabilityFence();
+
+		return bigEndian(value);
+	}
+
+	@Override
+	public long getLong(final int index) {
+		check(index, 8);
+
+		final long value = unsafe.getLong(this.address + index);
+		reachabilityFence();
+
+		return bigEndian(value);
+	}
+
+	@Override
+	public int mismatch(final ByteArray that) {
+		final int mismatch;
+		final int that_length = that.length();
+		final int length = Math.min(this.length, that_length);
+
+		if (that instanceof DirectByteArray) {
+			mismatch = ArrayWrapper.mismatch(null, this.address, null, ((DirectByteArray) that).address, length);
+			((DirectByteArray) that).reachabilityFence();
+		} else if (that instanceof ArrayWrapper) {
+			mismatch = ArrayWrapper.mismatch(
+					null, this.address, ((ArrayWrapper) that).array, (long) Unsafe.ARRAY_BYTE_BASE_OFFSET, length
+			);
+		} else {
+			return super.mismatch(that);
+		}
+
+		reachabilityFence();
+
+		if (mismatch != -1)
+			return mismatch;
+
+		return this.length == that_length ? -1 : length;
+	}
+
+	/**
+	 * <p>Keeps this reachable up to here. Once an Unsafe access has loaded the address nothing needs this anymore,
+	 * and if it's collected mid-access the recycler gives the block to another array. A volatile read of one of its
+	 * fields is the Java 8 stand-in for Reference.reachabilityFence: it can't be dropped, and on x86 it's a plain
+	 * load.</p>
+	 */
+	private void reachabilityFence() {
+		if (this.fence != 0)
+			throw new IllegalStateException();
+	}
+
+	private void check(final int index, final int size) {
+		if (index < 0 || size < 0 || index > this.length - size)
+			throw new IndexOutOfBoundsException("index: " + index + ", array-length: " + this.length);
+	}
+
+}
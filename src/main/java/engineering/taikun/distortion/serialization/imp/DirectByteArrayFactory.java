@@ -0,0 +1,253 @@
+package engineering.taikun.distortion.serialization.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
+import org.jetbrains.annotations.Nullable;
+import sun.misc.Unsafe;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import static engineering.taikun.distortion.SerializationUtil.unsafe;
+
+/*
+ * General runthrough of how this class works
+ *
+ * DirectByteArrays are blocks of memory outside the heap, so their bytes cost the collector nothing. Allocating direct
+ * buffers one at a time is slow (and each one comes with a Cleaner, a Deallocator and a system call), so blocks come
+ * out of a pool instead:
+ *
+ *   size classes: powers of two from 16 bytes to 1MB, an array gets the smallest that fits it
+ *   chunks:       4MB direct buffers, cut into blocks of one class as they're needed
+ *   free lists:   a stack of block addresses per class, a long[] so giving a block back allocates nothing
+ *
+ * Anything over 1MB gets a direct buffer of its own.
+ *
+ * ByteArrays are never freed explicitly, they're just dropped, so blocks come back through the collector: every array
+ * has a Recycler, a PhantomReference that holds the block's address (not the array). Once the array's unreachable the
+ * Recycler's enqueued, and the next allocation puts its block back on the free list. Recyclers are kept reachable on
+ * an intrusive list until then, so that costs no more than the Recycler itself.
+ *
+ * Chunks are never given back, the pool is as big as the most that was ever live at once (rounded up to classes).
+ */
+public class DirectByteArrayFactory implements ByteArrayFactory<DirectByteArray> {
+
+	static final int MIN_CLASS = 4; // 16 bytes
+	static final int MAX_CLASS = 20; // 1MB
+	static final int CHUNK_BYTES = 4 << 20;
+
+	static final long ADDRESS_OFFSET;
+
+	static {
+		try {
+			ADDRESS_OFFSET = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+		} catch (final NoSuchFieldException e) {
+			throw new RuntimeException("DirectByteArrayFactory requires Buffer.address", e);
+		}
+	}
+
+	public final LongAdder allocated = new LongAdder(); // arrays handed out
+	public final LongAdder recycled = new LongAdder(); // blocks back on a free list after their array was collected
+	public final LongAdder unpooled = new LongAdder(); // arrays too big for a class, with a buffer of their own
+
+	private final SizeClass[] classes = new SizeClass[MAX_CLASS + 1];
+	private final ArrayList<ByteBuffer> chunks = new ArrayList<>(); // only to keep them alive
+
+	private final ReferenceQueue<DirectByteArray> queue = new ReferenceQueue<>();
+	private final Recycler live = new Recycler(); // the head of the list of every live array's Recycler
+
+	public DirectByteArrayFactory() {
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++) {
+			this.classes[i] = new SizeClass(i);
+		}
+	}
+
+	@Override
+	public DirectByteArray allocate(final int length) {
+		final DirectByteArray array = new DirectByteArray(this, length);
+
+		unsafe.setMemory(array.address, length, (byte) 0);
+
+		return array;
+	}
+
+	@Override
+	public DirectByteArray wrap(final byte[] array) {
+		final DirectByteArray toreturn = new DirectByteArray(this, array.length);
+
+		unsafe.copyMemory(array, Unsafe.ARRAY_BYTE_BASE_OFFSET, null, toreturn.address, array.length);
+
+		return toreturn;
+	}
+
+	/**
+	 * @return How many bytes of direct memory the pool has taken, in chunks
+	 */
+	public long pooledBytes() {
+		synchronized (this.chunks) {
+			return this.chunks.size() * (long) CHUNK_BYTES;
+		}
+	}
+
+	/**
+	 * A block for an array of at least length bytes, and the Recycler to give it back with. The block isn't cleared.
+	 */
+	Recycler take(final DirectByteArray array, final int length) {
+		recycle();
+
+		this.allocated.increment();
+
+		final Recycler recycler = new Recycler(array, this.queue);
+		block(recycler, length);
+
+		synchronized (this.live) {
+			recycler.next = this.live.next;
+			recycler.previous = this.live;
+
+			if (this.live.next != null)
+				this.live.next.previous = recycler;
+
+			this.live.next = recycler;
+		}
+
+		return recycler;
+	}
+
+	/**
+	 * Put a new block of at least length bytes in recycler, with the first kept bytes of the old one, and give the old
+	 * one back. Nothing past those bytes is cleared.
+	 */
+	void move(final Recycler recycler, final int length, final int kept) {
+		final long address = recycler.address;
+		final int size_class = recycler.size_class;
+		final ByteBuffer owner = recycler.owner; // held until it's been copied out of
+
+		block(recycler, length);
+		unsafe.copyMemory(address, recycler.address, kept);
+
+		release(size_class, address, owner);
+	}
+
+	/**
+	 * @return The largest length the block of a recycler can hold
+	 */
+	static int capacity(final Recycler recycler) {
+		return recycler.size_class < 0 ? recycler.owner.capacity() : 1 << recycler.size_class;
+	}
+
+	private void block(final Recycler recycler, final int length) {
+		final int size_class = Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(0, length - 1)));
+
+		if (size_class > MAX_CLASS) {
+			this.unpooled.increment();
+
+			recycler.owner = ByteBuffer.allocateDirect(length);
+			recycler.address = unsafe.getLong(recycler.owner, ADDRESS_OFFSET);
+			recycler.size_class = -1;
+		} else {
+			recycler.owner = null;
+			recycler.address = this.classes[size_class].take();
+			recycler.size_class = size_class;
+		}
+	}
+
+	private void release(final int size_class, final long address, final @Nullable ByteBuffer owner) {
+		// a block with a buffer of its own is freed by the buffer's Cleaner, once nothing has the buffer
+		if (size_class >= 0)
+			this.classes[size_class].give(address);
+		else
+			assert owner != null && owner.isDirect();
+	}
+
+	/**
+	 * Give back the blocks of every array that's been collected since last time
+	 */
+	private void recycle() {
+		Recycler recycler;
+
+		while ((recycler = (Recycler) this.queue.poll()) != null) {
+			synchronized (this.live) {
+				recycler.previous.next = recycler.next;
+
+				if (recycler.next != null)
+					recycler.next.previous = recycler.previous;
+
+				recycler.previous = recycler.next = null;
+			}
+
+			release(recycler.size_class, recycler.address, recycler.owner);
+			recycler.owner = null;
+			this.recycled.increment();
+		}
+	}
+
+	final class SizeClass {
+		final int size_class;
+
+		long[] free = new long[16];
+		int free_count = 0;
+
+		long chunk_address = 0;
+		int chunk_remaining = 0;
+
+		SizeClass(final int size_class) {
+			this.size_class = size_class;
+		}
+
+		synchronized long take() {
+			if (this.free_count > 0)
+				return this.free[--this.free_count];
+
+			final int size = 1 << this.size_class;
+
+			if (this.chunk_remaining < size) {
+				final ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+
+				synchronized (DirectByteArrayFactory.this.chunks) {
+					DirectByteArrayFactory.this.chunks.add(chunk);
+				}
+
+				this.chunk_address = unsafe.getLong(chunk, ADDRESS_OFFSET);
+				this.chunk_remaining = CHUNK_BYTES;
+			}
+
+			final long address = this.chunk_address;
+
+			this.chunk_address += size;
+			this.chunk_remaining -= size;
+
+			return address;
+		}
+
+		synchronized void give(final long address) {
+			if (this.free_count == this.free.length)
+				this.free = Arrays.copyOf(this.free, this.free.length * 2);
+
+			this.free[this.free_count++] = address;
+		}
+	}
+
+	/**
+	 * Holds an array's block, not the array, so it can be given back once the array's gone
+	 */
+	static final class Recycler extends PhantomReference<DirectByteArray> {
+		long address;
+		int size_class; // -1 for a block with its own buffer
+		@Nullable ByteBuffer owner; // that buffer
+
+		@Nullable Recycler previous;
+		@Nullable Recycler next;
+
+		Recycler() {
+			super(null, null);
+		}
+
+		Recycler(final DirectByteArray array, final ReferenceQueue<DirectByteArray> queue) {
+			super(array, queue);
+		}
+	}
+}
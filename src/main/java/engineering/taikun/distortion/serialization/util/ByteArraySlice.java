@@ -4,6 +4,8 @@ import engineering.taikun.distortion.serialization.api.ByteArray;
 import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+
 /**
  * A generic implementation of a ByteArray-slice with a backing {@link ByteArray}
  *
@@ -62,17 +64,52 @@ public class ByteArraySlice<BA extends ByteArray<BA>> extends ByteArray<BA> {
 		if (this.factory == null)
 			return null;
 
-		final BA temp = this.factory.allocate(length());
+		final byte[] bytes = new byte[length()];
+		this.source.copyTo(this.start, bytes, 0, bytes.length);
 
-		for (int i = 0; i < length(); i++) {
-			temp.write(i, this.source.read(this.start + i));
-		}
+		return this.factory.wrap(bytes);
+	}
+
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		check(index, length);
+		this.source.copyTo(this.start + index, dest, dest_index, length);
+	}
 
-		return temp;
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		check(index, length);
+		this.source.copyTo(this.start + index, dest, length);
+	}
+
+	@Override
+	public short getShort(final int index) {
+		check(index, 2);
+		return this.source.getShort(this.start + index);
+	}
+
+	@Override
+	public int getInt(final int index) {
+		check(index, 4);
+		return this.source.getInt(this.start + index);
+	}
+
+	@Override
+	public long getLong(final int index) {
+		check(index, 8);
+		return this.source.getLong(this.start + index);
 	}
 
 	@Override
 	public ByteArray slice(final int start, final int end) {
 		return new ByteArraySlice<>(this.factory, this.source, this.start + start, this.start + end);
 	}
+
+	private void check(final int index, final int length) {
+		if (index < 0 || length < 0 || index > length() - length) {
+			throw new IndexOutOfBoundsException(
+					"index: " + index + ", length: " + length + ", array-length: " + length()
+			);
+		}
+	}
 }
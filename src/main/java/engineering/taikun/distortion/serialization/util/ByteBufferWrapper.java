@@ -3,6 +3,7 @@ package engineering.taikun.distortion.serialization.util;
 import engineering.taikun.distortion.serialization.api.ByteArray;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * A
@@ -37,7 +38,46 @@ public class ByteBufferWrapper extends ByteArray<ByteBufferWrapper> {
 
 	@Override
 	public ByteBufferWrapper copy() {
-		return null;
+		final ByteBuffer copy = this.buffer.isDirect()
+				? ByteBuffer.allocateDirect(this.buffer.capacity())
+				: ByteBuffer.allocate(this.buffer.capacity());
+
+		copyTo(0, copy, copy.capacity());
+		copy.clear();
+
+		return new ByteBufferWrapper(copy.order(this.buffer.order()));
+	}
+
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		final ByteBuffer duplicate = this.buffer.duplicate();
+		duplicate.limit(duplicate.capacity()).position(index);
+		duplicate.get(dest, dest_index, length);
+	}
+
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		final ByteBuffer duplicate = this.buffer.duplicate();
+		duplicate.limit(index + length).position(index);
+		dest.put(duplicate);
+	}
+
+	@Override
+	public short getShort(final int index) {
+		final short value = this.buffer.getShort(index);
+		return this.buffer.order() == ByteOrder.BIG_ENDIAN ? value : Short.reverseBytes(value);
+	}
+
+	@Override
+	public int getInt(final int index) {
+		final int value = this.buffer.getInt(index);
+		return this.buffer.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value);
+	}
+
+	@Override
+	public long getLong(final int index) {
+		final long value = this.buffer.getLong(index);
+		return this.buffer.order() == ByteOrder.BIG_ENDIAN ? value : Long.reverseBytes(value);
 	}
 
 	@Override
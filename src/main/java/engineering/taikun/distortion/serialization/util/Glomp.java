@@ -4,6 +4,8 @@ import engineering.taikun.distortion.serialization.api.ByteArray;
 import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
 import org.jetbrains.annotations.Nullable;
 
+import java.nio.ByteBuffer;
+
 /**
  * <p>Make a {@link ByteArray} concat view of two ByteArrays, uses an optional {@link ByteArrayFactory} for
  * allocation</p>
@@ -65,13 +67,70 @@ public class Glomp extends ByteArray<ByteArray> {
 		if (this.factory == null)
 			throw new IllegalStateException("Glomp was created without copying support");
 
-		final ByteArray temp = this.factory.allocate(length());
+		final byte[] bytes = new byte[this.total_length];
+		copyTo(0, bytes, 0, bytes.length);
+
+		return this.factory.wrap(bytes);
+	}
+
+	@Override
+	public void copyTo(final int index, final byte[] dest, final int dest_index, final int length) {
+		check(index, length);
+
+		// the part in root, then the part in suffix
+		final int root_part = Math.max(0, Math.min(length, this.root_length - index));
+
+		if (root_part > 0)
+			this.root.copyTo(index, dest, dest_index, root_part);
+
+		if (root_part < length)
+			this.suffix.copyTo(index + root_part - this.root_length, dest, dest_index + root_part, length - root_part);
+	}
+
+	@Override
+	public void copyTo(final int index, final ByteBuffer dest, final int length) {
+		check(index, length);
+
+		final int root_part = Math.max(0, Math.min(length, this.root_length - index));
+
+		if (root_part > 0)
+			this.root.copyTo(index, dest, root_part);
+
+		if (root_part < length)
+			this.suffix.copyTo(index + root_part - this.root_length, dest, length - root_part);
+	}
 
-		for (int i = 0; i < length(); i++) {
-			temp.write(i, read(i));
+	@Override
+	public short getShort(final int index) {
+		if (index >= 0 && index + 2 <= this.root_length) {
+			return this.root.getShort(index);
+		} else if (index >= this.root_length && index + 2 <= this.total_length) {
+			return this.suffix.getShort(index - this.root_length);
+		} else {
+			return super.getShort(index);
+		}
+	}
+
+	@Override
+	public int getInt(final int index) {
+		if (index >= 0 && index + 4 <= this.root_length) {
+			return this.root.getInt(index);
+		} else if (index >= this.root_length && index + 4 <= this.total_length) {
+			return this.suffix.getInt(index - this.root_length);
+		} else {
+			return super.getInt(index);
 		}
+	}
 
-		return temp;
+	@Override
+	public long getLong(final int index) {
+		if (index >= 0 && index + 8 <= this.root_length) {
+			return this.root.getLong(index);
+		} else if (index >= this.root_length && index + 8 <= this.total_length) {
+			return this.suffix.getLong(index - this.root_length);
+		} else {
+			return super.getLong(index);
+		}
 	}
 
 	@Override
@@ -84,4 +143,12 @@ public class Glomp extends ByteArray<ByteArray> {
 	public ByteArray slice(final int start, final int end) {
 		return new ByteArraySlice(this.factory, this, start, end);
 	}
+
+	private void check(final int index, final int length) {
+		if (index < 0 || length < 0 || index > this.total_length - length) {
+			throw new IndexOutOfBoundsException(
+					"index: " + index + ", length: " + length + ", array-length: " + this.total_length
+			);
+		}
+	}
 }
\ No newline at end of file
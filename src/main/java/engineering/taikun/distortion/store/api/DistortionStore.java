@@ -3,11 +3,14 @@ package engineering.taikun.distortion.store.api;
 import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
 import engineering.taikun.distortion.serialization.api.ByteArray;
 import engineering.taikun.distortion.store.api.DistortionStore.DistortionTransaction;
+import engineering.taikun.distortion.store.api.KV.DoomedReadException;
 import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Future;
 
@@ -57,6 +60,50 @@ public interface DistortionStore<T extends DistortionTransaction> {
 			@Nullable Collection<Collection<Identifier>> pending, @Nullable Collection<Identifier> identifiers
 	);
 
+	/**
+	 * <p>Creates a run of top-level transactions, as if by calling {@link #newTransaction} count times in a row, with no
+	 * other transaction created in between</p>
+	 *
+	 * <p>All of the transactions share the same pending identifiers and identifiers</p>
+	 *
+	 * <p>The default implementation just synchronizes on the store, which is only correct if #newTransaction does too.
+	 * Implementations should override this to reserve the whole run at once.</p>
+	 *
+	 * @param count The number of transactions to create
+	 * @param pending The pending identifiers that Distortion captured a little earlier
+	 * @param identifiers The identifiers for these transactions
+	 * @return The generated transactions, in order
+	 */
+	default List<? extends T> newTransactions(
+			final int count,
+			final @Nullable Collection<Collection<Identifier>> pending, final @Nullable Collection<Identifier> identifiers
+	) {
+		final ArrayList<T> toreturn = new ArrayList<>(count);
+
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				toreturn.add(newTransaction(pending, identifiers));
+			}
+		}
+
+		return toreturn;
+	}
+
+	/**
+	 * <p>Creates a read-only transaction over the latest committed state. It takes no slot in time-space, is never
+	 * pending and is never committed, only started, read and closed.</p>
+	 *
+	 * <p>Writes through its KVs must throw. Reads may throw an {@link ExpiredReadException} like any other, in which
+	 * case Distortion takes a new snapshot and runs the function again.</p>
+	 *
+	 * <p>Returns null if not supported, read-only functions are then run as ordinary optimistic transactions</p>
+	 *
+	 * @return A snapshot transaction or null
+	 */
+	default @Nullable T newSnapshot() {
+		return null;
+	}
+
 	/**
 	 * <p>Get all pending transactions <b>in sorted order</b></p>
 	 *
@@ -174,7 +221,8 @@ public interface DistortionStore<T extends DistortionTransaction> {
 		 * <p>The individual maps within the staged data can be null to indicate an empty map (no data to write as part of
 		 * the transaction)</p>
 		 *
-		 * <p>Note: only #get is invoked, all other Future methods don't need to be implemented</p>
+		 * <p>Note: only #get and #isDone are invoked, all other Future methods don't need to be implemented. #isDone is
+		 * used to forward staged data without waiting, so it should turn true as soon as commit is called.</p>
 		 *
 		 * @return a {@link StagedData}
 		 */
@@ -203,6 +251,27 @@ public interface DistortionStore<T extends DistortionTransaction> {
 		 */
 		int commit(boolean block);
 
+		/**
+		 * <p>Promise that nothing will be chained off this transaction once it has committed successfully</p>
+		 *
+		 * <p>Called before #commit. Stores that commit in groups can then commit the transactions waiting right behind
+		 * this one in the same pass. Ignoring it is always correct.</p>
+		 */
+		default void seal() {}
+
+		/**
+		 * <p>Whether a committed transaction has already overwritten something this one read, so it can't commit</p>
+		 *
+		 * <p>Distortion polls this between steps to give up early instead of finishing a transform that will fail
+		 * validation anyway. Stores that track it should also refuse further reads with a
+		 * {@link DoomedReadException}. Returning false is always correct.</p>
+		 *
+		 * @return True if this transaction is known to fail validation
+		 */
+		default boolean isDoomed() {
+			return false;
+		}
+
 		/**
 		 * <p>Extends the event this transaction is in by creating a new transaction and inserting it after this event and
 		 * all other transactions created by chaining in time-space.</p>
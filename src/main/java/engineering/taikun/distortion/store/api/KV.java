@@ -52,6 +52,16 @@ public interface KV<T extends ByteArray> {
 	 */
 	ByteArray getPrefix();
 
+	/**
+	 * <p>Called by a {@link engineering.taikun.distortion.SerializationUtil.SerializationContext} as it closes, just
+	 * before the scope of the ByteArrays written to and read through this KV is (see
+	 * {@link engineering.taikun.distortion.serialization.api.ByteArrayFactory#openScope})</p>
+	 *
+	 * <p>KVs that keep keys or values past this have to copy them out of the scope now, through
+	 * {@link engineering.taikun.distortion.serialization.api.ByteArrayFactory#retain}. The default keeps nothing.</p>
+	 */
+	default void retain() {}
+
 	/**
 	 * A generic Exception to indicate that the read failed because the value is no longer in the buffer of historical
 	 * values
@@ -59,4 +69,11 @@ public interface KV<T extends ByteArray> {
 	@SuppressWarnings("serial")
 	class ExpiredReadException extends RuntimeException {}
 
+	/**
+	 * Indicates that the read was refused because a committed transaction has already overwritten something the reading
+	 * transaction read, so it is going to fail anyway
+	 */
+	@SuppressWarnings("serial")
+	class DoomedReadException extends RuntimeException {}
+
 }
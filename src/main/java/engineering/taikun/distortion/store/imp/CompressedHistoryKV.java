@@ -0,0 +1,317 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.util.BlockCompressor;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.PreparedWrites;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Wraps another history, compressing values on the way in and decompressing them on the way out, so whatever the
+ * other history keeps (on the heap, off it, or in runs on disk) is compressed, and a value's only decompressed when a
+ * read gets to it. Keys are left alone, the history needs them to look things up.
+ *
+ *   stored value: byte format | [varint length] | block
+ *
+ * RAW values are stored as they are, with the format byte in front. That's anything under min_bytes, or that didn't
+ * come out smaller. BLOCK is a BlockCompressor block on its own, DICTIONARY one that refers back to the dictionary.
+ *
+ * The dictionary is the first dictionary_bytes of values written (up to MAX_SAMPLE of each), most of the values of a
+ * store are a handful of shapes (node rows, strings, arrays) so the first ones are as good a sample as any. Once it's
+ * full it's frozen, so every DICTIONARY value refers back to the same one, values written before then stay BLOCK.
+ *
+ * The dictionary only lives on the heap, so it can't go over a history that outlives the process (see
+ * HistoryKV.isDurable): after a restart its DICTIONARY values would decode against a different one.
+ *
+ * Values are encoded at prepare, by the committing thread before the commit's critical section. The write only hands
+ * what was prepared on.
+ */
+public class CompressedHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
+		HistoryKV<BA, BA, DT> {
+
+	static final byte RAW = 0;
+	static final byte BLOCK = 1;
+	static final byte DICTIONARY = 2;
+
+	static final int MAX_SAMPLE = 256;
+
+	public final int min_bytes;
+	public final int dictionary_bytes;
+
+	public final LongAdder raw_bytes = new LongAdder(); // value bytes written
+	public final LongAdder stored_bytes = new LongAdder(); // what they came to, format bytes included
+	public final LongAdder compressed = new LongAdder(); // values stored as BLOCK or DICTIONARY
+	public final LongAdder decompressed = new LongAdder(); // values decompressed by reads
+
+	private final DistortionStoreShim<BA, DT> parent;
+	private final HistoryKV<? extends BA, BA, DT> history;
+	private final BlockCompressor block = new BlockCompressor();
+
+	private volatile @Nullable BlockCompressor dictionary = null;
+	private @Nullable ByteArrayOutputStream samples; // null once the dictionary is frozen, or if there's none
+
+	/**
+	 * Values of 16 bytes and over compressed, with a 16KB dictionary unless history is durable
+	 */
+	public CompressedHistoryKV(final DistortionStoreShim<BA, DT> parent, final HistoryKV<? extends BA, BA, DT> history) {
+		this(parent, history, 16, history.isDurable() ? 0 : 16 << 10);
+	}
+
+	/**
+	 * @param history What the compressed values go in
+	 * @param min_bytes Values shorter than this are stored raw
+	 * @param dictionary_bytes How much of the first values written goes into the dictionary, 0 for none. At most
+	 *                         {@link BlockCompressor#MAX_DICTIONARY}. It isn't saved anywhere, so it has to be 0 over
+	 *                         a durable history.
+	 */
+	public CompressedHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final HistoryKV<? extends BA, BA, DT> history, final int min_bytes,
+			final int dictionary_bytes
+	) {
+		if (dictionary_bytes < 0 || dictionary_bytes > BlockCompressor.MAX_DICTIONARY)
+			throw new IllegalArgumentException("dictionary_bytes out of range: " + dictionary_bytes);
+
+		if (dictionary_bytes > 0 && history.isDurable())
+			throw new IllegalArgumentException("The dictionary isn't saved, it can't go over a durable history");
+
+		this.min_bytes = min_bytes;
+		this.dictionary_bytes = dictionary_bytes;
+
+		this.parent = parent;
+		this.history = history;
+
+		this.samples = dictionary_bytes == 0 ? null : new ByteArrayOutputStream(dictionary_bytes);
+	}
+
+	@Override
+	public void shutdown() {
+		this.history.shutdown();
+	}
+
+	/**
+	 * @return Stored bytes over raw bytes of everything written so far
+	 */
+	public double ratio() {
+		final long raw = this.raw_bytes.sum();
+		return raw == 0 ? 1 : (double) this.stored_bytes.sum() / raw;
+	}
+
+	/**
+	 * @return Whether the dictionary's been filled, and new values can be compressed against it
+	 */
+	public boolean hasDictionary() {
+		return this.dictionary != null;
+	}
+
+	@Override
+	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+		final @Nullable BA stored = this.history.read(key, token);
+
+		return stored == null ? null : decode(stored);
+	}
+
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		this.history.write(encoded(values), token);
+	}
+
+	@Override
+	public void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+		final ArrayList<Map<? extends ByteArray, BA>> encoded = new ArrayList<>(values.size());
+
+		for (final Map<? extends ByteArray, BA> map : values) {
+			encoded.add(encoded(map));
+		}
+
+		this.history.writeAll(encoded, tokens);
+	}
+
+	/**
+	 * Values are encoded here, before the commit's critical section, the write only hands them on
+	 */
+	@Override
+	public Map<? extends ByteArray, BA> prepare(final Map<? extends ByteArray, BA> values) {
+		return new PreparedWrites<>(values, this, this.history.prepare(encodeAll(values)));
+	}
+
+	@Override
+	public void reserve(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> encoded = PreparedWrites.preparedBy(this, values);
+
+		if (encoded != null) {
+			this.history.reserve(encoded);
+		}
+	}
+
+	@Override
+	public void unreserve(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> encoded = PreparedWrites.preparedBy(this, values);
+
+		if (encoded != null) {
+			this.history.unreserve(encoded);
+		}
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return this.history.isVersioned();
+	}
+
+	@Override
+	public boolean isDurable() {
+		return this.history.isDurable();
+	}
+
+	@Override
+	public void sync() {
+		this.history.sync();
+	}
+
+	@Override
+	public @Nullable DT lastWriter(final ByteArray key) {
+		return this.history.lastWriter(key);
+	}
+
+	private Map<? extends ByteArray, BA> encoded(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> encoded = PreparedWrites.preparedBy(this, values);
+
+		return encoded != null ? encoded : encodeAll(values);
+	}
+
+	private Map<ByteArray, BA> encodeAll(final Map<? extends ByteArray, BA> values) {
+		final HashMap<ByteArray, BA> encoded = new HashMap<>((int) (values.size() / 0.75f) + 1);
+
+		for (final Entry<? extends ByteArray, BA> entry : values.entrySet()) {
+			final @Nullable BA value = entry.getValue();
+
+			// deletes stay deletes
+			encoded.put(entry.getKey(), value == null ? null : encode(value));
+		}
+
+		return encoded;
+	}
+
+	BA encode(final BA value) {
+		final byte[] bytes = value.toArray();
+		final int length = bytes.length;
+
+		this.raw_bytes.add(length);
+
+		@Nullable BlockCompressor compressor = this.dictionary;
+
+		if (compressor == null && this.samples != null) {
+			compressor = sample(bytes);
+		}
+
+		if (length >= this.min_bytes) {
+			final byte format = compressor == null ? BLOCK : DICTIONARY;
+
+			if (compressor == null) {
+				compressor = this.block;
+			}
+
+			final byte[] out = new byte[1 + 5 + BlockCompressor.maxCompressedLength(length)];
+			out[0] = format;
+
+			final int header = writeVarint(length, out, 1);
+			final int end = compressor.compress(bytes, length, out, header);
+
+			if (end != -1 && end < 1 + length) {
+				this.stored_bytes.add(end);
+				this.compressed.increment();
+
+				return this.parent.util.wrap(Arrays.copyOf(out, end));
+			}
+		}
+
+		final byte[] raw = new byte[1 + length];
+		raw[0] = RAW;
+		System.arraycopy(bytes, 0, raw, 1, length);
+
+		this.stored_bytes.add(raw.length);
+
+		return this.parent.util.wrap(raw);
+	}
+
+	BA decode(final BA stored) {
+		final byte[] bytes = stored.toArray();
+
+		switch (bytes[0]) {
+			case RAW:
+				return this.parent.util.wrap(Arrays.copyOfRange(bytes, 1, bytes.length));
+
+			case BLOCK:
+			case DICTIONARY:
+				final @Nullable BlockCompressor compressor = bytes[0] == BLOCK ? this.block : this.dictionary;
+
+				if (compressor == null)
+					throw new IllegalStateException("A value needs the dictionary before there is one");
+
+				int length = 0;
+				int offset = 1;
+				int shift = 0;
+				byte b;
+
+				do {
+					b = bytes[offset++];
+					length |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+
+				final byte[] out = new byte[length];
+				compressor.decompress(bytes, offset, bytes.length - offset, out);
+
+				this.decompressed.increment();
+
+				return this.parent.util.wrap(out);
+
+			default:
+				throw new IllegalStateException("Unknown value format " + bytes[0]);
+		}
+	}
+
+	/**
+	 * Add (some of) a value to the dictionary, freezing it once it's full
+	 *
+	 * @return The dictionary, if that froze it
+	 */
+	private synchronized @Nullable BlockCompressor sample(final byte[] bytes) {
+		final @Nullable ByteArrayOutputStream samples = this.samples;
+
+		if (samples == null)
+			return this.dictionary;
+
+		samples.write(bytes, 0, Math.min(Math.min(bytes.length, MAX_SAMPLE), this.dictionary_bytes - samples.size()));
+
+		if (samples.size() < this.dictionary_bytes)
+			return null;
+
+		final BlockCompressor dictionary = new BlockCompressor(samples.toByteArray());
+
+		this.samples = null;
+		this.dictionary = dictionary;
+
+		return dictionary;
+	}
+
+	private static int writeVarint(int value, final byte[] out, int offset) {
+		while ((value & ~0x7F) != 0) {
+			out[offset++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+
+		out[offset++] = (byte) value;
+
+		return offset;
+	}
+}
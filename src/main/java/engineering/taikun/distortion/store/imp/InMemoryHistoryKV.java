@@ -10,250 +10,584 @@ import org.jetbrains.annotations.Nullable;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
  * General runthrough of how this class works
  *
- * It's a standard ConcurrentHashMap where the values contain a list of values (and DTs)
+ * It's a standard ConcurrentHashMap where the values contain a ring of values (and DTs), oldest first, so appending a
+ * version and trimming the oldest are both O(1). Reads mostly want the newest version, which is checked before
+ * searching the ring.
  *
- * A circular queue is used to reference new entries. Upon dropping an old record, the map entry is cleaned.
+ * Keys are spread over stripes, each with its own lock and its own circular queue referencing new entries. Creating,
+ * appending to and dropping a key's entry only happens under its stripe's lock, so writers touching different stripes
+ * don't wait on each other. Upon dropping an old record, the map entry is cleaned.
  *
- * Values older than the min_age are not guaranteed to be flushed promptly or at all.
+ * A write sorts its keys by stripe and takes every stripe it touches once, in stripe order.
+ *
+ * With a spill (see TieredHistoryKV) a write to a key that isn't here has to bring the key's spilled value back first.
+ * That's looked up before any stripe lock is taken (TieredHistoryKV does it at prepare, before the commit's critical
+ * section), after noting how many keys each stripe has taken out (spilled or dropped). Under the stripe's lock a write
+ * checks the count: if the stripe took nothing out since, every key that was here when it looked still is, and what
+ * it found for the others is still what's spilled. If it did, the lock is let go, that stripe's keys are looked up
+ * again, and it tries again.
+ *
+ * Reclaiming is epoch based, the epoch being the shim's low watermark (the oldest token a live transaction can read
+ * at). A key's oldest version can go once its next version is at or below the epoch, as every reader sees that one or
+ * later. Each write, after appending to a stripe, works through the head of that stripe's queue until it gets to a
+ * version somebody may still read, doing a bounded amount of work, so nothing ever scans the whole map.
+ *
+ * Every started transaction pins its read point with the shim until it's closed, so however long it runs, the
+ * versions it reads stay. The byte budget is the safeguard against a pin holding on to too much: every stripe gets an
+ * even share of it (an estimate of what the versions that have been written over take on the heap, current ones don't
+ * count as trimming can't get rid of them), and while a stripe is over it, versions are trimmed from the head of its
+ * queue whether anyone could still read them or not. Those readers get an ExpiredReadException.
  */
 public class InMemoryHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
 		HistoryKV<BA, BA, DT> {
 
+	/** Rough heap cost of a key's entry on top of the key bytes: map node, ring, key and token objects */
+	public static final long KEY_BYTES = 96;
+	/** Rough heap cost of a version on top of the value bytes: ring slots, value and token objects */
+	public static final long VERSION_BYTES = 48;
+
 	public final boolean purge;
-	public final long min_age;
-	public final long max_size;
-	public final long gc_interval;
+	public final long max_bytes;
+	public final int stripes;
+
+	public final LongAdder reclaimed_versions = new LongAdder(); // versions trimmed once no live reader could want them
+	public final LongAdder forced_versions = new LongAdder(); // versions trimmed over budget, that a reader might want
+	public final LongAdder dropped_keys = new LongAdder(); // deleted (or purged) keys taken out of the map
+	public final LongAdder blocked_reclaims = new LongAdder(); // reclaims that stopped at a version still being read
 
 	private final DistortionStoreShim<BA, DT> parent;
 	private final ConcurrentHashMap<ByteArray, MapValue> map;
-	private final ArrayDeque<BufferValue> buffer;
-	private final Thread gc_thread;
+	private final Stripe[] stripe_array;
+	private final int stripe_mask;
+	private final long stripe_bytes;
+	private final @Nullable Spill<BA> spill;
 
 	public InMemoryHistoryKV(final DistortionStoreShim<BA, DT> parent) {
-		this(parent, false, 5000, 10_000_000, 5 * 60 * 1000L);
+		this(parent, 1L << 30, 16, false);
 	}
 
 	public InMemoryHistoryKV(final DistortionStoreShim<BA, DT> parent, final boolean purge) {
-		this(parent, purge, 5000, 10_000_000, 5 * 60 * 1000L);
+		this(parent, 1L << 30, 16, purge);
 	}
 
+	/**
+	 * @deprecated Versions are reclaimed as soon as no reader can want them, there's no age to wait out
+	 */
+	@Deprecated
 	public InMemoryHistoryKV(final DistortionStoreShim<BA, DT> parent, final boolean purge, final long min_age) {
-		this(parent, purge, min_age, 10_000_000, 5 * 60 * 1000L);
+		this(parent, purge);
 	}
 
+	/**
+	 * @deprecated Versions are reclaimed as soon as no reader can want them, there's no age to wait out. max_size was a
+	 * number of versions, it's taken as a budget of max_size versions without their values.
+	 */
+	@Deprecated
 	public InMemoryHistoryKV(
 			final DistortionStoreShim<BA, DT> parent, final boolean purge, final long min_age, final long max_size
 	) {
-		this(parent, purge, min_age, max_size, 5 * 60 * 1000L);
+		this(parent, Math.max(0, max_size) * VERSION_BYTES, 16, purge);
 	}
 
+	/**
+	 * @deprecated As {@link #InMemoryHistoryKV(DistortionStoreShim, boolean, long, long)}, and nothing runs in the
+	 * background anymore
+	 */
+	@Deprecated
 	public InMemoryHistoryKV(
 			final DistortionStoreShim<BA, DT> parent, final boolean purge, final long min_age, final long max_size,
 			final long gc_interval
+	) {
+		this(parent, purge, min_age, max_size);
+	}
+
+	/**
+	 * @param max_bytes Roughly how much heap the versions that have been written over may hold
+	 * @param stripes How many locks (and queues) keys are spread over, rounded up to a power of two. max_bytes is split
+	 * evenly between them.
+	 * @param purge Drop keys once nobody can read them anymore, not just deleted ones
+	 */
+	public InMemoryHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final long max_bytes, final int stripes, final boolean purge
+	) {
+		this(parent, max_bytes, stripes, purge, null);
+	}
+
+	/**
+	 * @param spill Where keys missing here may be, see {@link TieredHistoryKV}
+	 */
+	InMemoryHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final long max_bytes, final int stripes, final boolean purge,
+			final @Nullable Spill<BA> spill
 	) {
 		this.purge = purge;
-		this.min_age = Math.max(0, min_age);
-		this.max_size = Math.max(0, max_size);
-		this.gc_interval = Math.max(0, gc_interval);
+		this.max_bytes = Math.max(0, max_bytes);
+		this.stripes = Integer.highestOneBit(Math.max(1, Math.min(stripes, 1 << 16)) * 2 - 1);
 
 		this.parent = parent;
 		this.map = new ConcurrentHashMap<>();
-		this.buffer = new ArrayDeque<>(100);
-		this.gc_thread = new Thread(() -> {
-			while (true) {
-				try {
-					Thread.sleep(gc_interval);
-				} catch (final InterruptedException ignored) {
-					return;
-				}
-				gc();
+		this.stripe_array = new Stripe[this.stripes];
+		for (int i = 0; i < this.stripes; i++) {
+			this.stripe_array[i] = new Stripe();
+		}
+		this.stripe_mask = this.stripes - 1;
+		this.stripe_bytes = this.max_bytes / this.stripes;
+		this.spill = spill;
+	}
+
+	@Override
+	public void shutdown() {
+		// nothing running in the background
+	}
+
+	/**
+	 * @return Roughly how much heap the versions that have been written over take, which are only kept for readers
+	 * pinned at older tokens (or until a write gets round to reclaiming them)
+	 */
+	public long pinnedBytes() {
+		long total = 0;
+
+		for (final Stripe stripe : this.stripe_array) {
+			synchronized (stripe) {
+				total += stripe.pinned_bytes;
 			}
-		}, "InMemoryHistoryKV GC thread");
-		this.gc_thread.setDaemon(true);
-		this.gc_thread.start();
+		}
+
+		return total;
+	}
+
+	/**
+	 * @return Roughly how much heap the keys and versions held take
+	 */
+	public long retainedBytes() {
+		long total = 0;
+
+		for (final Stripe stripe : this.stripe_array) {
+			synchronized (stripe) {
+				total += stripe.bytes;
+			}
+		}
+
+		return total;
 	}
 
 	@Override
-	protected void finalize() throws Throwable {
-		this.gc_thread.interrupt();
-		super.finalize();
+	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+		final @Nullable MapValue map_read = this.map.get(key);
+
+		if (map_read == null) {
+			return null;
+		}
+
+		return map_read.read(token);
+	}
+
+	/**
+	 * Like {@link #read}, but {@link #ABSENT} if key has no entry at all (a delete is an entry)
+	 */
+	@Nullable Object readOrAbsent(final ByteArray key, final DT token) throws ExpiredReadException {
+		final @Nullable MapValue map_read = this.map.get(key);
+
+		if (map_read == null) {
+			return ABSENT;
+		}
+
+		return map_read.read(token);
 	}
 
 	@Override
-	public synchronized void shutdown() {
-		this.gc_thread.interrupt();
+	public boolean isVersioned() {
+		return true;
 	}
 
 	@Override
-	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+	public @Nullable DT lastWriter(final ByteArray key) {
 		final @Nullable MapValue map_read = this.map.get(key);
 
 		if (map_read == null) {
 			return null;
 		}
 
-		synchronized (map_read) {
+		return map_read.last();
+	}
 
-			// binary search like thing
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		write(values, token, null);
+	}
 
-			// test lowest value, which has to be less or equal than our token
+	/**
+	 * @param loaded What {@link #load} found for values, or null to look now (outside the stripe locks still)
+	 */
+	void write(final Map<? extends ByteArray, BA> values, final DT token, @Nullable Loaded<BA> loaded) {
+		final int count = values.size();
 
-			final int first_compare = map_read.tokens.get(0).compareTo(token);
+		if (count == 0)
+			return;
 
-			if (first_compare > 0) {
-				throw new ExpiredReadException();
-			}
+		if (loaded == null && this.spill != null) {
+			loaded = load(values);
+		}
+
+		// once for the whole batch, outside the stripe locks, it only ever moves forward so it's at worst a bit behind
+		final DT low = this.parent.lowWatermark();
+
+		if (count == 1) {
+			final Entry<? extends ByteArray, BA> entry = values.entrySet().iterator().next();
+			final int s = stripeOf(entry.getKey());
+			final Stripe stripe = this.stripe_array[s];
+
+			while (true) {
+				synchronized (stripe) {
+					if (loaded == null || loaded.removals[s] == stripe.removals) {
+						append(stripe, entry.getKey(), entry.getValue(), token, low, loaded);
+						reclaim(stripe, 1, low);
+						return;
+					}
+				}
 
-			if (first_compare == 0 || map_read.tokens.size() == 1) {
-				return map_read.values.get(0);
+				loaded.reload(this, s, Collections.singletonList(entry));
 			}
+		}
 
-			int low_index = 0;
-			int high_index = map_read.tokens.size();
+		// counting sort of the entries by stripe
+		final int[] stripe_of = new int[count];
+		final int[] starts = new int[this.stripes + 1];
 
-			while (high_index - low_index > 1) {
-				final int middle = low_index + (high_index - low_index) / 2;
-				final int compare = map_read.tokens.get(middle).compareTo(token);
+		int i = 0;
+		for (final ByteArray key : values.keySet()) {
+			final int stripe = stripeOf(key);
 
-				if (compare == 0) {
-					return map_read.values.get(middle);
-				} else if (compare < 0) {
-					low_index = middle;
-				} else if (compare > 0) {
-					high_index = middle;
+			stripe_of[i++] = stripe;
+			starts[stripe + 1]++;
+		}
+
+		for (int s = 0; s < this.stripes; s++) {
+			starts[s + 1] += starts[s];
+		}
+
+		final Entry[] sorted = new Entry[count];
+		final int[] fill = Arrays.copyOf(starts, this.stripes);
+
+		i = 0;
+		for (final Entry<? extends ByteArray, BA> entry : values.entrySet()) {
+			sorted[fill[stripe_of[i++]]++] = entry;
+		}
+
+		for (int s = 0; s < this.stripes; s++) {
+			if (starts[s] == starts[s + 1])
+				continue;
+
+			final Stripe stripe = this.stripe_array[s];
+
+			while (true) {
+				synchronized (stripe) {
+					if (loaded == null || loaded.removals[s] == stripe.removals) {
+						for (int e = starts[s]; e < starts[s + 1]; e++) {
+							@SuppressWarnings("unchecked") final Entry<? extends ByteArray, BA> entry = sorted[e];
+
+							append(stripe, entry.getKey(), entry.getValue(), token, low, loaded);
+						}
+
+						reclaim(stripe, starts[s + 1] - starts[s], low);
+						break;
+					}
 				}
-			}
 
-			return map_read.values.get(low_index);
+				@SuppressWarnings("unchecked") final List<Entry<? extends ByteArray, BA>> entries =
+						(List) Arrays.asList(sorted).subList(starts[s], starts[s + 1]);
 
+				loaded.reload(this, s, entries);
+			}
 		}
 	}
 
-	@Override
-	public synchronized void write(final Map<? extends ByteArray, BA> values, final DT token) {
-		final HashSet<ByteArray> buffer_keys = new HashSet<>();
+	/**
+	 * Look up the spilled values of values' keys that aren't here, outside every lock, for a write of them to bring back
+	 */
+	Loaded<BA> load(final Map<? extends ByteArray, BA> values) {
+		final Loaded<BA> loaded = new Loaded<>(this.stripes);
 
-		for (final Entry<? extends ByteArray, BA> entry : values.entrySet()) {
-			final ByteArray key = entry.getKey();
-			final @Nullable BA value = entry.getValue();
+		for (int s = 0; s < this.stripes; s++) {
+			loaded.removals[s] = this.stripe_array[s].removals;
+		}
 
-			final @Nullable MapValue map_read = this.map.get(key);
+		for (final ByteArray key : values.keySet()) {
+			loaded.load(this, key);
+		}
 
-			if (map_read == null) {
+		return loaded;
+	}
 
-				this.map.put(key, new MapValue(
-						new ArrayList<>(Collections.singletonList(token)), new ArrayList<>(Collections.singletonList(value))
-				));
+	int stripeOf(final ByteArray key) {
+		final int hash = key.hashCode();
+		return (hash ^ (hash >>> 16)) & this.stripe_mask;
+	}
 
-			} else {
+	/**
+	 * Append a version to key's entry and queue it, under stripe's lock
+	 */
+	private void append(
+			final Stripe stripe, final ByteArray key, final @Nullable BA value, final DT token, final DT low,
+			final @Nullable Loaded<BA> loaded
+	) {
+		@Nullable MapValue map_read = this.map.get(key);
+
+		if (map_read == null && loaded != null) {
+			// it was spilled, that has to come back first so older readers still find it
+			final @Nullable BA spilled = loaded.values.get(key);
 
-				synchronized (map_read) {
+			if (spilled != null) {
+				map_read = insert(stripe, key, spilled, low);
+				this.spill.promoted(key);
+			}
+		}
 
-					map_read.tokens.add(token);
-					map_read.values.add(value);
+		if (map_read == null) {
 
-				}
+			this.map.put(key, new MapValue(token, value));
+			stripe.bytes += KEY_BYTES + key.length();
+
+		} else {
+
+			synchronized (map_read) {
+				stripe.pinned_bytes += versionBytes(map_read.lastValue());
+				map_read.add(token, value);
 			}
 
-			buffer_keys.add(key);
 		}
 
-		pushToBuffer(buffer_keys);
+		stripe.bytes += versionBytes(value);
+		stripe.add(key);
 	}
 
-	private synchronized void pushToBuffer(final HashSet<ByteArray> keys) {
-		final long time = System.currentTimeMillis();
-		DT probe = null;
+	private MapValue insert(final Stripe stripe, final ByteArray key, final BA value, final DT token) {
+		final MapValue map_value = new MapValue(token, value);
 
-		while (true) {
-			final @Nullable BufferValue buffer_value = this.buffer.peek();
+		this.map.put(key, map_value);
+		stripe.bytes += KEY_BYTES + key.length() + versionBytes(value);
+		stripe.add(key);
 
-			if (buffer_value == null)
-				break;
+		return map_value;
+	}
+
+	/**
+	 * Bring a spilled key back, as a single version at the low watermark, unless it's already here
+	 *
+	 * @return Whether it was brought back
+	 */
+	boolean promote(final ByteArray key, final BA value) {
+		final Stripe stripe = this.stripe_array[stripeOf(key)];
+		final DT low = this.parent.lowWatermark();
+
+		synchronized (stripe) {
+			if (this.map.containsKey(key))
+				return false;
+
+			insert(stripe, key, value, low);
+			return true;
+		}
+	}
+
+	/**
+	 * Hand every key that could be spilled to consumer: its only version is older than low, isn't a delete, and it
+	 * hasn't been read since the last time round (reads set a reference bit, which this clears)
+	 */
+	void spillable(final DT low, final SpillConsumer<BA, DT> consumer) {
+		for (final Entry<ByteArray, MapValue> entry : this.map.entrySet()) {
+			final MapValue map_value = entry.getValue();
+
+			final @Nullable BA value;
+			final DT token;
 
-			if (buffer_value.timestamp + this.min_age < time) {
-				if (probe == null) {
-					probe = this.parent.pending.firstKey().read_token;
+			synchronized (map_value) {
+				if (map_value.size > 1 || map_value.lastValue() == null || map_value.last().compareTo(low) >= 0)
+					continue;
+
+				if (map_value.referenced) {
+					map_value.referenced = false;
+					continue;
 				}
 
-				removeBufferHead(probe);
-			} else {
-				break;
+				value = map_value.lastValue();
+				token = map_value.last();
 			}
+
+			consumer.accept(entry.getKey(), value, token);
 		}
+	}
 
-		for (final ByteArray key : keys) {
-			if (this.buffer.size() == this.max_size) {
-				if (probe == null) {
-					probe = this.parent.pending.firstKey().read_token;
+	/**
+	 * Take key out once it's been spilled, if it still has a single version written at token
+	 *
+	 * @return false if it's been written (or dropped) since
+	 */
+	boolean evict(final ByteArray key, final DT token) {
+		final Stripe stripe = this.stripe_array[stripeOf(key)];
+
+		synchronized (stripe) {
+			final @Nullable MapValue map_value = this.map.get(key);
+
+			if (map_value == null)
+				return false;
+
+			synchronized (map_value) {
+				if (map_value.size > 1 || map_value.last().compareTo(token) != 0)
+					return false;
+
+				// readers that miss from here on have to find it spilled
+				if (this.spill != null) {
+					this.spill.demoted(key);
 				}
 
-				removeBufferHead(probe);
+				this.map.remove(key);
+				stripe.bytes -= KEY_BYTES + key.length() + map_value.bytes();
+				stripe.removals++;
+			}
+
+			return true;
+		}
+	}
+
+	/**
+	 * Work through every stripe's queue as far as the epoch allows, for when writes have stopped
+	 */
+	void reclaim() {
+		final DT low = this.parent.lowWatermark();
+
+		for (final Stripe stripe : this.stripe_array) {
+			synchronized (stripe) {
+				reclaim(stripe, stripe.size, low);
 			}
+		}
+	}
 
-			final BufferValue toinsert = new BufferValue(time, key);
+	/**
+	 * Work through the head of stripe's queue after appending to it, under stripe's lock. Goes as far as the epoch
+	 * allows, but not much further than what was appended, then keeps trimming while over budget.
+	 */
+	private void reclaim(final Stripe stripe, final int appended, final DT low) {
+		for (int budget = 2 * appended + 2; budget > 0 && stripe.size > 0; budget--) {
+			if (!removeHead(stripe, low, false)) {
+				this.blocked_reclaims.increment();
+				break;
+			}
+		}
 
-			this.buffer.add(toinsert);
+		// requeued entries come round again, so at most one pass
+		for (int left = stripe.size; left > 0 && stripe.pinned_bytes > this.stripe_bytes; left--) {
+			removeHead(stripe, low, true);
 		}
 	}
 
-	private synchronized void removeBufferHead(final DT low) {
-		final BufferValue buffer_value = this.buffer.remove();
+	/**
+	 * Take the head off stripe's queue and trim the oldest version of its key, or drop the whole key
+	 *
+	 * @param force Trim even if a live reader could still want the version
+	 * @return false if not forced, and the head is still being read (it stays put)
+	 */
+	private boolean removeHead(final Stripe stripe, final DT low, final boolean force) {
+		final ByteArray key = stripe.peek();
 
-		final @Nullable MapValue map_value = this.map.get(buffer_value.key);
+		final @Nullable MapValue map_value = this.map.get(key);
 
-		if (map_value == null)
-			return;
+		if (map_value == null) {
+			stripe.remove();
+			return true;
+		}
 
-		if (
-				(this.purge || map_value.values.get(map_value.tokens.size() - 1) == null)
-						&& low.compareTo(map_value.tokens.get(map_value.tokens.size() - 1)) > 0
-		) {
+		synchronized (map_value) {
+			if (droppable(map_value, low)) {
 
-			this.map.remove(buffer_value.key);
+				drop(stripe, key, map_value);
 
-		} else if (map_value.tokens.size() > 1) {
+			} else if (map_value.size > 1) {
 
-			synchronized (map_value) {
+				final boolean needed = map_value.token(1).compareTo(low) > 0;
+
+				if (needed && !force)
+					return false;
 
-				map_value.tokens.remove(0);
-				map_value.values.remove(0);
+				final long trimmed = versionBytes(map_value.trim());
+
+				stripe.bytes -= trimmed;
+				stripe.pinned_bytes -= trimmed;
+
+				if (needed) {
+					this.forced_versions.increment();
+				} else {
+					this.reclaimed_versions.increment();
+				}
+
+			} else if (this.purge || map_value.lastValue() == null) {
+
+				// to be dropped once the epoch passes it, which it hasn't yet
+				if (!force)
+					return false;
+
+				stripe.remove();
+				stripe.add(key);
+				return true;
 
 			}
+
+			// otherwise it's the only version, which stays as long as the key does
 		}
+
+		stripe.remove();
+		return true;
 	}
 
-	public final void gc() {
-		if (this.parent.pending.isEmpty())
-			return;
+	/**
+	 * Take key out of the map, under stripe's lock
+	 */
+	private void drop(final Stripe stripe, final ByteArray key, final MapValue map_value) {
+		this.map.remove(key);
+		stripe.removals++;
+
+		synchronized (map_value) {
+			final long versions = map_value.bytes();
+
+			stripe.bytes -= KEY_BYTES + key.length() + versions;
+			stripe.pinned_bytes -= versions - versionBytes(map_value.lastValue());
+		}
+
+		this.dropped_keys.increment();
+	}
+
+	static long versionBytes(final @Nullable ByteArray value) {
+		return VERSION_BYTES + (value == null ? 0 : value.length());
+	}
 
-		final DT low = this.parent.pending.firstKey().read_token;
+	/**
+	 * Sweep the whole map for keys that can be dropped. Writes already do this as they go, this is for when they've
+	 * stopped.
+	 */
+	public final void gc() {
+		final DT low = this.parent.lowWatermark();
 
 		for (final Entry<ByteArray, MapValue> entry : this.map.entrySet()) {
 			final MapValue map_value1 = entry.getValue();
 
-			if (
-					(this.purge || map_value1.values.get(map_value1.tokens.size() - 1) == null)
-							&& low.compareTo(map_value1.tokens.get(map_value1.tokens.size() - 1)) > 0
-			) {
+			if (droppable(map_value1, low)) {
 
-				synchronized (this) {
+				final Stripe stripe = this.stripe_array[stripeOf(entry.getKey())];
+
+				synchronized (stripe) {
 
 					final @Nullable MapValue map_value2 = this.map.get(entry.getKey());
 
 					if (map_value2 == null)
 						continue;
 
-					if (
-							(this.purge || map_value2.values.get(map_value2.tokens.size() - 1) == null)
-									&& low.compareTo(map_value2.tokens.get(map_value2.tokens.size() - 1)) > 0
-					) {
+					if (droppable(map_value2, low)) {
 
-						this.map.remove(entry.getKey());
+						drop(stripe, entry.getKey(), map_value2);
 
 					}
 				}
@@ -261,23 +595,236 @@ public class InMemoryHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToke
 		}
 	}
 
+	/**
+	 * Whether the whole entry can go: deleted (or purging), and nobody can read anything older than its last write
+	 */
+	private boolean droppable(final MapValue map_value, final DT low) {
+		synchronized (map_value) {
+			return (this.purge || map_value.lastValue() == null) && low.compareTo(map_value.last()) > 0;
+		}
+	}
+
+	/**
+	 * Where keys go when they've not been written or read in a while, and come back from
+	 */
+	interface Spill<BA> {
+		/**
+		 * @return The value key was spilled with, unless it has been brought back since
+		 */
+		@Nullable BA load(ByteArray key);
+
+		/**
+		 * key's spilled value is now (or was) in the history, what's spilled is stale
+		 */
+		void promoted(ByteArray key);
+
+		/**
+		 * key is about to go from the history, its spilled value is current
+		 */
+		void demoted(ByteArray key);
+	}
+
+	interface SpillConsumer<BA, DT> {
+		void accept(ByteArray key, BA value, DT token);
+	}
+
+	/**
+	 * The spilled values of a write's keys that weren't here, and every stripe's count of keys taken out from before
+	 * they were looked up
+	 */
+	static final class Loaded<BA extends ByteArray<BA>> {
+		final long[] removals;
+		final HashMap<ByteArray, BA> values = new HashMap<>();
+
+		Loaded(final int stripes) {
+			this.removals = new long[stripes];
+		}
+
+		void load(final InMemoryHistoryKV<BA, ?> history, final ByteArray key) {
+			final @Nullable BA spilled = history.map.containsKey(key) ? null : history.spill.load(key);
+
+			if (spilled != null) {
+				this.values.put(key, spilled);
+			} else {
+				this.values.remove(key);
+			}
+		}
+
+		/**
+		 * Look entries up again, outside every lock, as stripe s has taken keys out since they were
+		 */
+		void reload(
+				final InMemoryHistoryKV<BA, ?> history, final int s,
+				final Collection<? extends Entry<? extends ByteArray, BA>> entries
+		) {
+			this.removals[s] = history.stripe_array[s].removals;
+
+			for (final Entry<? extends ByteArray, BA> entry : entries) {
+				load(history, entry.getKey());
+			}
+		}
+	}
+
+	static final Object ABSENT = new Object();
+
+	/**
+	 * A key's versions, a ring of tokens and values sized to a power of two, guarded by itself
+	 */
 	private class MapValue {
-		final ArrayList<DT> tokens;
-		final ArrayList<BA> values;
+		Object[] tokens;
+		Object[] values;
+		int head = 0;
+		int size = 1;
+		boolean referenced = true; // read since the last spill pass
+
+		MapValue(final DT token, final @Nullable BA value) {
+			this.tokens = new Object[]{ token };
+			this.values = new Object[]{ value };
+		}
+
+		synchronized void add(final DT token, final @Nullable BA value) {
+			if (this.size == this.tokens.length) {
+				final Object[] tokens = new Object[this.size * 2];
+				final Object[] values = new Object[this.size * 2];
+
+				// unrolled into the front of the new arrays
+				final int first = this.size - this.head;
+				System.arraycopy(this.tokens, this.head, tokens, 0, first);
+				System.arraycopy(this.tokens, 0, tokens, first, this.head);
+				System.arraycopy(this.values, this.head, values, 0, first);
+				System.arraycopy(this.values, 0, values, first, this.head);
+
+				this.tokens = tokens;
+				this.values = values;
+				this.head = 0;
+			}
+
+			final int tail = (this.head + this.size) & (this.tokens.length - 1);
+
+			this.tokens[tail] = token;
+			this.values[tail] = value;
+			this.size++;
+		}
+
+		/**
+		 * Drop the oldest version, which mustn't be the only one
+		 *
+		 * @return Its value
+		 */
+		synchronized @Nullable BA trim() {
+			final @Nullable BA value = value(0);
+
+			this.tokens[this.head] = null;
+			this.values[this.head] = null;
+			this.head = (this.head + 1) & (this.tokens.length - 1);
+			this.size--;
+
+			return value;
+		}
+
+		/**
+		 * @return What the versions held count for against the budget
+		 */
+		synchronized long bytes() {
+			long bytes = 0;
+
+			for (int i = 0; i < this.size; i++) {
+				bytes += versionBytes(value(i));
+			}
+
+			return bytes;
+		}
+
+		@SuppressWarnings("unchecked")
+		DT token(final int index) {
+			return (DT) this.tokens[(this.head + index) & (this.tokens.length - 1)];
+		}
+
+		@SuppressWarnings("unchecked")
+		@Nullable BA value(final int index) {
+			return (BA) this.values[(this.head + index) & (this.tokens.length - 1)];
+		}
+
+		synchronized DT last() {
+			return token(this.size - 1);
+		}
 
-		MapValue(final ArrayList<DT> tokens, final ArrayList<BA> values) {
-			this.tokens = tokens;
-			this.values = values;
+		synchronized @Nullable BA lastValue() {
+			return value(this.size - 1);
+		}
+
+		synchronized @Nullable BA read(final DT token) throws ExpiredReadException {
+			this.referenced = true;
+
+			// usually it's the newest version we want
+			if (token(this.size - 1).compareTo(token) <= 0) {
+				return value(this.size - 1);
+			}
+
+			// test lowest value, which has to be less or equal than our token
+			if (token(0).compareTo(token) > 0) {
+				throw new ExpiredReadException();
+			}
+
+			// last version at or below token, 0 is below and size - 1 above
+			int low_index = 0;
+			int high_index = this.size - 1;
+
+			while (high_index - low_index > 1) {
+				final int middle = (low_index + high_index) >>> 1;
+				final int compare = token(middle).compareTo(token);
+
+				if (compare == 0) {
+					return value(middle);
+				} else if (compare < 0) {
+					low_index = middle;
+				} else {
+					high_index = middle;
+				}
+			}
+
+			return value(low_index);
 		}
 	}
 
-	private static class BufferValue {
-		final long timestamp;
-		final ByteArray key;
+	/**
+	 * A circular queue of keys, one per version written, and what its keys take, guarded by itself
+	 */
+	private static class Stripe {
+		ByteArray[] keys = new ByteArray[16];
+		int head = 0;
+		int size = 0;
+		long bytes = 0;
+		long pinned_bytes = 0; // of those, what versions that have been written over take
+		volatile long removals = 0; // keys taken out, spilled or dropped, only moved under the lock
+
+		void add(final ByteArray key) {
+			if (this.size == this.keys.length) {
+				final ByteArray[] keys = new ByteArray[this.size * 2];
+
+				System.arraycopy(this.keys, this.head, keys, 0, this.size - this.head);
+				System.arraycopy(this.keys, 0, keys, this.size - this.head, this.head);
+
+				this.keys = keys;
+				this.head = 0;
+			}
+
+			this.keys[(this.head + this.size) & (this.keys.length - 1)] = key;
+			this.size++;
+		}
+
+		ByteArray peek() {
+			return this.keys[this.head];
+		}
+
+		ByteArray remove() {
+			final ByteArray key = this.keys[this.head];
+
+			this.keys[this.head] = null;
+			this.head = (this.head + 1) & (this.keys.length - 1);
+			this.size--;
 
-		BufferValue(final long timestamp, final ByteArray key) {
-			this.timestamp = timestamp;
-			this.key = key;
+			return key;
 		}
 	}
 }
@@ -0,0 +1,1085 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.util.ByteBufferWrapper;
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Everything written is appended to a log of memory-mapped segment files, and a memory-mapped hash index (open
+ * addressing, linear probing) points every live key at its latest record. Opening a cleanly shut down store maps both
+ * and that's it, nothing is read up front.
+ *
+ *   record: int crc | int key length | int value length (-1 for deletes) | key | value
+ *
+ * The crc covers everything after it. A record of zeroes ends the log, a crc of 0 with a key length of -1 (or less
+ * room than a header) ends a segment.
+ *
+ * The index file starts with a header, then 16 bytes a slot: long record position | int hash | unused. A position is
+ * (segment + 1) << 32 | offset, so 0 is null.
+ *
+ *   header: long magic | int slots | int count | long checkpoint | int clean
+ *
+ * The index is worked on through a private (copy-on-write) mapping, so nothing written to it reaches the file until a
+ * sync. Were it written in place the OS could put any of its pages down at any time, and after a crash a delete's
+ * backward shift could be down in one page but not the next, losing a key replay never touches. A sync forces the
+ * segments, writes the slots changed since the last one, the count and the new checkpoint (the end of the log) to a
+ * journal and forces that, and only then copies them into the index file. An open that finds a whole journal copies
+ * it in again (that's idempotent), one that finds a torn journal knows the index file wasn't touched. Either way the
+ * index file is exactly as of its checkpoint, and only the records past the checkpoint are replayed (replaying is
+ * idempotent too, the index just ends up at the latest record again). If the OS went down with it the log may end in
+ * a torn record, which replay stops at.
+ *
+ *   journal: long magic | int slots | int count | long checkpoint | int changed | changed * (int slot | int hash |
+ *            long position) | int crc
+ *
+ * Readers also need the history window: every key written since the low watermark has an overlay on the heap with the
+ * tokens and positions of those versions, plus the position of the record before them. Once a key's newest version is
+ * at or before the low watermark its overlay goes and reads go to the index.
+ *
+ * Segments are compacted from the head of the log: once the oldest segment is at most half live, and no overlay still
+ * points into it, its live records are appended again at the end, the index is pointed at the copies and synced, and
+ * only then is the segment's file deleted. As only the oldest segment goes there's nothing earlier a dropped delete
+ * could have hidden, and the segments left are still numbered without gaps. Going down before the file is deleted
+ * just leaves it for the next compaction, replaying the copies is idempotent like any other record. How much of each
+ * segment is live is counted from the index the first time a compaction looks (nothing is read at open), and kept up
+ * from then on.
+ */
+public class MappedHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
+		HistoryKV<BA, BA, DT> {
+
+	static final long MAGIC = 0x44697374_4D415031L; // DistMAP1
+	static final long JOURNAL_MAGIC = 0x44697374_4A524E31L; // DistJRN1
+	static final int JOURNAL_HEADER = 28;
+	static final int INDEX_HEADER = 64;
+	static final int SLOT_SIZE = 16;
+	static final int RECORD_HEADER = 12;
+
+	public final File directory;
+	public final int segment_size;
+	public final long sync_interval;
+
+	private final DistortionStoreShim<BA, DT> parent;
+	private final Function<ByteBuffer, BA> view;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<>(); // null for the compacted ones
+	private final BitSet dirty = new BitSet();
+	private int first_segment;
+	private @Nullable long[] live; // live record bytes by segment, null until counted
+	private int end_segment;
+	private int end_offset;
+
+	private final RandomAccessFile lock_file;
+	private final FileLock file_lock;
+
+	private MappedByteBuffer index; // private mapping, what reads and writes go to
+	private MappedByteBuffer durable; // the index file itself, only written at a sync
+	private final BitSet dirty_slots = new BitSet();
+
+	private final HashMap<ByteArray, Versions> overlay = new HashMap<>();
+
+	private final Thread sync_thread;
+	private boolean closed = false;
+
+	public MappedHistoryKV(final DistortionStoreShim<BA, DT> parent, final Function<ByteBuffer, BA> view, final File directory) {
+		this(parent, view, directory, 64 << 20, 1000);
+	}
+
+	/**
+	 * @param parent The shim, for its low watermark
+	 * @param view Presents a stored value (a read-only slice of a segment) as a BA. Wrap it (ByteBufferWrapper::new) for
+	 *             zero-copy reads, segments are never unmapped while this is open (a compacted one's file is deleted,
+	 *             but its mapping stays until nothing references it).
+	 * @param directory Where the segments and the index live, created if need be. One store per directory, so with
+	 *                  commit lanes every lane needs its own.
+	 * @param segment_size The size of a segment file. Records that don't fit get a segment of their own.
+	 * @param sync_interval How often the segments and index are forced to disk and the overlay trimmed, in ms
+	 */
+	public MappedHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final Function<ByteBuffer, BA> view, final File directory,
+			final int segment_size, final long sync_interval
+	) {
+		if (segment_size < 4096)
+			throw new IllegalArgumentException("segment_size must be at least 4096: " + segment_size);
+
+		this.directory = directory;
+		this.segment_size = segment_size;
+		this.sync_interval = Math.max(1, sync_interval);
+
+		this.parent = parent;
+		this.view = view;
+
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs())
+				throw new IOException("Can't create " + directory);
+
+			this.lock_file = new RandomAccessFile(new File(directory, "lock"), "rw");
+			this.file_lock = this.lock_file.getChannel().tryLock();
+
+			if (this.file_lock == null)
+				throw new IOException(directory + " is in use by another store");
+
+			open();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		this.sync_thread = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(this.sync_interval);
+				} catch (final InterruptedException ignored) {
+					return;
+				}
+				gc();
+				compact();
+				sync();
+			}
+		}, "MappedHistoryKV sync thread");
+		this.sync_thread.setDaemon(true);
+		this.sync_thread.start();
+	}
+
+	// OPENING
+
+	private void open() throws IOException {
+		this.first_segment = firstSegment();
+
+		for (int segment = 0; segment < this.first_segment; segment++) {
+			this.segments.add(null);
+		}
+
+		for (int segment = this.first_segment; segmentFile(segment).exists(); segment++) {
+			this.segments.add(map(segmentFile(segment), 0));
+		}
+
+		if (this.segments.size() == this.first_segment) {
+			this.segments.add(map(segmentFile(this.first_segment), this.segment_size));
+		}
+
+		final File index_file = new File(this.directory, "index");
+		boolean rebuild = !index_file.exists();
+
+		if (!rebuild) {
+			this.durable = map(index_file, 0);
+			rebuild = this.durable.getLong(0) != MAGIC;
+		}
+
+		if (rebuild) {
+			rebuildIndex(1024);
+		} else {
+			redoJournal();
+
+			this.index = mapPrivate(index_file);
+
+			if (this.durable.getInt(24) == 1) {
+				// clean shutdown, the checkpoint is the end of the log
+				seek(this.durable.getLong(16));
+			} else {
+				recover();
+			}
+		}
+
+		this.durable.putInt(24, 0);
+		this.durable.force();
+	}
+
+	private void recover() throws IOException {
+		seek(this.durable.getLong(16));
+		replay();
+
+		// only an index written in place (before the journal) can have a slot pointing past the end of the log, and we
+		// don't know what the slot had before
+		final long end = position(this.end_segment, this.end_offset);
+
+		for (int slot = 0; slot < slots(); slot++) {
+			final long position = this.index.getLong(INDEX_HEADER + slot * SLOT_SIZE);
+
+			if (position != 0 && position >= end) {
+				rebuildIndex(slots());
+				return;
+			}
+		}
+	}
+
+	/**
+	 * <p>Starts a new index and replays the whole log into it</p>
+	 *
+	 * <p>The magic goes in last, so if we go down halfway the next open rebuilds again</p>
+	 */
+	private void rebuildIndex(final int slots) throws IOException {
+		final File file = new File(this.directory, "index");
+		Files.deleteIfExists(journalFile().toPath());
+		Files.deleteIfExists(file.toPath());
+
+		this.durable = map(file, INDEX_HEADER + (long) slots * SLOT_SIZE);
+		this.durable.putInt(8, slots);
+		this.index = mapPrivate(file);
+
+		seek(0);
+		replay();
+
+		final long checkpoint = position(this.end_segment, this.end_offset);
+		this.index.putLong(16, checkpoint);
+
+		// replay may have grown it, so copy over the lot
+		final ByteBuffer target = this.durable.duplicate();
+		final ByteBuffer source = this.index.duplicate();
+		target.clear();
+		source.clear();
+		target.put(source);
+
+		this.durable.putLong(0, 0);
+		this.durable.force();
+		this.durable.putLong(0, MAGIC);
+		this.durable.force();
+
+		this.index.putLong(0, MAGIC);
+		this.dirty_slots.clear();
+	}
+
+	/**
+	 * <p>Copies a whole journal into the index file, what a sync cut short didn't get to</p>
+	 *
+	 * <p>A torn journal is ignored, the sync it's from hadn't touched the index file yet</p>
+	 */
+	private void redoJournal() throws IOException {
+		final File file = journalFile();
+
+		if (!file.exists())
+			return;
+
+		final ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		final int length = journal.capacity();
+
+		if (length < JOURNAL_HEADER + 4 || journal.getLong(0) != JOURNAL_MAGIC || journal.getInt(8) != this.durable.getInt(8))
+			return;
+
+		final int changed = journal.getInt(24);
+
+		if (changed < 0 || JOURNAL_HEADER + (long) changed * SLOT_SIZE + 4 != length)
+			return;
+
+		final CRC32 crc = new CRC32();
+		crc.update(journal.array(), 0, length - 4);
+
+		if ((int) crc.getValue() != journal.getInt(length - 4))
+			return;
+
+		for (int i = 0; i < changed; i++) {
+			final int entry = JOURNAL_HEADER + i * SLOT_SIZE;
+			final int at = INDEX_HEADER + journal.getInt(entry) * SLOT_SIZE;
+
+			this.durable.putLong(at, journal.getLong(entry + 8));
+			this.durable.putInt(at + 8, journal.getInt(entry + 4));
+		}
+
+		this.durable.putInt(12, journal.getInt(12));
+		this.durable.putLong(16, journal.getLong(16));
+		this.durable.force();
+	}
+
+	private void writeJournal(final long checkpoint) throws IOException {
+		final int changed = this.dirty_slots.cardinality();
+		final ByteBuffer journal = ByteBuffer.allocate(JOURNAL_HEADER + changed * SLOT_SIZE + 4);
+
+		journal.putLong(JOURNAL_MAGIC).putInt(slots()).putInt(this.index.getInt(12)).putLong(checkpoint).putInt(changed);
+
+		for (int slot = this.dirty_slots.nextSetBit(0); slot >= 0; slot = this.dirty_slots.nextSetBit(slot + 1)) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			journal.putInt(slot).putInt(this.index.getInt(at + 8)).putLong(this.index.getLong(at));
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(journal.array(), 0, journal.position());
+		journal.putInt((int) crc.getValue());
+		journal.flip();
+
+		try (final RandomAccessFile raf = new RandomAccessFile(journalFile(), "rw")) {
+			raf.setLength(0);
+
+			while (journal.hasRemaining()) {
+				raf.getChannel().write(journal);
+			}
+
+			raf.getChannel().force(true);
+		}
+	}
+
+	/**
+	 * @return The oldest segment left, as the ones before it were compacted away
+	 */
+	private int firstSegment() {
+		int first = Integer.MAX_VALUE;
+
+		for (final String name : this.directory.list()) {
+			if (name.startsWith("segment-")) {
+				try {
+					first = Math.min(first, Integer.parseInt(name.substring(8)));
+				} catch (final NumberFormatException ignored) {}
+			}
+		}
+
+		return first == Integer.MAX_VALUE ? 0 : first;
+	}
+
+	private File journalFile() {
+		return new File(this.directory, "index.journal");
+	}
+
+	private void seek(final long position) {
+		if (position == 0) {
+			this.end_segment = this.first_segment;
+			this.end_offset = 0;
+		} else {
+			this.end_segment = (int) (position >>> 32) - 1;
+			this.end_offset = (int) position;
+		}
+	}
+
+	/**
+	 * <p>Applies the records from the current end of the log to the index, leaving the end after the last good one</p>
+	 *
+	 * <p>Whatever follows the last good record is zeroed, so an old record there can't come back to life later</p>
+	 */
+	private void replay() throws IOException {
+		final CRC32 crc = new CRC32();
+
+		while (true) {
+			final MappedByteBuffer segment = this.segments.get(this.end_segment);
+			final int offset = this.end_offset;
+
+			final int room = segment.capacity() - offset;
+
+			if (room < RECORD_HEADER || segment.getInt(offset) == 0 && segment.getInt(offset + 4) == -1) {
+				if (this.end_segment + 1 < this.segments.size()) {
+					this.end_segment++;
+					this.end_offset = 0;
+					continue;
+				}
+				break;
+			}
+
+			final int key_length = segment.getInt(offset + 4);
+			final int value_length = segment.getInt(offset + 8);
+
+			if (
+					key_length < 0 || value_length < -1
+							|| (long) RECORD_HEADER + key_length + Math.max(0, value_length) > room
+							|| segment.getInt(offset) != checksum(crc, segment, offset, key_length, value_length)
+			) {
+				break;
+			}
+
+			final long position = position(this.end_segment, offset);
+			final ByteBufferWrapper key = new ByteBufferWrapper(slice(segment, offset + RECORD_HEADER, key_length));
+			final int hash = OffHeapHistoryKV.hash(key);
+
+			if (value_length < 0) {
+				remove(key, hash);
+			} else {
+				put(key, hash, position);
+			}
+
+			this.end_offset = offset + RECORD_HEADER + key_length + Math.max(0, value_length);
+		}
+
+		final MappedByteBuffer segment = this.segments.get(this.end_segment);
+
+		for (int i = this.end_offset; i < segment.capacity(); i++) {
+			segment.put(i, (byte) 0);
+		}
+
+		for (int segment_index = this.segments.size() - 1; segment_index > this.end_segment; segment_index--) {
+			this.segments.remove(segment_index);
+			Files.delete(segmentFile(segment_index).toPath());
+		}
+
+		segment.force();
+	}
+
+	// API
+
+	@Override
+	public @Nullable BA read(final ByteArray key, final DT token) {
+		this.lock.readLock().lock();
+		try {
+			final @Nullable Versions versions = this.overlay.get(key);
+
+			final long position = versions == null ? find(key, OffHeapHistoryKV.hash(key)) : versions.at(token);
+
+			return position == 0 ? null : value(position);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	/**
+	 * <p>Keys without an overlay were last written at or before the low watermark (or by an earlier run), which no open
+	 * transaction reads before, so they report no writer at all</p>
+	 */
+	@Override
+	public @Nullable DT lastWriter(final ByteArray key) {
+		this.lock.readLock().lock();
+		try {
+			final @Nullable Versions versions = this.overlay.get(key);
+
+			return versions == null ? null : versions.tokens.get(versions.tokens.size() - 1);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		final DT low = this.parent.lowWatermark();
+
+		this.lock.writeLock().lock();
+		try {
+			append(values, token, low);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+		final DT low = this.parent.lowWatermark();
+
+		this.lock.writeLock().lock();
+		try {
+			for (int i = 0; i < tokens.size(); i++) {
+				append(values.get(i), tokens.get(i), low);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void append(final Map<? extends ByteArray, BA> values, final DT token, final DT low) {
+		if (this.closed)
+			throw new IllegalStateException("MappedHistoryKV has been shutdown");
+
+		try {
+			for (final Entry<? extends ByteArray, BA> entry : values.entrySet()) {
+				final ByteArray key = entry.getKey();
+				final @Nullable BA value = entry.getValue();
+
+				final int hash = OffHeapHistoryKV.hash(key);
+				final long previous = find(key, hash);
+
+				final long position = appendRecord(key, value);
+
+				if (value == null) {
+					remove(key, hash);
+				} else {
+					put(key, hash, position);
+				}
+
+				Versions versions = this.overlay.get(key);
+
+				if (versions == null) {
+					versions = new Versions(previous);
+					this.overlay.put(key, versions);
+				}
+
+				versions.add(token, position);
+
+				if (versions.trim(low)) {
+					this.overlay.remove(key);
+				}
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Drop the overlay versions no open transaction can read anymore
+	 */
+	public final void gc() {
+		final DT low = this.parent.lowWatermark();
+
+		this.lock.writeLock().lock();
+		try {
+			this.overlay.values().removeIf(versions -> versions.trim(low));
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>Compact the oldest segment if it's at most half live and no overlay points into it, see the runthrough</p>
+	 *
+	 * <p>Writers wait while this runs</p>
+	 *
+	 * @return Whether a segment went
+	 */
+	public final boolean compact() {
+		this.lock.writeLock().lock();
+		try {
+			final int head = this.first_segment;
+
+			if (this.closed || head >= this.end_segment)
+				return false;
+
+			if (this.live == null) {
+				countLive();
+			}
+
+			final MappedByteBuffer segment = this.segments.get(head);
+
+			if (live(head) * 2 > segment.capacity())
+				return false;
+
+			// an open transaction may still read a version in it
+			for (final Versions versions : this.overlay.values()) {
+				if (versions.references(head))
+					return false;
+			}
+
+			for (int offset = 0; ; ) {
+				final int room = segment.capacity() - offset;
+
+				if (room < RECORD_HEADER || segment.getInt(offset) == 0 && segment.getInt(offset + 4) == -1)
+					break;
+
+				final int key_length = segment.getInt(offset + 4);
+				final int value_length = segment.getInt(offset + 8);
+
+				if (value_length >= 0) {
+					final ByteBufferWrapper key = new ByteBufferWrapper(slice(segment, offset + RECORD_HEADER, key_length));
+					final int hash = OffHeapHistoryKV.hash(key);
+
+					if (find(key, hash) == position(head, offset)) {
+						final ByteBufferWrapper value = new ByteBufferWrapper(
+								slice(segment, offset + RECORD_HEADER + key_length, value_length)
+						);
+
+						put(key, hash, appendRecord(key, value));
+					}
+				}
+
+				offset += RECORD_HEADER + key_length + Math.max(0, value_length);
+			}
+
+			// the index has to be down pointing at the copies before the originals go
+			syncLocked();
+
+			this.segments.set(head, null);
+			this.first_segment++;
+			Files.delete(segmentFile(head).toPath());
+
+			return true;
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>Force everything written so far to disk and move the checkpoint up to it</p>
+	 *
+	 * <p>Writers wait while this runs</p>
+	 */
+	@Override
+	public void sync() {
+		this.lock.writeLock().lock();
+		try {
+			if (this.closed)
+				return;
+
+			syncLocked();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void syncLocked() throws IOException {
+		for (int segment = this.dirty.nextSetBit(0); segment >= 0; segment = this.dirty.nextSetBit(segment + 1)) {
+			this.segments.get(segment).force();
+		}
+
+		this.dirty.clear();
+
+		final long checkpoint = position(this.end_segment, this.end_offset);
+
+		if (this.dirty_slots.isEmpty() && this.durable.getLong(16) == checkpoint)
+			return;
+
+		// only once what it covers is down, and the journal before the index file
+		writeJournal(checkpoint);
+
+		for (int slot = this.dirty_slots.nextSetBit(0); slot >= 0; slot = this.dirty_slots.nextSetBit(slot + 1)) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			this.durable.putLong(at, this.index.getLong(at));
+			this.durable.putInt(at + 8, this.index.getInt(at + 8));
+		}
+
+		this.durable.putInt(12, this.index.getInt(12));
+		this.durable.putLong(16, checkpoint);
+		this.durable.force();
+
+		this.index.putLong(16, checkpoint);
+		this.dirty_slots.clear();
+	}
+
+	@Override
+	public boolean isDurable() {
+		return true;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.sync_thread.interrupt();
+		super.finalize();
+	}
+
+	@Override
+	public void shutdown() {
+		this.sync_thread.interrupt();
+
+		sync();
+
+		this.lock.writeLock().lock();
+		try {
+			if (this.closed)
+				return;
+
+			this.closed = true;
+
+			this.durable.putInt(24, 1);
+			this.durable.force();
+
+			this.file_lock.release();
+			this.lock_file.close();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of live keys
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.index.getInt(12);
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	// LOG
+
+	private long appendRecord(final ByteArray key, final @Nullable ByteArray value) throws IOException {
+		final int key_length = key.length();
+		final int value_length = value == null ? -1 : value.length();
+		final int size = RECORD_HEADER + key_length + Math.max(0, value_length);
+
+		MappedByteBuffer segment = this.segments.get(this.end_segment);
+
+		if (this.end_offset + size > segment.capacity()) {
+			if (segment.capacity() - this.end_offset >= RECORD_HEADER) {
+				segment.putInt(this.end_offset, 0);
+				segment.putInt(this.end_offset + 4, -1);
+			}
+
+			this.dirty.set(this.end_segment);
+
+			this.end_segment++;
+			this.end_offset = 0;
+
+			segment = map(segmentFile(this.end_segment), Math.max(this.segment_size, size));
+			this.segments.add(segment);
+		}
+
+		final int offset = this.end_offset;
+
+		final ByteBuffer target = segment.duplicate();
+		target.position(offset + 4);
+		target.putInt(key_length);
+		target.putInt(value_length);
+		target.put(key.toArray(), 0, key_length);
+
+		if (value != null) {
+			target.put(value.toArray(), 0, value_length);
+		}
+
+		segment.putInt(offset, checksum(new CRC32(), segment, offset, key_length, value_length));
+
+		this.dirty.set(this.end_segment);
+		this.end_offset += size;
+
+		return position(this.end_segment, offset);
+	}
+
+	private static int checksum(
+			final CRC32 crc, final ByteBuffer segment, final int offset, final int key_length, final int value_length
+	) {
+		crc.reset();
+		crc.update(slice(segment, offset + 4, RECORD_HEADER - 4 + key_length + Math.max(0, value_length)));
+		return (int) crc.getValue();
+	}
+
+	private @Nullable BA value(final long position) {
+		final MappedByteBuffer segment = this.segments.get((int) (position >>> 32) - 1);
+		final int offset = (int) position;
+
+		final int key_length = segment.getInt(offset + 4);
+		final int value_length = segment.getInt(offset + 8);
+
+		if (value_length < 0)
+			return null;
+
+		return this.view.apply(slice(segment, offset + RECORD_HEADER + key_length, value_length).asReadOnlyBuffer());
+	}
+
+	private int recordSize(final long position) {
+		final MappedByteBuffer segment = this.segments.get((int) (position >>> 32) - 1);
+		final int offset = (int) position;
+
+		return RECORD_HEADER + segment.getInt(offset + 4) + Math.max(0, segment.getInt(offset + 8));
+	}
+
+	/**
+	 * Counts the record at position in or out of its segment's live bytes, once they're being counted
+	 */
+	private void account(final long position, final int sign) {
+		if (this.live == null)
+			return;
+
+		final int segment = (int) (position >>> 32) - 1;
+
+		if (segment >= this.live.length) {
+			this.live = Arrays.copyOf(this.live, Math.max(segment + 1, this.live.length * 2));
+		}
+
+		this.live[segment] += sign * recordSize(position);
+	}
+
+	private long live(final int segment) {
+		return segment < this.live.length ? this.live[segment] : 0;
+	}
+
+	private void countLive() {
+		this.live = new long[this.segments.size()];
+
+		for (int slot = 0; slot < slots(); slot++) {
+			final long position = this.index.getLong(INDEX_HEADER + slot * SLOT_SIZE);
+
+			if (position != 0) {
+				account(position, 1);
+			}
+		}
+	}
+
+	private File segmentFile(final int segment) {
+		return new File(this.directory, String.format("segment-%06d", segment));
+	}
+
+	private static long position(final int segment, final int offset) {
+		return (long) (segment + 1) << 32 | offset;
+	}
+
+	private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+		final ByteBuffer toreturn = buffer.duplicate();
+		toreturn.limit(offset + length).position(offset);
+		return toreturn.slice();
+	}
+
+	/**
+	 * Maps the whole file, growing it to size first if it's smaller
+	 */
+	private static MappedByteBuffer map(final File file, final long size) throws IOException {
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			if (raf.length() < size) {
+				raf.setLength(size);
+			}
+
+			return raf.getChannel().map(MapMode.READ_WRITE, 0, raf.length());
+		}
+	}
+
+	/**
+	 * Maps the whole file copy-on-write, what's written to it never reaches the file
+	 */
+	private static MappedByteBuffer mapPrivate(final File file) throws IOException {
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			return raf.getChannel().map(MapMode.PRIVATE, 0, raf.length());
+		}
+	}
+
+	// INDEX
+
+	private int slots() {
+		return this.index.getInt(8);
+	}
+
+	private long find(final ByteArray key, final int hash) {
+		final int mask = slots() - 1;
+
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			final long position = this.index.getLong(at);
+
+			if (position == 0)
+				return 0;
+
+			if (this.index.getInt(at + 8) == hash && keyEquals(position, key))
+				return position;
+		}
+	}
+
+	private boolean keyEquals(final long position, final ByteArray key) {
+		final MappedByteBuffer segment = this.segments.get((int) (position >>> 32) - 1);
+		final int offset = (int) position;
+
+		final int length = segment.getInt(offset + 4);
+
+		if (length != key.length())
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (segment.get(offset + RECORD_HEADER + i) != key.read(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void put(final ByteArray key, final int hash, final long position) throws IOException {
+		final int mask = slots() - 1;
+
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			final long existing = this.index.getLong(at);
+
+			if (existing == 0) {
+				if ((this.index.getInt(12) + 1) * 2 > slots()) {
+					growIndex();
+					put(key, hash, position);
+					return;
+				}
+
+				this.index.putLong(at, position);
+				this.index.putInt(at + 8, hash);
+				this.index.putInt(12, this.index.getInt(12) + 1);
+				this.dirty_slots.set(slot);
+				account(position, 1);
+				return;
+			}
+
+			if (this.index.getInt(at + 8) == hash && keyEquals(existing, key)) {
+				this.index.putLong(at, position);
+				this.dirty_slots.set(slot);
+				account(existing, -1);
+				account(position, 1);
+				return;
+			}
+		}
+	}
+
+	private void remove(final ByteArray key, final int hash) {
+		final int mask = slots() - 1;
+
+		int slot = hash & mask;
+		while (true) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			final long existing = this.index.getLong(at);
+
+			if (existing == 0)
+				return;
+
+			if (this.index.getInt(at + 8) == hash && keyEquals(existing, key)) {
+				account(existing, -1);
+				break;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		// shift back whatever probed past the hole
+		int hole = slot;
+		for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+			final int at = INDEX_HEADER + next * SLOT_SIZE;
+			final long moving = this.index.getLong(at);
+
+			if (moving == 0)
+				break;
+
+			final int home = this.index.getInt(at + 8) & mask;
+
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				this.index.putLong(INDEX_HEADER + hole * SLOT_SIZE, moving);
+				this.index.putInt(INDEX_HEADER + hole * SLOT_SIZE + 8, this.index.getInt(at + 8));
+				this.dirty_slots.set(hole);
+				hole = next;
+			}
+		}
+
+		this.index.putLong(INDEX_HEADER + hole * SLOT_SIZE, 0);
+		this.index.putInt(INDEX_HEADER + hole * SLOT_SIZE + 8, 0);
+		this.dirty_slots.set(hole);
+
+		this.index.putInt(12, this.index.getInt(12) - 1);
+	}
+
+	/**
+	 * <p>Doubles the index into a new file and swaps it in, the old one stays good until the rename</p>
+	 *
+	 * <p>The new file gets everything in the working index under the old checkpoint, which replay is fine with, and
+	 * the journal goes as its slots don't fit the new file</p>
+	 */
+	private void growIndex() throws IOException {
+		final int slots = slots() * 2;
+		final int mask = slots - 1;
+
+		final File file = new File(this.directory, "index.grow");
+		Files.deleteIfExists(file.toPath());
+
+		final MappedByteBuffer grown = map(file, INDEX_HEADER + (long) slots * SLOT_SIZE);
+
+		for (int slot = 0; slot < slots(); slot++) {
+			final int at = INDEX_HEADER + slot * SLOT_SIZE;
+			final long position = this.index.getLong(at);
+
+			if (position == 0)
+				continue;
+
+			final int hash = this.index.getInt(at + 8);
+
+			int target = hash & mask;
+			while (grown.getLong(INDEX_HEADER + target * SLOT_SIZE) != 0) {
+				target = (target + 1) & mask;
+			}
+
+			grown.putLong(INDEX_HEADER + target * SLOT_SIZE, position);
+			grown.putInt(INDEX_HEADER + target * SLOT_SIZE + 8, hash);
+		}
+
+		grown.putLong(0, MAGIC);
+		grown.putInt(8, slots);
+		grown.putInt(12, this.index.getInt(12));
+		grown.putLong(16, this.index.getLong(16));
+		grown.putInt(24, 0);
+
+		// the records it points at have to be down before it can replace the old one
+		for (int segment = this.first_segment; segment < this.segments.size(); segment++) {
+			this.segments.get(segment).force();
+		}
+		grown.force();
+
+		Files.deleteIfExists(journalFile().toPath());
+
+		final File index_file = new File(this.directory, "index");
+		Files.move(
+				file.toPath(), index_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+		);
+
+		this.durable = grown;
+		this.index = mapPrivate(index_file);
+		this.dirty_slots.clear();
+	}
+
+	/**
+	 * The versions of a key written since the low watermark, oldest first, and the record before them
+	 */
+	class Versions {
+		long base;
+		final ArrayList<DT> tokens = new ArrayList<>(2);
+		long[] positions = new long[2];
+
+		Versions(final long base) {
+			this.base = base;
+		}
+
+		void add(final DT token, final long position) {
+			if (this.tokens.size() == this.positions.length) {
+				this.positions = Arrays.copyOf(this.positions, this.positions.length * 2);
+			}
+
+			this.positions[this.tokens.size()] = position;
+			this.tokens.add(token);
+		}
+
+		long at(final DT token) {
+			for (int i = this.tokens.size() - 1; i >= 0; i--) {
+				if (this.tokens.get(i).compareTo(token) <= 0)
+					return this.positions[i];
+			}
+
+			return this.base;
+		}
+
+		boolean references(final int segment) {
+			if ((int) (this.base >>> 32) - 1 == segment)
+				return true;
+
+			for (int i = 0; i < this.tokens.size(); i++) {
+				if ((int) (this.positions[i] >>> 32) - 1 == segment)
+					return true;
+			}
+
+			return false;
+		}
+
+		/**
+		 * @return Whether nothing's left, so the index alone can answer every read
+		 */
+		boolean trim(final DT low) {
+			int newest_behind = -1;
+
+			for (int i = 0; i < this.tokens.size(); i++) {
+				if (this.tokens.get(i).compareTo(low) <= 0) {
+					newest_behind = i;
+				} else {
+					break;
+				}
+			}
+
+			if (newest_behind == -1)
+				return false;
+
+			this.base = this.positions[newest_behind];
+
+			final int left = this.tokens.size() - newest_behind - 1;
+
+			System.arraycopy(this.positions, newest_behind + 1, this.positions, 0, left);
+			this.tokens.subList(0, newest_behind + 1).clear();
+
+			return left == 0;
+		}
+	}
+}
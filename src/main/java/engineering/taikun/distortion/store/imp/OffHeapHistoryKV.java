@@ -0,0 +1,917 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Keys and versions live in blocks carved out of direct ByteBuffer slabs, the heap only holds the slabs themselves,
+ * the free lists (long[]s) and the written tokens.
+ *
+ * Blocks come in power of two size classes, each with its own free list. Blocks bigger than a slab get a slab of
+ * their own. An address is (slab index + 1) << 32 | offset, so 0 is null.
+ *
+ *   entry:   int hash | int key length | long newest version | int flags | key
+ *   version: long next (older) version | long seq | int value length (-1 for deletes) | value
+ *
+ * The index is an open addressing table (linear probing, backward shift deletes) in its own direct buffer, 16 bytes a
+ * slot: long entry address | int hash | unused.
+ *
+ * Tokens are generic, so versions don't store them. Writes come in token order, each written token gets the next seq
+ * and goes in a ring, so a read token maps to the newest seq at or before it with a binary search of the ring.
+ *
+ * Every chain keeps the newest version at or before the low watermark and anything newer, the rest is freed as soon
+ * as the key is written again (or by the GC thread for keys that aren't). Values are returned as views of the slabs,
+ * which is safe because no open transaction can read behind the low watermark. Tokens behind it leave the ring on
+ * every write.
+ *
+ * A write allocates every block it needs (and grows the index) before it links any of them in, so running out of
+ * budget fails the whole write and leaves the history as it was. The shim has that done at reserve, before anything
+ * else of the commit is written, and the write takes the blocks reserved for its map. Between the two only the GC
+ * thread gets in, which can purge a key we found an entry for, but then it freed a block the size of the entry.
+ */
+public class OffHeapHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
+		HistoryKV<BA, BA, DT> {
+
+	static final int ENTRY_HEADER = 20;
+	static final int VERSION_HEADER = 20;
+	static final int SLOT_SIZE = 16;
+	static final int MIN_BLOCK = 16;
+
+	static final int TRIMMED = 1; // entry flag, older versions of this key have been freed
+
+	public final long memory_budget;
+	public final int slab_size;
+	public final long gc_interval;
+
+	private final DistortionStoreShim<BA, DT> parent;
+	private final Function<ByteBuffer, BA> view;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// slabs, a null slot is a freed large block's slab
+	private final ArrayList<ByteBuffer> slabs = new ArrayList<>();
+	private final LongStack free_slabs = new LongStack();
+	private final LongStack[] free; // per size class
+	private int bump_slab = -1;
+	private int bump_offset = 0;
+
+	private long reserved = 0; // direct memory held, slabs and index
+	private long used = 0; // in live blocks
+
+	private ByteBuffer index;
+	private int index_count = 0;
+
+	// written tokens, tokens[seq & (tokens.length - 1)] for seq in [token_base, token_base + token_count)
+	private Object[] tokens = new Object[64];
+	private long token_base = 0;
+	private int token_count = 0;
+
+	private long sweeps = 0; // sweeps made to find room, any of them may have purged an entry
+
+	// blocks allocated by reserve for the map that's written next
+	private final IdentityHashMap<Map<?, ?>, long[]> reservations = new IdentityHashMap<>();
+
+	private final Thread gc_thread;
+
+	/**
+	 * <p>256MB budget in 1MB slabs</p>
+	 *
+	 * @param view Presents a stored value as a BA, a wrapper gets zero-copy reads and {@link #copying} copies them
+	 *             onto the heap, see the full constructor
+	 */
+	public OffHeapHistoryKV(final DistortionStoreShim<BA, DT> parent, final Function<ByteBuffer, BA> view) {
+		this(parent, view, 256L << 20, 1 << 20, 5 * 60 * 1000L);
+	}
+
+	public OffHeapHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final Function<ByteBuffer, BA> view, final long memory_budget
+	) {
+		this(parent, view, memory_budget, 1 << 20, 5 * 60 * 1000L);
+	}
+
+	/**
+	 * @param parent The shim, for its low watermark
+	 * @param view Presents a stored value (a read-only slice of a slab) as a BA. Wrap it (ByteBufferWrapper::new) for
+	 *             zero-copy reads, it stays valid as long as the transaction that read it is open.
+	 * @param memory_budget Direct memory this may hold, slabs and index included. Commits that can't fit even after a
+	 *                      GC throw an IllegalStateException at {@link #reserve}, before anything is written.
+	 * @param slab_size The size of a slab, a power of two. Also the largest block that shares a slab.
+	 * @param gc_interval How often the GC thread frees the history of keys that aren't being written
+	 */
+	public OffHeapHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final Function<ByteBuffer, BA> view, final long memory_budget,
+			final int slab_size, final long gc_interval
+	) {
+		if (slab_size < 1024 || Integer.bitCount(slab_size) != 1)
+			throw new IllegalArgumentException("slab_size must be a power of two of at least 1024: " + slab_size);
+
+		this.memory_budget = memory_budget;
+		this.slab_size = slab_size;
+		this.gc_interval = Math.max(0, gc_interval);
+
+		this.parent = parent;
+		this.view = view;
+
+		this.free = new LongStack[Integer.numberOfTrailingZeros(slab_size) + 1];
+		for (int i = 0; i < this.free.length; i++) {
+			this.free[i] = new LongStack();
+		}
+
+		this.index = allocateIndex(1024);
+
+		this.gc_thread = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(gc_interval);
+				} catch (final InterruptedException ignored) {
+					return;
+				}
+				gc();
+			}
+		}, "OffHeapHistoryKV GC thread");
+		this.gc_thread.setDaemon(true);
+		this.gc_thread.start();
+	}
+
+	/**
+	 * Copies stored values onto the heap, for BAs that can't wrap a ByteBuffer
+	 */
+	public static <BA> Function<ByteBuffer, BA> copying(final Function<byte[], BA> wrapper) {
+		return buffer -> {
+			final byte[] array = new byte[buffer.remaining()];
+			buffer.get(array);
+			return wrapper.apply(array);
+		};
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.gc_thread.interrupt();
+		super.finalize();
+	}
+
+	@Override
+	public void shutdown() {
+		this.gc_thread.interrupt();
+	}
+
+	/**
+	 * @return Direct memory held, in bytes
+	 */
+	public long reservedBytes() {
+		this.lock.readLock().lock();
+		try {
+			return this.reserved;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Direct memory in live blocks (rounded up to their size class) and the index, in bytes
+	 */
+	public long usedBytes() {
+		this.lock.readLock().lock();
+		try {
+			return this.used + this.index.capacity();
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of written tokens kept, the ones reads can still map to
+	 */
+	public int tokens() {
+		this.lock.readLock().lock();
+		try {
+			return this.token_count;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of keys with a history
+	 */
+	public int size() {
+		this.lock.readLock().lock();
+		try {
+			return this.index_count;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+		this.lock.readLock().lock();
+		try {
+			final long entry = find(key, hash(key));
+
+			if (entry == 0)
+				return null;
+
+			final long bound = floorSeq(token);
+
+			long version = slab(entry).getLong(offset(entry) + 8);
+
+			while (version != 0) {
+				final ByteBuffer slab = slab(version);
+				final int offset = offset(version);
+
+				if (slab.getLong(offset + 8) <= bound) {
+					final int length = slab.getInt(offset + 16);
+
+					if (length < 0)
+						return null;
+
+					final ByteBuffer value = slab.duplicate();
+					value.limit(offset + VERSION_HEADER + length).position(offset + VERSION_HEADER);
+
+					return this.view.apply(value.slice().asReadOnlyBuffer());
+				}
+
+				version = slab.getLong(offset);
+			}
+
+			// everything left is newer than token, but there might have been something older
+			if ((slab(entry).getInt(offset(entry) + 16) & TRIMMED) != 0)
+				throw new ExpiredReadException();
+
+			return null;
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	/**
+	 * <p>Tokens behind the ring (older than anything still readable) come back as the oldest one in it, which no open
+	 * transaction reads before either</p>
+	 */
+	@Override
+	public @Nullable DT lastWriter(final ByteArray key) {
+		this.lock.readLock().lock();
+		try {
+			final long entry = find(key, hash(key));
+
+			if (entry == 0)
+				return null;
+
+			final long version = slab(entry).getLong(offset(entry) + 8);
+
+			if (version == 0)
+				return null;
+
+			return token(Math.max(this.token_base, slab(version).getLong(offset(version) + 8)));
+		} finally {
+			this.lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		final DT low = this.parent.lowWatermark();
+
+		this.lock.writeLock().lock();
+		try {
+			append(values, token, low);
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+		final DT low = this.parent.lowWatermark();
+
+		this.lock.writeLock().lock();
+		try {
+			for (int i = 0; i < tokens.size(); i++) {
+				append(values.get(i), tokens.get(i), low);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void reserve(final Map<? extends ByteArray, BA> values) {
+		this.lock.writeLock().lock();
+		try {
+			this.reservations.put(values, allocateBlocks(values));
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void unreserve(final Map<? extends ByteArray, BA> values) {
+		this.lock.writeLock().lock();
+		try {
+			final @Nullable long[] blocks = this.reservations.remove(values);
+
+			if (blocks != null) {
+				releaseBlocks(values, blocks);
+			}
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void append(final Map<? extends ByteArray, BA> values, final DT token, final DT low) {
+		final long low_seq = lowSeq(low);
+
+		// a token nothing was written at, if the allocation fails, changes no read
+		final long seq = pushToken(token);
+		final @Nullable long[] reserved = this.reservations.remove(values);
+		final long[] blocks = reserved != null ? reserved : allocateBlocks(values);
+
+		int i = 0;
+		for (final Entry<? extends ByteArray, BA> value_entry : values.entrySet()) {
+			final ByteArray key = value_entry.getKey();
+			final @Nullable BA value = value_entry.getValue();
+
+			final int length = value == null ? -1 : value.length();
+			final long version = blocks[i];
+
+			final int hash = hash(key);
+			long entry = find(key, hash);
+
+			if (entry == 0) {
+				entry = blocks[values.size() + i];
+
+				if (entry == 0) {
+					// purged since it was reserved, which put a block of this size on the free list
+					entry = allocate(ENTRY_HEADER + key.length());
+				}
+
+				final ByteBuffer slab = slab(entry);
+				final int offset = offset(entry);
+
+				slab.putInt(offset, hash);
+				slab.putInt(offset + 4, key.length());
+				slab.putLong(offset + 8, 0);
+				slab.putInt(offset + 16, 0);
+				put(slab, offset + ENTRY_HEADER, key);
+
+				insert(entry, hash);
+			}
+
+			final ByteBuffer slab = slab(version);
+			final int offset = offset(version);
+
+			slab.putLong(offset, slab(entry).getLong(offset(entry) + 8));
+			slab.putLong(offset + 8, seq);
+			slab.putInt(offset + 16, length);
+
+			if (value != null) {
+				put(slab, offset + VERSION_HEADER, value);
+			}
+
+			slab(entry).putLong(offset(entry) + 8, version);
+
+			trim(entry, low_seq, false);
+
+			i++;
+		}
+
+		trimTokens(low_seq);
+	}
+
+	/**
+	 * <p>Allocate a version for every key and an entry for every key that has none, and make room in the index for
+	 * them, all or nothing</p>
+	 *
+	 * @return The versions in the map's order, then the entries in the same order (0 for a key that has one)
+	 * @throws IllegalStateException Out of budget, whatever was allocated is freed again
+	 */
+	private long[] allocateBlocks(final Map<? extends ByteArray, BA> values) {
+		final long[] blocks = new long[values.size() * 2];
+
+		try {
+			int i = 0;
+			for (final BA value : values.values()) {
+				blocks[i++] = allocate(VERSION_HEADER + (value == null ? 0 : value.length()));
+			}
+
+			// allocating can sweep, which could purge an entry we had already found, so until one doesn't
+			int missing = 0;
+			long sweeps;
+			do {
+				sweeps = this.sweeps;
+
+				i = values.size();
+				for (final ByteArray key : values.keySet()) {
+					if (blocks[i] == 0 && find(key, hash(key)) == 0) {
+						blocks[i] = allocate(ENTRY_HEADER + key.length());
+						missing++;
+					}
+
+					i++;
+				}
+			} while (sweeps != this.sweeps);
+
+			while ((this.index_count + missing) * 2 > this.index.capacity() / SLOT_SIZE) {
+				resizeIndex();
+			}
+
+			return blocks;
+
+		} catch (final IllegalStateException e) {
+			releaseBlocks(values, blocks);
+			throw e;
+		}
+	}
+
+	private void releaseBlocks(final Map<? extends ByteArray, BA> values, final long[] blocks) {
+		int i = 0;
+		for (final BA value : values.values()) {
+			if (blocks[i] != 0) {
+				release(blocks[i], VERSION_HEADER + (value == null ? 0 : value.length()));
+			}
+
+			i++;
+		}
+
+		for (final ByteArray key : values.keySet()) {
+			if (blocks[i] != 0) {
+				release(blocks[i], ENTRY_HEADER + key.length());
+			}
+
+			i++;
+		}
+	}
+
+	/**
+	 * Free the history no open transaction can read anymore, all keys
+	 */
+	public final void gc() {
+		final DT low = this.parent.lowWatermark();
+
+		// in chunks so readers get a look in
+		for (int start = 0; ; start += 4096) {
+			this.lock.writeLock().lock();
+			try {
+				if (start >= this.index.capacity() / SLOT_SIZE)
+					break;
+
+				sweep(start, 4096, lowSeq(low));
+			} finally {
+				this.lock.writeLock().unlock();
+			}
+		}
+
+		this.lock.writeLock().lock();
+		try {
+			trimTokens(lowSeq(low));
+		} finally {
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	private void sweep(final int start, final int count, final long low_seq) {
+		final int slots = this.index.capacity() / SLOT_SIZE;
+
+		for (int slot = start; slot < start + count && slot < slots; slot++) {
+			final long entry = this.index.getLong(slot * SLOT_SIZE);
+
+			if (entry != 0 && trim(entry, low_seq, true)) {
+				// a later entry may have shifted into this slot
+				slot--;
+			}
+		}
+	}
+
+	/**
+	 * <p>Free the versions older than the newest one at or before low_seq. With purge, a key whose only version left
+	 * is such a delete is dropped altogether.</p>
+	 *
+	 * @return Whether the entry was removed from the index
+	 */
+	private boolean trim(final long entry, final long low_seq, final boolean purge) {
+		final ByteBuffer entry_slab = slab(entry);
+		final int entry_offset = offset(entry);
+
+		long version = entry_slab.getLong(entry_offset + 8);
+		long previous = 0;
+
+		while (version != 0 && slab(version).getLong(offset(version) + 8) > low_seq) {
+			previous = version;
+			version = slab(version).getLong(offset(version));
+		}
+
+		if (version == 0)
+			return false;
+
+		// version is the one readers at the watermark see, everything after it goes
+		long older = slab(version).getLong(offset(version));
+
+		if (older != 0) {
+			slab(version).putLong(offset(version), 0);
+			entry_slab.putInt(entry_offset + 16, entry_slab.getInt(entry_offset + 16) | TRIMMED);
+
+			while (older != 0) {
+				final long next = slab(older).getLong(offset(older));
+				release(older, VERSION_HEADER + Math.max(0, slab(older).getInt(offset(older) + 16)));
+				older = next;
+			}
+		}
+
+		if (purge && previous == 0 && slab(version).getInt(offset(version) + 16) < 0) {
+			remove(entry, entry_slab.getInt(entry_offset));
+
+			release(version, VERSION_HEADER);
+			release(entry, ENTRY_HEADER + entry_slab.getInt(entry_offset + 4));
+
+			return true;
+		}
+
+		return false;
+	}
+
+	// TOKENS
+
+	private long pushToken(final DT token) {
+		if (this.token_count > 0) {
+			final int compare = token(this.token_base + this.token_count - 1).compareTo(token);
+
+			if (compare == 0)
+				return this.token_base + this.token_count - 1;
+
+			if (compare > 0)
+				throw new IllegalStateException("Writes must come in token order");
+		}
+
+		if (this.token_count == this.tokens.length) {
+			final Object[] grown = new Object[this.tokens.length * 2];
+
+			for (long seq = this.token_base; seq < this.token_base + this.token_count; seq++) {
+				grown[(int) (seq & (grown.length - 1))] = this.tokens[(int) (seq & (this.tokens.length - 1))];
+			}
+
+			this.tokens = grown;
+		}
+
+		final long seq = this.token_base + this.token_count;
+
+		this.tokens[(int) (seq & (this.tokens.length - 1))] = token;
+		this.token_count++;
+
+		return seq;
+	}
+
+	private DT token(final long seq) {
+		return (DT) this.tokens[(int) (seq & (this.tokens.length - 1))];
+	}
+
+	/**
+	 * <p>The newest seq written at or before token, -1 if nothing was ever written before it</p>
+	 */
+	private long floorSeq(final DT token) throws ExpiredReadException {
+		long low = this.token_base;
+		long high = this.token_base + this.token_count; // exclusive
+
+		if (this.token_count == 0 || token(low).compareTo(token) > 0) {
+			if (this.token_base > 0) {
+				// older than the oldest token kept, which is at or before the low watermark
+				throw new ExpiredReadException();
+			}
+
+			return -1;
+		}
+
+		while (high - low > 1) {
+			final long middle = low + (high - low) / 2;
+
+			if (token(middle).compareTo(token) <= 0) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * <p>floorSeq for the low watermark. One older than what we kept leaves the history as it is.</p>
+	 */
+	private long lowSeq(final DT low) {
+		try {
+			return floorSeq(low);
+		} catch (final ExpiredReadException ignored) {
+			return this.token_base;
+		}
+	}
+
+	private void trimTokens(final long low_seq) {
+		while (this.token_base < low_seq) {
+			this.tokens[(int) (this.token_base & (this.tokens.length - 1))] = null;
+			this.token_base++;
+			this.token_count--;
+		}
+	}
+
+	// INDEX
+
+	/**
+	 * <p>Not hashCode, which collides a lot on keys that only differ in their last bytes (fine for a
+	 * ConcurrentHashMap, it treeifies, but terrible for linear probing)</p>
+	 */
+	static int hash(final ByteArray key) {
+		long h = 0;
+		for (int i = 0; i < key.length(); i++) {
+			h = (h + key.read(i)) * 0x9E3779B97F4A7C15L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+
+		return (int) h;
+	}
+
+	private long find(final ByteArray key, final int hash) {
+		final int mask = this.index.capacity() / SLOT_SIZE - 1;
+
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			final long entry = this.index.getLong(slot * SLOT_SIZE);
+
+			if (entry == 0)
+				return 0;
+
+			if (this.index.getInt(slot * SLOT_SIZE + 8) == hash && keyEquals(entry, key))
+				return entry;
+		}
+	}
+
+	private boolean keyEquals(final long entry, final ByteArray key) {
+		final ByteBuffer slab = slab(entry);
+		final int offset = offset(entry);
+
+		final int length = slab.getInt(offset + 4);
+
+		if (length != key.length())
+			return false;
+
+		for (int i = 0; i < length; i++) {
+			if (slab.get(offset + ENTRY_HEADER + i) != key.read(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	private void insert(final long entry, final int hash) {
+		if ((this.index_count + 1) * 2 > this.index.capacity() / SLOT_SIZE) {
+			resizeIndex();
+		}
+
+		place(this.index, entry, hash);
+		this.index_count++;
+	}
+
+	private static void place(final ByteBuffer index, final long entry, final int hash) {
+		final int mask = index.capacity() / SLOT_SIZE - 1;
+
+		int slot = hash & mask;
+		while (index.getLong(slot * SLOT_SIZE) != 0) {
+			slot = (slot + 1) & mask;
+		}
+
+		index.putLong(slot * SLOT_SIZE, entry);
+		index.putInt(slot * SLOT_SIZE + 8, hash);
+	}
+
+	private void remove(final long entry, final int hash) {
+		final int mask = this.index.capacity() / SLOT_SIZE - 1;
+
+		int slot = hash & mask;
+		while (this.index.getLong(slot * SLOT_SIZE) != entry) {
+			slot = (slot + 1) & mask;
+		}
+
+		// shift back whatever probed past the hole
+		int hole = slot;
+		for (int next = (hole + 1) & mask; ; next = (next + 1) & mask) {
+			final long moving = this.index.getLong(next * SLOT_SIZE);
+
+			if (moving == 0)
+				break;
+
+			final int home = this.index.getInt(next * SLOT_SIZE + 8) & mask;
+
+			// can it move back to the hole without passing its home?
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				this.index.putLong(hole * SLOT_SIZE, moving);
+				this.index.putInt(hole * SLOT_SIZE + 8, this.index.getInt(next * SLOT_SIZE + 8));
+				hole = next;
+			}
+		}
+
+		this.index.putLong(hole * SLOT_SIZE, 0);
+		this.index.putInt(hole * SLOT_SIZE + 8, 0);
+
+		this.index_count--;
+	}
+
+	private void resizeIndex() {
+		final ByteBuffer grown = allocateIndex(this.index.capacity() / SLOT_SIZE * 2);
+
+		for (int slot = 0; slot < this.index.capacity() / SLOT_SIZE; slot++) {
+			final long entry = this.index.getLong(slot * SLOT_SIZE);
+
+			if (entry != 0) {
+				place(grown, entry, this.index.getInt(slot * SLOT_SIZE + 8));
+			}
+		}
+
+		this.reserved -= this.index.capacity();
+		this.index = grown;
+	}
+
+	private ByteBuffer allocateIndex(final int slots) {
+		final long bytes = (long) slots * SLOT_SIZE;
+
+		if (bytes > Integer.MAX_VALUE || this.reserved + bytes > this.memory_budget)
+			throw new IllegalStateException("OffHeapHistoryKV memory budget exhausted, index of " + slots + " slots");
+
+		this.reserved += bytes;
+
+		return ByteBuffer.allocateDirect((int) bytes);
+	}
+
+	// SLABS
+
+	private ByteBuffer slab(final long address) {
+		return this.slabs.get((int) (address >>> 32) - 1);
+	}
+
+	private static int offset(final long address) {
+		return (int) address;
+	}
+
+	private static void put(final ByteBuffer slab, final int offset, final ByteArray bytes) {
+		final ByteBuffer target = slab.duplicate();
+		target.position(offset);
+		bytes.copyTo(0, target, bytes.length());
+	}
+
+	private static int sizeClass(final int size) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(MIN_BLOCK, size) - 1);
+	}
+
+	private long allocate(final int size) {
+		final int size_class = sizeClass(size);
+
+		if (size_class >= this.free.length) {
+			return allocateLarge(size);
+		}
+
+		long address = allocateSmall(size_class);
+
+		if (address == 0) {
+			// free what we can and try once more
+			final long low_seq = lowSeq(this.parent.lowWatermark());
+			sweep(0, this.index.capacity() / SLOT_SIZE, low_seq);
+			trimTokens(low_seq);
+			this.sweeps++;
+
+			address = allocateSmall(size_class);
+
+			if (address == 0)
+				throw new IllegalStateException(
+						"OffHeapHistoryKV memory budget exhausted: " + this.reserved + " of " + this.memory_budget + " bytes"
+				);
+		}
+
+		this.used += 1 << size_class;
+
+		return address;
+	}
+
+	private long allocateSmall(final int size_class) {
+		final LongStack free_list = this.free[size_class];
+
+		if (!free_list.isEmpty()) {
+			return free_list.pop();
+		}
+
+		final int block = 1 << size_class;
+
+		if (this.bump_slab == -1 || this.bump_offset + block > this.slab_size) {
+			if (this.reserved + this.slab_size > this.memory_budget)
+				return 0;
+
+			// what's left of the old slab goes to the free lists
+			if (this.bump_slab != -1) {
+				while (this.slab_size - this.bump_offset >= MIN_BLOCK) {
+					final int rest = 31 - Integer.numberOfLeadingZeros(this.slab_size - this.bump_offset);
+					this.free[rest].push(address(this.bump_slab, this.bump_offset));
+					this.bump_offset += 1 << rest;
+				}
+			}
+
+			this.bump_slab = addSlab(ByteBuffer.allocateDirect(this.slab_size));
+			this.bump_offset = 0;
+			this.reserved += this.slab_size;
+		}
+
+		final long address = address(this.bump_slab, this.bump_offset);
+		this.bump_offset += block;
+
+		return address;
+	}
+
+	private long allocateLarge(final int size) {
+		if (this.reserved + size > this.memory_budget)
+			throw new IllegalStateException(
+					"OffHeapHistoryKV memory budget exhausted: " + this.reserved + " of " + this.memory_budget + " bytes"
+			);
+
+		this.reserved += size;
+		this.used += size;
+
+		return address(addSlab(ByteBuffer.allocateDirect(size)), 0);
+	}
+
+	private int addSlab(final ByteBuffer slab) {
+		if (!this.free_slabs.isEmpty()) {
+			final int index = (int) this.free_slabs.pop();
+			this.slabs.set(index, slab);
+			return index;
+		}
+
+		this.slabs.add(slab);
+		return this.slabs.size() - 1;
+	}
+
+	private void release(final long address, final int size) {
+		final int size_class = sizeClass(size);
+
+		if (size_class >= this.free.length) {
+			// large blocks give their slab back, the buffer is freed with it
+			final int index = (int) (address >>> 32) - 1;
+
+			this.slabs.set(index, null);
+			this.free_slabs.push(index);
+
+			this.reserved -= size;
+			this.used -= size;
+
+			return;
+		}
+
+		this.free[size_class].push(address);
+		this.used -= 1 << size_class;
+	}
+
+	private static long address(final int slab, final int offset) {
+		return (long) (slab + 1) << 32 | offset;
+	}
+
+	/**
+	 * A growable stack of longs, so the free lists don't box
+	 */
+	static class LongStack {
+		long[] values = new long[16];
+		int size = 0;
+
+		boolean isEmpty() {
+			return this.size == 0;
+		}
+
+		void push(final long value) {
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+
+			this.values[this.size++] = value;
+		}
+
+		long pop() {
+			return this.values[--this.size];
+		}
+	}
+}
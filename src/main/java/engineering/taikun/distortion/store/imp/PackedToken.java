@@ -0,0 +1,198 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.store.api.DrillingToken;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * <p>A {@link DrillingToken} in two longs: the root counter, and the first {@link #LEVELS} chain levels packed 16 bits
+ * apiece</p>
+ *
+ * <p>A level is stored as its value + 1, from the top bits down, with 0 for levels the chain doesn't have, so a shorter
+ * chain sorts before a longer one that starts the same, and comparing two packed tokens is comparing the roots, then
+ * the packed longs unsigned. Nothing is copied to make the next or deep token, it's a shift and an add.</p>
+ *
+ * <p>Chains deeper than {@link #LEVELS}, or with a level past {@link #MAX_PACKED}, are kept in an int[] like
+ * {@link StackToken}'s. A chain that fits is always packed, so there's only one form of every token.</p>
+ */
+public final class PackedToken implements DrillingToken<PackedToken> {
+
+	public static final int LEVELS = 4;
+	public static final int MAX_PACKED = 0xFFFF - 1; // the largest level value that's packed
+
+	static final int BITS = 16;
+	static final long FIELD = 0xFFFF;
+
+	public final long root;
+	private final long packed;
+	private final @Nullable int[] chain; // only when it doesn't fit in packed
+
+	public PackedToken() {
+		this(0L, 0L, null);
+	}
+
+	private PackedToken(final long root, final long packed, final @Nullable int[] chain) {
+		this.root = root;
+		this.packed = packed;
+		this.chain = chain;
+	}
+
+	/**
+	 * @return How many levels the chain has, 0 for a root token
+	 */
+	public int depth() {
+		return this.chain != null ? this.chain.length : LEVELS - Long.numberOfTrailingZeros(this.packed) / BITS;
+	}
+
+	/**
+	 * @return The value of the chain at level
+	 */
+	public int level(final int level) {
+		return this.chain != null ? this.chain[level] : (int) (this.packed >>> shift(level) & FIELD) - 1;
+	}
+
+	@Override
+	public PackedToken getNextToken() {
+		if (this.chain == null) {
+			if (this.packed == 0)
+				return new PackedToken(this.root + 1, 0L, null);
+
+			final int last = depth() - 1;
+
+			if (level(last) < MAX_PACKED)
+				return new PackedToken(this.root, this.packed + (1L << shift(last)), null);
+		}
+
+		final int[] chain = chain();
+
+		if (chain[chain.length - 1] == Integer.MAX_VALUE)
+			throw new StackOverflowError("PackedToken chain-value overflow");
+
+		chain[chain.length - 1]++;
+
+		return new PackedToken(this.root, 0L, chain);
+	}
+
+	@Override
+	public PackedToken getDeepToken() {
+		if (this.chain == null) {
+			final int depth = depth();
+
+			if (depth < LEVELS)
+				return new PackedToken(this.root, this.packed | 1L << shift(depth), null);
+		}
+
+		final int[] chain = Arrays.copyOf(chain(), depth() + 1);
+
+		return new PackedToken(this.root, 0L, chain);
+	}
+
+	@Override
+	public int compareTo(final @NotNull PackedToken that) {
+		if (this.root != that.root)
+			return Long.compare(this.root, that.root);
+
+		if (this.chain == null && that.chain == null)
+			return Long.compareUnsigned(this.packed, that.packed);
+
+		final int this_depth = depth();
+		final int that_depth = that.depth();
+
+		for (int i = 0; i < this_depth && i < that_depth; i++) {
+			final int compare = Integer.compare(level(i), that.level(i));
+
+			if (compare != 0)
+				return compare;
+		}
+
+		// the same as far as the shorter goes, longer chain is greater
+		return Integer.compare(this_depth, that_depth);
+	}
+
+	/**
+	 * Without making that's deep token: this is at or before it if it's at or before that, or is it
+	 */
+	@Override
+	public boolean preceeds(final PackedToken that) {
+		if (compareTo(that) <= 0)
+			return true;
+
+		if (this.root != that.root)
+			return false;
+
+		if (this.chain == null && that.chain == null) {
+			final int depth = that.depth();
+			return depth < LEVELS && this.packed == (that.packed | 1L << shift(depth));
+		}
+
+		final int depth = that.depth();
+
+		if (depth() != depth + 1 || level(depth) != 0)
+			return false;
+
+		for (int i = 0; i < depth; i++) {
+			if (level(i) != that.level(i))
+				return false;
+		}
+
+		return true;
+	}
+
+	public static int compare(final @NotNull PackedToken a, final @NotNull PackedToken b) {
+		return a.compareTo(b);
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (!(o instanceof PackedToken))
+			return false;
+
+		final PackedToken that = (PackedToken) o;
+
+		return this.root == that.root && this.packed == that.packed && Arrays.equals(this.chain, that.chain);
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(this.root) * 31 + Long.hashCode(this.packed) * 17 + Arrays.hashCode(this.chain);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append('[');
+		sb.append(this.root);
+
+		for (int i = 0; i < depth(); i++) {
+			sb.append(", ");
+			sb.append(level(i));
+		}
+
+		sb.append(']');
+
+		return sb.toString();
+	}
+
+	/**
+	 * @return A fresh copy of the chain
+	 */
+	private int[] chain() {
+		if (this.chain != null)
+			return this.chain.clone();
+
+		final int[] chain = new int[depth()];
+
+		for (int i = 0; i < chain.length; i++) {
+			chain[i] = level(i);
+		}
+
+		return chain;
+	}
+
+	private static int shift(final int level) {
+		return (LEVELS - 1 - level) * BITS;
+	}
+}
@@ -0,0 +1,400 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.util.ByteArraySlice;
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.PreparedWrites;
+import engineering.taikun.distortion.store.util.KeyTrie;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Keys that come through drilled KVs are the whole structure prefix (markers, the subkeys of every structure it's
+ * nested in) and then the local part, so the keys of a nested map all start with the same long run of bytes. This
+ * wraps another history and keeps the keys in a KeyTrie instead, where that run is stored once, and hands the other
+ * history a short id key per key (a varint, so a few bytes). The id key is the trie's value, a ByteArray of its own
+ * that reads the varint out of its number, so a key costs the trie's share of it and one small object.
+ *
+ * A lookup walks the trie comparing bytes, so the prefix isn't hashed every time (and the id keys hash in a few
+ * steps). A key that isn't in the trie has never been written, so it reads as null without going to the other history.
+ *
+ * A deleted key keeps its id while anyone may still read it from before the delete. Every delete makes its key a
+ * candidate, and prune (run by a preparing commit once enough have piled up) takes a candidate out of the trie once
+ * the other history has nothing newer for its id than a delete at or before the low watermark, and gives the id back
+ * for a new key. Readers from before then are gone, and any from after read the delete whichever key has the id now,
+ * as the new key's writes are all later. A reader still holding the old key's id after it's given back only ever
+ * reads at or before the delete, and at worst sees a newer lastWriter, a conflict that isn't one.
+ *
+ * A commit looks its ids up at prepare, outside the critical section, so pruning must not give an id back between
+ * that and its write. Every prepare stamps its ids with the read point a transaction starting then would pick, which
+ * is at or after the read point of the transaction preparing, so the low watermark can't pass the stamp until that
+ * transaction is closed. An id is only pruned once the watermark is past its stamp, and the check and taking the key
+ * out of the trie are one step under the trie's lock, so a prepare that looked the id up before that step finds it
+ * pruned when it stamps it and looks again, getting a new one.
+ *
+ * Ids are only on the heap, so this can't go over a history that's reopened (MappedHistoryKV).
+ */
+public class PrefixIndexedHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
+		HistoryKV<BA, BA, DT> {
+
+	static final long KEY_OVERHEAD = 32; // a BA and its array's header
+	static final long ID_OVERHEAD = 32; // an Id
+	static final int PRUNE_BATCH = 64;
+
+	public final LongAdder key_bytes = new LongAdder(); // of the keys in the trie, as they'd be without it
+	public final LongAdder pruned = new LongAdder(); // keys taken out once all that's left of them is a delete
+
+	private final DistortionStoreShim<BA, DT> parent;
+	private final HistoryKV<? extends BA, BA, DT> history;
+	private final KeyTrie<Id> index = new KeyTrie<>();
+
+	// the ids' stamps and pruned flags, the candidates and the ids given back are guarded by it
+	private final Object prune_lock = new Object();
+	private final ArrayDeque<Candidate> candidates = new ArrayDeque<>();
+	private final ArrayDeque<Integer> free_ids = new ArrayDeque<>();
+	private int prune_at = PRUNE_BATCH;
+	private boolean pruning = false;
+
+	private int next_id = 0; // only under the trie's lock
+
+	/**
+	 * @param history What the id keys go in
+	 */
+	public PrefixIndexedHistoryKV(final DistortionStoreShim<BA, DT> parent, final HistoryKV<? extends BA, BA, DT> history) {
+		this.parent = parent;
+		this.history = history;
+	}
+
+	@Override
+	public void shutdown() {
+		this.history.shutdown();
+	}
+
+	/**
+	 * @return How many keys are in the trie, the live ones and the deleted ones not pruned yet
+	 */
+	public int keys() {
+		return this.index.size();
+	}
+
+	/**
+	 * @return Roughly how much heap the trie and the id keys take
+	 */
+	public long indexBytes() {
+		return this.index.bytes() + this.index.size() * ID_OVERHEAD;
+	}
+
+	/**
+	 * @return Roughly how much heap the keys would take as they are, to compare with {@link #indexBytes}. The trie's
+	 * ahead once keys share more than a node's worth of prefix, which drilled keys a few structures deep do.
+	 */
+	public long plainKeyBytes() {
+		return this.key_bytes.sum() + this.index.size() * KEY_OVERHEAD;
+	}
+
+	@Override
+	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+		final @Nullable Id id = this.index.get(key);
+
+		return id == null ? null : this.history.read(id, token);
+	}
+
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		this.history.write(indexed(values), token);
+	}
+
+	@Override
+	public void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+		final ArrayList<Map<? extends ByteArray, BA>> indexed = new ArrayList<>(values.size());
+
+		for (final Map<? extends ByteArray, BA> map : values) {
+			indexed.add(indexed(map));
+		}
+
+		this.history.writeAll(indexed, tokens);
+	}
+
+	/**
+	 * Keys are swapped for their ids here, before the commit's critical section, so the history under this gets to
+	 * prepare them too
+	 */
+	@Override
+	public Map<? extends ByteArray, BA> prepare(final Map<? extends ByteArray, BA> values) {
+		return new PreparedWrites<>(values, this, this.history.prepare(index(values)));
+	}
+
+	@Override
+	public void reserve(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> indexed = PreparedWrites.preparedBy(this, values);
+
+		if (indexed != null) {
+			this.history.reserve(indexed);
+		}
+	}
+
+	@Override
+	public void unreserve(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> indexed = PreparedWrites.preparedBy(this, values);
+
+		if (indexed != null) {
+			this.history.unreserve(indexed);
+		}
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return this.history.isVersioned();
+	}
+
+	@Override
+	public @Nullable DT lastWriter(final ByteArray key) {
+		final @Nullable Id id = this.index.get(key);
+
+		return id == null ? null : this.history.lastWriter(id);
+	}
+
+	private Map<? extends ByteArray, BA> indexed(final Map<? extends ByteArray, BA> values) {
+		final @Nullable Map<? extends ByteArray, BA> indexed = PreparedWrites.preparedBy(this, values);
+
+		return indexed != null ? indexed : index(values);
+	}
+
+	private Map<ByteArray, BA> index(final Map<? extends ByteArray, BA> values) {
+		final HashMap<ByteArray, BA> indexed = new HashMap<>((int) (values.size() / 0.75f) + 1);
+		final DT stamp = this.parent.oldestPosition();
+
+		ArrayList<Entry<? extends ByteArray, BA>> entries = new ArrayList<>(values.entrySet());
+		final ArrayList<Id> ids = new ArrayList<>(entries.size());
+
+		boolean prune = false;
+
+		while (!entries.isEmpty()) {
+			for (final Entry<? extends ByteArray, BA> entry : entries) {
+				ids.add(this.index.computeIfAbsent(entry.getKey(), this::newId));
+			}
+
+			final ArrayList<Entry<? extends ByteArray, BA>> again = new ArrayList<>(0);
+
+			synchronized (this.prune_lock) {
+				for (int i = 0; i < entries.size(); i++) {
+					final Entry<? extends ByteArray, BA> entry = entries.get(i);
+					final Id id = ids.get(i);
+
+					if (id.pruned) {
+						// taken out since we looked it up, looking again puts it back in with a new id
+						again.add(entry);
+						continue;
+					}
+
+					if (id.stamp == null || id.stamp.compareTo(stamp) < 0) {
+						id.stamp = stamp;
+					}
+
+					if (entry.getValue() == null) {
+						this.candidates.add(new Candidate(entry.getKey(), id));
+					}
+
+					indexed.put(id, entry.getValue());
+				}
+
+				if (!this.pruning && this.candidates.size() >= this.prune_at) {
+					this.pruning = prune = true;
+				}
+			}
+
+			entries = again;
+			ids.clear();
+		}
+
+		if (prune) {
+			try {
+				prune();
+			} finally {
+				synchronized (this.prune_lock) {
+					this.pruning = false;
+					this.prune_at = Math.max(PRUNE_BATCH, this.candidates.size() * 2);
+				}
+			}
+		}
+
+		return indexed;
+	}
+
+	/**
+	 * <p>Take the candidates all that's left of is a delete at or before the low watermark out of the trie, and give
+	 * their ids back, see the runthrough. Candidates that may still change are kept for later.</p>
+	 *
+	 * <p>Prepares run this once enough candidates have piled up, it can be called any time</p>
+	 */
+	public final void prune() {
+		final ArrayList<Candidate> candidates;
+
+		synchronized (this.prune_lock) {
+			candidates = new ArrayList<>(this.candidates);
+			this.candidates.clear();
+		}
+
+		final DT low = this.parent.lowWatermark();
+		final ArrayList<Candidate> later = new ArrayList<>();
+
+		for (final Candidate candidate : candidates) {
+			final Id id = candidate.id;
+
+			synchronized (this.prune_lock) {
+				if (id.pruned)
+					continue;
+
+				if (!id.stampedBefore(low)) {
+					later.add(candidate);
+					continue;
+				}
+			}
+
+			final @Nullable DT last_writer = this.history.lastWriter(id);
+
+			if (last_writer != null && last_writer.compareTo(low) > 0) {
+				later.add(candidate);
+				continue;
+			}
+
+			try {
+				// written again since
+				if (this.history.read(id, low) != null)
+					continue;
+			} catch (final ExpiredReadException ignored) {
+				later.add(candidate);
+				continue;
+			}
+
+			final boolean removed = this.index.remove(candidate.key, found -> {
+				synchronized (this.prune_lock) {
+					//noinspection ObjectEquality
+					if (found != id || id.pruned || !id.stampedBefore(low))
+						return false;
+
+					id.pruned = true;
+					this.free_ids.push(id.number);
+					return true;
+				}
+			});
+
+			if (removed) {
+				this.key_bytes.add(-candidate.key.length());
+				this.pruned.increment();
+			}
+		}
+
+		synchronized (this.prune_lock) {
+			this.candidates.addAll(later);
+		}
+	}
+
+	/**
+	 * Called under the trie's lock
+	 */
+	private Id newId(final ByteArray key) {
+		final @Nullable Integer free;
+
+		synchronized (this.prune_lock) {
+			free = this.free_ids.poll();
+		}
+
+		if (free == null && this.next_id == Integer.MAX_VALUE)
+			throw new IllegalStateException("PrefixIndexedHistoryKV is out of ids, " + this.index.size() + " keys");
+
+		this.key_bytes.add(key.length());
+
+		return new Id(free != null ? free : this.next_id++);
+	}
+
+	static int idLength(final int id) {
+		return id < 1 << 7 ? 1 : id < 1 << 14 ? 2 : id < 1 << 21 ? 3 : id < 1 << 28 ? 4 : 5;
+	}
+
+	/**
+	 * <p>A key's id key: its number as a varint, seven bits a byte from the low ones up, the high bit set on all but the
+	 * last. It can't be written to or resized.</p>
+	 *
+	 * <p>And what pruning needs to know about the key</p>
+	 */
+	final class Id extends ByteArray<Id> {
+		final int number;
+		@Nullable DT stamp = null; // the newest of the prepares it was looked up in, under the prune lock
+		boolean pruned = false; // under the prune lock
+
+		Id(final int number) {
+			this.number = number;
+		}
+
+		@Override
+		public byte read(final int index) {
+			if (index < 0 || index >= length())
+				throw new IndexOutOfBoundsException("index: " + index + ", array-length: " + length());
+
+			final int bits = this.number >>> 7 * index & 0x7F;
+
+			return (byte) (index < length() - 1 ? bits | 0x80 : bits);
+		}
+
+		@Override
+		protected void internalWrite(final int index, final byte value) {
+			throw new UnsupportedOperationException("Ids can't be written to");
+		}
+
+		@Override
+		public int length() {
+			return idLength(this.number);
+		}
+
+		@Override
+		protected void internalResize(final int newLength) {
+			throw new UnsupportedOperationException("Ids can't be resized");
+		}
+
+		@Override
+		public Id copy() {
+			return new Id(this.number);
+		}
+
+		@Override
+		public ByteArray slice(final int start, final int end) {
+			return new ByteArraySlice<>(null, this, start, end);
+		}
+
+		/**
+		 * Under the prune lock
+		 */
+		boolean stampedBefore(final DT low) {
+			return this.stamp == null || this.stamp.compareTo(low) < 0;
+		}
+	}
+
+	/**
+	 * A deleted key, which may be prunable later
+	 */
+	final class Candidate {
+		final BA key; // a copy, the commit's keys may not outlive it
+		final Id id;
+
+		Candidate(final ByteArray key, final Id id) {
+			final byte[] bytes = new byte[key.length()];
+			key.copyTo(0, bytes, 0, bytes.length);
+
+			this.key = PrefixIndexedHistoryKV.this.parent.util.factory.wrap(bytes);
+			this.id = id;
+		}
+	}
+}
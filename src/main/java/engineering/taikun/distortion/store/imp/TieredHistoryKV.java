@@ -0,0 +1,749 @@
+package engineering.taikun.distortion.store.imp;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV.Spill;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.PreparedWrites;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * General runthrough of how this class works
+ *
+ * The hot tier is an InMemoryHistoryKV, which has every key written or read lately, with all of its versions. Every
+ * spill_interval a pass looks for keys whose only version is older than the low watermark (so every reader sees that
+ * version) and that haven't been read since the pass before, writes them to a new run on disk and takes them off the
+ * heap. Deletes aren't spilled, the hot tier drops those by itself.
+ *
+ * A run is a file of records sorted by key, memory-mapped read only:
+ *
+ *   record: int key length | int value length | key | value
+ *
+ * On the heap there's only a sparse index (the key and offset of every index_interval-th record) and a bloom filter. A
+ * lookup checks the filter, binary searches the index and scans one block. Runs are looked through newest first, and
+ * once there are more than max_runs the newest ones are merged. A run is at most MAX_RUN_BYTES (or a single record),
+ * a spill or a merge that comes to more is written as several.
+ *
+ * A key missing from the hot tier that's found in a run is promoted: put back in the hot tier as a single version at
+ * the low watermark, where every reader sees it. Writes to a missing key promote it first, so readers older than the
+ * write still find the spilled value. The write looks the value up at prepare, outside the commit's critical section
+ * and the hot tier's locks, and the hot tier checks nothing was taken out of the stripe since (see InMemoryHistoryKV).
+ *
+ * Once promoted a key's spilled copies are stale. Runs are numbered as they're written, and shadowed maps a key to the
+ * number below which its copies are stale: the number the next run would get when it was promoted (taken again until
+ * it doesn't change, so a run numbered meanwhile is covered too). A lookup that finds a stale copy stops there, the hot
+ * tier has the final say. Merges drop stale copies, checked once the run they go in is numbered, and after every merge
+ * the keys with no stale copy left in any run come out of shadowed, so it's bounded by the records on disk whichever
+ * runs are merged.
+ * While being spilled a key is shadowed in every run, until it's evicted from the hot tier (under its stripe lock), so
+ * a reader that misses in the hot tier always finds what it needs on disk.
+ *
+ * Spilling isn't durability: runs are deleted on open and on shutdown, they're only there to take load off the heap.
+ */
+public class TieredHistoryKV<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements
+		HistoryKV<BA, BA, DT> {
+
+	static final int RECORD_HEADER = 8;
+	static final long MAX_RUN_BYTES = 1L << 30;
+
+	public final File directory;
+	public final long spill_interval;
+	public final int index_interval;
+	public final int max_runs;
+
+	public final LongAdder spilled = new LongAdder(); // keys moved to disk
+	public final LongAdder promoted = new LongAdder(); // keys brought back by a read or a write
+	public final LongAdder disk_reads = new LongAdder(); // blocks scanned in runs
+	public final LongAdder merges = new LongAdder();
+
+	private final DistortionStoreShim<BA, DT> parent;
+	private final InMemoryHistoryKV<BA, DT> hot;
+	private final ConcurrentHashMap<ByteArray, Integer> shadowed = new ConcurrentHashMap<>(); // see the runthrough
+	private volatile Run[] runs = new Run[0]; // newest first, only replaced under this
+	private volatile int next_run = 0; // only moved under this
+	private final Thread spill_thread;
+
+	public TieredHistoryKV(final DistortionStoreShim<BA, DT> parent, final File directory) {
+		this(parent, directory, 1L << 30, 10_000, 64, 8);
+	}
+
+	/**
+	 * @param directory Where the runs go, anything already there is deleted
+	 * @param max_bytes The byte budget of the hot tier, for the versions that have been written over
+	 * @param spill_interval How often the spill pass runs, in ms. A key has to go a whole interval without being read to
+	 * be spilled.
+	 * @param index_interval Every how many records of a run the sparse index has a key
+	 * @param max_runs How many runs there can be before they're merged
+	 */
+	public TieredHistoryKV(
+			final DistortionStoreShim<BA, DT> parent, final File directory, final long max_bytes, final long spill_interval,
+			final int index_interval, final int max_runs
+	) {
+		this.directory = directory;
+		this.spill_interval = Math.max(1, spill_interval);
+		this.index_interval = Math.max(1, index_interval);
+		this.max_runs = Math.max(1, max_runs);
+
+		this.parent = parent;
+		this.hot = new InMemoryHistoryKV<>(parent, max_bytes, 16, false, new Spill<BA>() {
+			@Override public @Nullable BA load(final ByteArray key) {
+				return lookup(key);
+			}
+
+			@Override public void promoted(final ByteArray key) {
+				shadow(key);
+				TieredHistoryKV.this.promoted.increment();
+			}
+
+			@Override public void demoted(final ByteArray key) {
+				TieredHistoryKV.this.shadowed.remove(key);
+			}
+		});
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new UncheckedIOException(new IOException("Can't create " + directory));
+
+		deleteRuns();
+
+		this.spill_thread = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(this.spill_interval);
+				} catch (final InterruptedException ignored) {
+					return;
+				}
+				spill();
+			}
+		}, "TieredHistoryKV spill thread");
+		this.spill_thread.setDaemon(true);
+		this.spill_thread.start();
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		this.spill_thread.interrupt();
+		super.finalize();
+	}
+
+	@Override
+	public void shutdown() {
+		this.spill_thread.interrupt();
+
+		synchronized (this) {
+			this.runs = new Run[0];
+			deleteRuns();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+		final @Nullable Object hot_read = this.hot.readOrAbsent(key, token);
+
+		if (hot_read != InMemoryHistoryKV.ABSENT)
+			return (BA) hot_read;
+
+		final @Nullable BA spilled_value = lookup(key);
+
+		if (spilled_value != null) {
+			if (this.hot.promote(key, spilled_value)) {
+				this.promoted.increment();
+			}
+
+			shadow(key);
+
+			return spilled_value;
+		}
+
+		// shadowed, so it's been promoted (maybe dropped since), or it's nowhere
+		final @Nullable Object again = this.hot.readOrAbsent(key, token);
+
+		return again == InMemoryHistoryKV.ABSENT ? null : (BA) again;
+	}
+
+	@Override
+	public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+		this.hot.write(values, token, PreparedWrites.preparedBy(this, values));
+	}
+
+	@Override
+	public void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+		for (int i = 0; i < tokens.size(); i++) {
+			write(values.get(i), tokens.get(i));
+		}
+	}
+
+	/**
+	 * The spilled values of keys that aren't in the hot tier are looked up here, before the commit's critical section
+	 */
+	@Override
+	public Map<? extends ByteArray, BA> prepare(final Map<? extends ByteArray, BA> values) {
+		return new PreparedWrites<>(values, this, this.hot.load(values));
+	}
+
+	@Override
+	public boolean isVersioned() {
+		return true;
+	}
+
+	/**
+	 * Spilled keys were last written before the low watermark, so before anything being committed read them
+	 */
+	@Override
+	public @Nullable DT lastWriter(final ByteArray key) {
+		return this.hot.lastWriter(key);
+	}
+
+	/**
+	 * @return Roughly how much heap the hot tier takes
+	 */
+	public long hotBytes() {
+		return this.hot.retainedBytes();
+	}
+
+	/**
+	 * @return The size of the runs on disk
+	 */
+	public long runBytes() {
+		long total = 0;
+
+		for (final Run run : this.runs) {
+			total += run.data.limit();
+		}
+
+		return total;
+	}
+
+	public int runCount() {
+		return this.runs.length;
+	}
+
+	/**
+	 * @return How many keys have stale copies in runs, or are being spilled
+	 */
+	public int shadowedKeys() {
+		return this.shadowed.size();
+	}
+
+	/**
+	 * Spill whatever can be, and merge runs if there are too many. The spill thread calls this every spill_interval.
+	 */
+	public synchronized void spill() {
+		// down to a single version where nobody reads the older ones
+		this.hot.reclaim();
+
+		final DT low = this.parent.lowWatermark();
+
+		final ArrayList<Record<DT>> batch = new ArrayList<>();
+
+		this.hot.spillable(low, (key, value, token) -> batch.add(new Record<>(key, key.toArray(), value.toArray(), token, -1)));
+
+		if (!batch.isEmpty()) {
+			batch.sort((a, b) -> compare(a.key_bytes, b.key_bytes));
+
+			// until they're evicted the hot tier has the final say, whatever's on disk
+			for (final Record<DT> record : batch) {
+				this.shadowed.put(record.key, Integer.MAX_VALUE);
+			}
+
+			final ArrayList<Run> written = writeRuns(batch.iterator(), batch.size());
+
+			final Run[] runs = new Run[this.runs.length + written.size()];
+			for (int i = 0; i < written.size(); i++) {
+				runs[i] = written.get(written.size() - 1 - i);
+			}
+			System.arraycopy(this.runs, 0, runs, written.size(), this.runs.length);
+			this.runs = runs;
+
+			for (final Record<DT> record : batch) {
+				if (this.hot.evict(record.key, record.token)) {
+					this.spilled.increment();
+				} else {
+					// it's been written (or dropped) since, what was just spilled of it is stale
+					this.shadowed.put(record.key, this.next_run);
+				}
+			}
+		}
+
+		if (this.runs.length > this.max_runs) {
+			merge();
+		}
+	}
+
+	/**
+	 * Merge the newest runs, as many as fit in a mapping, dropping stale copies
+	 */
+	private void merge() {
+		final Run[] runs = this.runs;
+
+		int take = 0;
+		long total = 0;
+
+		while (take < runs.length && total + runs[take].data.limit() <= MAX_RUN_BYTES) {
+			total += runs[take].data.limit();
+			take++;
+		}
+
+		if (take < 2)
+			return;
+
+		// cursors over each run, the newest first on equal keys
+		final PriorityQueue<Cursor> queue = new PriorityQueue<>((a, b) -> {
+			final int compare = compare(a.key, b.key);
+			return compare != 0 ? compare : Integer.compare(a.age, b.age);
+		});
+
+		int count = 0;
+		for (int i = 0; i < take; i++) {
+			final Cursor cursor = new Cursor(runs[i], i);
+
+			if (cursor.next()) {
+				queue.add(cursor);
+			}
+
+			count += runs[i].count;
+		}
+
+		final Iterator<Record<DT>> merged = new Iterator<Record<DT>>() {
+			@Nullable Record<DT> next = advance();
+
+			@Nullable Record<DT> advance() {
+				while (!queue.isEmpty()) {
+					final Cursor newest = queue.poll();
+					final Record<DT> record = new Record<>(wrap(newest.key), newest.key, newest.value, null, newest.run.number);
+
+					// older copies of the same key
+					while (!queue.isEmpty() && compare(queue.peek().key, newest.key) == 0) {
+						final Cursor older = queue.poll();
+
+						if (older.next()) {
+							queue.add(older);
+						}
+					}
+
+					if (newest.next()) {
+						queue.add(newest);
+					}
+
+					return record;
+				}
+
+				return null;
+			}
+
+			@Override public boolean hasNext() {
+				return this.next != null;
+			}
+
+			@Override public Record<DT> next() {
+				final Record<DT> record = this.next;
+				this.next = advance();
+				return record;
+			}
+		};
+
+		final ArrayList<Run> written = writeRuns(merged, count);
+
+		final Run[] next = new Run[runs.length - take + written.size()];
+
+		for (int i = 0; i < written.size(); i++) {
+			next[i] = written.get(written.size() - 1 - i);
+		}
+
+		System.arraycopy(runs, take, next, written.size(), runs.length - take);
+
+		this.runs = next;
+
+		// readers still going through them have the mappings, which outlive the files
+		for (int i = 0; i < take; i++) {
+			//noinspection ResultOfMethodCallIgnored
+			runs[i].file.delete();
+		}
+
+		unshadow(next);
+
+		this.merges.increment();
+	}
+
+	/**
+	 * Mark key's copies in the runs there are now (and the one being written, if any) stale
+	 */
+	private void shadow(final ByteArray key) {
+		while (true) {
+			final int number = this.next_run;
+
+			this.shadowed.merge(key, number, Math::max);
+
+			if (this.next_run == number)
+				return;
+		}
+	}
+
+	private boolean isStale(final ByteArray key, final int run) {
+		final @Nullable Integer below = this.shadowed.get(key);
+
+		return below != null && run < below;
+	}
+
+	/**
+	 * Take the keys that have no stale copy left in runs out of shadowed, under this
+	 */
+	private void unshadow(final Run[] runs) {
+		for (final Entry<ByteArray, Integer> entry : this.shadowed.entrySet()) {
+			final int below = entry.getValue();
+
+			// being spilled
+			if (below == Integer.MAX_VALUE)
+				continue;
+
+			final byte[] key_bytes = entry.getKey().toArray();
+			final long hash = hash(key_bytes);
+
+			boolean stale_copy = false;
+
+			for (final Run run : runs) {
+				if (run.number < below && run.find(key_bytes, hash) != null) {
+					stale_copy = true;
+					break;
+				}
+			}
+
+			if (!stale_copy) {
+				// unless it's been promoted again meanwhile
+				this.shadowed.remove(entry.getKey(), below);
+			}
+		}
+	}
+
+	private @Nullable BA lookup(final ByteArray key) {
+		final byte[] key_bytes = key.toArray();
+		final long hash = hash(key_bytes);
+
+		for (final Run run : this.runs) {
+			final @Nullable byte[] value = run.find(key_bytes, hash);
+
+			// a stale copy, the hot tier has (or had) the key since
+			if (value != null)
+				return isStale(key, run.number) ? null : wrap(value);
+		}
+
+		return null;
+	}
+
+	private BA wrap(final byte[] bytes) {
+		// records keep it, so it's wrapped, never allocated in a scope
+		return this.parent.util.factory.wrap(bytes.clone());
+	}
+
+	/**
+	 * Write records, in key order, to new runs of at most MAX_RUN_BYTES each
+	 *
+	 * @param count At most how many there are, to size the bloom filters
+	 * @return The runs, in the order written, none if there weren't any records
+	 */
+	private ArrayList<Run> writeRuns(final Iterator<Record<DT>> records, final int count) {
+		final ArrayList<Run> runs = new ArrayList<>(1);
+		final Record<DT>[] carried = new Record[1];
+
+		while (carried[0] != null || records.hasNext()) {
+			final @Nullable Run run = writeRun(records, count, carried);
+
+			if (run != null) {
+				runs.add(run);
+			}
+		}
+
+		return runs;
+	}
+
+	/**
+	 * Write records, in key order, to a new run, up to the first one that would take it past MAX_RUN_BYTES
+	 *
+	 * @param carried The record the run before stopped at, which goes first, and where the one this stops at goes
+	 * @return The run, or null if there weren't any records
+	 */
+	private @Nullable Run writeRun(final Iterator<Record<DT>> records, final int count, final Record<DT>[] carried) {
+		final int number = this.next_run++;
+		final File file = new File(this.directory, String.format("run-%06d", number));
+
+		final ArrayList<byte[]> index_keys = new ArrayList<>();
+		final ArrayList<Integer> index_offsets = new ArrayList<>();
+		final long[] bloom = new long[Math.max(1, (count * 10 + 63) / 64)];
+
+		int written = 0;
+		long offset = 0;
+
+		try {
+			try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+				while (carried[0] != null || records.hasNext()) {
+					final Record<DT> record = carried[0] != null ? carried[0] : records.next();
+					carried[0] = null;
+
+					// checked once this run's numbered, so a key promoted since is stale in it too
+					if (record.run >= 0 && isStale(record.key, record.run))
+						continue;
+
+					final long size = RECORD_HEADER + record.key_bytes.length + record.value_bytes.length;
+
+					if (written > 0 && offset + size > MAX_RUN_BYTES) {
+						carried[0] = record;
+						break;
+					}
+
+					if (written % this.index_interval == 0) {
+						index_keys.add(record.key_bytes);
+						index_offsets.add((int) offset);
+					}
+
+					Run.add(bloom, hash(record.key_bytes));
+
+					out.writeInt(record.key_bytes.length);
+					out.writeInt(record.value_bytes.length);
+					out.write(record.key_bytes);
+					out.write(record.value_bytes);
+
+					offset += RECORD_HEADER + record.key_bytes.length + record.value_bytes.length;
+					written++;
+				}
+			}
+
+			if (written == 0) {
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+				return null;
+			}
+
+			final MappedByteBuffer data;
+
+			try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				data = channel.map(MapMode.READ_ONLY, 0, offset);
+			}
+
+			final int[] offsets = new int[index_offsets.size()];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = index_offsets.get(i);
+			}
+
+			return new Run(number, file, data, index_keys.toArray(new byte[0][]), offsets, bloom, written, this.disk_reads);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void deleteRuns() {
+		final File[] files = this.directory.listFiles((dir, name) -> name.startsWith("run-"));
+
+		if (files != null) {
+			for (final File file : files) {
+				//noinspection ResultOfMethodCallIgnored
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Same order as {@link ByteArray#compareTo}
+	 */
+	static int compare(final byte[] a, final byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			final int compare = Byte.compare(a[i], b[i]);
+
+			if (compare != 0)
+				return compare;
+		}
+
+		return Integer.compare(a.length, b.length);
+	}
+
+	static long hash(final byte[] key) {
+		long h = 0;
+		for (final byte b : key) {
+			h = (h + b) * 0x9E3779B97F4A7C15L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	private static class Record<DT> {
+		final ByteArray key;
+		final byte[] key_bytes;
+		final byte[] value_bytes;
+		final @Nullable DT token; // what it was written at, for spilled ones
+		final int run; // the number of the one it's merged from, -1 for spilled ones
+
+		Record(
+				final ByteArray key, final byte[] key_bytes, final byte[] value_bytes, final @Nullable DT token, final int run
+		) {
+			this.key = key;
+			this.key_bytes = key_bytes;
+			this.value_bytes = value_bytes;
+			this.token = token;
+			this.run = run;
+		}
+	}
+
+	private static class Run {
+		final int number;
+		final File file;
+		final MappedByteBuffer data;
+		final byte[][] index_keys;
+		final int[] index_offsets;
+		final long[] bloom;
+		final int count;
+		final LongAdder disk_reads;
+
+		Run(
+				final int number, final File file, final MappedByteBuffer data, final byte[][] index_keys,
+				final int[] index_offsets, final long[] bloom, final int count, final LongAdder disk_reads
+		) {
+			this.number = number;
+			this.file = file;
+			this.data = data;
+			this.index_keys = index_keys;
+			this.index_offsets = index_offsets;
+			this.bloom = bloom;
+			this.count = count;
+			this.disk_reads = disk_reads;
+		}
+
+		static void add(final long[] bloom, final long hash) {
+			final long bits = bloom.length * 64L;
+
+			for (int i = 0; i < 4; i++) {
+				final long bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), bits);
+				bloom[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(final long hash) {
+			final long bits = this.bloom.length * 64L;
+
+			for (int i = 0; i < 4; i++) {
+				final long bit = Math.floorMod((int) hash + i * (int) (hash >>> 32), bits);
+
+				if ((this.bloom[(int) (bit >>> 6)] & 1L << bit) == 0)
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * @return key's value in this run, or null if it's not here
+		 */
+		@Nullable byte[] find(final byte[] key, final long hash) {
+			if (!mightContain(hash))
+				return null;
+
+			// the last indexed key at or before key
+			int low = 0;
+			int high = this.index_keys.length - 1;
+			int block = -1;
+
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+
+				if (compare(this.index_keys[middle], key) <= 0) {
+					block = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+
+			if (block < 0)
+				return null;
+
+			this.disk_reads.increment();
+
+			int offset = this.index_offsets[block];
+			final int end = block + 1 < this.index_offsets.length ? this.index_offsets[block + 1] : this.data.limit();
+
+			while (offset < end) {
+				final int key_length = this.data.getInt(offset);
+				final int value_length = this.data.getInt(offset + 4);
+
+				final int compare = compareAt(key, offset + RECORD_HEADER, key_length);
+
+				if (compare == 0) {
+					final byte[] value = new byte[value_length];
+
+					final ByteBuffer view = this.data.duplicate();
+					view.position(offset + RECORD_HEADER + key_length);
+					view.get(value);
+
+					return value;
+				}
+
+				// sorted, so it's not further on
+				if (compare < 0)
+					return null;
+
+				offset += RECORD_HEADER + key_length + value_length;
+			}
+
+			return null;
+		}
+
+		private int compareAt(final byte[] key, final int offset, final int length) {
+			for (int i = 0; i < key.length && i < length; i++) {
+				final int compare = Byte.compare(key[i], this.data.get(offset + i));
+
+				if (compare != 0)
+					return compare;
+			}
+
+			return Integer.compare(key.length, length);
+		}
+	}
+
+	/**
+	 * Walks the records of a run in order
+	 */
+	private static class Cursor {
+		final Run run;
+		final int age;
+		int offset = 0;
+		byte[] key;
+		byte[] value;
+
+		Cursor(final Run run, final int age) {
+			this.run = run;
+			this.age = age;
+		}
+
+		boolean next() {
+			if (this.offset >= this.run.data.limit())
+				return false;
+
+			final ByteBuffer view = this.run.data.duplicate();
+			view.position(this.offset);
+
+			this.key = new byte[view.getInt()];
+			this.value = new byte[view.getInt()];
+			view.get(this.key);
+			view.get(this.value);
+
+			this.offset = view.position();
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,304 @@
+package engineering.taikun.distortion.store.util;
+
+import java.util.Arrays;
+
+/*
+ * General runthrough of how this class works
+ *
+ * An LZ77 block format along the lines of LZ4's, greedy matching off a hash table of 4-byte sequences, no entropy
+ * coding. A block is a run of sequences:
+ *
+ *   sequence: byte token (literal length << 4 | match length - 4) | [literal length - 15 in 255s] | literals
+ *             | short offset (little-endian) | [match length - 19 in 255s]
+ *
+ * The last sequence has literals only (and no offset). A length nibble of 15 means more length bytes follow, each
+ * added on until one is less than 255.
+ *
+ * An offset is a distance back from where the match is copied to, and can reach back past the start of the block into
+ * the dictionary, as if the block came right after it. The dictionary's hash table is built once, a block's own table
+ * is sized to the block so small values don't pay for clearing a big one.
+ */
+public final class BlockCompressor {
+
+	static final int MIN_MATCH = 4;
+	static final int MAX_OFFSET = 0xFFFF;
+	static final int MAX_TABLE_BITS = 12;
+
+	public static final int MAX_DICTIONARY = MAX_OFFSET;
+
+	private final byte[] dictionary;
+	private final int[] dictionary_table; // position + 1 of the last 4 bytes hashing here, 0 for none
+
+	/**
+	 * A compressor without a dictionary
+	 */
+	public BlockCompressor() {
+		this(new byte[0]);
+	}
+
+	/**
+	 * @param dictionary Content that blocks can refer back to, put whatever's most alike the values last. Anything past
+	 *                   {@link #MAX_DICTIONARY} bytes is cut from the front.
+	 */
+	public BlockCompressor(final byte[] dictionary) {
+		this.dictionary = dictionary.length > MAX_DICTIONARY ?
+				Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY, dictionary.length) : dictionary;
+
+		this.dictionary_table = new int[1 << MAX_TABLE_BITS];
+
+		for (int i = 0; i + MIN_MATCH <= this.dictionary.length; i++) {
+			this.dictionary_table[hash(this.dictionary, i, MAX_TABLE_BITS)] = i + 1;
+		}
+	}
+
+	public int dictionaryLength() {
+		return this.dictionary.length;
+	}
+
+	/**
+	 * Compress src[0, length) into out starting at out_offset
+	 *
+	 * @param out Needs {@link #maxCompressedLength}(length) bytes after out_offset
+	 * @return The end of the block in out, or -1 if it came out no smaller than length
+	 */
+	public int compress(final byte[] src, final int length, final byte[] out, final int out_offset) {
+		final int bits = Math.max(4, Math.min(MAX_TABLE_BITS, 32 - Integer.numberOfLeadingZeros(length)));
+		final int[] table = new int[1 << bits];
+
+		final int limit = out_offset + length;
+		final int dictionary_length = this.dictionary.length;
+
+		int op = out_offset;
+		int anchor = 0; // start of the pending literals
+		int ip = 0;
+
+		while (ip + MIN_MATCH <= length) {
+			final int block_hash = hash(src, ip, bits);
+			final int candidate = table[block_hash] - 1;
+			table[block_hash] = ip + 1;
+
+			int match_length = 0;
+			int offset = 0;
+
+			if (candidate >= 0 && ip - candidate <= MAX_OFFSET && matches(src, candidate, src, ip)) {
+				offset = ip - candidate;
+				match_length = MIN_MATCH + extend(src, candidate + MIN_MATCH, src, ip + MIN_MATCH, length);
+			}
+
+			if (dictionary_length > 0) {
+				final int dictionary_candidate = this.dictionary_table[hash(src, ip, MAX_TABLE_BITS)] - 1;
+
+				if (
+						dictionary_candidate >= 0 && dictionary_length - dictionary_candidate + ip <= MAX_OFFSET
+								&& matches(this.dictionary, dictionary_candidate, src, ip)
+				) {
+					final int dictionary_match = MIN_MATCH + extendFromDictionary(dictionary_candidate + MIN_MATCH, src,
+							ip + MIN_MATCH, length);
+
+					if (dictionary_match > match_length) {
+						match_length = dictionary_match;
+						offset = dictionary_length - dictionary_candidate + ip;
+					}
+				}
+			}
+
+			if (match_length == 0) {
+				ip++;
+				continue;
+			}
+
+			final int literal_length = ip - anchor;
+
+			// worst case for this sequence and the literals after it, give up as soon as it can't come out smaller
+			if (op + 1 + literal_length / 255 + 1 + literal_length + 2 + match_length / 255 + 1 >= limit)
+				return -1;
+
+			op = writeSequence(src, anchor, literal_length, match_length, offset, out, op);
+
+			// the positions inside the match go in the table too, every other one
+			for (int i = ip + 2; i + MIN_MATCH <= length && i < ip + match_length; i += 2) {
+				table[hash(src, i, bits)] = i + 1;
+			}
+
+			ip += match_length;
+			anchor = ip;
+		}
+
+		final int literal_length = length - anchor;
+
+		if (op + 1 + literal_length / 255 + 1 + literal_length >= limit)
+			return -1;
+
+		return writeSequence(src, anchor, literal_length, 0, 0, out, op);
+	}
+
+	/**
+	 * Decompress a block of src[offset, offset + length) into out, which must be exactly as long as the original
+	 *
+	 * @throws IllegalArgumentException If the block is corrupt, or isn't out's length
+	 */
+	public void decompress(final byte[] src, final int offset, final int length, final byte[] out) {
+		final int end = offset + length;
+		final int dictionary_length = this.dictionary.length;
+
+		int ip = offset;
+		int op = 0;
+
+		try {
+			while (true) {
+				final int token = src[ip++] & 0xFF;
+
+				int literal_length = token >>> 4;
+				if (literal_length == 15) {
+					int more;
+					do {
+						more = src[ip++] & 0xFF;
+						literal_length += more;
+					} while (more == 255);
+				}
+
+				System.arraycopy(src, ip, out, op, literal_length);
+				ip += literal_length;
+				op += literal_length;
+
+				if (ip == end)
+					break;
+
+				final int match_offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+				ip += 2;
+
+				int match_length = (token & 0xF) + MIN_MATCH;
+				if ((token & 0xF) == 15) {
+					int more;
+					do {
+						more = src[ip++] & 0xFF;
+						match_length += more;
+					} while (more == 255);
+				}
+
+				int from = op - match_offset;
+
+				if (match_offset == 0 || from < -dictionary_length || op + match_length > out.length)
+					throw new IllegalArgumentException("Corrupt block");
+
+				// the part in the dictionary, then the part in out (which may overlap what's being written)
+				if (from < 0) {
+					final int from_dictionary = Math.min(-from, match_length);
+					System.arraycopy(this.dictionary, dictionary_length + from, out, op, from_dictionary);
+					op += from_dictionary;
+					from += from_dictionary;
+					match_length -= from_dictionary;
+
+					if (match_length == 0)
+						continue;
+				}
+
+				if (match_offset >= match_length) {
+					System.arraycopy(out, from, out, op, match_length);
+					op += match_length;
+				} else {
+					for (int i = 0; i < match_length; i++) {
+						out[op++] = out[from++];
+					}
+				}
+			}
+		} catch (final ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Corrupt block", e);
+		}
+
+		if (op != out.length)
+			throw new IllegalArgumentException("Block is " + op + " bytes, not " + out.length);
+	}
+
+	/**
+	 * @return How much room {@link #compress} may need for length bytes
+	 */
+	public static int maxCompressedLength(final int length) {
+		return length + length / 255 + 16;
+	}
+
+	private static int writeSequence(
+			final byte[] src, final int anchor, final int literal_length, final int match_length, final int offset,
+			final byte[] out, int op
+	) {
+		final int token_index = op++;
+		final int match_code = match_length == 0 ? 0 : match_length - MIN_MATCH;
+
+		out[token_index] = (byte) (Math.min(literal_length, 15) << 4 | Math.min(match_code, 15));
+
+		if (literal_length >= 15) {
+			op = writeLength(literal_length - 15, out, op);
+		}
+
+		System.arraycopy(src, anchor, out, op, literal_length);
+		op += literal_length;
+
+		if (match_length == 0)
+			return op;
+
+		out[op++] = (byte) offset;
+		out[op++] = (byte) (offset >>> 8);
+
+		if (match_code >= 15) {
+			op = writeLength(match_code - 15, out, op);
+		}
+
+		return op;
+	}
+
+	private static int writeLength(int length, final byte[] out, int op) {
+		while (length >= 255) {
+			out[op++] = (byte) 255;
+			length -= 255;
+		}
+
+		out[op++] = (byte) length;
+
+		return op;
+	}
+
+	private static boolean matches(final byte[] a, final int a_offset, final byte[] b, final int b_offset) {
+		return a[a_offset] == b[b_offset] && a[a_offset + 1] == b[b_offset + 1] && a[a_offset + 2] == b[b_offset + 2]
+				&& a[a_offset + 3] == b[b_offset + 3];
+	}
+
+	/**
+	 * @return How many more bytes match, up to the end of b
+	 */
+	private static int extend(final byte[] a, int a_offset, final byte[] b, int b_offset, final int b_end) {
+		final int start = b_offset;
+
+		while (b_offset < b_end && a[a_offset] == b[b_offset]) {
+			a_offset++;
+			b_offset++;
+		}
+
+		return b_offset - start;
+	}
+
+	/**
+	 * Like {@link #extend} from the dictionary, carrying on into the start of the block as the decompressor would
+	 */
+	private int extendFromDictionary(int a_offset, final byte[] b, final int b_offset, final int b_end) {
+		final int dictionary_length = this.dictionary.length;
+		int i = b_offset;
+
+		while (i < b_end && a_offset < dictionary_length && this.dictionary[a_offset] == b[i]) {
+			a_offset++;
+			i++;
+		}
+
+		if (a_offset == dictionary_length) {
+			i += extend(b, 0, b, i, b_end);
+		}
+
+		return i - b_offset;
+	}
+
+	private static int hash(final byte[] bytes, final int offset, final int bits) {
+		final int sequence = (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16
+				| (bytes[offset + 3] & 0xFF) << 24;
+
+		return sequence * -1640531535 >>> 32 - bits;
+	}
+}
@@ -3,10 +3,12 @@ package engineering.taikun.distortion.store.util;
 import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
 import engineering.taikun.distortion.SerializationUtil;
 import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
 import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
 import engineering.taikun.distortion.store.api.DistortionStore;
 import engineering.taikun.distortion.store.api.DrillingToken;
 import engineering.taikun.distortion.store.api.KV;
+import engineering.taikun.distortion.store.api.KV.DoomedReadException;
 import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
 import engineering.taikun.distortion.store.util.DistortionStoreShim.DistortionStoreShimTransaction;
 import org.jetbrains.annotations.NotNull;
@@ -16,8 +18,10 @@ import java.lang.reflect.Field;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 @SuppressWarnings("unchecked")
 public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> implements DistortionStore<DistortionStoreShimTransaction> {
@@ -42,27 +46,192 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 	public DT advancing;
 
 	public final ConcurrentSkipListMap<DistortionStoreShimTransaction, Object> pending = new ConcurrentSkipListMap<>();
+	// read points of the started transactions (and snapshots) not closed yet, with how many share each, guarded by itself
+	public final TreeMap<DT, int[]> pinned = new TreeMap<>();
 
 	public final SerializationUtil<BA> util;
 
 	final @Nullable HistoryKV<?, BA, DT> ephemeral;
 	final @Nullable HistoryKV<?, BA, DT> persistent;
 
+	final @Nullable ReadValidator<BA, DT> ephemeral_validator;
+	final @Nullable ReadValidator<BA, DT> persistent_validator;
+
+	final boolean group_commit;
+	public final LongAdder grouped_commits = new LongAdder(); // transactions committed by a leader on their behalf
+
+	final int lanes;
+	final ToIntFunction<ByteArray> partition;
+	final @Nullable DT[] lane_positions; // null with a single lane, guarded by itself
+	final @Nullable Lane[] lane_orders; // null with a single lane
+	final Set<Thread> barriers = ConcurrentHashMap.newKeySet(); // owners of barrier commits, waiting on what's ahead
+	public final LongAdder bypassed_commits = new LongAdder(); // commits made while an older transaction was still pending
+	public final LongAdder late_joins = new LongAdder(); // transactions that touched a lane after a younger one committed in it
+	public final LongAdder pins = new LongAdder(); // read points pinned by starting transactions
+
+	final @Nullable WriteAheadLog<BA> wal;
+	private final @Nullable Thread checkpoint_thread; // with a durable persistent history, checkpoints the log
+
 	public DistortionStoreShim(
 			final SerializationUtil<BA> util, final DT token,
 			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> ephemeral_fn,
 			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> persistent_fn
+	) {
+		this(util, token, ephemeral_fn, persistent_fn, false);
+	}
+
+	/**
+	 * @param group_commit Whoever reaches the head of the commit order also validates and applies the (sealed)
+	 * transactions waiting right behind it, in one critical section and one history write
+	 */
+	public DistortionStoreShim(
+			final SerializationUtil<BA> util, final DT token,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> ephemeral_fn,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> persistent_fn, final boolean group_commit
+	) {
+		this(util, token, ephemeral_fn, persistent_fn, group_commit, 1, null);
+	}
+
+	/**
+	 * @param lanes Number of commit lanes (1 to 64) the keys are split into, each with its own history, position and
+	 * commit order. A transaction only waits on the older ones in the lanes it touched. Doesn't mix with group_commit.
+	 * @param partition Maps a key to its lane (mod lanes), by default a hash of its root key (see {@link #rootHash}), so
+	 * a root entry and everything nested under it share a lane.
+	 */
+	public DistortionStoreShim(
+			final SerializationUtil<BA> util, final DT token,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> ephemeral_fn,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> persistent_fn, final boolean group_commit,
+			final int lanes, final @Nullable ToIntFunction<ByteArray> partition
+	) {
+		this(util, token, ephemeral_fn, persistent_fn, group_commit, lanes, partition, null);
+	}
+
+	/**
+	 * @param wal Logs the persistent writes of every commit, which only returns once its record is durable (as far as
+	 * the log's policy cares). Whatever it holds past its last checkpoint is replayed into the persistent history
+	 * first. A history that forgets everything at shutdown is never checkpointed, so it gets the whole log; one that
+	 * keeps its writes (see {@link HistoryKV#isDurable}) is checkpointed every time the log finishes a segment and at
+	 * shutdown, so it only gets what it may not have synced.
+	 */
+	public DistortionStoreShim(
+			final SerializationUtil<BA> util, final DT token,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> ephemeral_fn,
+			final @Nullable Function<DistortionStoreShim, HistoryKV<?, BA, DT>> persistent_fn, final boolean group_commit,
+			final int lanes, final @Nullable ToIntFunction<ByteArray> partition, final @Nullable WriteAheadLog<BA> wal
 	) {
 		if (ephemeral_fn == null && persistent_fn == null)
 			throw new IllegalArgumentException("Both stores cannot be null");
 
+		if (lanes < 1 || lanes > 64)
+			throw new IllegalArgumentException("lanes must be between 1 and 64, was " + lanes);
+
+		if (lanes > 1 && group_commit)
+			throw new IllegalArgumentException("Group commit can't be used with commit lanes");
+
 		this.util = util;
+		this.group_commit = group_commit;
 
 		this.position = token;
 		this.advancing = token.getNextToken();
 
-		this.ephemeral = ephemeral_fn == null ? null : ephemeral_fn.apply(this);
-		this.persistent = persistent_fn == null ? null : persistent_fn.apply(this);
+		this.lanes = lanes;
+		this.partition = partition == null ? DistortionStoreShim::rootHash : partition;
+
+		if (lanes > 1) {
+			this.lane_positions = (DT[]) new DrillingToken[lanes];
+			Arrays.fill(this.lane_positions, token);
+
+			this.lane_orders = (Lane[]) new DistortionStoreShim.Lane[lanes];
+			for (int lane = 0; lane < lanes; lane++) {
+				this.lane_orders[lane] = new Lane(token);
+			}
+
+			this.ephemeral = ephemeral_fn == null ? null : new LaneHistoryKV(ephemeral_fn);
+			this.persistent = persistent_fn == null ? null : new LaneHistoryKV(persistent_fn);
+		} else {
+			this.lane_positions = null;
+			this.lane_orders = null;
+
+			this.ephemeral = ephemeral_fn == null ? null : ephemeral_fn.apply(this);
+			this.persistent = persistent_fn == null ? null : persistent_fn.apply(this);
+		}
+
+		this.ephemeral_validator = this.ephemeral == null ? null : validatorFor(this.ephemeral);
+		this.persistent_validator = this.persistent == null ? null : validatorFor(this.persistent);
+
+		this.wal = wal;
+
+		if (wal != null) {
+			if (this.persistent == null)
+				throw new IllegalArgumentException("A write-ahead log needs a persistent store");
+
+			// every record gets the next token, same as its commit did
+			wal.replay(util.factory, writes -> {
+				final DT replay_token = this.advancing.getNextToken();
+
+				this.advancing = replay_token;
+				this.persistent.write(writes, replay_token);
+				this.position = replay_token;
+			});
+
+			if (this.lane_positions != null) {
+				Arrays.fill(this.lane_positions, this.position);
+			}
+		}
+
+		if (wal != null && this.persistent.isDurable()) {
+			this.checkpoint_thread = new Thread(() -> {
+				try {
+					for (long seen = 0; (seen = wal.awaitRoll(seen)) >= 0; ) {
+						checkpoint();
+					}
+				} catch (final InterruptedException ignored) {}
+			}, "DistortionStoreShim checkpoint thread");
+			this.checkpoint_thread.setDaemon(true);
+			this.checkpoint_thread.start();
+		} else {
+			this.checkpoint_thread = null;
+		}
+	}
+
+	/**
+	 * <p>Sync the persistent history and drop what the write-ahead log holds up to there. Does nothing unless there's
+	 * a log and a persistent history that keeps its writes.</p>
+	 */
+	public void checkpoint() {
+		if (this.wal == null || this.persistent == null || !this.persistent.isDurable())
+			return;
+
+		// before the sync, so whatever it covers is in what gets synced
+		final long number = this.wal.appended();
+
+		this.persistent.sync();
+		this.wal.checkpoint(number);
+	}
+
+	int laneOf(final ByteArray key) {
+		return Math.floorMod(this.partition.applyAsInt(key), this.lanes);
+	}
+
+	/**
+	 * <p>The default partition: a hash of the root key a key belongs to, the serialized key of a root entry, which is
+	 * where the entry's own key, its OBJECT_PREFIX key and the keys of the structures nested under it (0x70 first) all
+	 * start. A key whose root can't be delimited (see {@link SerializationUtil#serializedLength}) is hashed whole.</p>
+	 */
+	public static int rootHash(final ByteArray key) {
+		final int start = key.length() > 0 && key.read(0) == 0x70 ? 1 : 0;
+		final int length = SerializationUtil.serializedLength(key, start);
+
+		final int from = length < 0 ? 0 : start;
+		final int to = length < 0 ? key.length() : start + length;
+
+		int hash = 1;
+		for (int i = from; i < to; i++) {
+			hash = 31 * hash + key.read(i);
+		}
+
+		return hash ^ (hash >>> 16);
 	}
 
 	@Override
@@ -82,6 +251,101 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 		return transaction;
 	}
 
+	@Override
+	public ArrayList<DistortionStoreShimTransaction> newTransactions(
+			final int count, final Collection<Collection<Identifier>> pending, final Collection<Identifier> identifiers
+	) {
+		final ArrayList<DistortionStoreShimTransaction> toreturn = new ArrayList<>(count);
+
+		synchronized (this) {
+			DT nextToken = this.advancing;
+
+			for (int i = 0; i < count; i++) {
+				nextToken = nextToken.getNextToken();
+
+				final DistortionStoreShimTransaction transaction = new DistortionStoreShimTransaction(
+						pending, identifiers, nextToken
+				);
+
+				this.pending.put(transaction, DUMMY_VALUE);
+
+				toreturn.add(transaction);
+			}
+
+			this.advancing = nextToken;
+		}
+
+		return toreturn;
+	}
+
+	@Override
+	public DistortionStoreShimTransaction newSnapshot() {
+		return new DistortionStoreShimTransaction(null, null, this.position, true);
+	}
+
+	/**
+	 * <p>The oldest token anyone may still read at: the oldest read point pinned by a started transaction (or snapshot)
+	 * that hasn't been closed. History at or after it has to stay readable.</p>
+	 */
+	public DT lowWatermark() {
+		// transactions pick their read point and pin it under the same lock, so none is picked but not pinned yet
+		synchronized (this.pinned) {
+			DT low = oldestPosition();
+
+			if (!this.pinned.isEmpty() && this.pinned.firstKey().compareTo(low) < 0) {
+				low = this.pinned.firstKey();
+			}
+
+			return low;
+		}
+	}
+
+	/**
+	 * <p>The read point a transaction starting now would pick. It only moves forward, so it's at or after the read
+	 * point of every transaction started so far.</p>
+	 */
+	public DT oldestPosition() {
+		// with lanes, position only moves in the replay, and every lane moves on from it on its own
+		if (this.lane_positions == null)
+			return this.position;
+
+		synchronized (this.lane_positions) {
+			DT low = this.lane_positions[0];
+
+			for (final DT lane_position : this.lane_positions) {
+				if (lane_position.compareTo(low) < 0) {
+					low = lane_position;
+				}
+			}
+
+			return low;
+		}
+	}
+
+	/**
+	 * <p>Under the lock on pinned</p>
+	 */
+	private void pin(final DT read_token) {
+		final @Nullable int[] count = this.pinned.get(read_token);
+
+		if (count == null) {
+			this.pinned.put(read_token, new int[]{1});
+		} else {
+			count[0]++;
+		}
+	}
+
+	/**
+	 * <p>Under the lock on pinned</p>
+	 */
+	private void unpin(final DT read_token) {
+		final int[] count = this.pinned.get(read_token);
+
+		if (--count[0] == 0) {
+			this.pinned.remove(read_token);
+		}
+	}
+
 	@Override
 	public ArrayList<DistortionStoreShimTransaction> getPendingTransactions() {
 		return new ArrayList<>(this.pending.keySet());
@@ -89,6 +353,11 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 
 	@Override
 	public synchronized void shutdown() {
+		if (this.checkpoint_thread != null) {
+			this.checkpoint_thread.interrupt();
+			checkpoint();
+		}
+
 		if (this.ephemeral != null) {
 			this.ephemeral.shutdown();
 		}
@@ -96,6 +365,10 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 		if (this.persistent != null) {
 			this.persistent.shutdown();
 		}
+
+		if (this.wal != null) {
+			this.wal.close();
+		}
 	}
 
 	@SuppressWarnings({
@@ -104,8 +377,9 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 	})
 	public class DistortionStoreShimTransaction implements DistortionTransaction<DistortionStoreShimTransaction, BA> {
 
-		public final Collection<Identifier> identifiers;
-		public final Collection<Collection<Identifier>> captured_identifiers;
+		// only set again when chain hands out the successor a barrier reserved
+		public Collection<Identifier> identifiers;
+		public Collection<Collection<Identifier>> captured_identifiers;
 
 		/*
 		 * read_token and the soft stuff are only set/read in one thread (Distortion) so there's no need for
@@ -128,29 +402,63 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 		@SuppressWarnings("FieldAccessedSynchronizedAndUnsynchronized")
 		@Nullable HashSet<ByteArray> persistent_soft_read_set;
 
-		@Nullable final HashSet<ByteArray> ephemeral_read_set;
+		// concurrent, committers look through them to doom us early
+		@Nullable final Set<ByteArray> ephemeral_read_set;
 		@Nullable final HashMap<ByteArray, BA> ephemeral_staging;
 
-		@Nullable final HashSet<ByteArray> persistent_read_set;
+		@Nullable final Set<ByteArray> persistent_read_set;
 		@Nullable final HashMap<ByteArray, BA> persistent_staging;
 
 		int commit_status = 0; // 0 - NOT SET, 1 - PRE-COMMIT, 2 - OK, 3 - FAIL, 4 - EMPTY-CLOSED
 		Future<StagedData<BA>> stage_future = null;
 
+		volatile boolean sealed = false;
+		volatile int group_status = -1; // set by a group leader that committed (or failed) us on our behalf
+		long wal_number = 0; // our record in the write-ahead log, set before we pass
+
+		// what the histories made of the staging, before we got in the commit order
+		@Nullable Map<? extends ByteArray, BA> ephemeral_prepared;
+		@Nullable Map<? extends ByteArray, BA> persistent_prepared;
+		boolean prepared = false;
+		volatile boolean doomed = false; // set by a committer that overwrote something we read
+		@Nullable DT pinned_token; // what we hold in pinned until we're closed, guarded by pinned
+
+		final boolean read_only; // a snapshot, never pending, never committed
+
+		// commit lanes only
+		@Nullable DT[] read_tokens; // position of every lane at start, read_token is the lowest of them
+		volatile long joined; // the lanes whose order we're in, only changed by the owner
+		long write_lanes;
+		volatile boolean settled = false; // applied and sealed, nothing else will come from us
+		volatile boolean late = false; // touched a lane a younger transaction had committed in, our retries go to the back
+		volatile boolean barrier = false; // committed without touching anything, waits on everything ahead
+		@Nullable DistortionStoreShimTransaction successor; // reserved by our barrier commit, handed out by chain
+
 		DistortionStoreShimTransaction(
 				final Collection<Collection<Identifier>> captured_identifiers,
 				final Collection<Identifier> identifiers, final DT transaction_token
+		) {
+			this(captured_identifiers, identifiers, transaction_token, false);
+		}
+
+		DistortionStoreShimTransaction(
+				final Collection<Collection<Identifier>> captured_identifiers,
+				final Collection<Identifier> identifiers, final DT transaction_token, final boolean read_only
 		) {
 			this.identifiers = identifiers;
 			this.captured_identifiers = captured_identifiers;
 			this.transaction_token = transaction_token;
 			this.chaining_token = null;
+			this.read_only = read_only;
+
+			final boolean ephemeral = DistortionStoreShim.this.ephemeral != null && !read_only;
+			final boolean persistent = DistortionStoreShim.this.persistent != null && !read_only;
 
-			this.ephemeral_read_set = DistortionStoreShim.this.ephemeral == null ? null : new HashSet<>();
-			this.ephemeral_staging = DistortionStoreShim.this.ephemeral == null ? null : new HashMap<>();
+			this.ephemeral_read_set = ephemeral ? ConcurrentHashMap.newKeySet() : null;
+			this.ephemeral_staging = ephemeral ? new HashMap<>() : null;
 
-			this.persistent_read_set = DistortionStoreShim.this.persistent == null ? null : new HashSet<>();
-			this.persistent_staging = DistortionStoreShim.this.persistent == null ? null : new HashMap<>();
+			this.persistent_read_set = persistent ? ConcurrentHashMap.newKeySet() : null;
+			this.persistent_staging = persistent ? new HashMap<>() : null;
 		}
 
 		@Override
@@ -189,11 +497,49 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 				this.persistent_soft_read_set = new HashSet<>();
 			}
 
+			final DT read_token;
+
+			// picked and pinned at once, so the history GC never goes past it, until we're closed
+			synchronized (DistortionStoreShim.this.pinned) {
+				if (DistortionStoreShim.this.lane_positions == null) {
+					read_token = DistortionStoreShim.this.position;
+				} else {
+					synchronized (DistortionStoreShim.this.lane_positions) {
+						this.read_tokens = DistortionStoreShim.this.lane_positions.clone();
+					}
+
+					DT lowest = this.read_tokens[0];
+					for (final DT lane_token : this.read_tokens) {
+						if (lane_token.compareTo(lowest) < 0) {
+							lowest = lane_token;
+						}
+					}
+
+					read_token = lowest;
+				}
+
+				if (this.pinned_token == null) {
+					DistortionStoreShim.this.pins.increment();
+				} else {
+					DistortionStoreShim.this.unpin(this.pinned_token);
+				}
+
+				DistortionStoreShim.this.pin(read_token);
+				this.pinned_token = read_token;
+			}
+
 			// the volatile push also pushes the above
 
-			SerializationUtil.unsafe.putObjectVolatile(
-					this, DistortionStoreShim.this.read_token_offset, DistortionStoreShim.this.position
-			);
+			SerializationUtil.unsafe.putObjectVolatile(this, DistortionStoreShim.this.read_token_offset, read_token);
+		}
+
+		/**
+		 * <p>Where reads of key are made, the lane's position at start when there are lanes</p>
+		 */
+		DT readToken(final ByteArray key) {
+			final @Nullable DT[] read_tokens = this.read_tokens;
+
+			return read_tokens == null ? this.read_token : read_tokens[DistortionStoreShim.this.laneOf(key)];
 		}
 
 		@Override
@@ -201,10 +547,20 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 			if (DistortionStoreShim.this.ephemeral == null)
 				return null;
 
+			if (this.read_only) {
+				return new SnapshotKV(DistortionStoreShim.this.ephemeral);
+			}
+
 			return new KV<BA>() {
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public @Nullable BA read(final ByteArray key) throws ExpiredReadException {
+					if (DistortionStoreShimTransaction.this.doomed) {
+						throw new DoomedReadException();
+					}
+
+					DistortionStoreShimTransaction.this.join(key);
+
 					final @Nullable BA staging_read = DistortionStoreShimTransaction.this.ephemeral_staging.get(key);
 
 					if (staging_read != null) {
@@ -217,24 +573,26 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 							  : DistortionStoreShimTransaction.this.ephemeral_soft_state.get(key);
 
 					if (soft_read != null) {
-						DistortionStoreShimTransaction.this.ephemeral_soft_read_set.add(key);
+						DistortionStoreShimTransaction.this.track(DistortionStoreShimTransaction.this.ephemeral_soft_read_set, key);
 						return soft_read;
 					}
 
-					DistortionStoreShimTransaction.this.ephemeral_read_set.add(key);
+					DistortionStoreShimTransaction.this.track(DistortionStoreShimTransaction.this.ephemeral_read_set, key);
 
-					return DistortionStoreShim.this.ephemeral.read(key, DistortionStoreShimTransaction.this.read_token);
+					return DistortionStoreShim.this.ephemeral.read(key, DistortionStoreShimTransaction.this.readToken(key));
 				}
 
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public void write(final ByteArray key, final BA value) {
+					DistortionStoreShimTransaction.this.join(key);
 					DistortionStoreShimTransaction.this.ephemeral_staging.put(key, value);
 				}
 
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public void delete(final ByteArray key) {
+					DistortionStoreShimTransaction.this.join(key);
 					DistortionStoreShimTransaction.this.ephemeral_staging.put(key, null);
 				}
 
@@ -247,6 +605,12 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 				public ByteArray getPrefix() {
 					return PREFIX;
 				}
+
+				@Override
+				@SuppressWarnings("ConstantConditions")
+				public void retain() {
+					DistortionStoreShimTransaction.this.retain(DistortionStoreShimTransaction.this.ephemeral_staging);
+				}
 			};
 		}
 
@@ -255,10 +619,20 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 			if (DistortionStoreShim.this.persistent == null)
 				return null;
 
+			if (this.read_only) {
+				return new SnapshotKV(DistortionStoreShim.this.persistent);
+			}
+
 			return new KV<BA>() {
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public @Nullable BA read(final ByteArray key) throws ExpiredReadException {
+					if (DistortionStoreShimTransaction.this.doomed) {
+						throw new DoomedReadException();
+					}
+
+					DistortionStoreShimTransaction.this.join(key);
+
 					final @Nullable BA staging_read = DistortionStoreShimTransaction.this.persistent_staging.get(key);
 
 					if (staging_read != null) {
@@ -271,24 +645,26 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 							  : DistortionStoreShimTransaction.this.persistent_soft_state.get(key);
 
 					if (soft_read != null) {
-						DistortionStoreShimTransaction.this.persistent_soft_read_set.add(key);
+						DistortionStoreShimTransaction.this.track(DistortionStoreShimTransaction.this.persistent_soft_read_set, key);
 						return soft_read;
 					}
 
-					DistortionStoreShimTransaction.this.persistent_read_set.add(key);
+					DistortionStoreShimTransaction.this.track(DistortionStoreShimTransaction.this.persistent_read_set, key);
 
-					return DistortionStoreShim.this.persistent.read(key, DistortionStoreShimTransaction.this.read_token);
+					return DistortionStoreShim.this.persistent.read(key, DistortionStoreShimTransaction.this.readToken(key));
 				}
 
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public void write(final ByteArray key, final BA value) {
+					DistortionStoreShimTransaction.this.join(key);
 					DistortionStoreShimTransaction.this.persistent_staging.put(key, value);
 				}
 
 				@Override
 				@SuppressWarnings("ConstantConditions")
 				public void delete(final ByteArray key) {
+					DistortionStoreShimTransaction.this.join(key);
 					DistortionStoreShimTransaction.this.persistent_staging.put(key, null);
 				}
 
@@ -301,9 +677,160 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 				public ByteArray getPrefix() {
 					return PREFIX;
 				}
+
+				@Override
+				@SuppressWarnings("ConstantConditions")
+				public void retain() {
+					DistortionStoreShimTransaction.this.retain(DistortionStoreShimTransaction.this.persistent_staging);
+				}
 			};
 		}
 
+		/**
+		 * <p>Get in the commit order of key's lane, the first time we touch it. If a younger transaction has already
+		 * committed there we can't anymore, so we're doomed.</p>
+		 */
+		void join(final ByteArray key) {
+			if (DistortionStoreShim.this.lane_orders == null) {
+				return;
+			}
+
+			final int lane = DistortionStoreShim.this.laneOf(key);
+
+			if ((this.joined & 1L << lane) != 0) {
+				return;
+			}
+
+			if (!enter(lane)) {
+				if (!this.late) {
+					this.late = true;
+					DistortionStoreShim.this.late_joins.increment();
+				}
+
+				this.doomed = true;
+				throw new DoomedReadException();
+			}
+		}
+
+		private boolean enter(final int lane) {
+			final Lane order = DistortionStoreShim.this.lane_orders[lane];
+
+			synchronized (order) {
+				if (order.committed.compareTo(this.transaction_token) > 0) {
+					return false;
+				}
+
+				order.order.put(this, DUMMY_VALUE);
+			}
+
+			this.joined |= 1L << lane;
+
+			return true;
+		}
+
+		/**
+		 * <p>Take the place of whoever we were chained off in its lanes, so nobody behind it gets in between. Where a
+		 * younger transaction already committed we just aren't in, and find out if we touch it.</p>
+		 */
+		void inherit(final long lanes) {
+			for (int lane = 0; lane < DistortionStoreShim.this.lanes; lane++) {
+				if ((lanes & 1L << lane) != 0) {
+					enter(lane);
+				}
+			}
+		}
+
+		/**
+		 * <p>Get out of the orders of the lanes, waking whoever is at the head of them now</p>
+		 */
+		private void leave(final long lanes) {
+			for (int lane = 0; lane < DistortionStoreShim.this.lanes; lane++) {
+				if ((lanes & 1L << lane) != 0) {
+					final Lane order = DistortionStoreShim.this.lane_orders[lane];
+
+					order.order.remove(this);
+					order.wakeHead();
+				}
+			}
+		}
+
+		/**
+		 * <p>Add a key we read to a read set, which outlives the scope of the key (see {@link ByteArrayFactory#retain}), so
+		 * it's copied out of it the first time</p>
+		 */
+		void track(final Set<ByteArray> read_set, final ByteArray key) {
+			if (!read_set.contains(key)) {
+				read_set.add(DistortionStoreShim.this.util.factory.retainKey(key));
+			}
+		}
+
+		/**
+		 * <p>Copy what's staged out of the scope of the context that staged it, as it closes. Only what's staged by then
+		 * is, so a key written over and over is copied once.</p>
+		 */
+		void retain(final HashMap<ByteArray, BA> staging) {
+			final ByteArrayFactory<BA> factory = DistortionStoreShim.this.util.factory;
+
+			ArrayList<ByteArray> moved = null; // keys that were copied, each followed by its copy
+
+			for (final Entry<ByteArray, BA> entry : staging.entrySet()) {
+				if (entry.getValue() != null) {
+					entry.setValue(factory.retain(entry.getValue()));
+				}
+
+				final ByteArray key = factory.retainKey(entry.getKey());
+
+				if (key != entry.getKey()) {
+					if (moved == null) moved = new ArrayList<>();
+					moved.add(entry.getKey());
+					moved.add(key);
+				}
+			}
+
+			if (moved != null) {
+				// a map keeps the key it has over an equal one, so they go out and back in
+				for (int i = 0; i < moved.size(); i += 2) {
+					staging.put(moved.get(i + 1), staging.remove(moved.get(i)));
+				}
+			}
+		}
+
+		/**
+		 * <p>Reads straight from the history at our read point, nothing to track since we never commit</p>
+		 */
+		class SnapshotKV implements KV<BA> {
+			final HistoryKV<?, BA, DT> history;
+
+			SnapshotKV(final HistoryKV<?, BA, DT> history) {
+				this.history = history;
+			}
+
+			@Override
+			public @Nullable BA read(final ByteArray key) throws ExpiredReadException {
+				return this.history.read(key, readToken(key));
+			}
+
+			@Override
+			public void write(final ByteArray key, final BA value) {
+				throw new UnsupportedOperationException("Read-only transaction");
+			}
+
+			@Override
+			public void delete(final ByteArray key) {
+				throw new UnsupportedOperationException("Read-only transaction");
+			}
+
+			@Override
+			public KV<BA> drill(final ByteArray subkey) {
+				return new SubKV<>(DistortionStoreShim.this.util, this, subkey);
+			}
+
+			@Override
+			public ByteArray getPrefix() {
+				return PREFIX;
+			}
+		}
+
 		@Override
 		public synchronized Future<StagedData<BA>> getStagedData() {
 			if (this.stage_future == null) {
@@ -335,164 +862,704 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 			return this.stage_future;
 		}
 
+		@Override
+		public void seal() {
+			this.sealed = true;
+		}
+
+		@Override
+		public boolean isDoomed() {
+			return this.doomed;
+		}
+
 		@Override
 		public int commit(final boolean block) {
 
+			if (this.read_only) {
+				throw new IllegalStateException("Read-only transactions don't commit");
+			}
+
+			// before a group leader can see we're in commit, it writes whatever we prepared
+			prepare();
+
 			DistortionStoreShim.this.pending.put(this, Thread.currentThread());
 
+			// the staging can't change anymore, hand it to anyone waiting on (or forwarding) it right away
+			synchronized (this) {
+				if (this.commit_status == 0) {
+					if (this.stage_future != null) {
+						((SettableFuture<StagedData<BA>>) this.stage_future).setValue(
+								new StagedData<>(this.ephemeral_staging, this.persistent_staging)
+						);
+					} else {
+						this.commit_status = 1;
+					}
+				}
+			}
+
+			if (DistortionStoreShim.this.lane_positions != null) {
+				final int status = commitLanes();
+
+				if (status == 0) {
+					awaitDurable();
+				}
+
+				return status;
+			}
+
 			int spin_count = 0;
 
 			while (true) {
+				// a group leader ahead of us may have already done the work
+				final int group_capture = this.group_status;
+
+				if (group_capture >= 0) {
+					if (group_capture == 0) {
+						awaitDurable();
+					}
+
+					return group_capture;
+				}
+
 				//noinspection ObjectEquality
 				if (this == DistortionStoreShim.this.pending.firstKey()) {
+					final ArrayList<DistortionStoreShimTransaction> group = new ArrayList<>();
+					final ArrayList<Thread> to_wake;
+
 					synchronized (DistortionStoreShim.this) {
 						synchronized (this) {
-							try {
-
-								final DT position_capture = DistortionStoreShim.this.position;
-
-								if (DistortionStoreShim.this.ephemeral != null) {
-
-									if (this.ephemeral_soft_read_set != null) {
-										for (final ByteArray read_index : this.ephemeral_soft_read_set) {
-											if (!Objects.equals(
-													this.ephemeral_soft_state.get(read_index),
-													DistortionStoreShim.this.ephemeral.read(read_index, position_capture)
-											)) {
-												if (this.commit_status == 0) {
-													if (this.stage_future != null) {
-														((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
-													} else {
-														this.commit_status = 3;
-													}
-												} else if (this.commit_status == 1) {
-													this.stage_future = NULL_FUTURE;
-												}
-												return 30; // value changed
-											}
-										}
-									}
-
-									//noinspection ConstantConditions
-									for (final ByteArray read_index : this.ephemeral_read_set) {
-										if (!Objects.equals(
-												DistortionStoreShim.this.ephemeral.read(read_index, this.read_token),
-												DistortionStoreShim.this.ephemeral.read(read_index, position_capture)
-										)) {
-											if (this.commit_status == 0) {
-												if (this.stage_future != null) {
-													((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
-												} else {
-													this.commit_status = 3;
-												}
-											} else if (this.commit_status == 1) {
-												this.stage_future = NULL_FUTURE;
-											}
-											return 30; // value changed
-										}
-									}
-								}
-
-								if (DistortionStoreShim.this.persistent != null) {
-
-									if (this.persistent_soft_read_set != null) {
-										for (final ByteArray read_index : this.persistent_soft_read_set) {
-											if (!Objects.equals(
-													this.persistent_soft_state.get(read_index),
-													DistortionStoreShim.this.persistent.read(read_index, position_capture)
-											)) {
-												if (this.commit_status == 0) {
-													if (this.stage_future != null) {
-														((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
-													} else {
-														this.commit_status = 3;
-													}
-												} else if (this.commit_status == 1) {
-													this.stage_future = NULL_FUTURE;
-												}
-												return 30; // value changed
-											}
-										}
-									}
-
-									for (final ByteArray read_index : this.persistent_read_set) {
-										if (!Objects.equals(
-												DistortionStoreShim.this.persistent.read(read_index, this.read_token),
-												DistortionStoreShim.this.persistent.read(read_index, position_capture)
-										)) {
-											if (this.commit_status == 0) {
-												if (this.stage_future != null) {
-													((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
-												} else {
-													this.commit_status = 3;
-												}
-											} else if (this.commit_status == 1) {
-												this.stage_future = NULL_FUTURE;
-											}
-											return 30; // value changed
-										}
-									}
-								}
-
-								// passed
-
-								if (DistortionStoreShim.this.ephemeral != null) {
-									DistortionStoreShim.this.ephemeral.write(this.ephemeral_staging, this.transaction_token);
-								}
-
-								if (DistortionStoreShim.this.persistent != null) {
-									DistortionStoreShim.this.persistent.write(this.persistent_staging, this.transaction_token);
-								}
-
-								DistortionStoreShim.this.position = this.transaction_token;
-
-								if (this.commit_status == 0) {
-									if (this.stage_future != null) {
-										((SettableFuture<StagedData<BA>>) this.stage_future).setValue(
-												new StagedData<>(this.ephemeral_staging, this.persistent_staging)
-										);
-									} else {
-										this.commit_status = 2;
-									}
-								}
-								return 0;
-
-							} catch (final ExpiredReadException ignored) {
-								if (this.commit_status == 0) {
-									if (this.stage_future != null) {
-										((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
-									} else {
-										this.commit_status = 3;
-									}
-								} else if (this.commit_status == 1) {
-									this.stage_future = NULL_FUTURE;
-								}
-								return 10; // means couldn't read store again to check if value changed
+							final int status = validate(DistortionStoreShim.this.position, null, null);
+
+							if (status != 0) {
+								return status;
+							}
+
+							if (!DistortionStoreShim.this.group_commit || !this.sealed) {
+								apply();
+								group.add(this);
+								to_wake = null;
+							} else {
+								to_wake = commitGroup(group);
 							}
 						}
 					}
-				} else {
-					if (++spin_count > 20) {
-						synchronized (this) {
-							if (this.commit_status == 0) {
-								if (this.stage_future != null) {
-									((SettableFuture<StagedData<BA>>) this.stage_future).setValue(
-											new StagedData<>(this.ephemeral_staging, this.persistent_staging)
-									);
-								} else {
-									this.commit_status = 1;
-								}
-							}
+
+					if (to_wake != null) {
+						for (final Thread thread : to_wake) {
+							LockSupport.unpark(thread);
 						}
-						LockSupport.park();
 					}
+
+					// outside the monitors, it's only a hint and the readers still get validated
+					for (final DistortionStoreShimTransaction member : group) {
+						member.doomReaders();
+					}
+
+					awaitDurable();
+
+					return 0;
+				} else {
+					if (++spin_count > 20) {
+						LockSupport.park();
+					}
+				}
+			}
+		}
+
+		/**
+		 * <p>Check every read against the state at position (overlaid with the writes of the group ahead of us, if any)
+		 * and fail the staged data if one changed</p>
+		 *
+		 * @return 0 if valid, 30 if a value changed, 10 if the history needed to tell is gone
+		 */
+		int validate(
+				final DT position, final @Nullable Map<ByteArray, BA> ephemeral_overlay,
+				final @Nullable Map<ByteArray, BA> persistent_overlay
+		) {
+			try {
+				if (DistortionStoreShim.this.ephemeral != null) {
+
+					if (this.ephemeral_soft_read_set != null) {
+						for (final ByteArray read_index : this.ephemeral_soft_read_set) {
+							if (!Objects.equals(
+									this.ephemeral_soft_state.get(read_index),
+									current(DistortionStoreShim.this.ephemeral, ephemeral_overlay, read_index, position)
+							)) {
+								fail();
+								return 30; // value changed
+							}
+						}
+					}
+
+					//noinspection ConstantConditions
+					for (final ByteArray read_index : this.ephemeral_read_set) {
+						if (!DistortionStoreShim.this.ephemeral_validator.unchanged(
+								read_index, readToken(read_index), position, ephemeral_overlay
+						)) {
+							fail();
+							return 30; // value changed
+						}
+					}
+				}
+
+				if (DistortionStoreShim.this.persistent != null) {
+
+					if (this.persistent_soft_read_set != null) {
+						for (final ByteArray read_index : this.persistent_soft_read_set) {
+							if (!Objects.equals(
+									this.persistent_soft_state.get(read_index),
+									current(DistortionStoreShim.this.persistent, persistent_overlay, read_index, position)
+							)) {
+								fail();
+								return 30; // value changed
+							}
+						}
+					}
+
+					//noinspection ConstantConditions
+					for (final ByteArray read_index : this.persistent_read_set) {
+						if (!DistortionStoreShim.this.persistent_validator.unchanged(
+								read_index, readToken(read_index), position, persistent_overlay
+						)) {
+							fail();
+							return 30; // value changed
+						}
+					}
+				}
+
+				return 0;
+
+			} catch (final ExpiredReadException ignored) {
+				fail();
+				return 10; // means couldn't read store again to check if value changed
+			}
+		}
+
+		private void fail() {
+			if (this.commit_status == 0) {
+				if (this.stage_future != null) {
+					((SettableFuture<StagedData<BA>>) this.stage_future).setValue(null);
+				} else {
+					this.commit_status = 3;
+				}
+			} else if (this.commit_status == 1) {
+				this.stage_future = NULL_FUTURE;
+			}
+		}
+
+		private void awaitDurable() {
+			if (DistortionStoreShim.this.wal != null) {
+				DistortionStoreShim.this.wal.awaitDurable(this.wal_number);
+			}
+		}
+
+		/**
+		 * <p>Append our record to the write-ahead log once our writes are in the persistent history, still in the
+		 * commit's critical section. A write that throws leaves nothing in the log to replay or to hold its checkpoints
+		 * back. Without writes we don't append one, and the number we get is someone else's.</p>
+		 */
+		private void log() {
+			if (DistortionStoreShim.this.wal != null) {
+				this.wal_number = DistortionStoreShim.this.wal.append(this.persistent_staging);
+			}
+		}
+
+		/**
+		 * <p>Make room for our writes in both histories before anything of the commit is written, so running out fails
+		 * the commit as it was instead of halfway through. Throws with nothing held.</p>
+		 */
+		private void reserve() {
+			final @Nullable HistoryKV<?, BA, DT> ephemeral = DistortionStoreShim.this.ephemeral;
+			final @Nullable HistoryKV<?, BA, DT> persistent = DistortionStoreShim.this.persistent;
+
+			if (ephemeral != null) {
+				ephemeral.reserve(this.ephemeral_prepared);
+			}
+
+			if (persistent != null) {
+				try {
+					persistent.reserve(this.persistent_prepared);
+				} catch (final RuntimeException e) {
+					if (ephemeral != null) {
+						ephemeral.unreserve(this.ephemeral_prepared);
+					}
+
+					throw e;
+				}
+			}
+		}
+
+		/**
+		 * <p>Have the histories prepare our writes (see {@link HistoryKV#prepare}) while we're outside every monitor,
+		 * once, however many times we try to commit</p>
+		 */
+		private void prepare() {
+			if (this.prepared)
+				return;
+
+			if (DistortionStoreShim.this.ephemeral != null) {
+				this.ephemeral_prepared = DistortionStoreShim.this.ephemeral.prepare(this.ephemeral_staging);
+			}
+
+			if (DistortionStoreShim.this.persistent != null) {
+				this.persistent_prepared = DistortionStoreShim.this.persistent.prepare(this.persistent_staging);
+			}
+
+			this.prepared = true;
+		}
+
+		/**
+		 * <p>reserve for our own commit, which fails if it throws</p>
+		 */
+		private void reserveOrFail() {
+			try {
+				reserve();
+			} catch (final RuntimeException e) {
+				fail();
+				throw e;
+			}
+		}
+
+		private void apply() {
+			reserveOrFail();
+
+			if (DistortionStoreShim.this.ephemeral != null) {
+				DistortionStoreShim.this.ephemeral.write(this.ephemeral_prepared, this.transaction_token);
+			}
+
+			if (DistortionStoreShim.this.persistent != null) {
+				DistortionStoreShim.this.persistent.write(this.persistent_prepared, this.transaction_token);
+			}
+
+			log();
+
+			DistortionStoreShim.this.position = this.transaction_token;
+
+			passed();
+		}
+
+		private void passed() {
+			if (this.commit_status == 0) {
+				if (this.stage_future != null) {
+					((SettableFuture<StagedData<BA>>) this.stage_future).setValue(
+							new StagedData<>(this.ephemeral_staging, this.persistent_staging)
+					);
+				} else {
+					this.commit_status = 2;
+				}
+			}
+		}
+
+		/*
+		Group commit
+
+		We're the head, valid and sealed (nothing will be chained between us and whoever is behind us). Every transaction
+		right behind us that is already waiting in commit can be validated against our writes (the overlay) and committed
+		in the same pass, as long as the one before it was sealed and passed. The first failure ends the group, its retry
+		is chained right behind it. Everything is written to the history in one batch and the owners are woken after we
+		let go of the monitors.
+		 */
+
+		private ArrayList<Thread> commitGroup(final ArrayList<DistortionStoreShimTransaction> group) {
+			final ArrayList<Thread> to_wake = new ArrayList<>();
+
+			// told once their writes are in, they return as soon as they see it
+			final ArrayList<DistortionStoreShimTransaction> decided = new ArrayList<>();
+			final ArrayList<Integer> statuses = new ArrayList<>();
+
+			final HashMap<ByteArray, BA> ephemeral_overlay = new HashMap<>();
+			final HashMap<ByteArray, BA> persistent_overlay = new HashMap<>();
+
+			reserveOrFail();
+
+			group.add(this);
+			overlay(this, ephemeral_overlay, persistent_overlay);
+
+			for (final Entry<DistortionStoreShimTransaction, Object> entry
+					: DistortionStoreShim.this.pending.tailMap(this, false).entrySet()) {
+
+				final Object owner = entry.getValue();
+
+				// not in commit yet
+				if (!(owner instanceof Thread)) {
+					break;
+				}
+
+				final DistortionStoreShimTransaction member = entry.getKey();
+
+				final int status;
+				synchronized (member) {
+					status = member.validate(DistortionStoreShim.this.position, ephemeral_overlay, persistent_overlay);
+
+					if (status == 0) {
+						try {
+							member.reserve();
+						} catch (final RuntimeException ignored) {
+							// no room for it after the group, it commits on its own once it's the head and finds out
+							break;
+						}
+
+						member.passed();
+						group.add(member);
+						overlay(member, ephemeral_overlay, persistent_overlay);
+					}
+				}
+
+				decided.add(member);
+				statuses.add(status);
+				to_wake.add((Thread) owner);
+
+				if (status == 0) {
+					DistortionStoreShim.this.grouped_commits.increment();
+				}
+
+				if (status != 0 || !member.sealed) {
+					break;
+				}
+			}
+
+			final ArrayList<Map<? extends ByteArray, BA>> ephemeral_writes = new ArrayList<>(group.size());
+			final ArrayList<Map<? extends ByteArray, BA>> persistent_writes = new ArrayList<>(group.size());
+			final ArrayList<DT> tokens = new ArrayList<>(group.size());
+
+			for (final DistortionStoreShimTransaction member : group) {
+				ephemeral_writes.add(member.ephemeral_prepared);
+				persistent_writes.add(member.persistent_prepared);
+				tokens.add(member.transaction_token);
+			}
+
+			if (DistortionStoreShim.this.ephemeral != null) {
+				DistortionStoreShim.this.ephemeral.writeAll(ephemeral_writes, tokens);
+			}
+
+			if (DistortionStoreShim.this.persistent != null) {
+				DistortionStoreShim.this.persistent.writeAll(persistent_writes, tokens);
+			}
+
+			for (final DistortionStoreShimTransaction member : group) {
+				member.log();
+			}
+
+			DistortionStoreShim.this.position = tokens.get(tokens.size() - 1);
+
+			passed();
+
+			for (int i = 0; i < decided.size(); i++) {
+				decided.get(i).group_status = statuses.get(i);
+			}
+
+			return to_wake;
+		}
+
+		/*
+		Commit lanes
+
+		Keys are split into lanes, every lane has its own history, position and commit order. A transaction gets in the
+		order of a lane the first time it touches one of its keys, unless a younger transaction has already committed
+		there: then it's too late, it's doomed and its retry goes to the back. At commit we take the monitors of our
+		lanes, lowest first, and go once we're at the head of every one of them, so we only ever wait on older
+		transactions that touched a lane we did. Nobody older can get in a lane while we hold it, and once we've
+		committed in it nobody older ever will, so validation and the history writes need no global lock.
+
+		A sealed commit leaves its lanes right away, any other stays until it's closed, and whatever is chained off a
+		transaction takes its place in its lanes, so protected functions and retries keep theirs.
+
+		A transaction that touched nothing (a stall) is a barrier: it leaves the lanes it inherited, reserves a
+		successor at the back that holds every lane, and waits until everything ahead of that successor is settled or
+		closed, except other barriers and what's chained off itself. Chaining off the barrier hands out the successor,
+		which then runs with nothing left ahead of it and nothing able to commit past it.
+		 */
+
+		private long lanes(final @Nullable Set<ByteArray> keys) {
+			long mask = 0;
+
+			if (keys != null) {
+				for (final ByteArray key : keys) {
+					mask |= 1L << DistortionStoreShim.this.laneOf(key);
+				}
+			}
+
+			return mask;
+		}
+
+		private int commitLanes() {
+			if (this.late) {
+				fail();
+				return 30;
+			}
+
+			this.write_lanes = lanes(this.ephemeral_staging == null ? null : this.ephemeral_staging.keySet())
+					| lanes(this.persistent_staging == null ? null : this.persistent_staging.keySet());
+
+			if (this.write_lanes == 0 && untouched()) {
+				return commitBarrier();
+			}
+
+			final long joined = this.joined;
+			final Thread thread = Thread.currentThread();
+
+			for (int lane = 0; lane < DistortionStoreShim.this.lanes; lane++) {
+				if ((joined & 1L << lane) != 0) {
+					DistortionStoreShim.this.lane_orders[lane].order.put(this, thread);
+				}
+			}
+
+			int status;
+
+			while ((status = commitInLanes(0)) < 0) {
+				LockSupport.park(this);
+			}
+
+			if (status == 0) {
+				if (this.settled) {
+					leave(joined);
+					this.joined = 0;
+					wakeBarriers();
+				}
+
+				doomReaders();
+			}
+
+			return status;
+		}
+
+		private boolean untouched() {
+			return empty(this.ephemeral_read_set) && empty(this.ephemeral_soft_read_set)
+					&& empty(this.persistent_read_set) && empty(this.persistent_soft_read_set);
+		}
+
+		private boolean empty(final @Nullable Set<ByteArray> keys) {
+			return keys == null || keys.isEmpty();
+		}
+
+		/**
+		 * <p>Take the monitors of our lanes from this one up, then commit if we're at the head of all of them</p>
+		 *
+		 * @return The commit status, or -1 if someone older is still in one of them
+		 */
+		private int commitInLanes(final int from) {
+			final long joined = this.joined;
+
+			for (int lane = from; lane < DistortionStoreShim.this.lanes; lane++) {
+				if ((joined & 1L << lane) != 0) {
+					final Lane order = DistortionStoreShim.this.lane_orders[lane];
+
+					synchronized (order) {
+						//noinspection ObjectEquality
+						if (order.order.firstKey() != this) {
+							return -1;
+						}
+
+						return commitInLanes(lane + 1);
+					}
+				}
+			}
+
+			synchronized (this) {
+				// everyone older in our lanes is applied or closed, and nobody younger has written in them
+				final int status = validate(this.transaction_token, null, null);
+
+				if (status != 0) {
+					return status;
+				}
+
+				reserveOrFail();
+
+				if (DistortionStoreShim.this.ephemeral != null) {
+					DistortionStoreShim.this.ephemeral.write(this.ephemeral_prepared, this.transaction_token);
+				}
+
+				if (DistortionStoreShim.this.persistent != null) {
+					DistortionStoreShim.this.persistent.write(this.persistent_prepared, this.transaction_token);
+				}
+
+				log();
+
+				final long write_lanes = this.write_lanes;
+
+				synchronized (DistortionStoreShim.this.lane_positions) {
+					for (int lane = 0; lane < DistortionStoreShim.this.lanes; lane++) {
+						if ((write_lanes & 1L << lane) != 0) {
+							DistortionStoreShim.this.lane_positions[lane] = this.transaction_token;
+						}
+					}
+				}
+
+				// read lanes too, an older write to what we read would land behind us
+				for (int lane = 0; lane < DistortionStoreShim.this.lanes; lane++) {
+					if ((joined & 1L << lane) != 0) {
+						DistortionStoreShim.this.lane_orders[lane].committed = this.transaction_token;
+					}
+				}
+
+				//noinspection ObjectEquality
+				if (DistortionStoreShim.this.pending.firstKey() != this) {
+					DistortionStoreShim.this.bypassed_commits.increment();
+				}
+
+				passed();
+
+				this.settled = this.sealed;
+
+				return 0;
+			}
+		}
+
+		private int commitBarrier() {
+			this.barrier = true;
+
+			// we're not going to write anything, nobody has to wait on us
+			leave(this.joined);
+			this.joined = 0;
+
+			final DistortionStoreShimTransaction successor;
+
+			synchronized (DistortionStoreShim.this) {
+				successor = DistortionStoreShim.this.newTransaction(Collections.emptyList(), Collections.emptyList());
+
+				// nobody younger exists yet, so it gets in every lane
+				successor.inherit(-1L);
+			}
+
+			this.successor = successor;
+
+			final DT descendants = this.transaction_token.getNextToken();
+			final Thread thread = Thread.currentThread();
+
+			DistortionStoreShim.this.barriers.add(thread);
+
+			// another barrier may be waiting on us until it sees we're one
+			wakeBarriers();
+
+			try {
+				while (!clear(successor, descendants)) {
+					LockSupport.park(this);
+				}
+			} finally {
+				DistortionStoreShim.this.barriers.remove(thread);
+			}
+
+			synchronized (this) {
+				passed();
+				this.settled = this.sealed;
+			}
+
+			return 0;
+		}
+
+		/**
+		 * <p>Whether everything ahead of successor is settled, closed, a barrier, or chained off us (below descendants,
+		 * they may be waiting on our outcome)</p>
+		 */
+		private boolean clear(final DistortionStoreShimTransaction successor, final DT descendants) {
+			for (final DistortionStoreShimTransaction ahead : DistortionStoreShim.this.pending.headMap(successor, false).keySet()) {
+				//noinspection ObjectEquality
+				if (ahead == this || ahead.settled || ahead.barrier) {
+					continue;
+				}
+
+				if (ahead.compareTo(this) > 0 && ahead.transaction_token.compareTo(descendants) < 0) {
+					continue;
+				}
+
+				return false;
+			}
+
+			return true;
+		}
+
+		private void wakeBarriers() {
+			for (final Thread thread : DistortionStoreShim.this.barriers) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		/**
+		 * <p>Mark the started transactions behind us that read (from before our commit) something we've just written, so
+		 * they can give up without finishing their transform</p>
+		 */
+		private void doomReaders() {
+			for (final DistortionStoreShimTransaction reader : DistortionStoreShim.this.pending.tailMap(this, false).keySet()) {
+				if (reader.doomed || reader.read_token == null) {
+					continue;
+				}
+
+				if (
+						reader.readBefore(reader.ephemeral_read_set, this.ephemeral_staging, this.transaction_token)
+								|| reader.readBefore(reader.persistent_read_set, this.persistent_staging, this.transaction_token)
+				) {
+					reader.doomed = true;
+				}
+			}
+		}
+
+		/**
+		 * <p>Whether we read one of the written keys from before token</p>
+		 */
+		boolean readBefore(
+				final @Nullable Set<ByteArray> read_set, final @Nullable Map<ByteArray, ?> writes, final DT token
+		) {
+			if (read_set == null || writes == null || read_set.isEmpty()) {
+				return false;
+			}
+
+			for (final ByteArray key : writes.keySet()) {
+				if (read_set.contains(key) && readToken(key).compareTo(token) < 0) {
+					return true;
 				}
 			}
+
+			return false;
+		}
+
+		private void overlay(
+				final DistortionStoreShimTransaction member, final HashMap<ByteArray, BA> ephemeral_overlay,
+				final HashMap<ByteArray, BA> persistent_overlay
+		) {
+			if (member.ephemeral_staging != null) {
+				ephemeral_overlay.putAll(member.ephemeral_staging);
+			}
+
+			if (member.persistent_staging != null) {
+				persistent_overlay.putAll(member.persistent_staging);
+			}
 		}
 
 		@Override
 		public DistortionStoreShimTransaction chain(
 				final Collection<Collection<Identifier>> pending, final Collection<Identifier> identifiers
+		) {
+			if (this.read_only) {
+				throw new IllegalStateException("Read-only transactions can't be chained");
+			}
+
+			if (DistortionStoreShim.this.lane_orders != null) {
+				final @Nullable DistortionStoreShimTransaction successor = this.successor;
+
+				if (successor != null) {
+					this.successor = null;
+
+					successor.captured_identifiers = pending;
+					successor.identifiers = identifiers;
+
+					return successor;
+				}
+
+				// a younger transaction already committed in a lane we need, we can't put anything in between anymore
+				final DistortionStoreShimTransaction transaction = this.late
+						? DistortionStoreShim.this.newTransaction(pending, identifiers)
+						: chainBehind(pending, identifiers);
+
+				transaction.inherit(this.joined);
+
+				return transaction;
+			}
+
+			return chainBehind(pending, identifiers);
+		}
+
+		private DistortionStoreShimTransaction chainBehind(
+				final Collection<Collection<Identifier>> pending, final Collection<Identifier> identifiers
 		) {
 			// init chaining token if necessary
 			if (this.chaining_token == null) {
@@ -513,6 +1580,16 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 
 		@Override
 		public synchronized void close() {
+			synchronized (DistortionStoreShim.this.pinned) {
+				if (this.pinned_token != null) {
+					DistortionStoreShim.this.unpin(this.pinned_token);
+					this.pinned_token = null;
+				}
+			}
+
+			if (this.read_only)
+				return;
+
 			if (this.commit_status == 0) {
 				this.commit_status = 4;
 			}
@@ -526,6 +1603,19 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 
 			DistortionStoreShim.this.pending.remove(this);
 
+			if (DistortionStoreShim.this.lane_orders != null) {
+				leave(this.joined);
+				this.joined = 0;
+
+				if (this.successor != null) {
+					this.successor.close();
+					this.successor = null;
+				}
+
+				wakeBarriers();
+				return;
+			}
+
 			final Entry<DistortionStoreShimTransaction, Object> entry = DistortionStoreShim.this.pending.firstEntry();
 
 			if (entry != null && entry.getValue() != DUMMY_VALUE) {
@@ -535,6 +1625,262 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 
 	}
 
+	static <BA extends ByteArray<BA>, DT extends DrillingToken<DT>> @Nullable BA current(
+			final HistoryKV<?, BA, DT> kv, final @Nullable Map<ByteArray, BA> overlay, final ByteArray key, final DT position
+	) throws ExpiredReadException {
+		if (overlay != null && overlay.containsKey(key)) {
+			return overlay.get(key);
+		}
+
+		return kv.read(key, position);
+	}
+
+	/**
+	 * <p>Versions when the store has them, otherwise the values read at both tokens are compared</p>
+	 */
+	static <BA extends ByteArray<BA>, DT extends DrillingToken<DT>> ReadValidator<BA, DT> validatorFor(
+			final HistoryKV<?, BA, DT> kv
+	) {
+		if (kv.isVersioned()) {
+			return (key, read_token, position, overlay) -> {
+				// anything the group ahead of us wrote is newer than our read
+				if (overlay != null && overlay.containsKey(key)) {
+					return false;
+				}
+
+				final @Nullable DT last_writer = kv.lastWriter(key);
+
+				return last_writer == null || last_writer.compareTo(read_token) <= 0;
+			};
+		}
+
+		return (key, read_token, position, overlay) -> Objects.equals(
+				kv.read(key, read_token), current(kv, overlay, key, position)
+		);
+	}
+
+	/**
+	 * <p>The commit order of one lane: everyone that touched one of its keys and hasn't been settled or closed yet,
+	 * mapped to its owner's thread once it waits in commit</p>
+	 */
+	class Lane {
+		final ConcurrentSkipListMap<DistortionStoreShimTransaction, Object> order = new ConcurrentSkipListMap<>();
+		DT committed; // the youngest commit in the lane, guarded by this
+
+		Lane(final DT token) {
+			this.committed = token;
+		}
+
+		void wakeHead() {
+			final @Nullable Entry<DistortionStoreShimTransaction, Object> head = this.order.firstEntry();
+
+			if (head != null && head.getValue() instanceof Thread) {
+				LockSupport.unpark((Thread) head.getValue());
+			}
+		}
+	}
+
+	/**
+	 * <p>One history per lane, every key goes to the history of its lane</p>
+	 */
+	class LaneHistoryKV implements HistoryKV<BA, BA, DT> {
+		final HistoryKV<?, BA, DT>[] histories;
+
+		LaneHistoryKV(final Function<DistortionStoreShim, HistoryKV<?, BA, DT>> history_fn) {
+			this.histories = new HistoryKV[DistortionStoreShim.this.lanes];
+
+			for (int i = 0; i < this.histories.length; i++) {
+				this.histories[i] = history_fn.apply(DistortionStoreShim.this);
+			}
+		}
+
+		@Override
+		public @Nullable BA read(final ByteArray key, final DT token) throws ExpiredReadException {
+			return this.histories[laneOf(key)].read(key, token);
+		}
+
+		@Override
+		public void write(final Map<? extends ByteArray, BA> values, final DT token) {
+			if (values.isEmpty()) {
+				return;
+			}
+
+			@Nullable Map<? extends ByteArray, BA>[] split = PreparedWrites.preparedBy(this, values);
+
+			if (split == null) {
+				split = split(values);
+			}
+
+			for (int i = 0; i < split.length; i++) {
+				if (split[i] != null) {
+					this.histories[i].write(split[i], token);
+				}
+			}
+		}
+
+		/**
+		 * Split by lane, each lane's history prepares its own
+		 */
+		@Override
+		public Map<? extends ByteArray, BA> prepare(final Map<? extends ByteArray, BA> values) {
+			if (values.isEmpty()) {
+				return values;
+			}
+
+			final Map<? extends ByteArray, BA>[] split = split(values);
+
+			for (int i = 0; i < split.length; i++) {
+				if (split[i] != null) {
+					split[i] = this.histories[i].prepare(split[i]);
+				}
+			}
+
+			return new PreparedWrites<>(values, this, split);
+		}
+
+		@Override
+		public void reserve(final Map<? extends ByteArray, BA> values) {
+			final @Nullable Map<? extends ByteArray, BA>[] split = PreparedWrites.preparedBy(this, values);
+
+			if (split == null) {
+				return;
+			}
+
+			for (int i = 0; i < split.length; i++) {
+				if (split[i] == null)
+					continue;
+
+				try {
+					this.histories[i].reserve(split[i]);
+				} catch (final RuntimeException e) {
+					for (int j = 0; j < i; j++) {
+						if (split[j] != null) {
+							this.histories[j].unreserve(split[j]);
+						}
+					}
+
+					throw e;
+				}
+			}
+		}
+
+		@Override
+		public void unreserve(final Map<? extends ByteArray, BA> values) {
+			final @Nullable Map<? extends ByteArray, BA>[] split = PreparedWrites.preparedBy(this, values);
+
+			if (split == null) {
+				return;
+			}
+
+			for (int i = 0; i < split.length; i++) {
+				if (split[i] != null) {
+					this.histories[i].unreserve(split[i]);
+				}
+			}
+		}
+
+		private Map<? extends ByteArray, BA>[] split(final Map<? extends ByteArray, BA> values) {
+			final HashMap<ByteArray, BA>[] split = new HashMap[this.histories.length];
+
+			for (final Entry<? extends ByteArray, BA> entry : values.entrySet()) {
+				final int lane = laneOf(entry.getKey());
+
+				if (split[lane] == null) {
+					split[lane] = new HashMap<>();
+				}
+
+				split[lane].put(entry.getKey(), entry.getValue());
+			}
+
+			return split;
+		}
+
+		@Override
+		public boolean isVersioned() {
+			for (final HistoryKV<?, BA, DT> history : this.histories) {
+				if (!history.isVersioned()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public @Nullable DT lastWriter(final ByteArray key) {
+			return this.histories[laneOf(key)].lastWriter(key);
+		}
+
+		@Override
+		public boolean isDurable() {
+			for (final HistoryKV<?, BA, DT> history : this.histories) {
+				if (!history.isDurable()) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		@Override
+		public void sync() {
+			for (final HistoryKV<?, BA, DT> history : this.histories) {
+				history.sync();
+			}
+		}
+
+		@Override
+		public void shutdown() {
+			for (final HistoryKV<?, BA, DT> history : this.histories) {
+				history.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * <p>What a history that wraps others returns from {@link HistoryKV#prepare}: the commit's writes as they were, and
+	 * what the history made of them (already prepared by the histories it wraps), to hand down as it is</p>
+	 */
+	public static final class PreparedWrites<BA> extends AbstractMap<ByteArray, BA> {
+		final Map<? extends ByteArray, BA> values;
+		final Object history;
+		final Object prepared;
+
+		public PreparedWrites(final Map<? extends ByteArray, BA> values, final Object history, final Object prepared) {
+			this.values = values;
+			this.history = history;
+			this.prepared = prepared;
+		}
+
+		/**
+		 * @return What history made of values, if they came from its prepare
+		 */
+		public static <T> @Nullable T preparedBy(final Object history, final Map<?, ?> values) {
+			//noinspection ObjectEquality
+			return values instanceof PreparedWrites && ((PreparedWrites) values).history == history ?
+					(T) ((PreparedWrites) values).prepared : null;
+		}
+
+		@Override
+		public Set<Entry<ByteArray, BA>> entrySet() {
+			return (Set<Entry<ByteArray, BA>>) (Set) this.values.entrySet();
+		}
+
+		@Override
+		public int size() {
+			return this.values.size();
+		}
+	}
+
+	/**
+	 * <p>Checks at commit that a key read at read_token still holds at position (seen through the writes of the group
+	 * ahead, if any)</p>
+	 */
+	public interface ReadValidator<BA extends ByteArray<BA>, DT extends DrillingToken<DT>> {
+		boolean unchanged(ByteArray key, DT read_token, DT position, @Nullable Map<ByteArray, BA> overlay)
+				throws ExpiredReadException;
+	}
+
 	public static class SettableFuture<T> implements Future<T> {
 
 		public static final Object NOT_SET = new Object();
@@ -549,8 +1895,8 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 			throw new UnsupportedOperationException();
 		}
 
-		@Override public boolean isDone() {
-			throw new UnsupportedOperationException();
+		@Override public synchronized boolean isDone() {
+			return this.value != NOT_SET;
 		}
 
 		@Override
@@ -604,6 +1950,73 @@ public class DistortionStoreShim<BA extends ByteArray<BA>, DT extends DrillingTo
 
 		void write(Map<? extends ByteArray, BA> values, DT token);
 
+		/**
+		 * <p>Whether {@link #lastWriter} is supported. If not, the shim validates reads by comparing values instead.</p>
+		 */
+		default boolean isVersioned() {
+			return false;
+		}
+
+		/**
+		 * <p>The token of the newest write (deletes included) to key, or null if the key has no history</p>
+		 *
+		 * <p>Only called at commit, so nothing newer than the committed position can be in here. A read made at
+		 * read_token is still good if this isn't after read_token, which is one lookup and a token compare instead of two
+		 * reads and a value compare.</p>
+		 *
+		 * @param key The key
+		 * @return The token of the last write to key
+		 */
+		default @Nullable DT lastWriter(final ByteArray key) {
+			throw new UnsupportedOperationException();
+		}
+
+		/**
+		 * <p>Write the values of several transactions, in token order (used by group commit)</p>
+		 *
+		 * <p>The default writes them one at a time, override it to take your locks once for the whole batch</p>
+		 */
+		default void writeAll(final List<? extends Map<? extends ByteArray, BA>> values, final List<DT> tokens) {
+			for (int i = 0; i < tokens.size(); i++) {
+				write(values.get(i), tokens.get(i));
+			}
+		}
+
+		/**
+		 * <p>Called with a commit's writes by the committing thread before it gets to the commit's critical section, for
+		 * the work on them that doesn't have to be in there (encoding values, say). What it returns is what
+		 * {@link #reserve} and {@link #write} get instead, the commit's own maps are left as they are. The default
+		 * returns them.</p>
+		 */
+		default Map<? extends ByteArray, BA> prepare(final Map<? extends ByteArray, BA> values) {
+			return values;
+		}
+
+		/**
+		 * <p>Called at commit, with what {@link #prepare} returned, before anything of it is written anywhere, the log
+		 * and the other history included: make sure values fit, so writing them can't fail halfway through the commit.
+		 * Throws if they don't, holding nothing.</p>
+		 *
+		 * <p>The next writes here are of what was reserved (the same maps, in the same order), unless it's given back
+		 * with {@link #unreserve}. The default holds nothing, for histories a write can't run out of room in.</p>
+		 */
+		default void reserve(final Map<? extends ByteArray, BA> values) {}
+
+		default void unreserve(final Map<? extends ByteArray, BA> values) {}
+
+		/**
+		 * <p>Whether what's written survives a restart once {@link #sync} returns. A write-ahead log in front of a
+		 * durable history is cut back to what it hasn't synced.</p>
+		 */
+		default boolean isDurable() {
+			return false;
+		}
+
+		/**
+		 * <p>Force everything written so far to disk, for a durable history</p>
+		 */
+		default void sync() {}
+
 		void shutdown();
 	}
 
@@ -0,0 +1,413 @@
+package engineering.taikun.distortion.store.util;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/*
+ * General runthrough of how this class works
+ *
+ * A radix trie (path compressed, every edge a run of bytes) from whole keys to values. Keys that share a prefix share
+ * the nodes down to where they part, so a prefix is stored once however many keys it has, and a lookup is a walk down
+ * comparing bytes, there's no hash of the key to work out.
+ *
+ * A node's edges are front coded into one Edges, in the order of their first bytes (so there's at most 256):
+ *
+ *   labels:  every edge's label, one after the other
+ *   offsets: where each label starts, and one past the last
+ *   targets: a Node, or the value of a key that ends there and has nothing under it
+ *
+ * So most keys, the ones that aren't a prefix of another, cost their last few bytes, two array slots and the value,
+ * not a node of their own.
+ *
+ * Walks take the key's bytes once (ByteArray.toArray, which an ArrayWrapper hands over as they are) and compare whole
+ * labels against them eight bytes at a time.
+ *
+ * Removing a key takes its edge out (or its node's value), then tidies up: a node left with nothing goes from its
+ * parent, one left with a single edge and no value is joined into the edge to it, and one left with a value and
+ * nothing under it goes back to being that value on its parent's edge.
+ *
+ * Lookups don't lock. A node's Edges and value are volatile and only ever replaced as a whole, under the trie's lock,
+ * with everything they point to built before. Splitting an edge puts a new node in the parent's Edges rather than
+ * changing the old target, so a lookup that's already past the parent carries on as if the split hadn't happened.
+ * Tidying up after a remove is the same, the nodes taken out are never changed, just no longer pointed to.
+ */
+public final class KeyTrie<V> {
+
+	private final Node root = new Node();
+
+	private int size = 0;
+	private int nodes = 1;
+	private int edges = 0;
+	private long label_bytes = 0;
+
+	/**
+	 * @return The value of key, or null if it isn't in here
+	 */
+	@SuppressWarnings("unchecked")
+	public @Nullable V get(final ByteArray key) {
+		final byte[] bytes = key.toArray();
+		final int length = bytes.length;
+
+		Node node = this.root;
+		int index = 0;
+
+		while (index < length) {
+			final Edges edges = node.edges;
+			final int edge = edges.find(bytes[index]);
+
+			if (edge < 0)
+				return null;
+
+			final int start = edges.offsets[edge];
+			final int label_length = edges.offsets[edge + 1] - start;
+
+			// the first byte matched finding the edge
+			if (
+					index + label_length > length
+							|| ArrayWrapper.mismatch(edges.labels, start + 1, bytes, index + 1, label_length - 1) != -1
+			) {
+				return null;
+			}
+
+			index += label_length;
+
+			final Object target = edges.targets[edge];
+
+			if (!(target instanceof Node))
+				return index == length ? (V) target : null;
+
+			node = (Node) target;
+		}
+
+		return (V) node.value;
+	}
+
+	/**
+	 * @return The value of key, put in by fn if there wasn't one
+	 */
+	public V computeIfAbsent(final ByteArray key, final Function<ByteArray, V> fn) {
+		final @Nullable V value = get(key);
+
+		return value != null ? value : insert(key, fn);
+	}
+
+	@SuppressWarnings("unchecked")
+	private synchronized V insert(final ByteArray key, final Function<ByteArray, V> fn) {
+		final byte[] bytes = key.toArray();
+		final int length = bytes.length;
+
+		Node node = this.root;
+		int index = 0;
+
+		while (index < length) {
+			final Edges edges = node.edges;
+			final int edge = edges.find(bytes[index]);
+
+			if (edge < 0) {
+				// an edge for the rest of the key
+				final byte[] rest = Arrays.copyOfRange(bytes, index, length);
+
+				final V value = fn.apply(key);
+
+				node.edges = edges.with(edges.insertionPoint(rest[0]), false, rest, value);
+
+				this.size++;
+				this.edges++;
+				this.label_bytes += rest.length;
+
+				return value;
+			}
+
+			final byte[] label = edges.label(edge);
+			final Object target = edges.targets[edge];
+
+			final int compared = Math.min(label.length, length - index);
+			final int mismatch = ArrayWrapper.mismatch(label, 0, bytes, index, compared);
+			final int common = mismatch == -1 ? compared : mismatch;
+
+			final Node next;
+
+			if (common < label.length) {
+				// the key parts from the edge (or ends) partway along it, split it there
+				next = new Node();
+				next.edges = Edges.NONE.with(0, false, Arrays.copyOfRange(label, common, label.length), target);
+
+				node.edges = edges.with(edge, true, Arrays.copyOf(label, common), next);
+
+				this.nodes++;
+				this.edges++;
+
+			} else if (target instanceof Node) {
+				next = (Node) target;
+
+			} else if (index + common == length) {
+				return (V) target;
+
+			} else {
+				// the key goes on past one that had nothing under it
+				next = new Node();
+				next.value = target;
+
+				node.edges = edges.with(edge, true, label, next);
+
+				this.nodes++;
+			}
+
+			index += common;
+			node = next;
+		}
+
+		if (node.value == null) {
+			node.value = fn.apply(key);
+			this.size++;
+		}
+
+		return (V) node.value;
+	}
+
+	/**
+	 * <p>Takes key out if test passes on its value. The test runs under the trie's lock, so nothing else is put in or
+	 * taken out meanwhile.</p>
+	 *
+	 * @return Whether it was taken out
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized boolean remove(final ByteArray key, final Predicate<V> test) {
+		final byte[] bytes = key.toArray();
+		final int length = bytes.length;
+
+		// the nodes walked through and the edge taken from each, every edge has a byte at least
+		final Node[] path = new Node[length + 1];
+		final int[] taken = new int[length + 1];
+		int depth = 0;
+
+		Node node = this.root;
+		int index = 0;
+
+		while (index < length) {
+			final Edges edges = node.edges;
+			final int edge = edges.find(bytes[index]);
+
+			if (edge < 0)
+				return false;
+
+			final int start = edges.offsets[edge];
+			final int label_length = edges.offsets[edge + 1] - start;
+
+			if (index + label_length > length || ArrayWrapper.mismatch(edges.labels, start, bytes, index, label_length) != -1)
+				return false;
+
+			index += label_length;
+
+			final Object target = edges.targets[edge];
+
+			if (!(target instanceof Node)) {
+				if (index != length || !test.test((V) target))
+					return false;
+
+				// a key with nothing under it, its edge goes
+				node.edges = edges.without(edge);
+
+				this.size--;
+				this.edges--;
+				this.label_bytes -= label_length;
+
+				tidy(path, taken, depth, node);
+				return true;
+			}
+
+			path[depth] = node;
+			taken[depth] = edge;
+			depth++;
+
+			node = (Node) target;
+		}
+
+		if (node.value == null || !test.test((V) node.value))
+			return false;
+
+		node.value = null;
+		this.size--;
+
+		tidy(path, taken, depth, node);
+		return true;
+	}
+
+	/**
+	 * Tidies up node, which something was just taken out of, and the ones above it it leaves with nothing
+	 */
+	private void tidy(final Node[] path, final int[] taken, int depth, Node node) {
+		while (depth > 0) {
+			final Node parent = path[depth - 1];
+			final int edge = taken[depth - 1];
+			final Edges edges = parent.edges;
+			final Edges under = node.edges;
+
+			if (node.value != null) {
+				if (under.targets.length == 0) {
+					// a key with nothing under it anymore
+					parent.edges = edges.with(edge, true, edges.label(edge), node.value);
+					this.nodes--;
+				}
+				return;
+			}
+
+			if (under.targets.length == 1) {
+				// no fork here anymore
+				final byte[] label = edges.label(edge);
+				final byte[] rest = under.label(0);
+
+				final byte[] joined = Arrays.copyOf(label, label.length + rest.length);
+				System.arraycopy(rest, 0, joined, label.length, rest.length);
+
+				parent.edges = edges.with(edge, true, joined, under.targets[0]);
+				this.nodes--;
+				this.edges--;
+				return;
+			}
+
+			if (under.targets.length > 1)
+				return;
+
+			parent.edges = edges.without(edge);
+			this.nodes--;
+			this.edges--;
+			this.label_bytes -= edges.offsets[edge + 1] - edges.offsets[edge];
+
+			node = parent;
+			depth--;
+		}
+	}
+
+	/**
+	 * @return How many keys are in here
+	 */
+	public synchronized int size() {
+		return this.size;
+	}
+
+	/**
+	 * @return Roughly how much heap this takes: the labels, an offset and a target slot for every edge, and a node, its
+	 * Edges and their three arrays' headers for every node. Values aren't counted.
+	 */
+	public synchronized long bytes() {
+		return this.label_bytes + this.edges * 8L + this.nodes * (24L + 24 + 3 * 16);
+	}
+
+	static final class Node {
+		volatile @Nullable Object value = null; // of the key ending here
+		volatile Edges edges = Edges.NONE;
+	}
+
+	static final class Edges {
+		static final Edges NONE = new Edges(new byte[0], new int[]{ 0 }, new Object[0]);
+
+		final byte[] labels;
+		final int[] offsets;
+		final Object[] targets;
+
+		Edges(final byte[] labels, final int[] offsets, final Object[] targets) {
+			this.labels = labels;
+			this.offsets = offsets;
+			this.targets = targets;
+		}
+
+		/**
+		 * @return The edge starting with first, or -1
+		 */
+		int find(final byte first) {
+			final int point = insertionPoint(first);
+
+			return point < this.targets.length && this.labels[this.offsets[point]] == first ? point : -1;
+		}
+
+		/**
+		 * @return The first edge whose label starts with first or after it
+		 */
+		int insertionPoint(final byte first) {
+			int low = 0;
+			int high = this.targets.length;
+
+			while (low < high) {
+				final int mid = low + high >>> 1;
+
+				if (this.labels[this.offsets[mid]] < first) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+
+			return low;
+		}
+
+		byte[] label(final int edge) {
+			return Arrays.copyOfRange(this.labels, this.offsets[edge], this.offsets[edge + 1]);
+		}
+
+		/**
+		 * @return A copy without edge
+		 */
+		Edges without(final int edge) {
+			final int count = this.targets.length;
+
+			if (count == 1)
+				return NONE;
+
+			final int start = this.offsets[edge];
+			final int removed = this.offsets[edge + 1] - start;
+
+			final byte[] labels = new byte[this.offsets[count] - removed];
+			System.arraycopy(this.labels, 0, labels, 0, start);
+			System.arraycopy(this.labels, start + removed, labels, start, labels.length - start);
+
+			final int[] offsets = new int[count];
+			System.arraycopy(this.offsets, 0, offsets, 0, edge);
+			for (int i = edge; i < count; i++) {
+				offsets[i] = this.offsets[i + 1] - removed;
+			}
+
+			final Object[] targets = new Object[count - 1];
+			System.arraycopy(this.targets, 0, targets, 0, edge);
+			System.arraycopy(this.targets, edge + 1, targets, edge, count - edge - 1);
+
+			return new Edges(labels, offsets, targets);
+		}
+
+		/**
+		 * @return A copy with an edge put in at edge, or in place of it
+		 */
+		Edges with(final int edge, final boolean replace, final byte[] label, final Object target) {
+			final int count = this.targets.length;
+			final int after = replace ? edge + 1 : edge; // the first edge kept after the new one
+
+			final int head = this.offsets[edge];
+			final int tail = this.offsets[count] - this.offsets[after];
+
+			final byte[] labels = new byte[head + label.length + tail];
+			System.arraycopy(this.labels, 0, labels, 0, head);
+			System.arraycopy(label, 0, labels, head, label.length);
+			System.arraycopy(this.labels, this.offsets[after], labels, head + label.length, tail);
+
+			final int shift = head + label.length - this.offsets[after];
+
+			final int[] offsets = new int[count + (replace ? 0 : 1) + 1];
+			System.arraycopy(this.offsets, 0, offsets, 0, edge + 1);
+			for (int i = after; i <= count; i++) {
+				offsets[i + edge + 1 - after] = this.offsets[i] + shift;
+			}
+
+			final Object[] targets = new Object[offsets.length - 1];
+			System.arraycopy(this.targets, 0, targets, 0, edge);
+			targets[edge] = target;
+			System.arraycopy(this.targets, after, targets, edge + 1, count - after);
+
+			return new Edges(labels, offsets, targets);
+		}
+	}
+}
@@ -48,4 +48,9 @@ public class SubKV<T extends ByteArray<T>> implements KV<T> {
 	public ByteArray getPrefix() {
 		return this.prefix;
 	}
+
+	@Override
+	public void retain() {
+		this.source.retain();
+	}
 }
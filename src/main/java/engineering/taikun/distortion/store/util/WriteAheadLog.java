@@ -0,0 +1,503 @@
+package engineering.taikun.distortion.store.util;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.api.ByteArrayFactory;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/*
+ * General runthrough of how this class works
+ *
+ * Every commit that wrote persistent data appends one record to the current segment file, in commit order (the shim
+ * appends from inside its commit critical sections). Records are numbered, a commit then waits for its number to be
+ * durable outside of any monitor.
+ *
+ *   record: int crc | int length | long number | int count | count * (int key length | int value length | key | value)
+ *
+ * The crc covers everything after it, length is what follows the length. A value length of -1 is a delete.
+ *
+ * Syncing is grouped: whoever finds its record not durable yet takes the sync lock and forces everything appended so
+ * far, the commits that queued up behind it find their records covered when they get the lock. With the INTERVAL
+ * policy a thread does that every interval and commits don't wait, with OS nobody does (the OS writes back when it
+ * likes, anything still in the page cache is lost if the machine goes down).
+ *
+ * Replay reads the segments in order and stops at the first record that doesn't check out, which is cut off, so
+ * appending carries on from the last good one.
+ *
+ * In front of a persistent history that keeps its writes itself (see HistoryKV.isDurable) the log only has to cover
+ * what that hasn't synced yet. The shim appends a commit's record once its writes are in the history (so a write that
+ * throws leaves nothing to replay), syncs the history, then checkpoints up to the last record appended before that
+ * sync. A checkpoint starts a new segment if
+ * the current one is all covered, writes the number to wal-checkpoint (a new file renamed over the old one) and
+ * deletes the segments it covers. Replay skips the records up to it, which leaves the records of a checkpoint that
+ * went down between the history's sync and the rename to be applied a second time, with the same values.
+ *
+ * Tokens are generic, so records carry their number instead. On replay the shim gives every record the next token,
+ * just like the commits got.
+ */
+public class WriteAheadLog<BA extends ByteArray<BA>> {
+
+	public enum SyncPolicy {
+		/** A commit returns once its record is on disk, concurrent commits share the fsync */
+		EVERY_COMMIT,
+		/** Records are forced every interval, a crash loses at most that much */
+		INTERVAL,
+		/** Never forced, the OS writes them back whenever it likes */
+		OS
+	}
+
+	static final int RECORD_HEADER = 20;
+
+	public final File directory;
+	public final SyncPolicy policy;
+	public final long interval;
+	public final long segment_size;
+
+	public final LongAdder syncs = new LongAdder();
+	public final LongAdder synced_records = new LongAdder();
+	public final LongAdder dropped_segments = new LongAdder(); // deleted by checkpoints
+
+	private final Object sync_lock = new Object();
+
+	// guarded by this
+	private @Nullable FileChannel channel = null;
+	private int segment = 0;
+	private long appended = 0; // number of the last record appended
+	private long checkpointed = 0; // number of the last record no longer needed
+	private final TreeMap<Integer, Long> finished = new TreeMap<>(); // segments before the current one, to their last record
+	private long rolls = 0;
+	private boolean replayed = false;
+	private boolean closed = false;
+
+	private volatile long durable = 0; // number of the last record known to be on disk
+
+	private final @Nullable Thread sync_thread;
+
+	public WriteAheadLog(final File directory, final SyncPolicy policy) {
+		this(directory, policy, 10, 64L << 20);
+	}
+
+	/**
+	 * @param directory Where the segment files live, created if need be
+	 * @param policy When appended records are forced to disk
+	 * @param interval For the INTERVAL policy, in ms
+	 * @param segment_size A new segment is started once the current one is bigger than this
+	 */
+	public WriteAheadLog(final File directory, final SyncPolicy policy, final long interval, final long segment_size) {
+		this.directory = directory;
+		this.policy = policy;
+		this.interval = Math.max(1, interval);
+		this.segment_size = segment_size;
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new UncheckedIOException(new IOException("Can't create " + directory));
+
+		if (policy == SyncPolicy.INTERVAL) {
+			this.sync_thread = new Thread(() -> {
+				while (true) {
+					try {
+						Thread.sleep(this.interval);
+					} catch (final InterruptedException ignored) {
+						return;
+					}
+
+					sync(Long.MAX_VALUE);
+				}
+			}, "WriteAheadLog sync thread");
+			this.sync_thread.setDaemon(true);
+			this.sync_thread.start();
+		} else {
+			this.sync_thread = null;
+		}
+	}
+
+	/**
+	 * <p>Feed every record logged since the last checkpoint, oldest first, to consumer. Has to be called (once) before
+	 * anything is appended.</p>
+	 *
+	 * @param factory Allocates the keys and values
+	 * @param consumer Takes the writes of one commit, deletes are null values
+	 * @return The number of records replayed
+	 */
+	public synchronized long replay(final ByteArrayFactory<BA> factory, final Consumer<Map<ByteArray, BA>> consumer) {
+		if (this.replayed)
+			throw new IllegalStateException("Already replayed");
+
+		this.replayed = true;
+
+		final CRC32 crc = new CRC32();
+
+		try {
+			final File checkpoint = checkpointFile();
+
+			if (checkpoint.exists()) {
+				this.checkpointed = ByteBuffer.wrap(Files.readAllBytes(checkpoint.toPath())).getLong();
+				this.appended = this.checkpointed;
+			}
+
+			for (int segment = firstSegment(); ; segment++) {
+				final File file = segmentFile(segment);
+
+				if (!file.exists()) {
+					// start a new one after the last
+					this.segment = Math.max(firstSegment(), segment - 1);
+					this.finished.remove(this.segment);
+					break;
+				}
+
+				final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+
+				int good = 0;
+
+				while (data.limit() - good >= 8) {
+					final int checksum = data.getInt(good);
+					final int length = data.getInt(good + 4);
+
+					if (length < RECORD_HEADER - 8 || length > data.limit() - good - 8)
+						break;
+
+					crc.reset();
+					crc.update(data.array(), good + 4, length + 4);
+
+					if ((int) crc.getValue() != checksum)
+						break;
+
+					data.position(good + 8);
+
+					final long number = data.getLong();
+					final int count = data.getInt();
+
+					final HashMap<ByteArray, BA> writes = new HashMap<>(Math.max(4, count * 2));
+
+					for (int i = 0; i < count; i++) {
+						final int key_length = data.getInt();
+						final int value_length = data.getInt();
+
+						final BA key = factory.allocate(key_length);
+						for (int b = 0; b < key_length; b++) {
+							key.write(b, data.get());
+						}
+
+						BA value = null;
+
+						if (value_length >= 0) {
+							value = factory.allocate(value_length);
+							for (int b = 0; b < value_length; b++) {
+								value.write(b, data.get());
+							}
+						}
+
+						writes.put(key, value);
+					}
+
+					if (number > this.checkpointed) {
+						consumer.accept(writes);
+					}
+
+					this.appended = number;
+					good += 8 + length;
+				}
+
+				if (good < data.limit()) {
+					// torn, or what follows it is, everything from here on goes
+					try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+						channel.truncate(good);
+						channel.force(true);
+					}
+
+					for (int later = segment + 1; segmentFile(later).exists(); later++) {
+						Files.delete(segmentFile(later).toPath());
+					}
+
+					this.segment = segment;
+					break;
+				}
+
+				this.finished.put(segment, this.appended);
+			}
+
+			this.durable = this.appended;
+
+			this.channel = FileChannel.open(
+					segmentFile(this.segment).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+			);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return this.appended;
+	}
+
+	/**
+	 * <p>Log the writes of a commit, once they're in the history. Commits have to append in the order they're
+	 * applied.</p>
+	 *
+	 * @return The number to wait on with {@link #awaitDurable}. Commits without writes don't append anything, but still
+	 * get the number of the last record, since what they read may have come from it.
+	 */
+	public synchronized long append(final @Nullable Map<? extends ByteArray, ? extends ByteArray> writes) {
+		if (this.channel == null)
+			throw new IllegalStateException(this.closed ? "WriteAheadLog has been closed" : "Replay the log first");
+
+		if (writes == null || writes.isEmpty())
+			return this.appended;
+
+		int length = RECORD_HEADER - 8;
+
+		for (final Entry<? extends ByteArray, ? extends ByteArray> entry : writes.entrySet()) {
+			length += 8 + entry.getKey().length() + (entry.getValue() == null ? 0 : entry.getValue().length());
+		}
+
+		final ByteBuffer record = ByteBuffer.allocate(8 + length);
+
+		record.position(4);
+		record.putInt(length);
+		record.putLong(this.appended + 1);
+		record.putInt(writes.size());
+
+		for (final Entry<? extends ByteArray, ? extends ByteArray> entry : writes.entrySet()) {
+			final ByteArray key = entry.getKey();
+			final @Nullable ByteArray value = entry.getValue();
+
+			record.putInt(key.length());
+			record.putInt(value == null ? -1 : value.length());
+			record.put(key.toArray(), 0, key.length());
+
+			if (value != null) {
+				record.put(value.toArray(), 0, value.length());
+			}
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(record.array(), 4, length + 4);
+		record.putInt(0, (int) crc.getValue());
+
+		record.flip();
+
+		try {
+			while (record.hasRemaining()) {
+				this.channel.write(record);
+			}
+
+			this.appended++;
+
+			if (this.channel.position() >= this.segment_size) {
+				roll();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return this.appended;
+	}
+
+	/**
+	 * Closes the current segment and starts the next one
+	 */
+	private void roll() throws IOException {
+		assert Thread.holdsLock(this);
+
+		// whatever's in it has to be down before we let go of it
+		this.channel.force(false);
+		this.channel.close();
+
+		this.durable = this.appended;
+
+		this.finished.put(this.segment, this.appended);
+		this.segment++;
+		this.channel = FileChannel.open(
+				segmentFile(this.segment).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+		);
+
+		this.rolls++;
+		notifyAll();
+	}
+
+	/**
+	 * @return The number of the last record appended, its writes and those of every record before it are in the
+	 * persistent history
+	 */
+	public synchronized long appended() {
+		return this.appended;
+	}
+
+	/**
+	 * <p>Drop the records up to number, the persistent history has them on disk</p>
+	 */
+	public synchronized void checkpoint(final long number) {
+		if (this.channel == null || number <= this.checkpointed)
+			return;
+
+		try {
+			// so the current one can go as well
+			if (number >= this.appended && this.channel.position() > 0) {
+				roll();
+			}
+
+			final File file = new File(this.directory, "wal-checkpoint.new");
+
+			try (final FileChannel channel = FileChannel.open(
+					file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+			)) {
+				final ByteBuffer bytes = ByteBuffer.allocate(8);
+				bytes.putLong(0, number);
+
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+
+				channel.force(true);
+			}
+
+			Files.move(
+					file.toPath(), checkpointFile().toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+			);
+
+			this.checkpointed = number;
+
+			while (!this.finished.isEmpty() && this.finished.firstEntry().getValue() <= number) {
+				Files.delete(segmentFile(this.finished.pollFirstEntry().getKey()).toPath());
+				this.dropped_segments.increment();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * <p>Wait for a segment to be finished, the time to checkpoint</p>
+	 *
+	 * @param seen What this returned last time, 0 the first time
+	 * @return What to pass next time, or -1 once the log is closed
+	 */
+	public synchronized long awaitRoll(final long seen) throws InterruptedException {
+		while (this.rolls == seen && !this.closed) {
+			wait();
+		}
+
+		return this.closed ? -1 : this.rolls;
+	}
+
+	/**
+	 * <p>Wait until the record numbered number (and everything before it) is on disk, as far as the policy cares</p>
+	 */
+	public void awaitDurable(final long number) {
+		if (this.policy == SyncPolicy.EVERY_COMMIT && this.durable < number) {
+			sync(number);
+		}
+	}
+
+	/**
+	 * Force everything appended so far, unless number is already durable
+	 */
+	void sync(final long number) {
+		synchronized (this.sync_lock) {
+			// someone else's sync may have covered us while we waited for the lock
+			if (this.durable >= number)
+				return;
+
+			final FileChannel channel;
+			final long target;
+
+			synchronized (this) {
+				if (this.channel == null)
+					return;
+
+				channel = this.channel;
+				target = this.appended;
+			}
+
+			if (target <= this.durable)
+				return;
+
+			try {
+				channel.force(false);
+			} catch (final IOException e) {
+				// closed under us by a segment switch, which forced it first
+				if (channel.isOpen())
+					throw new UncheckedIOException(e);
+			}
+
+			this.syncs.increment();
+			this.synced_records.add(target - this.durable);
+
+			this.durable = Math.max(this.durable, target);
+		}
+	}
+
+	/**
+	 * Force what's left and close the current segment
+	 */
+	public void close() {
+		if (this.sync_thread != null) {
+			this.sync_thread.interrupt();
+		}
+
+		synchronized (this.sync_lock) {
+			synchronized (this) {
+				if (this.closed)
+					return;
+
+				this.closed = true;
+				notifyAll();
+
+				if (this.channel == null)
+					return;
+
+				try {
+					this.channel.force(false);
+					this.channel.close();
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+
+				this.channel = null;
+				this.durable = this.appended;
+			}
+		}
+	}
+
+	private File segmentFile(final int segment) {
+		return new File(this.directory, String.format("wal-%06d", segment));
+	}
+
+	private File checkpointFile() {
+		return new File(this.directory, "wal-checkpoint");
+	}
+
+	/**
+	 * The oldest segment left, checkpoints delete from the front
+	 */
+	private int firstSegment() {
+		final String[] names = this.directory.list();
+		int first = Integer.MAX_VALUE;
+
+		if (names != null) {
+			for (final String name : names) {
+				if (name.length() == 10 && name.startsWith("wal-") && name.substring(4).chars().allMatch(Character::isDigit)) {
+					first = Math.min(first, Integer.parseInt(name.substring(4)));
+				}
+			}
+		}
+
+		return first == Integer.MAX_VALUE ? 0 : first;
+	}
+}
@@ -289,7 +289,7 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 								final BA cursorvalue = DMap.this.kv.read(this.cursor);
 
 								final short nextlength
-										= DMap.this.util.new ShortUnion(cursorvalue.read(0), cursorvalue.read(1)).getShort();
+										= cursorvalue.getShort(0);
 
 								this.nextkey = cursorvalue.slice(4, 4 + nextlength);
 
@@ -339,11 +339,9 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 								final BA cursorvalue_capture = DMap.this.kv.read(keybytes);
 
 								final short nextlength
-										= DMap.this.util.new ShortUnion(
-										cursorvalue_capture.read(0), cursorvalue_capture.read(1)).getShort();
+										= cursorvalue_capture.getShort(0);
 								final short prevlength
-										= DMap.this.util.new ShortUnion(
-										cursorvalue_capture.read(2), cursorvalue_capture.read(3)).getShort();
+										= cursorvalue_capture.getShort(2);
 
 								final ByteArray valuebytes;
 								if (cursorvalue_capture.length() == (4 + nextlength + prevlength)) {
@@ -509,8 +507,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 			return null;
 		}
 
-		final short nextlength = this.util.new ShortUnion(headerfetch.read(0), headerfetch.read(1)).getShort();
-		final short prevlength = this.util.new ShortUnion(headerfetch.read(2), headerfetch.read(3)).getShort();
+		final short nextlength = headerfetch.getShort(0);
+		final short prevlength = headerfetch.getShort(2);
 
 		if (headerfetch.length() != (4 + nextlength + prevlength)) {
 			return (V) this.context.unpack(this.kv, headerfetch.slice(4 + nextlength + prevlength, headerfetch.length()));
@@ -541,8 +539,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 		if (headerbytes != null) {
 			// modify existing
 
-			final short nextlength = this.util.new ShortUnion(headerbytes.read(0), headerbytes.read(1)).getShort();
-			final short prevlength = this.util.new ShortUnion(headerbytes.read(2), headerbytes.read(3)).getShort();
+			final short nextlength = headerbytes.getShort(0);
+			final short prevlength = headerbytes.getShort(2);
 
 			final boolean fat = headerbytes.length() == (4 + nextlength + prevlength);
 			final V toreturn;
@@ -607,8 +605,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 			// sentinel stuff
 			final BA sentinel_valuebytes = this.kv.read(sentinel);
 
-			final short sentinel_nextlength = this.util.new ShortUnion(sentinel_valuebytes.read(0), sentinel_valuebytes.read(1)).getShort();
-			final short sentinel_prevlength = this.util.new ShortUnion(sentinel_valuebytes.read(2), sentinel_valuebytes.read(3)).getShort();
+			final short sentinel_nextlength = sentinel_valuebytes.getShort(0);
+			final short sentinel_prevlength = sentinel_valuebytes.getShort(2);
 
 			final ByteArray sentinel_previous = sentinel_valuebytes.slice(
 					4 + sentinel_nextlength, 4 + sentinel_nextlength + sentinel_prevlength
@@ -628,8 +626,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 			// last key stuff
 			final BA previous_headerbytes = this.kv.read(sentinel_previous);
 
-			final short previous_nextlength = this.util.new ShortUnion(previous_headerbytes.read(0), previous_headerbytes.read(1)).getShort();
-//			final short previous_prevlength = this.util.new ShortUnion(previous_headerbytes.read(2), previous_headerbytes.read(3)).getShort();
+			final short previous_nextlength = previous_headerbytes.getShort(0);
+//			final short previous_prevlength = previous_headerbytes.getShort(2);
 
 			// previous next pointer needs to point to new key
 			this.kv.write(
@@ -726,8 +724,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 
 		final BA headerbytes = this.kv.read(keybytes);
 
-		final short nextlength = this.util.new ShortUnion(headerbytes.read(0), headerbytes.read(1)).getShort();
-		final short prevlength = this.util.new ShortUnion(headerbytes.read(2), headerbytes.read(3)).getShort();
+		final short nextlength = headerbytes.getShort(0);
+		final short prevlength = headerbytes.getShort(2);
 
 		final ByteArray nextkey = headerbytes.slice(4, 4 + nextlength);
 		final ByteArray prevkey = headerbytes.slice(4 + nextlength, 4 + nextlength + prevlength);
@@ -736,8 +734,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 
 		final BA nextheader = this.kv.read(nextkey);
 
-		final short next_nextlength = this.util.new ShortUnion(nextheader.read(0), nextheader.read(1)).getShort();
-		final short next_prevlength = this.util.new ShortUnion(nextheader.read(2), nextheader.read(3)).getShort();
+		final short next_nextlength = nextheader.getShort(0);
+		final short next_prevlength = nextheader.getShort(2);
 
 		// next's previous pointer needs to point to prevkey
 		this.kv.write(
@@ -757,8 +755,8 @@ public class DMap<K, V, BA extends ByteArray<BA>> extends AbstractMap<K, V> impl
 
 		final BA prevheader = this.kv.read(prevkey);
 
-		final short prev_nextlength = this.util.new ShortUnion(prevheader.read(0), prevheader.read(1)).getShort();
-		final short prev_prevlength = this.util.new ShortUnion(prevheader.read(2), prevheader.read(3)).getShort();
+		final short prev_nextlength = prevheader.getShort(0);
+		final short prev_prevlength = prevheader.getShort(2);
 
 		// previous's next pointer needs to point to nextkey
 		this.kv.write(
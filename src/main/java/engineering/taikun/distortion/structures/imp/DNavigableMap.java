@@ -662,9 +662,7 @@ public class DNavigableMap<K, V, BA extends ByteArray<BA>>
 		final int[] toreturn = new int[array.length() / 4];
 
 		for (int i = 0; i < toreturn.length; i++) {
-			toreturn[i] = this.util.new IntUnion(
-					array.read(4 * i), array.read(1 + 4 * i), array.read(2 + 4 * i), array.read(3 + 4 * i)
-			).getInt();
+			toreturn[i] = array.getInt(4 * i);
 		}
 
 		return toreturn;
@@ -809,9 +807,7 @@ public class DNavigableMap<K, V, BA extends ByteArray<BA>>
 
 				this.pointers = new int[header.read(1)];
 
-				this.pointers[0] = DNavigableMap.this.util.new IntUnion(
-						header.read(2), header.read(3), header.read(4), header.read(5)
-				).getInt();
+				this.pointers[0] = header.getInt(2);
 
 				Arrays.fill(this.pointers, 1, this.pointers.length, -1);
 
@@ -0,0 +1,107 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The fixture most store tests share: ten accounts of 100 in the persistent or the ephemeral map, random transfers
+ * between them, and a total that has to stay at 1000
+ */
+final class Accounts {
+
+	static final int ACCOUNTS = 10;
+	static final int TOTAL = 1000;
+
+	private Accounts() {}
+
+	static void open(final Distortion distortion, final boolean persistent) throws InterruptedException, ExecutionException {
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent_map, final Map ephemeral_map) {
+				final Map map = persistent ? persistent_map : ephemeral_map;
+
+				for (int i = 0; i < ACCOUNTS; i++) {
+					map.put("account" + i, TOTAL / ACCOUNTS);
+				}
+			}
+		}).get();
+	}
+
+	/**
+	 * One from a random account to a random account (maybe the same one)
+	 */
+	static OptimisticFunction transfer(final boolean persistent) {
+		return new OptimisticFunction() {
+			@Override public void transform(final Map persistent_map, final Map ephemeral_map) {
+				final Map map = persistent ? persistent_map : ephemeral_map;
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+				final String from = "account" + random.nextInt(ACCOUNTS);
+				final String to = "account" + random.nextInt(ACCOUNTS);
+
+				map.put(from, (Integer) map.get(from) - 1);
+				map.put(to, (Integer) map.get(to) + 1);
+			}
+		};
+	}
+
+	/**
+	 * Submits them all, then waits for them all
+	 */
+	static void transfers(final Distortion distortion, final int count, final boolean persistent)
+			throws InterruptedException, ExecutionException {
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < count; i++) {
+			futures.add(distortion.transform(transfer(persistent)));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+	}
+
+	static int[] balances(final Distortion distortion, final boolean persistent)
+			throws InterruptedException, ExecutionException {
+
+		final int[] capture = new int[ACCOUNTS];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent_map, final Map ephemeral_map) {
+				final Map map = persistent ? persistent_map : ephemeral_map;
+
+				for (int i = 0; i < ACCOUNTS; i++) {
+					capture[i] = (Integer) map.get("account" + i);
+				}
+			}
+		}).get();
+
+		return capture;
+	}
+
+	/**
+	 * For reading the total from inside a function
+	 */
+	static int total(final Map map) {
+		int total = 0;
+		for (int i = 0; i < ACCOUNTS; i++) {
+			total += (Integer) map.get("account" + i);
+		}
+
+		return total;
+	}
+
+	static int total(final int[] balances) {
+		int total = 0;
+		for (final int balance : balances) {
+			total += balance;
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,100 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.Distortion.OverflowPolicy;
+import engineering.taikun.distortion.ai.imp.SimpleAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures submit to commit latency (the protected function runs right after the commit) in bursts
+ */
+public class AdmissionLatencyBenchmark {
+
+	static long[] latencies;
+	static final AtomicInteger latency_index = new AtomicInteger(0);
+
+	public static void main(final String[] args) throws ExecutionException, InterruptedException {
+
+		final int bursts = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		final int burst_size = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+		latencies = new long[bursts * burst_size];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(store, new SimpleAI(), util, 8, 1024, OverflowPolicy.BLOCK);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 1000; i++) {
+					ephemeral.put(i, 0);
+				}
+			}
+		}).get();
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < bursts; i++) {
+			Future<?> last = null;
+
+			for (int j = 0; j < burst_size; j++) {
+				last = distortion.transform(new TimedIncrement(System.nanoTime()));
+			}
+
+			last.get();
+
+			// idle between bursts, this is where a polling admission thread would go to sleep
+			Thread.sleep(ThreadLocalRandom.current().nextInt(5, 30));
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		distortion.shutdown();
+
+		final int count = latency_index.get();
+		final long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+
+		System.out.println("transforms: " + count);
+		System.out.println("elapsed ms: " + elapsed / 1_000_000);
+		System.out.println("p50 us: " + sorted[count / 2] / 1000);
+		System.out.println("p99 us: " + sorted[(int) (count * 0.99)] / 1000);
+		System.out.println("max us: " + sorted[count - 1] / 1000);
+		System.out.println(distortion.getStats());
+	}
+
+	static class TimedIncrement extends OptimisticFunction {
+		final long submitted;
+
+		TimedIncrement(final long submitted) {
+			this.submitted = submitted;
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			final int index = ThreadLocalRandom.current().nextInt(1000);
+
+			ephemeral.put(index, (Integer) ephemeral.get(index) + 1);
+
+			doProtected(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					latencies[latency_index.getAndIncrement()] = System.nanoTime() - TimedIncrement.this.submitted;
+				}
+			});
+		}
+	}
+}
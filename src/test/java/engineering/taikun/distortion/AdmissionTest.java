@@ -0,0 +1,260 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.Distortion.OverflowPolicy;
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class AdmissionTest {
+
+	static Distortion newDistortion(final int queue_capacity, final OverflowPolicy policy) {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		// parallelism of 2 admits a single base transform at a time
+		return new Distortion<>(store, new OptimisticAI(), util, 2, queue_capacity, policy);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Admission test");
+
+		reject();
+		callerRuns();
+		block();
+		batch();
+		completion();
+		shutdown();
+
+		System.out.println("passed");
+	}
+
+	static void reject() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(1, OverflowPolicy.REJECT);
+
+		final Future<?> running = distortion.transform(new Sleep(300));
+		final Future<?> queued = distortion.transform(new Sleep(0));
+
+		boolean rejected = false;
+		try {
+			distortion.transform(new Sleep(0));
+		} catch (final RejectedExecutionException ignored) {
+			rejected = true;
+		}
+
+		assert_(rejected);
+
+		running.get();
+		queued.get();
+
+		// room again
+		distortion.transform(new Sleep(0)).get();
+
+		distortion.shutdown();
+	}
+
+	static void callerRuns() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(1, OverflowPolicy.CALLER_RUNS);
+
+		final Future<?> running = distortion.transform(new Sleep(300));
+		final Future<?> queued = distortion.transform(new Sleep(0));
+
+		final Future<?> overflow = distortion.transform(new Sleep(0));
+
+		assert_(overflow.isDone());
+
+		running.get();
+		queued.get();
+
+		distortion.shutdown();
+	}
+
+	static void block() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(4, OverflowPolicy.BLOCK);
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("count", 0);
+			}
+		}).get();
+
+		for (int i = 0; i < 100; i++) {
+			futures.add(distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put("count", (Integer) ephemeral.get("count") + 1);
+				}
+			}));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				capture[0] = (Integer) ephemeral.get("count");
+			}
+		}).get();
+
+		assert_(capture[0] == 100);
+
+		distortion.shutdown();
+	}
+
+	static void batch() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(4, OverflowPolicy.BLOCK);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("count", 0);
+			}
+		}).get();
+
+		// the sleeper holds the only permit, so both batches wait in the queue
+		final Future<?> sleeper = distortion.transform(new Sleep(200));
+
+		final ArrayList<OptimisticFunction> functions = new ArrayList<>();
+
+		for (int i = 0; i < 50; i++) {
+			functions.add(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put("count", (Integer) ephemeral.get("count") + 1);
+				}
+			});
+		}
+
+		final Distortion.BatchFuture first = distortion.transformAll(functions);
+		final Distortion.BatchFuture second = distortion.transformAll(functions.subList(0, 25));
+
+		assert_(first.futures.size() == 50);
+		assert_(second.futures.size() == 25);
+
+		first.get();
+		second.get();
+		sleeper.get();
+
+		for (final Future<?> future : second.futures) {
+			assert_(future.isDone());
+		}
+
+		final int[] capture = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				capture[0] = (Integer) ephemeral.get("count");
+			}
+		}).get();
+
+		assert_(capture[0] == 75);
+
+		assert_(distortion.transformAll(new ArrayList<>()).isDone());
+
+		distortion.shutdown();
+	}
+
+	static void completion() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(4, OverflowPolicy.BLOCK);
+
+		final CompletableFuture<Thread> completed_on = distortion.transform(new Sleep(50))
+				.thenApply(v -> Thread.currentThread());
+
+		assert_(completed_on.get() instanceof Distortion.FJWT);
+
+		final CompletableFuture<?> failed = distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				throw new IllegalArgumentException("boom");
+			}
+		});
+
+		boolean threw = false;
+		try {
+			failed.get();
+		} catch (final ExecutionException e) {
+			threw = e.getCause() instanceof IllegalArgumentException;
+		}
+
+		assert_(threw);
+
+		distortion.shutdown();
+	}
+
+	/**
+	 * What's still queued at shutdown fails rather than hanging, and so does whoever was blocked on a full queue
+	 */
+	static void shutdown() throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(2, OverflowPolicy.BLOCK);
+
+		final Future<?> running = distortion.transform(new Sleep(300));
+		final Future<?> first = distortion.transform(new Sleep(0));
+		final Distortion.BatchFuture second = distortion.transformAll(Collections.singletonList(new Sleep(0)));
+
+		final CompletableFuture<Future<?>> blocked = new CompletableFuture<>();
+
+		final Thread submitter = new Thread(() -> {
+			try {
+				blocked.complete(distortion.transform(new Sleep(0)));
+			} catch (final Throwable t) {
+				blocked.completeExceptionally(t);
+			}
+		});
+
+		submitter.start();
+		Thread.sleep(50);
+
+		distortion.shutdown();
+		submitter.join(5000);
+
+		running.get();
+
+		for (final Future<?> future : new Future<?>[]{ first, second, second.futures.get(0), blocked.get() }) {
+			boolean failed = false;
+			try {
+				future.get(5, TimeUnit.SECONDS);
+			} catch (final ExecutionException e) {
+				failed = e.getCause() instanceof IllegalStateException;
+			} catch (final TimeoutException ignored) {}
+
+			assert_(failed);
+		}
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class Sleep extends OptimisticFunction {
+		final long millis;
+
+		Sleep(final long millis) {
+			this.millis = millis;
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			try {
+				Thread.sleep(this.millis);
+			} catch (final InterruptedException ignored) {}
+		}
+	}
+}
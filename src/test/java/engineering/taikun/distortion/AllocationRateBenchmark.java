@@ -0,0 +1,129 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArenaByteArrayFactory;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.serialization.imp.DirectByteArrayFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>Heap allocated per committed transaction, with heap ArrayWrappers against pooled DirectByteArrays and
+ * ArenaByteArrays as the BA of both the store and the SerializationUtil</p>
+ *
+ * <p>Every transaction moves one from an account to another and writes a blob of value bytes. Allocation is counted
+ * over every thread (so retries and the commit machinery count as well as the function), through
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes}.</p>
+ *
+ * Run it once per kind of array (the first argument, heap, direct or arena), for the same reason as
+ * {@link TokenBenchmark}.
+ */
+public class AllocationRateBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException, ExecutionException {
+
+		final String kind = args.length > 0 ? args[0] : "heap";
+		final int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+		final int value = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+		// warm up, then for real
+		for (int round = 0; round < 2; round++) {
+			final boolean print = round == 1;
+
+			if (kind.equals("direct")) {
+				run("DirectByteArray", new SerializationUtil<>(new DirectByteArrayFactory(), (short) 32), transactions,
+						value, print);
+			} else if (kind.equals("arena")) {
+				run("ArenaByteArray", new SerializationUtil<>(new ArenaByteArrayFactory(), (short) 32), transactions,
+						value, print);
+			} else {
+				run("ArrayWrapper", new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32), transactions, value,
+						print);
+			}
+		}
+	}
+
+	static <BA extends ByteArray<BA>> void run(
+			final String name, final SerializationUtil<BA> util, final int transactions, final int value,
+			final boolean print
+	) throws InterruptedException, ExecutionException {
+
+		final DistortionStoreShim<BA, StackToken> store = new DistortionStoreShim<>(
+				util, new StackToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new
+		);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 10; i++) {
+					persistent.put("account" + i, 100);
+				}
+			}
+		}).get();
+
+		final long allocated_start = allocated();
+		final long start = System.nanoTime();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < transactions; i++) {
+			futures.add(distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+					final String from = "account" + random.nextInt(10);
+					final String to = "account" + random.nextInt(10);
+
+					persistent.put(from, (Integer) persistent.get(from) - 1);
+					persistent.put(to, (Integer) persistent.get(to) + 1);
+
+					persistent.put("blob" + random.nextInt(100), new byte[value]);
+				}
+			}));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final long time = System.nanoTime() - start;
+		final long allocated = allocated() - allocated_start;
+
+		distortion.shutdown();
+		store.shutdown();
+
+		if (print) {
+			System.out.println(
+					name + ": " + allocated / transactions + " heap bytes/transaction, " + time / transactions +
+					"ns/transaction"
+			);
+		}
+	}
+
+	/**
+	 * @return Bytes allocated so far by every live thread
+	 */
+	static long allocated() {
+		final com.sun.management.ThreadMXBean threads
+				= (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		long total = 0;
+
+		for (final long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			if (allocated > 0) total += allocated;
+		}
+
+		return total;
+	}
+}
@@ -0,0 +1,265 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.SerializationUtil.SerializationContext;
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArenaByteArray;
+import engineering.taikun.distortion.serialization.imp.ArenaByteArrayFactory;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.util.Glomp;
+import engineering.taikun.distortion.store.api.KV;
+import engineering.taikun.distortion.store.imp.DebugKV;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class ArenaByteArrayTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Arena byte array test");
+
+		scopes();
+		resize();
+		retain();
+		transfers();
+
+		System.out.println("passed");
+	}
+
+	/**
+	 * Arrays of an arena only in a scope, freed with its outermost, and chunks used again by the next
+	 */
+	static void scopes() {
+		final ArenaByteArrayFactory factory = new ArenaByteArrayFactory(1024, 4);
+
+		assert_(!factory.allocate(10).isScoped());
+
+		factory.openScope();
+
+		final ArenaByteArray scoped = factory.allocate(10);
+		final ArenaByteArray big = factory.allocate(1000); // more than a quarter of a chunk
+		final ArenaByteArray wrapped = factory.wrap(new byte[10]);
+
+		assert_(scoped.isScoped() && !big.isScoped() && !wrapped.isScoped());
+
+		// nested, freed with the outer one
+		factory.openScope();
+		final ArenaByteArray nested = factory.allocate(10);
+		factory.closeScope();
+
+		nested.write(0, (byte) 1);
+		scoped.write(9, (byte) 2);
+
+		factory.closeScope();
+
+		for (final ArenaByteArray freed : new ArenaByteArray[]{ scoped, nested }) {
+			try {
+				freed.read(0);
+				assert_(false);
+			} catch (final IllegalStateException ignored) {}
+
+			// not copied out of whatever the chunk holds now either
+			try {
+				factory.retain(freed);
+				assert_(false);
+			} catch (final IllegalStateException ignored) {}
+		}
+
+		big.write(0, (byte) 3);
+		assert_(big.read(0) == 3);
+
+		try {
+			factory.closeScope();
+			assert_(false);
+		} catch (final IllegalStateException ignored) {}
+
+		// plenty of scopes, all out of the first chunk, which comes back dirty but is handed out clear
+		for (int round = 0; round < 100; round++) {
+			factory.openScope();
+
+			for (int i = 0; i < 10; i++) {
+				final ArenaByteArray array = factory.allocate(50);
+
+				for (int j = 0; j < 50; j++) {
+					assert_(array.read(j) == 0);
+					array.write(j, (byte) -1);
+				}
+			}
+
+			factory.closeScope();
+		}
+
+		assert_(factory.chunks.sum() == 1);
+	}
+
+	/**
+	 * Growing in place as the last slice of a chunk, and into a new slice (or a byte[] of its own) otherwise
+	 */
+	static void resize() {
+		final ArenaByteArrayFactory factory = new ArenaByteArrayFactory(1024, 4);
+
+		factory.openScope();
+
+		try {
+			final ArenaByteArray first = factory.allocate(4);
+			final ArenaByteArray second = factory.allocate(4);
+
+			for (final ArenaByteArray array : new ArenaByteArray[]{ first, second }) {
+				byte[] expected = new byte[4];
+
+				for (final int length : new int[]{ 4, 10, 2, 40, 100, 300, 5, 0, 7 }) {
+					array.resize(length);
+					expected = Arrays.copyOf(expected, length);
+
+					assert_(Arrays.equals(array.toArray(), expected));
+
+					for (int i = 0; i < length; i++) {
+						expected[i] = (byte) (i * 7 + length);
+						array.write(i, expected[i]);
+					}
+				}
+
+				assert_(Arrays.equals(array.copy().toArray(), expected) && !array.copy().isScoped());
+			}
+
+			// still apart
+			first.write(0, (byte) 11);
+			second.write(0, (byte) 22);
+			assert_(first.read(0) == 11 && second.read(0) == 22);
+
+			// compose resizes all the time
+			final SerializationUtil<ArenaByteArray> util = new SerializationUtil<>(factory, (short) 1);
+			final byte[] bytes = new byte[200];
+			ThreadLocalRandom.current().nextBytes(bytes);
+
+			assert_(Arrays.equals(util.compose((byte) 1, bytes, first, (byte) 2).toArray(), new ArrayWrapper(
+					ArrayWrapper.UTIL.compose((byte) 1, bytes, first, (byte) 2).toArray()
+			).toArray()));
+		} finally {
+			factory.closeScope();
+		}
+	}
+
+	/**
+	 * What's retained in a scope outlives it, and is only copied if it has to be, and once
+	 */
+	static void retain() {
+		final ArenaByteArrayFactory factory = new ArenaByteArrayFactory(1024, 4);
+
+		factory.openScope();
+
+		final ArenaByteArray scoped = factory.wrap(new byte[]{ 1, 2, 3 }).copy();
+		final ArenaByteArray in_arena = factory.allocate(3);
+		in_arena.write(1, (byte) 5);
+
+		final ArenaByteArray retained = factory.retain(in_arena);
+		final ByteArray slice = factory.retainKey(in_arena.slice(1, 3));
+		final ByteArray glomp = factory.retainKey(new Glomp(factory, scoped, in_arena));
+		final ArrayWrapper heap = new ArrayWrapper(new byte[]{ 4 });
+
+		// moved out rather than copied, and only the once
+		assert_(retained == in_arena && factory.retain(in_arena) == in_arena && !in_arena.isScoped());
+		assert_(factory.retain(scoped) == scoped && factory.retainKey(heap) == heap);
+		assert_(factory.retained.sum() == 3);
+
+		factory.closeScope();
+
+		assert_(Arrays.equals(retained.toArray(), new byte[]{ 0, 5, 0 }));
+		assert_(Arrays.equals(slice.toArray(), new byte[]{ 5, 0 }));
+		assert_(Arrays.equals(glomp.toArray(), new byte[]{ 1, 2, 3, 0, 5, 0 }));
+
+		// a context is a scope (out of a Distortion thread, so with the debug constructor)
+		final SerializationUtil<ArenaByteArray> util = new SerializationUtil<>(factory, (short) 1, lock -> {}, () -> true);
+		final KV kv = new DebugKV(); // never written to
+		final SerializationContext ctx = util.new SerializationContext(kv);
+
+		final ByteArray serialized = ctx.serialize("a string that's serialized");
+		assert_(serialized instanceof ArenaByteArray && ((ArenaByteArray) serialized).isScoped());
+
+		ctx.close();
+
+		try {
+			serialized.hashCode();
+			assert_(false);
+		} catch (final IllegalStateException ignored) {}
+	}
+
+	/**
+	 * Every transaction's keys and values out of an arena, what it stages copied out as its contexts close
+	 */
+	static void transfers() throws InterruptedException, ExecutionException {
+		final ArenaByteArrayFactory factory = new ArenaByteArrayFactory();
+		final SerializationUtil<ArenaByteArray> util = new SerializationUtil<>(factory, (short) 32);
+
+		final DistortionStoreShim<ArenaByteArray, StackToken> store = new DistortionStoreShim<>(
+				util, new StackToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new
+		);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		Accounts.open(distortion, true);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				persistent.put("log", new ArrayList<>());
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 300; i++) {
+			final OptimisticFunction transfer = Accounts.transfer(true);
+
+			futures.add(distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					transfer.transform(persistent, ephemeral);
+
+					if (ThreadLocalRandom.current().nextInt(10) == 0) {
+						((List) persistent.get("log")).add("account" + ThreadLocalRandom.current().nextInt(10));
+					}
+				}
+			}));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int total = Accounts.total(Accounts.balances(distortion, true));
+		final int[] logged = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (final Object entry : (List) persistent.get("log")) {
+					assert_(((String) entry).startsWith("account"));
+					logged[0]++;
+				}
+			}
+		}).get();
+
+		distortion.shutdown();
+		store.shutdown();
+
+		assert_(total == Accounts.TOTAL);
+		assert_(logged[0] > 0);
+		assert_(factory.scoped_arrays.sum() > 0 && factory.retained.sum() > 0);
+
+		// more died with its transaction than was kept (which is mostly the keys read and written, and what was written)
+		assert_(factory.scoped_arrays.sum() > factory.retained.sum());
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,195 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArenaByteArrayFactory;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.serialization.imp.DirectByteArrayFactory;
+import engineering.taikun.distortion.serialization.util.ByteArraySlice;
+import engineering.taikun.distortion.serialization.util.ByteBufferWrapper;
+import engineering.taikun.distortion.serialization.util.Glomp;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ByteArrayTest {
+
+	static final DirectByteArrayFactory direct_factory = new DirectByteArrayFactory();
+	static final ArenaByteArrayFactory arena_factory = new ArenaByteArrayFactory(256, 4);
+
+	@Test
+	public static void main() {
+		System.out.println("Byte array test");
+
+		final Random random = new Random(9);
+
+		// for the arena arrays
+		arena_factory.openScope();
+
+		try {
+			for (int round = 0; round < 200; round++) {
+				final byte[] bytes = new byte[random.nextInt(40)];
+				random.nextBytes(bytes);
+
+				for (final ByteArray array : kinds(bytes, random)) {
+					accessors(array, bytes, random);
+				}
+			}
+
+			comparisons(random);
+		} finally {
+			arena_factory.closeScope();
+		}
+
+		System.out.println("passed");
+	}
+
+	/**
+	 * The same bytes as every kind of ByteArray there is
+	 */
+	static ArrayList<ByteArray> kinds(final byte[] bytes, final Random random) {
+		final ArrayList<ByteArray> kinds = new ArrayList<>();
+
+		kinds.add(new ArrayWrapper(bytes.clone()));
+		kinds.add(new ByteBufferWrapper(ByteBuffer.wrap(bytes.clone())));
+
+		final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes);
+		kinds.add(new ByteBufferWrapper(direct));
+
+		kinds.add(direct_factory.wrap(bytes.clone()));
+
+		// one of an arena, and one of its own
+		final ByteArray scoped = arena_factory.allocate(bytes.length);
+		for (int i = 0; i < bytes.length; i++) {
+			scoped.write(i, bytes[i]);
+		}
+		kinds.add(scoped);
+		kinds.add(arena_factory.wrap(bytes.clone()));
+
+		// a slice out of the middle of something bigger
+		final byte[] padded = new byte[bytes.length + 10];
+		System.arraycopy(bytes, 0, padded, 3, bytes.length);
+		kinds.add(new ByteArraySlice<>(ArrayWrapper.UTIL, new ArrayWrapper(padded), 3, 3 + bytes.length));
+
+		// glomps split at every which point
+		final int split = bytes.length == 0 ? 0 : random.nextInt(bytes.length + 1);
+		kinds.add(new Glomp(
+				new ArrayWrapperFactory(), new ArrayWrapper(Arrays.copyOf(bytes, split)),
+				new ArrayWrapper(Arrays.copyOfRange(bytes, split, bytes.length))
+		));
+
+		return kinds;
+	}
+
+	static void accessors(final ByteArray array, final byte[] bytes, final Random random) {
+		final ByteBuffer expected = ByteBuffer.wrap(bytes);
+
+		assert_(Arrays.equals(array.toArray(), bytes));
+		assert_(array.hashCode() == Arrays.hashCode(bytes));
+
+		for (int i = 0; i + 2 <= bytes.length; i++) {
+			assert_(array.getShort(i) == expected.getShort(i));
+		}
+
+		for (int i = 0; i + 4 <= bytes.length; i++) {
+			assert_(array.getInt(i) == expected.getInt(i));
+		}
+
+		for (int i = 0; i + 8 <= bytes.length; i++) {
+			assert_(array.getLong(i) == expected.getLong(i));
+		}
+
+		if (bytes.length > 0) {
+			final int from = random.nextInt(bytes.length);
+			final int length = random.nextInt(bytes.length - from + 1);
+
+			final byte[] dest = new byte[length + 2];
+			array.copyTo(from, dest, 1, length);
+			assert_(Arrays.equals(
+					Arrays.copyOfRange(dest, 1, 1 + length), Arrays.copyOfRange(bytes, from, from + length)
+			));
+
+			for (final ByteBuffer buffer : new ByteBuffer[]{
+					ByteBuffer.allocate(length + 2), ByteBuffer.allocateDirect(length + 2)
+			}) {
+				buffer.position(1);
+				array.copyTo(from, buffer, length);
+				assert_(buffer.position() == 1 + length);
+
+				for (int i = 0; i < length; i++) {
+					assert_(buffer.get(1 + i) == bytes[from + i]);
+				}
+			}
+
+			assert_(array.copy() == null || Arrays.equals(array.copy().toArray(), bytes));
+		}
+
+		// out of range
+		for (final int index : new int[]{ -1, bytes.length - 3 }) {
+			try {
+				array.getInt(index);
+				assert_(false);
+			} catch (final IndexOutOfBoundsException ignored) {}
+		}
+	}
+
+	static void comparisons(final Random random) {
+		for (int round = 0; round < 2000; round++) {
+			final byte[] a = new byte[random.nextInt(30)];
+			random.nextBytes(a);
+
+			// mostly the same, with a difference somewhere or a different length
+			byte[] b = a.clone();
+
+			switch (random.nextInt(4)) {
+				case 0:
+					if (b.length > 0) b[random.nextInt(b.length)] ^= 1 << random.nextInt(8);
+					break;
+				case 1:
+					b = Arrays.copyOf(b, random.nextInt(b.length + 1));
+					break;
+				case 2:
+					b = Arrays.copyOf(b, b.length + 1 + random.nextInt(10));
+					break;
+				default:
+			}
+
+			final int mismatch = mismatch(a, b);
+			final int compare = Integer.signum(compare(a, b));
+
+			for (final ByteArray x : kinds(a, random)) {
+				for (final ByteArray y : kinds(b, random)) {
+					assert_(x.mismatch(y) == mismatch);
+					assert_(Integer.signum(x.compareTo(y)) == compare);
+					assert_(x.equals(y) == (mismatch == -1));
+				}
+			}
+		}
+	}
+
+	static int mismatch(final byte[] a, final byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			if (a[i] != b[i])
+				return i;
+		}
+
+		return a.length == b.length ? -1 : Math.min(a.length, b.length);
+	}
+
+	static int compare(final byte[] a, final byte[] b) {
+		for (int i = 0; i < a.length && i < b.length; i++) {
+			if (a[i] != b[i])
+				return Byte.compare(a[i], b[i]);
+		}
+
+		return Integer.compare(a.length, b.length);
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
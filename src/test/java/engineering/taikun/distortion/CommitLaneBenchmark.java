@@ -0,0 +1,88 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares a single commit lane against several on a sharded workload (every transform increments one of many keys)
+ */
+public class CommitLaneBenchmark {
+
+	public static void main(final String[] args) throws ExecutionException, InterruptedException {
+
+		final int transforms = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+		final int lanes = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		final int keys = args.length > 2 ? Integer.parseInt(args[2]) : 1024;
+
+		final int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+		run("1 LANE", 1, transforms / 10, keys, threads);
+		run(lanes + " LANES", lanes, transforms / 10, keys, threads);
+
+		run("1 LANE", 1, transforms, keys, threads);
+		run(lanes + " LANES", lanes, transforms, keys, threads);
+	}
+
+	static void run(
+			final String name, final int lanes, final int transforms, final int keys, final int threads
+	) throws ExecutionException, InterruptedException {
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null, false, lanes, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(
+				store, (state, identifiers, flags) -> ExecutionMode.OPTIMISTIC, util, threads
+		);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < keys; i++) {
+					ephemeral.put(i, 0);
+				}
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>(transforms);
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < transforms; i++) {
+			final int key = ThreadLocalRandom.current().nextInt(keys);
+
+			futures.add(distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put(key, (Integer) ephemeral.get(key) + 1);
+				}
+			}));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		distortion.shutdown();
+
+		System.out.println(name);
+		System.out.println("elapsed ms: " + elapsed / 1_000_000);
+		System.out.println("transforms/s: " + transforms * 1_000_000_000L / elapsed);
+		System.out.println("bypassed commits: " + store.bypassed_commits.sum());
+		System.out.println("late joins: " + store.late_joins.sum());
+		System.out.println(distortion.getStats());
+	}
+}
@@ -0,0 +1,221 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import engineering.taikun.distortion.api.fn.AdvancedFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class CommitLaneTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Commit lane test");
+
+		lanes();
+		partition();
+
+		System.out.println("passed");
+	}
+
+	static void lanes() throws InterruptedException, ExecutionException {
+		final ArrayList<InMemoryHistoryKV> histories = new ArrayList<>();
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), shim -> {
+					final InMemoryHistoryKV history = new InMemoryHistoryKV(shim);
+					histories.add(history);
+					return history;
+				}, null, false, 8, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		// one key always stalls, everything else stays in its lanes
+		final Identifier stalled = new Identifier("commit_lane_test", "3");
+
+		final Distortion distortion = new Distortion<>(
+				store, (state, identifiers, flags) -> identifiers.contains(stalled)
+				                                      ? ExecutionMode.GLOBAL_STALL
+				                                      : ExecutionMode.OPTIMISTIC, util, 8
+		);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 16; i++) {
+					ephemeral.put(i, 0);
+				}
+
+				ephemeral.put("protected", 0);
+				ephemeral.put("branched", 0);
+				ephemeral.put("nested", new HashMap<>(Collections.singletonMap("count", 0)));
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 2000; i++) {
+			// every ninth one also moves a unit to another key, most likely in another lane
+			futures.add(distortion.transform(new Increment(
+					i % 16, i % 9 == 0 ? (i + 5) % 16 : -1, i % 10 == 0, i % 15 == 0, i % 7 == 0
+			)));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[19];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 16; i++) {
+					capture[i] = (Integer) ephemeral.get(i);
+				}
+
+				capture[16] = (Integer) ephemeral.get("protected");
+				capture[17] = (Integer) ephemeral.get("branched");
+				capture[18] = (Integer) ((Map) ephemeral.get("nested")).get("count");
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		final Map<String, Object> stats = distortion.getStats();
+
+		System.out.println(stats);
+		System.out.println("bypassed commits: " + store.bypassed_commits.sum());
+		System.out.println("late joins: " + store.late_joins.sum());
+
+		long reclaimed = 0;
+		for (final InMemoryHistoryKV history : histories) {
+			reclaimed += history.reclaimed_versions.sum();
+		}
+
+		System.out.println("reclaimed versions: " + reclaimed);
+
+		int total = 0;
+		for (int i = 0; i < 16; i++) {
+			total += capture[i];
+		}
+
+		assert_(total == 2000);
+		assert_(capture[16] == 200);
+		assert_(capture[17] == 134);
+		assert_(capture[18] == 286);
+
+		assert_(((Number) stats.get("stall transactions")).longValue() > 0);
+
+		// the lanes move the low watermark along, so old versions go
+		assert_(histories.size() == 8);
+		assert_(reclaimed > 0);
+	}
+
+	/**
+	 * <p>A root entry, its OBJECT_PREFIX key and the keys nested under it land in one lane</p>
+	 */
+	static void partition() {
+		// "é😀": 3 chars, 6 bytes of UTF-8
+		final byte[] root = { 0x20, (byte) (3 - 128), (byte) 0xC3, (byte) 0xA9, (byte) 0xF0, (byte) 0x9F, (byte) 0x98, (byte) 0x80 };
+
+		final byte[] object = Arrays.copyOf(root, root.length + 2);
+
+		final byte[] nested = new byte[1 + root.length + 5];
+		nested[0] = 0x70;
+		System.arraycopy(root, 0, nested, 1, root.length);
+		nested[root.length + 1] = 0x10;
+		nested[root.length + 5] = 7;
+
+		final int hash = DistortionStoreShim.rootHash(new ArrayWrapper(root));
+
+		assert_(DistortionStoreShim.rootHash(new ArrayWrapper(object)) == hash);
+		assert_(DistortionStoreShim.rootHash(new ArrayWrapper(nested)) == hash);
+
+		// an Integer root key, and a sentinel that can't be delimited is hashed whole
+		final byte[] integer = { 0x10, 0, 0, 0, 42, 0x00, 0x00 };
+		assert_(DistortionStoreShim.rootHash(new ArrayWrapper(integer))
+				== DistortionStoreShim.rootHash(new ArrayWrapper(Arrays.copyOf(integer, 5))));
+
+		final byte[] sentinel = { 0x00, 0x01 };
+		assert_(DistortionStoreShim.rootHash(new ArrayWrapper(sentinel))
+				!= DistortionStoreShim.rootHash(new ArrayWrapper(Arrays.copyOf(sentinel, 1))));
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class Increment extends AdvancedFunction {
+		final int key;
+		final int transfer_to;
+		final boolean protect;
+		final boolean branch;
+		final boolean nested;
+
+		Increment(
+				final int key, final int transfer_to, final boolean protect, final boolean branch, final boolean nested
+		) {
+			this.key = key;
+			this.transfer_to = transfer_to;
+			this.protect = protect;
+			this.branch = branch;
+			this.nested = nested;
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("commit_lane_test", "" + this.key));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			ephemeral.put(this.key, (Integer) ephemeral.get(this.key) + 1);
+
+			if (this.transfer_to >= 0) {
+				ephemeral.put(this.key, (Integer) ephemeral.get(this.key) - 1);
+				ephemeral.put(this.transfer_to, (Integer) ephemeral.get(this.transfer_to) + 1);
+			}
+
+			if (this.nested) {
+				final Map nested = (Map) ephemeral.get("nested");
+				nested.put("count", (Integer) nested.get("count") + 1);
+			}
+
+			if (this.protect) {
+				doProtected(new Counter("protected"));
+			}
+
+			if (this.branch) {
+				branch(new Counter("branched"));
+			}
+		}
+	}
+
+	static class Counter extends AdvancedFunction {
+		final String key;
+
+		Counter(final String key) {
+			this.key = key;
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("commit_lane_test", this.key));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			ephemeral.put(this.key, (Integer) ephemeral.get(this.key) + 1);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.CompressedHistoryKV;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Compression ratio and read latency of the history with and without compression
+ *
+ * The values are what Distortion really writes (strings, int[]s, double[]s, and the node rows of nested maps), taken
+ * off a store as it's filled. They're then written to each history in turn, and every key read back many times over.
+ */
+public class CompressedHistoryBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException, ExecutionException, ExpiredReadException {
+
+		final int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		final List<Map<ByteArray, ArrayWrapper>> writes = capture(records);
+
+		long raw = 0;
+		for (final Map<ByteArray, ArrayWrapper> map : writes) {
+			for (final ArrayWrapper value : map.values()) {
+				raw += value == null ? 0 : value.length();
+			}
+		}
+
+		System.out.println(writes.size() + " commits, " + raw + " value bytes");
+
+		// warm up, then for real
+		for (int round = 0; round < 2; round++) {
+			final boolean print = round == 1;
+
+			run("uncompressed", shim -> new InMemoryHistoryKV<>(shim), writes, passes, print);
+			run("block", shim -> new CompressedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim), 16, 0), writes, passes, print);
+			run("dictionary", shim -> new CompressedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim)), writes, passes, print);
+		}
+	}
+
+	static void run(
+			final String name, final Function<DistortionStoreShim, HistoryKV<ArrayWrapper, ArrayWrapper, StackToken>> fn,
+			final List<Map<ByteArray, ArrayWrapper>> writes, final int passes, final boolean print
+	) throws ExpiredReadException {
+
+		@SuppressWarnings("unchecked")
+		final HistoryKV<ArrayWrapper, ArrayWrapper, StackToken>[] history = new HistoryKV[1];
+
+		new DistortionStoreShim<>(ArrayWrapper.UTIL, new StackToken(), shim -> history[0] = fn.apply(shim), null);
+
+		final HistoryKV<ArrayWrapper, ArrayWrapper, StackToken> kv = history[0];
+
+		StackToken token = new StackToken();
+		final long write_start = System.nanoTime();
+
+		for (final Map<ByteArray, ArrayWrapper> map : writes) {
+			token = token.getNextToken();
+			kv.write(map, token);
+		}
+
+		final long write_time = System.nanoTime() - write_start;
+
+		final ArrayList<ByteArray> keys = new ArrayList<>();
+		for (final Map<ByteArray, ArrayWrapper> map : writes) {
+			keys.addAll(map.keySet());
+		}
+
+		final StackToken read_token = token.getNextToken();
+		long checksum = 0;
+
+		final long read_start = System.nanoTime();
+
+		for (int pass = 0; pass < passes; pass++) {
+			for (final ByteArray key : keys) {
+				final @Nullable ArrayWrapper value = kv.read(key, read_token);
+				checksum += value == null ? 0 : value.length();
+			}
+		}
+
+		final long read_time = System.nanoTime() - read_start;
+
+		kv.shutdown();
+
+		if (!print)
+			return;
+
+		System.out.println(name);
+
+		if (kv instanceof CompressedHistoryKV) {
+			System.out.printf("ratio: %.3f%n", ((CompressedHistoryKV) kv).ratio());
+		}
+
+		System.out.println("write ns/commit: " + write_time / writes.size());
+		System.out.println("read ns/key: " + read_time / ((long) passes * keys.size()) + " (" + checksum + ")");
+	}
+
+	/**
+	 * @return The persistent writes of filling a store with records of each kind
+	 */
+	static List<Map<ByteArray, ArrayWrapper>> capture(final int records) throws InterruptedException, ExecutionException {
+		final List<Map<ByteArray, ArrayWrapper>> writes = Collections.synchronizedList(new ArrayList<>());
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, shim -> {
+					final InMemoryHistoryKV<ArrayWrapper, StackToken> history = new InMemoryHistoryKV<>(shim);
+
+					return new HistoryKV<ArrayWrapper, ArrayWrapper, StackToken>() {
+						@Override public @Nullable ArrayWrapper read(final ByteArray key, final StackToken token)
+								throws ExpiredReadException {
+							return history.read(key, token);
+						}
+
+						@Override public void write(final Map<? extends ByteArray, ArrayWrapper> values, final StackToken token) {
+							writes.add(new HashMap<>(values));
+							history.write(values, token);
+						}
+
+						@Override public void shutdown() {
+							history.shutdown();
+						}
+					};
+				}
+		);
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		for (int batch = 0; batch < records; batch += 100) {
+			final int first = batch;
+
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					for (int i = first; i < first + 100; i++) {
+						final Random random = new Random(i);
+
+						persistent.put("user" + i, "{\"name\": \"user " + i + "\", \"email\": \"user" + i
+								+ "@example.com\", \"plan\": \"" + (random.nextBoolean() ? "free" : "pro") + "\"}");
+
+						final int[] scores = new int[16 + random.nextInt(48)];
+						for (int j = 0; j < scores.length; j++) {
+							scores[j] = random.nextInt(100);
+						}
+						persistent.put("scores" + i, scores);
+
+						final double[] prices = new double[8 + random.nextInt(24)];
+						for (int j = 0; j < prices.length; j++) {
+							prices[j] = 10 + random.nextInt(900) / 100.0;
+						}
+						persistent.put("prices" + i, prices);
+
+						final HashMap<String, Object> profile = new HashMap<>();
+						profile.put("age", 18 + random.nextInt(60));
+						profile.put("city", random.nextBoolean() ? "Wellington" : "Auckland");
+						profile.put("joined", 1_500_000_000L + random.nextInt(100_000_000));
+						persistent.put("profile" + i, profile);
+					}
+				}
+			}).get();
+		}
+
+		distortion.shutdown();
+		store.shutdown();
+
+		return writes;
+	}
+}
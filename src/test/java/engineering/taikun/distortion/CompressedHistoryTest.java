@@ -0,0 +1,282 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.imp.CompressedHistoryKV;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.MappedHistoryKV;
+import engineering.taikun.distortion.store.imp.OffHeapHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.imp.TieredHistoryKV;
+import engineering.taikun.distortion.store.util.BlockCompressor;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+public class CompressedHistoryTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException, IOException {
+		System.out.println("Compressed history test");
+
+		blocks();
+		store();
+
+		final File directory = Files.createTempDirectory("distortion-compressed").toFile();
+
+		try {
+			tiered(directory);
+			durable(new File(directory, "durable"));
+		} finally {
+			MappedHistoryTest.delete(directory);
+		}
+
+		System.out.println("passed");
+	}
+
+	static void blocks() {
+		final Random random = new Random(42);
+
+		final byte[] noise = new byte[1000];
+		random.nextBytes(noise);
+
+		final byte[] text = String.join(" ", Collections.nCopies(40, "the quick brown fox jumps over the lazy dog"))
+				.getBytes(StandardCharsets.UTF_8);
+
+		// a match longer than its offset, and lengths past 15 and 255 on both sides
+		final byte[] runs = new byte[5000];
+		Arrays.fill(runs, 0, 2000, (byte) 'a');
+		System.arraycopy(noise, 0, runs, 2000, 300);
+
+		final BlockCompressor plain = new BlockCompressor();
+		final BlockCompressor dictionary = new BlockCompressor(Arrays.copyOf(text, 200));
+
+		for (final BlockCompressor compressor : new BlockCompressor[]{ plain, dictionary }) {
+			assert_(roundTrip(compressor, text) < text.length / 10);
+			assert_(roundTrip(compressor, runs) < runs.length / 2);
+			assert_(roundTrip(compressor, new byte[3]) == -1);
+			assert_(roundTrip(compressor, noise) == -1);
+		}
+
+		// short and only like the dictionary
+		final byte[] short_text = Arrays.copyOfRange(text, 10, 60);
+
+		final int without = roundTrip(plain, short_text);
+
+		assert_(without == -1 || without > 40);
+		assert_(roundTrip(dictionary, short_text) < 10);
+
+		boolean corrupt = false;
+		try {
+			plain.decompress(new byte[]{ 0x10, 'x', 5, 0 }, 0, 4, new byte[8]);
+		} catch (final IllegalArgumentException e) {
+			corrupt = true;
+		}
+		assert_(corrupt);
+	}
+
+	/**
+	 * @return The compressed length, or -1
+	 */
+	static int roundTrip(final BlockCompressor compressor, final byte[] bytes) {
+		final byte[] out = new byte[BlockCompressor.maxCompressedLength(bytes.length)];
+		final int end = compressor.compress(bytes, bytes.length, out, 0);
+
+		if (end == -1)
+			return -1;
+
+		final byte[] back = new byte[bytes.length];
+		compressor.decompress(out, 0, end, back);
+
+		assert_(Arrays.equals(back, bytes));
+
+		return end;
+	}
+
+	static void store() throws InterruptedException, ExecutionException {
+		final CompressedHistoryKV[] history = new CompressedHistoryKV[2];
+
+		// a dictionary for the persistent store, plain blocks for the ephemeral one
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new CompressedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim), 16, 0),
+				shim -> history[1] = new CompressedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim), 16, 4096)
+		);
+
+		@SuppressWarnings("unchecked")
+		final CompressedHistoryKV<ArrayWrapper, StackToken> persistent_kv = history[1];
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		for (int batch = 0; batch < 5; batch++) {
+			final int first = batch * 100;
+
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					for (int i = first; i < first + 100; i++) {
+						persistent.put("user" + i, value(i));
+						persistent.put("scores" + i, scores(i));
+						ephemeral.put("session" + i, value(i));
+					}
+				}
+			}).get();
+		}
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 500; i++) {
+					assert_(value(i).equals(persistent.get("user" + i)));
+					assert_(Arrays.equals(scores(i), (int[]) persistent.get("scores" + i)));
+					assert_(value(i).equals(ephemeral.get("session" + i)));
+				}
+
+				assert_(persistent.get("nothing") == null);
+
+				persistent.remove("user0");
+			}
+		}).get();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				assert_(persistent.get("user0") == null);
+				assert_(value(1).equals(persistent.get("user1")));
+			}
+		}).get();
+
+		distortion.shutdown();
+		store.shutdown();
+
+		System.out.println("persistent ratio " + persistent_kv.ratio() + ", ephemeral ratio " + history[0].ratio());
+
+		assert_(persistent_kv.hasDictionary());
+		assert_(!history[0].hasDictionary());
+		assert_(persistent_kv.decompressed.sum() > 0);
+		assert_(persistent_kv.ratio() < 0.5);
+
+		// a short string on its own has little to match against
+		assert_(history[0].compressed.sum() > 0);
+		assert_(history[0].ratio() < 1);
+	}
+
+	static void tiered(final File directory) throws InterruptedException, ExecutionException {
+		final TieredHistoryKV[] tiered = new TieredHistoryKV[1];
+		final CompressedHistoryKV[] history = new CompressedHistoryKV[1];
+
+		// compressed in runs on disk as well
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> history[0] = new CompressedHistoryKV<>(
+						shim, tiered[0] = new TieredHistoryKV<>(shim, directory, 1L << 30, 60_000, 16, 8)
+				)
+		);
+
+		@SuppressWarnings("unchecked")
+		final TieredHistoryKV<ArrayWrapper, StackToken> kv = tiered[0];
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 500; i++) {
+					persistent.put("user" + i, value(i));
+				}
+			}
+		}).get();
+
+		TieredHistoryTest.touch(distortion);
+
+		kv.spill();
+		kv.spill();
+
+		assert_(kv.spilled.sum() >= 500);
+		// keys and record headers included, less than the values alone
+		assert_(kv.runBytes() < history[0].raw_bytes.sum());
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 500; i++) {
+					assert_(value(i).equals(persistent.get("user" + i)));
+				}
+			}
+		}).get();
+
+		distortion.shutdown();
+		store.shutdown();
+	}
+
+	/**
+	 * The dictionary isn't saved, so it stays off a mapped history, and what's prepared is encoded once
+	 */
+	static void durable(final File directory) throws InterruptedException, ExecutionException {
+		final CompressedHistoryKV[] history = new CompressedHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> {
+					final MappedHistoryKV<ArrayWrapper, StackToken> mapped = new MappedHistoryKV<>(
+							shim, OffHeapHistoryKV.copying(ArrayWrapper::new), directory
+					);
+
+					boolean threw = false;
+					try {
+						new CompressedHistoryKV<>(shim, mapped, 16, 4096);
+					} catch (final IllegalArgumentException ignored) {
+						threw = true;
+					}
+
+					assert_(threw);
+
+					return history[0] = new CompressedHistoryKV<>(shim, mapped);
+				}
+		);
+
+		assert_(history[0].dictionary_bytes == 0);
+		assert_(history[0].isDurable());
+
+		final ArrayWrapper key = new ArrayWrapper("key".getBytes(StandardCharsets.UTF_8));
+		final ArrayWrapper value = new ArrayWrapper(value(1).getBytes(StandardCharsets.UTF_8));
+
+		final StackToken token = new StackToken().getNextToken();
+
+		//noinspection unchecked
+		history[0].write(history[0].prepare(Collections.singletonMap(key, value)), token);
+
+		assert_(history[0].compressed.sum() == 1);
+
+		try {
+			assert_(value.equals(history[0].read(key, token)));
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		store.shutdown();
+	}
+
+	static String value(final int i) {
+		return "{\"name\": \"user " + i + "\", \"email\": \"user" + i + "@example.com\", \"plan\": \"free\", "
+				+ "\"country\": \"NZ\", \"verified\": " + (i % 2 == 0) + "}";
+	}
+
+	static int[] scores(final int i) {
+		final int[] scores = new int[32];
+
+		for (int j = 0; j < scores.length; j++) {
+			scores[j] = (i + j) % 5;
+		}
+
+		return scores;
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
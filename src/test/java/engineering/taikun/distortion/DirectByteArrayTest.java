@@ -0,0 +1,129 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.DirectByteArray;
+import engineering.taikun.distortion.serialization.imp.DirectByteArrayFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+public class DirectByteArrayTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Direct byte array test");
+
+		resize();
+		recycling();
+		transfers();
+
+		System.out.println("passed");
+	}
+
+	/**
+	 * Growing and shrinking, in the block and out of it, past the biggest size class and back
+	 */
+	static void resize() {
+		final DirectByteArrayFactory factory = new DirectByteArrayFactory();
+		final Random random = new Random(7);
+
+		for (final int[] lengths : new int[][]{
+				{ 0, 5, 16, 17, 3, 100, 100, 40 }, { 1000, 1 << 20, (1 << 20) + 1, 3 << 20, 10, 0 }
+		}) {
+			final DirectByteArray array = factory.allocate(lengths[0]);
+			byte[] expected = new byte[lengths[0]];
+
+			for (final int length : lengths) {
+				array.resize(length);
+				expected = Arrays.copyOf(expected, length);
+
+				assert_(array.length() == length);
+				assert_(Arrays.equals(array.toArray(), expected));
+
+				// scribble over all of it, so what shrinking leaves behind has to be cleared if it grows back
+				for (int i = 0; i < length; i += 1 + random.nextInt(100)) {
+					expected[i] = (byte) random.nextInt();
+					array.write(i, expected[i]);
+				}
+
+				final DirectByteArray copy = array.copy();
+				assert_(copy.equals(array) && copy.hashCode() == Arrays.hashCode(expected));
+
+				if (length > 2) {
+					final ByteArray slice = array.slice(1, length - 1);
+					assert_(Arrays.equals(slice.copy().toArray(), Arrays.copyOfRange(expected, 1, length - 1)));
+				}
+			}
+		}
+
+		assert_(factory.unpooled.sum() > 0);
+
+		// slices write through
+		final DirectByteArray array = factory.wrap(new byte[]{ 1, 2, 3, 4 });
+		array.slice(1, 3).write(0, (byte) 9);
+		assert_(Arrays.equals(array.toArray(), new byte[]{ 1, 9, 3, 4 }));
+
+		try {
+			array.read(4);
+			assert_(false);
+		} catch (final IndexOutOfBoundsException ignored) {}
+	}
+
+	/**
+	 * Blocks of collected arrays are used again, rather than the pool growing
+	 */
+	static void recycling() throws InterruptedException {
+		final DirectByteArrayFactory factory = new DirectByteArrayFactory();
+
+		// more than fits in a chunk, over and over
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 1000; i++) {
+				factory.allocate(1000).write(999, (byte) 1);
+			}
+
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		assert_(factory.recycled.sum() > 0);
+		assert_(factory.pooledBytes() < 20 * 1000 * 1024);
+
+		// given back blocks come back cleared
+		for (int i = 0; i < 100; i++) {
+			final DirectByteArray array = factory.allocate(1000);
+			assert_(array.read(999) == 0);
+		}
+	}
+
+	static void transfers() throws InterruptedException, ExecutionException {
+		final DirectByteArrayFactory factory = new DirectByteArrayFactory();
+		final SerializationUtil<DirectByteArray> util = new SerializationUtil<>(factory, (short) 32);
+
+		final DistortionStoreShim<DirectByteArray, StackToken> store = new DistortionStoreShim<>(
+				util, new StackToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new
+		);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		Accounts.open(distortion, true);
+		Accounts.transfers(distortion, 300, true);
+
+		final int total = Accounts.total(Accounts.balances(distortion, true));
+
+		distortion.shutdown();
+		store.shutdown();
+
+		assert_(total == Accounts.TOTAL);
+		assert_(factory.allocated.sum() > 0);
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,96 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class EarlyAbortTest {
+
+	static Distortion newDistortion() {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		return new Distortion<>(store, (state, identifiers, flags) -> ExecutionMode.OPTIMISTIC, util, 4);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Early abort test");
+
+		final Distortion distortion = newDistortion();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("hot", 0);
+
+				for (int i = 0; i < 20; i++) {
+					ephemeral.put("cold" + i, i);
+				}
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 100; i++) {
+			futures.add(distortion.transform(new LongIncrement()));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				capture[0] = (Integer) ephemeral.get("hot");
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		final Map stats = distortion.getStats();
+
+		System.out.println(stats);
+
+		assert_(capture[0] == 100);
+
+		// the increments overlap on hot, the losers should notice on their next read rather than at commit
+		assert_((Long) stats.get("early aborts") > 0);
+
+		System.out.println("passed");
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class LongIncrement extends OptimisticFunction {
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			final int value = (Integer) ephemeral.get("hot");
+
+			for (int i = 0; i < 20; i++) {
+				try {
+					Thread.sleep(1);
+				} catch (final InterruptedException ignored) {}
+
+				ephemeral.get("cold" + i);
+			}
+
+			ephemeral.put("hot", value + 1);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI;
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import engineering.taikun.distortion.ai.imp.StaticAI.StaticAIBuilder;
+import engineering.taikun.distortion.api.fn.AdvancedFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares FINE_BLOCK (wait on the flagged hot key writers only) against GLOBAL_STALL on a hot key workload
+ */
+public class FineBlockContentionBenchmark {
+
+	static volatile long sink;
+
+	public static void main(final String[] args) throws ExecutionException, InterruptedException {
+
+		final int transforms = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+		final int hot_keys = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final int hot_percent = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		final StaticAIBuilder builder = new StaticAIBuilder();
+
+		for (int i = 0; i < hot_keys; i++) {
+			builder.add("bench", "hot", "" + i).dependsOn("bench", "hot", "" + i);
+		}
+
+		run("FINE_BLOCK", builder.build(), transforms, hot_keys, hot_percent);
+		run("GLOBAL_STALL", (state, identifiers, flags) -> ExecutionMode.GLOBAL_STALL, transforms, hot_keys, hot_percent);
+	}
+
+	static void run(
+			final String name, final DistortionAI ai, final int transforms, final int hot_keys, final int hot_percent
+	) throws ExecutionException, InterruptedException {
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(store, ai, util, 8);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < hot_keys; i++) {
+					ephemeral.put("hot" + i, 0);
+				}
+
+				for (int i = 0; i < 1000; i++) {
+					ephemeral.put("cold" + i, 0);
+				}
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>(transforms);
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < transforms; i++) {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+			if (random.nextInt(100) < hot_percent) {
+				final int key = random.nextInt(hot_keys);
+				futures.add(distortion.transform(new Increment("hot" + key, new Identifier("bench", "hot", "" + key))));
+			} else {
+				futures.add(distortion.transform(new Increment("cold" + random.nextInt(1000), new Identifier("bench", "cold"))));
+			}
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		distortion.shutdown();
+
+		System.out.println(name);
+		System.out.println("elapsed ms: " + elapsed / 1_000_000);
+		System.out.println("transforms/s: " + transforms * 1_000_000_000L / elapsed);
+		System.out.println(distortion.getStats());
+	}
+
+	static class Increment extends AdvancedFunction {
+		final String key;
+		final Collection<Identifier> identifiers;
+
+		Increment(final String key, final Identifier identifier) {
+			this.key = key;
+			this.identifiers = Collections.singleton(identifier);
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return this.identifiers;
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			// a little work so transactions overlap
+			long spin = 0;
+			for (int i = 0; i < 20_000; i++) {
+				spin += i ^ spin;
+			}
+
+			sink = spin;
+
+			ephemeral.put(this.key, (Integer) ephemeral.get(this.key) + 1);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI;
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import engineering.taikun.distortion.ai.imp.StaticAI.StaticAIBuilder;
+import engineering.taikun.distortion.api.fn.AdvancedFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class FineBlockTest {
+
+	static Distortion newDistortion() {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final StaticAIBuilder builder = new StaticAIBuilder();
+
+		builder.add("fine_block_test", "hot").dependsOn("fine_block_test", "hot");
+
+		final DistortionAI ai = builder.build();
+
+		return new Distortion<>(store, ai, util, 4);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Fine block test");
+
+		final Distortion distortion = newDistortion();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("hot", 0);
+				ephemeral.put("cold", 0);
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 100; i++) {
+			futures.add(distortion.transform(new Increment("hot")));
+			futures.add(distortion.transform(new Increment("cold")));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[2];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				capture[0] = (Integer) ephemeral.get("hot");
+				capture[1] = (Integer) ephemeral.get("cold");
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		final Map stats = distortion.getStats();
+
+		System.out.println(stats);
+
+		assert_(capture[0] == 100);
+		assert_(capture[1] == 100);
+
+		// the hot increments queue up behind each other, so some of them must have waited on staged data
+		assert_((Long) stats.get("fine block waits") > 0);
+
+		System.out.println("passed");
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class Increment extends AdvancedFunction {
+		final String key;
+
+		Increment(final String key) {
+			this.key = key;
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("fine_block_test", this.key));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			final int value = (Integer) ephemeral.get(this.key);
+
+			try {
+				Thread.sleep(2);
+			} catch (final InterruptedException ignored) {}
+
+			ephemeral.put(this.key, value + 1);
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.Distortion.OverflowPolicy;
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import engineering.taikun.distortion.api.fn.AdvancedFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class ForwardingTest {
+
+	static Distortion newDistortion(final boolean speculative_forwarding) {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		return new Distortion<>(
+				store, (state, identifiers, flags) -> ExecutionMode.OPTIMISTIC, util, 4,
+				16_384, OverflowPolicy.BLOCK, speculative_forwarding
+		);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Forwarding test");
+
+		final Map plain = run(false);
+		final Map forwarded = run(true);
+
+		System.out.println(plain);
+		System.out.println(forwarded);
+
+		assert_((Long) plain.get("forwarded transactions") == 0);
+		assert_((Long) forwarded.get("forwarded transactions") > 0);
+
+		// starting from what's about to commit ahead of it, a transaction has to be retried less
+		assert_(retries(forwarded) < retries(plain));
+
+		System.out.println("passed");
+	}
+
+	static Map run(final boolean speculative_forwarding) throws InterruptedException, ExecutionException {
+		final Distortion distortion = newDistortion(speculative_forwarding);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("hot", 0);
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 100; i++) {
+			futures.add(distortion.transform(new Increment()));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				capture[0] = (Integer) ephemeral.get("hot");
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		assert_(capture[0] == 100);
+
+		return distortion.getStats();
+	}
+
+	/**
+	 * @return Transactions run beyond the one each submitted job needs
+	 */
+	static long retries(final Map stats) {
+		return (Long) stats.get("job transactions") - (Long) stats.get("jobs submitted");
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class Increment extends AdvancedFunction {
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("forwarding_test", "hot"));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			final int value = (Integer) ephemeral.get("hot");
+
+			try {
+				Thread.sleep(2);
+			} catch (final InterruptedException ignored) {}
+
+			ephemeral.put("hot", value + 1);
+		}
+	}
+}
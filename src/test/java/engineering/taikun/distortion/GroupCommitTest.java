@@ -0,0 +1,133 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.api.DistortionAI.ExecutionMode;
+import engineering.taikun.distortion.ai.api.DistortionAI.Identifier;
+import engineering.taikun.distortion.api.fn.AdvancedFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class GroupCommitTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Group commit test");
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null, true
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(
+				store, (state, identifiers, flags) -> ExecutionMode.OPTIMISTIC, util, 8
+		);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 16; i++) {
+					ephemeral.put(i, 0);
+				}
+
+				ephemeral.put("protected", 0);
+				ephemeral.put("branched", 0);
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 2000; i++) {
+			futures.add(distortion.transform(new Increment(i % 16, i % 10 == 0, i % 15 == 0)));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] capture = new int[18];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 16; i++) {
+					capture[i] = (Integer) ephemeral.get(i);
+				}
+
+				capture[16] = (Integer) ephemeral.get("protected");
+				capture[17] = (Integer) ephemeral.get("branched");
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		System.out.println(distortion.getStats());
+		System.out.println("grouped commits: " + store.grouped_commits.sum());
+
+		for (int i = 0; i < 16; i++) {
+			assert_(capture[i] == 125);
+		}
+
+		assert_(capture[16] == 200);
+		assert_(capture[17] == 134);
+
+		System.out.println("passed");
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+
+	static class Increment extends AdvancedFunction {
+		final int key;
+		final boolean protect;
+		final boolean branch;
+
+		Increment(final int key, final boolean protect, final boolean branch) {
+			this.key = key;
+			this.protect = protect;
+			this.branch = branch;
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("group_commit_test", "" + this.key));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			ephemeral.put(this.key, (Integer) ephemeral.get(this.key) + 1);
+
+			if (this.protect) {
+				doProtected(new Counter("protected"));
+			}
+
+			if (this.branch) {
+				branch(new Counter("branched"));
+			}
+		}
+	}
+
+	static class Counter extends AdvancedFunction {
+		final String key;
+
+		Counter(final String key) {
+			this.key = key;
+		}
+
+		@Override public Collection<Identifier> getIdentifiers() {
+			return Collections.singleton(new Identifier("group_commit_test", this.key));
+		}
+
+		@Override public void transform(final Map persistent, final Map ephemeral) {
+			ephemeral.put(this.key, (Integer) ephemeral.get(this.key) + 1);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Multi-threaded write and read throughput of the in-memory history, with a single stripe (one lock for everything)
+ * against the default striping
+ *
+ * Every writer thread owns its own keys and tokens, so the only thing they contend on is the store itself. Readers
+ * read random keys at their writer's newest token while the writers go.
+ */
+public class InMemoryHistoryBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException {
+
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int write_set = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final long millis = args.length > 2 ? Long.parseLong(args[2]) : 5000;
+
+		run("1 stripe", 1, threads, write_set, millis);
+		run("16 stripes", 16, threads, write_set, millis);
+		run("64 stripes", 64, threads, write_set, millis);
+	}
+
+	static void run(final String name, final int stripes, final int threads, final int write_set, final long millis)
+			throws InterruptedException {
+
+		final InMemoryHistoryKV[] history = new InMemoryHistoryKV[1];
+
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new InMemoryHistoryKV<>(shim, 1L << 30, stripes, false), null
+		);
+
+		@SuppressWarnings("unchecked")
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final LongAdder writes = new LongAdder();
+		final LongAdder reads = new LongAdder();
+
+		final AtomicReferenceArray<StackToken> latest = new AtomicReferenceArray<>(threads);
+		final CountDownLatch done = new CountDownLatch(threads * 2);
+		final long end = System.currentTimeMillis() + millis;
+
+		for (int t = 0; t < threads; t++) {
+			final int owner = t;
+
+			new Thread(() -> {
+				StackToken token = new StackToken();
+
+				while (System.currentTimeMillis() < end) {
+					final HashMap<ArrayWrapper, ArrayWrapper> values = new HashMap<>();
+					final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+					for (int i = 0; i < write_set; i++) {
+						values.put(key(owner, random.nextInt(10_000)), new ArrayWrapper(new byte[16]));
+					}
+
+					token = token.getNextToken();
+					kv.write(values, token);
+					latest.set(owner, token);
+
+					writes.add(values.size());
+				}
+
+				done.countDown();
+			}).start();
+
+			new Thread(() -> {
+				while (System.currentTimeMillis() < end) {
+					final ThreadLocalRandom random = ThreadLocalRandom.current();
+					final int writer = random.nextInt(threads);
+					final StackToken token = latest.get(writer);
+
+					if (token == null)
+						continue;
+
+					try {
+						kv.read(key(writer, random.nextInt(10_000)), token);
+					} catch (final ExpiredReadException ignored) {
+					}
+
+					reads.increment();
+				}
+
+				done.countDown();
+			}).start();
+		}
+
+		done.await();
+		kv.shutdown();
+
+		System.out.println(name);
+		System.out.println("key writes/s: " + writes.sum() * 1000 / millis);
+		System.out.println("reads/s: " + reads.sum() * 1000 / millis);
+	}
+
+	static ArrayWrapper key(final int owner, final int i) {
+		return new ArrayWrapper(new byte[]{ 0, 5, 'k', (byte) owner, (byte) (i >>> 8), (byte) i });
+	}
+}
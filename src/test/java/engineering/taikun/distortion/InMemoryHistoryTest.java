@@ -0,0 +1,272 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.api.fn.ReadOnlyFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InMemoryHistoryTest {
+
+	@Test
+	public static void main() throws ExpiredReadException, InterruptedException, ExecutionException {
+		System.out.println("In-memory history test");
+
+		budget();
+		live();
+		epoch();
+		pinned();
+		watermark();
+
+		System.out.println("passed");
+	}
+
+	static void budget() throws ExpiredReadException {
+		final InMemoryHistoryKV[] history = new InMemoryHistoryKV[1];
+
+		// one stripe with room for 9 versions written over (the current one doesn't count), as the store never moves
+		// nothing is reclaimed otherwise
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new InMemoryHistoryKV<>(shim, 9 * (InMemoryHistoryKV.VERSION_BYTES + 1), 1, false), null
+		);
+
+		@SuppressWarnings("unchecked")
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final ArrayWrapper key = new ArrayWrapper(new byte[]{ 'k' });
+		final ArrayList<StackToken> tokens = new ArrayList<>();
+
+		StackToken token = new StackToken();
+
+		// enough versions for the ring to wrap around a few times as the oldest get trimmed
+		for (int i = 0; i < 37; i++) {
+			token = token.getNextToken();
+			tokens.add(token);
+
+			kv.write(Collections.singletonMap(key, new ArrayWrapper(new byte[]{ (byte) i })), token);
+		}
+
+		assert_(kv.lastWriter(key).equals(token));
+		assert_(kv.read(key, token.getNextToken()).equals(new ArrayWrapper(new byte[]{ 36 })));
+
+		// the last 10 are still there, everything before is gone
+		for (int i = 27; i < 37; i++) {
+			assert_(kv.read(key, tokens.get(i)).equals(new ArrayWrapper(new byte[]{ (byte) i })));
+		}
+
+		boolean expired = false;
+		try {
+			kv.read(key, tokens.get(26));
+		} catch (final ExpiredReadException e) {
+			expired = true;
+		}
+		assert_(expired);
+
+		// deletes are versions too
+		token = token.getNextToken();
+		kv.write(Collections.singletonMap(key, null), token);
+
+		assert_(kv.read(key, token) == null);
+		assert_(kv.read(key, tokens.get(36)).equals(new ArrayWrapper(new byte[]{ 36 })));
+
+		assert_(kv.forced_versions.sum() == 28);
+		assert_(kv.reclaimed_versions.sum() == 0);
+
+		kv.shutdown();
+	}
+
+	/**
+	 * Current versions don't count against the budget, however much live data there is only what's been written over
+	 * gets trimmed
+	 */
+	static void live() throws ExpiredReadException {
+		final InMemoryHistoryKV[] history = new InMemoryHistoryKV[1];
+
+		// room for 150 versions written over, the 100 keys and their current versions take more than that on their own
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new InMemoryHistoryKV<>(shim, 150 * (InMemoryHistoryKV.VERSION_BYTES + 1), 1, false),
+				null
+		);
+
+		@SuppressWarnings("unchecked")
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final StackToken first = new StackToken().getNextToken();
+		final StackToken[] tokens = { first, first.getNextToken() };
+
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 100; i++) {
+				kv.write(Collections.singletonMap(
+						new ArrayWrapper(new byte[]{ 'k', (byte) i }), new ArrayWrapper(new byte[]{ (byte) round })
+				), tokens[round]);
+			}
+		}
+
+		assert_(kv.retainedBytes() > 150 * (InMemoryHistoryKV.VERSION_BYTES + 1));
+		assert_(kv.forced_versions.sum() == 0);
+
+		// the store never moved, so a reader at the first token still gets what it wrote
+		for (int i = 0; i < 100; i++) {
+			assert_(kv.read(new ArrayWrapper(new byte[]{ 'k', (byte) i }), first).equals(new ArrayWrapper(new byte[]{ 0 })));
+		}
+
+		kv.shutdown();
+	}
+
+	static void epoch() throws InterruptedException, ExecutionException {
+		final InMemoryHistoryKV[] history = new InMemoryHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, shim -> history[0] = new InMemoryHistoryKV<>(shim)
+		);
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		Accounts.open(distortion, true);
+		Accounts.transfers(distortion, 1000, true);
+
+		distortion.shutdown();
+		store.shutdown();
+
+		@SuppressWarnings("unchecked")
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		// old versions went as the commits went, without going over any budget
+		System.out.println(
+				"reclaimed " + kv.reclaimed_versions.sum() + ", blocked " + kv.blocked_reclaims.sum() + ", retained bytes "
+						+ kv.retainedBytes()
+		);
+
+		assert_(kv.forced_versions.sum() == 0);
+		assert_(kv.reclaimed_versions.sum() > 1000);
+		assert_(kv.retainedBytes() < 10 * InMemoryHistoryKV.KEY_BYTES + 500 * InMemoryHistoryKV.VERSION_BYTES);
+	}
+
+	static void pinned() throws InterruptedException, ExecutionException {
+		final InMemoryHistoryKV[] history = new InMemoryHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, shim -> history[0] = new InMemoryHistoryKV<>(shim)
+		);
+
+		@SuppressWarnings("unchecked")
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		Accounts.open(distortion, true);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(1);
+		final AtomicInteger runs = new AtomicInteger();
+
+		// reads half the accounts, waits out a lot of writes, then reads the other half as they were
+		final Future<?> reader = distortion.transform(new ReadOnlyFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				runs.incrementAndGet();
+
+				int total = 0;
+				for (int i = 0; i < 5; i++) {
+					total += (Integer) persistent.get("account" + i);
+				}
+
+				started.countDown();
+
+				try {
+					written.await();
+				} catch (final InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+
+				for (int i = 5; i < 10; i++) {
+					total += (Integer) persistent.get("account" + i);
+				}
+
+				assert_(total == Accounts.TOTAL);
+			}
+		});
+
+		started.await();
+
+		Accounts.transfers(distortion, 1000, true);
+
+		final long pinned_bytes = kv.pinnedBytes();
+		written.countDown();
+		reader.get();
+
+		// once the reader's gone, the next writes reclaim what it held
+		for (int i = 0; i < 100; i++) {
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					for (int i = 0; i < Accounts.ACCOUNTS; i++) {
+						persistent.put("account" + i, (Integer) persistent.get("account" + i));
+					}
+				}
+			}).get();
+		}
+
+		distortion.shutdown();
+		store.shutdown();
+
+		System.out.println("pinned bytes " + pinned_bytes + " then " + kv.pinnedBytes());
+
+		assert_(runs.get() == 1);
+		assert_(kv.forced_versions.sum() == 0);
+		assert_(pinned_bytes > 1000 * InMemoryHistoryKV.VERSION_BYTES);
+		assert_(kv.pinnedBytes() < pinned_bytes / 10);
+	}
+
+	/**
+	 * Two snapshots started at the same point hold the low watermark there, through later commits, until both are
+	 * closed
+	 */
+	static void watermark() throws InterruptedException, ExecutionException {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new
+		);
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		Accounts.open(distortion, true);
+
+		final DistortionStoreShim<ArrayWrapper, StackToken>.DistortionStoreShimTransaction first = store.newSnapshot();
+		final DistortionStoreShim<ArrayWrapper, StackToken>.DistortionStoreShimTransaction second = store.newSnapshot();
+		first.start(null, null);
+		second.start(null, null);
+
+		synchronized (store.pinned) {
+			assert_(store.pinned.get(first.read_token)[0] == 2);
+		}
+
+		Accounts.transfers(distortion, 100, true);
+
+		assert_(store.lowWatermark().equals(first.read_token));
+		assert_(store.position.compareTo(first.read_token) > 0);
+
+		first.close();
+		assert_(store.lowWatermark().equals(second.read_token));
+
+		second.close();
+		assert_(store.lowWatermark().compareTo(first.read_token) > 0);
+
+		distortion.shutdown();
+		store.shutdown();
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,305 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.MappedHistoryKV;
+import engineering.taikun.distortion.store.imp.OffHeapHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+public class MappedHistoryTest {
+
+	static DistortionStoreShim<ArrayWrapper, StackToken> newStore(final File directory) {
+		return new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> new MappedHistoryKV<>(shim, OffHeapHistoryKV.copying(ArrayWrapper::new), directory)
+		);
+	}
+
+	static Distortion newDistortion(final DistortionStoreShim<ArrayWrapper, StackToken> store) {
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		return new Distortion<>(store, new OptimisticAI(), util, 4);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException, IOException {
+		System.out.println("Mapped history test");
+
+		final File directory = Files.createTempDirectory("distortion-mapped").toFile();
+
+		try {
+			restart(new File(directory, "restart"));
+			recovery(new File(directory, "recovery"));
+			tornDelete(new File(directory, "torn"), new File(directory, "torn-copy"));
+			compaction(new File(directory, "compaction"));
+		} finally {
+			delete(directory);
+		}
+
+		System.out.println("passed");
+	}
+
+	static void restart(final File directory) throws InterruptedException, ExecutionException {
+		final DistortionStoreShim<ArrayWrapper, StackToken> first_store = newStore(directory);
+		final Distortion first = newDistortion(first_store);
+
+		Accounts.open(first, true);
+		Accounts.transfers(first, 500, true);
+
+		final int[] before = Accounts.balances(first, true);
+
+		first.shutdown();
+		first_store.shutdown();
+
+		// everything comes back
+		final DistortionStoreShim<ArrayWrapper, StackToken> second_store = newStore(directory);
+		final Distortion second = newDistortion(second_store);
+
+		final int[] after = Accounts.balances(second, true);
+
+		second.shutdown();
+		second_store.shutdown();
+
+		for (int i = 0; i < Accounts.ACCOUNTS; i++) {
+			assert_(before[i] == after[i]);
+		}
+
+		assert_(Accounts.total(after) == Accounts.TOTAL);
+	}
+
+	static void recovery(final File directory) throws IOException {
+		final MappedHistoryKV<ArrayWrapper, StackToken> kv = open(directory);
+
+		StackToken token = new StackToken();
+
+		for (int i = 0; i < 100; i++) {
+			token = token.getNextToken();
+			kv.write(Collections.singletonMap(key(i), new ArrayWrapper(new byte[]{ (byte) i })), token);
+		}
+
+		// a delete, then the last record
+		token = token.getNextToken();
+		kv.write(Collections.singletonMap(key(50), null), token);
+
+		token = token.getNextToken();
+		kv.write(Collections.singletonMap(key(99), new ArrayWrapper(new byte[]{ 100 })), token);
+
+		kv.shutdown();
+
+		// clean, nothing to replay
+		final MappedHistoryKV<ArrayWrapper, StackToken> clean = open(directory);
+
+		assert_(clean.size() == 99);
+		assert_(clean.read(key(99), new StackToken()).equals(new ArrayWrapper(new byte[]{ 100 })));
+		assert_(clean.read(key(50), new StackToken()) == null);
+
+		clean.shutdown();
+
+		// pretend we went down mid-write: not clean, nothing checkpointed, and the last record torn
+		try (final RandomAccessFile index = new RandomAccessFile(new File(directory, "index"), "rw")) {
+			index.seek(16);
+			index.writeLong(0);
+			index.writeInt(0);
+		}
+
+		Files.delete(new File(directory, "index.journal").toPath());
+
+		try (final RandomAccessFile segment = new RandomAccessFile(new File(directory, "segment-000000"), "rw")) {
+			// every record is 12 + 3 + 1 bytes, the delete 12 + 3
+			final long last = 100 * 16 + 15;
+
+			segment.seek(last + 12 + 3);
+			segment.writeByte(7);
+		}
+
+		final MappedHistoryKV<ArrayWrapper, StackToken> recovered = open(directory);
+
+		assert_(recovered.size() == 99);
+		assert_(recovered.read(key(99), new StackToken()).equals(new ArrayWrapper(new byte[]{ 99 })));
+		assert_(recovered.read(key(50), new StackToken()) == null);
+		assert_(recovered.read(key(7), new StackToken()).equals(new ArrayWrapper(new byte[]{ 7 })));
+
+		// and the log goes on from where it was good
+		recovered.write(
+				Collections.singletonMap(key(1000), new ArrayWrapper(new byte[]{ 1 })), new StackToken().getNextToken()
+		);
+		recovered.shutdown();
+
+		final MappedHistoryKV<ArrayWrapper, StackToken> reopened = open(directory);
+
+		assert_(reopened.size() == 100);
+		assert_(reopened.read(key(99), new StackToken()).equals(new ArrayWrapper(new byte[]{ 99 })));
+
+		reopened.shutdown();
+	}
+
+	/**
+	 * Deletes since the last sync shift slots back across the whole index, and the OS only got some of the index's
+	 * pages down before going down
+	 */
+	static void tornDelete(final File directory, final File copy) throws IOException {
+		final MappedHistoryKV<ArrayWrapper, StackToken> kv = open(directory);
+
+		StackToken token = new StackToken();
+
+		for (int i = 0; i < 500; i++) {
+			token = token.getNextToken();
+			kv.write(Collections.singletonMap(key(i), new ArrayWrapper(new byte[]{ (byte) i })), token);
+		}
+
+		kv.sync();
+
+		final byte[] synced = Files.readAllBytes(new File(directory, "index").toPath());
+
+		for (int i = 0; i < 500; i += 2) {
+			token = token.getNextToken();
+			kv.write(Collections.singletonMap(key(i), null), token);
+		}
+
+		// what's on disk if it all went down now, with every other page of the index as of the sync
+		assert_(copy.mkdirs());
+
+		for (final File file : directory.listFiles()) {
+			Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+		}
+
+		final byte[] index = Files.readAllBytes(new File(copy, "index").toPath());
+
+		for (int page = 0; page * 4096 < index.length; page += 2) {
+			System.arraycopy(synced, page * 4096, index, page * 4096, Math.min(4096, index.length - page * 4096));
+		}
+
+		Files.write(new File(copy, "index").toPath(), index);
+
+		kv.shutdown();
+
+		final MappedHistoryKV<ArrayWrapper, StackToken> recovered = open(copy);
+
+		assert_(recovered.size() == 250);
+
+		for (int i = 0; i < 500; i++) {
+			final ArrayWrapper value = recovered.read(key(i), new StackToken());
+			assert_(i % 2 == 0 ? value == null : value.equals(new ArrayWrapper(new byte[]{ (byte) i })));
+		}
+
+		recovered.shutdown();
+	}
+
+	/**
+	 * Thousands of transfers over ten accounts leave the old segments nearly all dead, compacting gets rid of them and
+	 * the balances come back from what's left, through a clean open and through an index rebuilt from the log
+	 */
+	static void compaction(final File directory) throws InterruptedException, ExecutionException, IOException {
+		final MappedHistoryKV[] history = new MappedHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> history[0] = new MappedHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), directory, 4096, 60_000
+				)
+		);
+		final Distortion distortion = newDistortion(store);
+
+		Accounts.open(distortion, true);
+		Accounts.transfers(distortion, 2000, true);
+
+		final int[] before = Accounts.balances(distortion, true);
+		final int written = segments(directory);
+
+		history[0].gc();
+
+		//noinspection StatementWithEmptyBody
+		while (history[0].compact()) {}
+
+		assert_(written > 10);
+		assert_(segments(directory) <= 2);
+		assert_(!new File(directory, "segment-000000").exists());
+
+		final int[] compacted = Accounts.balances(distortion, true);
+
+		distortion.shutdown();
+		store.shutdown();
+
+		for (int i = 0; i < Accounts.ACCOUNTS; i++) {
+			assert_(compacted[i] == before[i]);
+		}
+
+		for (int rebuild = 0; rebuild < 2; rebuild++) {
+			if (rebuild == 1) {
+				Files.delete(new File(directory, "index").toPath());
+			}
+
+			final DistortionStoreShim<ArrayWrapper, StackToken> reopened_store = new DistortionStoreShim<>(
+					ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+					shim -> new MappedHistoryKV<>(shim, OffHeapHistoryKV.copying(ArrayWrapper::new), directory, 4096, 60_000)
+			);
+			final Distortion reopened = newDistortion(reopened_store);
+
+			final int[] after = Accounts.balances(reopened, true);
+
+			reopened.shutdown();
+			reopened_store.shutdown();
+
+			for (int i = 0; i < Accounts.ACCOUNTS; i++) {
+				assert_(after[i] == before[i]);
+			}
+		}
+	}
+
+	static int segments(final File directory) {
+		int segments = 0;
+
+		for (final String name : directory.list()) {
+			if (name.startsWith("segment-")) {
+				segments++;
+			}
+		}
+
+		return segments;
+	}
+
+	static MappedHistoryKV<ArrayWrapper, StackToken> open(final File directory) {
+		final MappedHistoryKV[] history = new MappedHistoryKV[1];
+
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), null,
+				shim -> history[0] = new MappedHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), directory, 4096, 60_000
+				)
+		);
+
+		return history[0];
+	}
+
+	static ArrayWrapper key(final int i) {
+		return new ArrayWrapper(new byte[]{ 'k', (byte) (i >> 8), (byte) i });
+	}
+
+	static void delete(final File file) {
+		final File[] children = file.listFiles();
+
+		if (children != null) {
+			for (final File child : children) {
+				delete(child);
+			}
+		}
+
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,119 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.OffHeapHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Compares GC activity and throughput of the off-heap history against the in-memory one, loading a few million keys
+ * straight into the history then reading them back at random
+ *
+ * Run with a fixed heap (say -Xmx2g -XX:MaxDirectMemorySize=2g) so the numbers compare
+ */
+public class OffHeapHistoryBenchmark {
+
+	public static void main(final String[] args) throws ExpiredReadException {
+
+		final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		final int value_size = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+
+		run("IN_MEMORY", InMemoryHistoryKV::new, keys, value_size);
+		run(
+				"OFF_HEAP",
+				shim -> new OffHeapHistoryKV<>(shim, OffHeapHistoryKV.copying(ArrayWrapper::new), 4L << 30),
+				keys, value_size
+		);
+	}
+
+	static void run(
+			final String name, final Function<DistortionStoreShim, HistoryKV<?, ArrayWrapper, StackToken>> history_fn,
+			final int keys, final int value_size
+	) throws ExpiredReadException {
+
+		final HistoryKV[] history = new HistoryKV[1];
+
+		new DistortionStoreShim<>(ArrayWrapper.UTIL, new StackToken(), shim -> history[0] = history_fn.apply(shim), null);
+
+		final HistoryKV<?, ArrayWrapper, StackToken> kv = history[0];
+
+		System.gc();
+
+		final long gc_before = gcMillis();
+		final long count_before = gcCount();
+
+		StackToken token = new StackToken();
+
+		final long write_start = System.nanoTime();
+
+		// commits of 100 keys
+		for (int i = 0; i < keys; i += 100) {
+			final HashMap<ArrayWrapper, ArrayWrapper> values = new HashMap<>();
+
+			for (int j = i; j < i + 100 && j < keys; j++) {
+				values.put(key(j), new ArrayWrapper(new byte[value_size]));
+			}
+
+			token = token.getNextToken();
+			kv.write(values, token);
+		}
+
+		final long write_elapsed = System.nanoTime() - write_start;
+
+		final long read_start = System.nanoTime();
+
+		long found = 0;
+		for (int i = 0; i < keys; i++) {
+			if (kv.read(key(ThreadLocalRandom.current().nextInt(keys)), token) != null) {
+				found++;
+			}
+		}
+
+		final long read_elapsed = System.nanoTime() - read_start;
+
+		final long gc_after = gcMillis();
+		final long count_after = gcCount();
+
+		System.gc();
+
+		final long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+		System.out.println(name);
+		System.out.println("writes/s: " + keys * 1_000_000_000L / write_elapsed);
+		System.out.println("reads/s: " + keys * 1_000_000_000L / read_elapsed + " (" + found + " found)");
+		System.out.println("gc collections: " + (count_after - count_before) + ", gc ms: " + (gc_after - gc_before));
+		System.out.println("heap after full gc MB: " + heap / (1024 * 1024));
+
+		kv.shutdown();
+		history[0] = null;
+	}
+
+	static ArrayWrapper key(final int i) {
+		return new ArrayWrapper(new byte[]{ 0, 5, 'k', (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i });
+	}
+
+	static long gcMillis() {
+		long total = 0;
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += bean.getCollectionTime();
+		}
+		return total;
+	}
+
+	static long gcCount() {
+		long total = 0;
+		for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += bean.getCollectionCount();
+		}
+		return total;
+	}
+}
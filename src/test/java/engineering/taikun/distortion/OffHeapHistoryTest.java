@@ -0,0 +1,247 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.serialization.util.ByteBufferWrapper;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.OffHeapHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class OffHeapHistoryTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Off heap history test");
+
+		transfers();
+		views();
+		budget();
+		atomic();
+		commit();
+
+		System.out.println("passed");
+	}
+
+	static void transfers() throws InterruptedException, ExecutionException {
+		final OffHeapHistoryKV[] history = new OffHeapHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new OffHeapHistoryKV<>(shim, OffHeapHistoryKV.copying(ArrayWrapper::new), 16L << 20),
+				null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		Accounts.open(distortion, false);
+		Accounts.transfers(distortion, 2000, false);
+
+		final int total = Accounts.total(Accounts.balances(distortion, false));
+
+		distortion.shutdown();
+
+		System.out.println(distortion.getStats());
+		System.out.println("used bytes: " + history[0].usedBytes() + ", reserved bytes: " + history[0].reservedBytes());
+		System.out.println("tokens: " + history[0].tokens());
+
+		assert_(total == Accounts.TOTAL);
+
+		// old versions were freed as the keys were rewritten, 4000 of them would take 256K in blocks alone
+		assert_(history[0].usedBytes() < 64 * 1024);
+
+		// and the tokens behind the watermark went with them, without waiting for the GC thread
+		assert_(history[0].tokens() < 100);
+	}
+
+	static void views() throws InterruptedException {
+		final OffHeapHistoryKV[] history = new OffHeapHistoryKV[1];
+
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), shim -> history[0] = new OffHeapHistoryKV<>(shim, ByteBufferWrapper::new),
+				null
+		);
+
+		final OffHeapHistoryKV<ByteBufferWrapper, StackToken> kv = history[0];
+
+		final StackToken first = new StackToken().getNextToken();
+		final StackToken second = first.getNextToken();
+
+		final ArrayWrapper key = new ArrayWrapper(new byte[]{ 1, 2, 3 });
+
+		kv.write(Collections.singletonMap(key, new ByteBufferWrapper(ByteBuffer.wrap(new byte[]{ 4, 5 }))), first);
+
+		final HashMap<ArrayWrapper, ByteBufferWrapper> delete = new HashMap<>();
+		delete.put(key, null);
+		kv.write(delete, second);
+
+		try {
+			assert_(kv.read(key, new StackToken()) == null);
+
+			final ByteBufferWrapper value = kv.read(key, first);
+			assert_(value.buffer.isDirect());
+			assert_(value.equals(new ArrayWrapper(new byte[]{ 4, 5 })));
+
+			assert_(kv.read(key, second) == null);
+			assert_(kv.read(new ArrayWrapper(new byte[]{ 9 }), second) == null);
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		assert_(kv.lastWriter(key).compareTo(second) == 0);
+		assert_(kv.size() == 1);
+
+		kv.shutdown();
+	}
+
+	static void budget() {
+		final OffHeapHistoryKV[] history = new OffHeapHistoryKV[1];
+
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new OffHeapHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), 64 * 1024, 16 * 1024, 60_000
+				),
+				null
+		);
+
+		final OffHeapHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		StackToken token = new StackToken();
+
+		boolean threw = false;
+		try {
+			// nothing can be freed, the shim's watermark never moves
+			for (int i = 0; i < 1000; i++) {
+				token = token.getNextToken();
+				kv.write(Collections.singletonMap(
+						new ArrayWrapper(new byte[]{ (byte) i, (byte) (i >> 8) }), new ArrayWrapper(new byte[200])
+				), token);
+			}
+		} catch (final IllegalStateException ignored) {
+			threw = true;
+		}
+
+		assert_(threw);
+		assert_(kv.reservedBytes() <= 64 * 1024);
+
+		kv.shutdown();
+	}
+
+	/**
+	 * <p>A write that doesn't fit leaves nothing of itself behind</p>
+	 */
+	static void atomic() {
+		final OffHeapHistoryKV[] history = new OffHeapHistoryKV[1];
+
+		new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				shim -> history[0] = new OffHeapHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), 64 * 1024, 16 * 1024, 60_000
+				),
+				null
+		);
+
+		final OffHeapHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final HashMap<ArrayWrapper, ArrayWrapper> writes = new HashMap<>();
+		for (int i = 0; i < 16; i++) {
+			writes.put(new ArrayWrapper(new byte[]{ (byte) i }), new ArrayWrapper(new byte[]{ (byte) i }));
+		}
+
+		// a block of its own, bigger than the whole budget
+		writes.put(new ArrayWrapper(new byte[]{ 100 }), new ArrayWrapper(new byte[128 * 1024]));
+
+		final long used = kv.usedBytes();
+		final StackToken token = new StackToken().getNextToken();
+
+		boolean threw = false;
+		try {
+			kv.write(writes, token);
+		} catch (final IllegalStateException ignored) {
+			threw = true;
+		}
+
+		assert_(threw);
+		assert_(kv.size() == 0);
+		assert_(kv.usedBytes() == used);
+
+		try {
+			for (final ArrayWrapper key : writes.keySet()) {
+				assert_(kv.read(key, token) == null);
+			}
+		} catch (final Exception e) {
+			throw new RuntimeException(e);
+		}
+
+		// and the room is still there for one that fits
+		writes.remove(new ArrayWrapper(new byte[]{ 100 }));
+		kv.write(writes, token.getNextToken());
+
+		assert_(kv.size() == 16);
+
+		kv.shutdown();
+	}
+
+	/**
+	 * <p>A commit that doesn't fit fails before any of it is written, the ephemeral history included</p>
+	 */
+	static void commit() throws InterruptedException, ExecutionException {
+		final InMemoryHistoryKV[] ephemeral_history = new InMemoryHistoryKV[1];
+		final OffHeapHistoryKV[] history = new OffHeapHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), shim -> ephemeral_history[0] = new InMemoryHistoryKV<>(shim),
+				shim -> history[0] = new OffHeapHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), 64 * 1024, 16 * 1024, 60_000
+				)
+		);
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		Accounts.open(distortion, true);
+		Accounts.transfers(distortion, 100, true);
+
+		final long ephemeral_bytes = ephemeral_history[0].retainedBytes();
+		final int keys = history[0].size();
+
+		boolean threw = false;
+		try {
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put("marker", 1);
+					persistent.put("big", new byte[128 * 1024]);
+				}
+			}).get(10, TimeUnit.SECONDS);
+		} catch (final ExecutionException ignored) {
+			threw = true;
+		} catch (final TimeoutException e) {
+			throw new RuntimeException(e);
+		}
+
+		distortion.shutdown();
+
+		assert_(threw);
+		assert_(ephemeral_history[0].retainedBytes() == ephemeral_bytes);
+		assert_(history[0].size() == keys);
+
+		store.shutdown();
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,126 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.PackedToken;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+public class PackedTokenTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Packed token test");
+
+		againstStackTokens();
+		overflow();
+		transfers();
+
+		System.out.println("passed");
+	}
+
+	/**
+	 * Random walks of both kinds of token side by side, every pair has to order the same way
+	 */
+	static void againstStackTokens() {
+		final Random random = new Random(3);
+
+		final ArrayList<PackedToken> packed = new ArrayList<>();
+		final ArrayList<StackToken> stack = new ArrayList<>();
+
+		packed.add(new PackedToken());
+		stack.add(new StackToken());
+
+		for (int i = 0; i < 2000; i++) {
+			final int from = random.nextInt(packed.size());
+
+			// deep chains as well as shallow ones, past LEVELS now and again
+			if (random.nextInt(3) == 0) {
+				packed.add(packed.get(from).getDeepToken());
+				stack.add(stack.get(from).getDeepToken());
+			} else {
+				packed.add(packed.get(from).getNextToken());
+				stack.add(stack.get(from).getNextToken());
+			}
+		}
+
+		boolean deep = false;
+
+		for (int i = 0; i < packed.size(); i++) {
+			assert_(packed.get(i).toString().equals(stack.get(i).toString()));
+			deep |= packed.get(i).depth() > PackedToken.LEVELS;
+
+			for (int j = 0; j < packed.size(); j++) {
+				final PackedToken a = packed.get(i);
+				final PackedToken b = packed.get(j);
+
+				assert_(Integer.signum(a.compareTo(b)) == Integer.signum(stack.get(i).compareTo(stack.get(j))));
+				assert_(a.preceeds(b) == stack.get(i).preceeds(stack.get(j)));
+				assert_(a.equals(b) == (a.compareTo(b) == 0));
+				assert_(!a.equals(b) || a.hashCode() == b.hashCode());
+			}
+		}
+
+		assert_(deep);
+	}
+
+	/**
+	 * Levels past what's packed, and back to the same tokens however they were made
+	 */
+	static void overflow() {
+		PackedToken token = new PackedToken().getDeepToken();
+		StackToken stack_token = new StackToken().getDeepToken();
+
+		for (int i = 0; i < PackedToken.MAX_PACKED + 10; i++) {
+			final PackedToken next = token.getNextToken();
+			final StackToken stack_next = stack_token.getNextToken();
+
+			assert_(token.compareTo(next) < 0);
+			assert_(token.preceeds(next) && !next.preceeds(token));
+			assert_(next.getDeepToken().preceeds(next.getNextToken()));
+			assert_(next.toString().equals(stack_next.toString()));
+
+			token = next;
+			stack_token = stack_next;
+		}
+
+		assert_(token.level(0) == PackedToken.MAX_PACKED + 10);
+
+		// a packed token against an unpacked one, with the same root
+		final PackedToken packed = new PackedToken().getDeepToken().getNextToken();
+
+		assert_(packed.compareTo(token) < 0 && token.compareTo(packed) > 0);
+		assert_(packed.preceeds(token) && !token.preceeds(packed));
+	}
+
+	static void transfers() throws InterruptedException, ExecutionException {
+		final DistortionStoreShim<ArrayWrapper, PackedToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new PackedToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		Accounts.open(distortion, true);
+		Accounts.transfers(distortion, 300, true);
+
+		final int total = Accounts.total(Accounts.balances(distortion, true));
+
+		distortion.shutdown();
+		store.shutdown();
+
+		assert_(total == Accounts.TOTAL);
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
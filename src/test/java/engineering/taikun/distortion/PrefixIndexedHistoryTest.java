@@ -0,0 +1,344 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.PrefixIndexedHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.KeyTrie;
+import org.testng.annotations.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class PrefixIndexedHistoryTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Prefix indexed history test");
+
+		trie();
+		nested();
+		prune();
+
+		System.out.println("passed");
+	}
+
+	static void trie() {
+		final KeyTrie<String> trie = new KeyTrie<>();
+
+		// edges split partway, keys ending on a split, a key that's a prefix of others and the empty key
+		final String[] keys = { "abcdef", "abcxyz", "abc", "ab", "b", "", "abcdefgh", "abcdeg", "ÿ\u0080" };
+
+		for (final String key : keys) {
+			assert_(trie.get(bytes(key)) == null);
+			assert_(trie.computeIfAbsent(bytes(key), k -> key).equals(key));
+		}
+
+		for (final String key : keys) {
+			assert_(key.equals(trie.get(bytes(key))));
+			assert_(trie.computeIfAbsent(bytes(key), k -> "again").equals(key));
+		}
+
+		for (final String missing : new String[]{ "a", "abcd", "abcdefg", "abcx", "c", "bb", "ÿ" }) {
+			assert_(trie.get(bytes(missing)) == null);
+		}
+
+		assert_(trie.size() == keys.length);
+
+		// taking out leaves, a value on a node, a fork that goes and the empty key
+		assert_(!trie.remove(bytes("abcd"), value -> true));
+		assert_(!trie.remove(bytes("abc"), value -> false));
+
+		for (final String key : new String[]{ "abcdeg", "abc", "", "abcxyz" }) {
+			assert_(trie.remove(bytes(key), key::equals));
+			assert_(trie.get(bytes(key)) == null);
+		}
+
+		for (final String key : new String[]{ "abcdef", "ab", "b", "abcdefgh", "ÿ\u0080" }) {
+			assert_(key.equals(trie.get(bytes(key))));
+		}
+
+		assert_(trie.size() == keys.length - 4);
+		assert_(trie.computeIfAbsent(bytes("abc"), k -> "back").equals("back"));
+		assert_(trie.get(bytes("abcdef")).equals("abcdef"));
+
+		// lots of keys from a few letters, against a HashMap
+		final KeyTrie<String> random_trie = new KeyTrie<>();
+		final HashMap<String, String> expected = new HashMap<>();
+		final Random random = new Random(7);
+
+		for (int i = 0; i < 20_000; i++) {
+			final char[] chars = new char[random.nextInt(10)];
+			for (int j = 0; j < chars.length; j++) {
+				chars[j] = (char) ("abcde\u0080\u00ff".charAt(random.nextInt(7)));
+			}
+
+			final String key = new String(chars);
+
+			if (random.nextBoolean()) {
+				assert_(random_trie.computeIfAbsent(bytes(key), k -> key).equals(key));
+				expected.put(key, key);
+			} else {
+				assert_(Objects.equals(random_trie.get(bytes(key)), expected.get(key)));
+			}
+		}
+
+		for (final String key : expected.keySet()) {
+			assert_(key.equals(random_trie.get(bytes(key))));
+		}
+
+		assert_(random_trie.size() == expected.size());
+
+		// and taking them all out again, in another order, leaves it as it started
+		final ArrayList<String> all = new ArrayList<>(expected.keySet());
+		Collections.shuffle(all, random);
+
+		for (int i = 0; i < all.size(); i++) {
+			assert_(random_trie.remove(bytes(all.get(i)), value -> true));
+			assert_(random_trie.get(bytes(all.get(i))) == null);
+
+			if (i % 100 == 0) {
+				for (int j = i + 1; j < all.size(); j++) {
+					assert_(all.get(j).equals(random_trie.get(bytes(all.get(j)))));
+				}
+			}
+		}
+
+		assert_(random_trie.size() == 0);
+		assert_(random_trie.bytes() == new KeyTrie<String>().bytes());
+	}
+
+	static void nested() throws InterruptedException, ExecutionException {
+		final PrefixIndexedHistoryKV[] history = new PrefixIndexedHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> history[0] = new PrefixIndexedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim))
+		);
+
+		@SuppressWarnings("unchecked")
+		final PrefixIndexedHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				persistent.put("organisation", new HashMap<>());
+			}
+		}).get();
+
+		// maps in maps in maps in maps, every key of a team shares its department's prefix and its own
+		for (int department = 0; department < 4; department++) {
+			final String name = "department-" + department;
+
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					final HashMap<String, Object> teams = new HashMap<>();
+
+					for (int team = 0; team < 5; team++) {
+						final HashMap<String, Integer> accounts = new HashMap<>();
+
+						for (int i = 0; i < 50; i++) {
+							accounts.put("account" + i, 100);
+						}
+
+						teams.put("team-" + team, accounts);
+					}
+
+					((Map) persistent.get("organisation")).put(name, teams);
+				}
+			}).get();
+		}
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 500; i++) {
+			futures.add(distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+					final Map from = team(persistent, random.nextInt(4), random.nextInt(5));
+					final Map to = team(persistent, random.nextInt(4), random.nextInt(5));
+
+					final String from_account = "account" + random.nextInt(50);
+					final String to_account = "account" + random.nextInt(50);
+
+					from.put(from_account, (Integer) from.get(from_account) - 1);
+					to.put(to_account, (Integer) to.get(to_account) + 1);
+				}
+			}));
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final int[] total = new int[1];
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				total[0] = 0;
+
+				for (int department = 0; department < 4; department++) {
+					for (int team = 0; team < 5; team++) {
+						final Map accounts = team(persistent, department, team);
+
+						for (int i = 0; i < 50; i++) {
+							total[0] += (Integer) accounts.get("account" + i);
+						}
+
+						assert_(accounts.get("nobody") == null);
+					}
+				}
+
+				assert_(((Map) persistent.get("organisation")).get("department-9") == null);
+
+				// deletes, and the key coming back
+				team(persistent, 0, 0).remove("account0");
+			}
+		}).get();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				assert_(team(persistent, 0, 0).get("account0") == null);
+				team(persistent, 0, 0).put("account0", 7);
+			}
+		}).get();
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				assert_((Integer) team(persistent, 0, 0).get("account0") == 7);
+			}
+		}).get();
+
+		distortion.shutdown();
+		store.shutdown();
+
+		System.out.println(
+				"keys " + kv.keys() + ", plain key bytes " + kv.plainKeyBytes() + ", index bytes " + kv.indexBytes()
+		);
+
+		assert_(total[0] == 4 * 5 * 50 * 100);
+		assert_(kv.keys() >= 4 * 5 * 50);
+		assert_(kv.indexBytes() < kv.plainKeyBytes());
+	}
+
+	/**
+	 * Deleted keys go once no one can read them and their ids go to new keys, not while a snapshot from before the
+	 * delete is open or a commit that prepared the key hasn't written yet
+	 */
+	static void prune() {
+		final PrefixIndexedHistoryKV[] history = new PrefixIndexedHistoryKV[1];
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), null,
+				shim -> history[0] = new PrefixIndexedHistoryKV<>(shim, new InMemoryHistoryKV<>(shim))
+		);
+
+		@SuppressWarnings("unchecked")
+		final PrefixIndexedHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final ArrayWrapper one = new ArrayWrapper(new byte[]{ 1 });
+		final ArrayWrapper two = new ArrayWrapper(new byte[]{ 2 });
+
+		StackToken token = store.position;
+
+		final HashMap<ArrayWrapper, ArrayWrapper> puts = new HashMap<>();
+		final HashMap<ArrayWrapper, ArrayWrapper> deletes = new HashMap<>();
+
+		for (int i = 0; i < 100; i++) {
+			puts.put(bytes("some/long/prefix/key" + i), one);
+			deletes.put(bytes("some/long/prefix/key" + i), null);
+		}
+
+		token = token.getNextToken();
+		kv.write(puts, token);
+		store.position = token;
+
+		// a snapshot from before the deletes holds them back
+		final DistortionStoreShim<ArrayWrapper, StackToken>.DistortionStoreShimTransaction snapshot = store.newSnapshot();
+		snapshot.start(null, null);
+
+		token = token.getNextToken();
+		kv.write(deletes, token);
+		store.position = token;
+
+		kv.prune();
+
+		assert_(kv.keys() == 100);
+		assert_(kv.pruned.sum() == 0);
+		assert_(kv.read(bytes("some/long/prefix/key7"), snapshot.read_token).equals(one));
+
+		snapshot.close();
+
+		// a commit that prepared key0 before the prune (and whose read point the watermark is at) holds it back too
+		final Map<? extends ByteArray, ArrayWrapper> prepared = kv.prepare(
+				Collections.singletonMap(bytes("some/long/prefix/key0"), two)
+		);
+
+		kv.prune();
+
+		assert_(kv.keys() == 1);
+		assert_(kv.pruned.sum() == 99);
+		assert_(kv.read(bytes("some/long/prefix/key7"), token) == null);
+
+		token = token.getNextToken();
+		kv.write(prepared, token);
+		store.position = token;
+
+		kv.prune();
+
+		assert_(kv.keys() == 1);
+		assert_(kv.read(bytes("some/long/prefix/key0"), token).equals(two));
+
+		// new keys get the ids back, and don't see the old keys' versions
+		final HashMap<ArrayWrapper, ArrayWrapper> others = new HashMap<>();
+
+		for (int i = 0; i < 99; i++) {
+			others.put(bytes("another/prefix/key" + i), two);
+		}
+
+		final DistortionStoreShim<ArrayWrapper, StackToken>.DistortionStoreShimTransaction before = store.newSnapshot();
+		before.start(null, null);
+
+		token = token.getNextToken();
+		kv.write(others, token);
+		store.position = token;
+
+		assert_(kv.keys() == 100);
+
+		for (int i = 0; i < 99; i++) {
+			assert_(kv.read(bytes("another/prefix/key" + i), token).equals(two));
+			assert_(kv.read(bytes("another/prefix/key" + i), before.read_token) == null);
+			assert_(kv.read(bytes("some/long/prefix/key" + (i + 1)), token) == null);
+		}
+
+		before.close();
+		store.shutdown();
+	}
+
+	static Map team(final Map persistent, final int department, final int team) {
+		final Map organisation = (Map) persistent.get("organisation");
+
+		return (Map) ((Map) organisation.get("department-" + department)).get("team-" + team);
+	}
+
+	static ArrayWrapper bytes(final String string) {
+		return new ArrayWrapper(string.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,147 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.SerializationUtil.SerializationContext;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.DebugKV;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Serializing and deserializing large double[]s and int[]s, against the element-at-a-time encoding they used to have
+ * (a byte[] per element through the unions, then compose), which writes the same bytes
+ */
+public class PrimitiveArrayBenchmark {
+
+	static final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 1);
+
+	public static void main(final String[] args) {
+
+		final int length = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		final int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		final SerializationContext ctx = util.new SerializationContext(new DebugKV());
+
+		final Random random = new Random(5);
+
+		final double[] doubles = new double[length];
+		final int[] ints = new int[length];
+
+		for (int i = 0; i < length; i++) {
+			doubles[i] = random.nextDouble();
+			ints[i] = random.nextInt();
+		}
+
+		// warm up, then for real
+		for (int round = 0; round < 2; round++) {
+			final boolean print = round == 1;
+
+			run("double[] element at a time", () -> legacy(doubles), bytes -> legacyDoubles(bytes), rounds, print);
+			run("double[] bulk", () -> ctx.serialize(doubles), bytes -> ctx.unpack(null, bytes), rounds, print);
+			run("int[] element at a time", () -> legacy(ints), bytes -> legacyInts(bytes), rounds, print);
+			run("int[] bulk", () -> ctx.serialize(ints), bytes -> ctx.unpack(null, bytes), rounds, print);
+		}
+
+		assert_(legacy(doubles).equals(ctx.serialize(doubles)));
+		assert_(Arrays.equals(legacyDoubles(ctx.serialize(doubles)), (double[]) ctx.unpack(null, legacy(doubles))));
+		assert_(legacy(ints).equals(ctx.serialize(ints)));
+	}
+
+	interface Serialize {
+		ByteArray run();
+	}
+
+	interface Deserialize {
+		Object run(ByteArray bytes);
+	}
+
+	static void run(
+			final String name, final Serialize serialize, final Deserialize deserialize, final int rounds, final boolean print
+	) {
+		ByteArray bytes = null;
+		long checksum = 0;
+
+		final long serialize_start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++) {
+			bytes = serialize.run();
+			checksum += bytes.length();
+		}
+
+		final long serialize_time = System.nanoTime() - serialize_start;
+
+		final long deserialize_start = System.nanoTime();
+
+		for (int i = 0; i < rounds; i++) {
+			checksum += deserialize.run(bytes).hashCode();
+		}
+
+		final long deserialize_time = System.nanoTime() - deserialize_start;
+
+		if (print) {
+			final double megabytes = (double) bytes.length() * rounds / (1 << 20);
+
+			System.out.printf(
+					"%s: serialize %.0fMB/s, deserialize %.0fMB/s (%d)%n",
+					name, megabytes / (serialize_time / 1e9), megabytes / (deserialize_time / 1e9), checksum
+			);
+		}
+	}
+
+	static ByteArray legacy(final double[] dublar) {
+		final byte[][] temp_array = new byte[dublar.length][];
+
+		for (int i = 0; i < dublar.length; i++) {
+			temp_array[i] = util.new LongUnion(Double.doubleToRawLongBits(dublar[i])).getBytes();
+		}
+
+		return header((byte) 0x1D, dublar.length, temp_array);
+	}
+
+	static ByteArray legacy(final int[] intar) {
+		final byte[][] temp_array = new byte[intar.length][];
+
+		for (int i = 0; i < intar.length; i++) {
+			temp_array[i] = util.new IntUnion(intar[i]).getBytes();
+		}
+
+		return header((byte) 0x11, intar.length, temp_array);
+	}
+
+	static ByteArray header(final byte tag, final int length, final byte[][] temp_array) {
+		if (length < 256) {
+			return util.compose(tag, (byte) (length - 128), temp_array);
+		} else if (length < 65536) {
+			return util.compose((byte) (tag + 1), util.new ShortUnion((short) (length - 32768)).getBytes(), temp_array);
+		} else {
+			return util.compose((byte) (tag + 2), util.new IntUnion(length).getBytes(), temp_array);
+		}
+	}
+
+	static double[] legacyDoubles(final ByteArray bytes) {
+		final double[] toreturn = new double[(bytes.length() - 5) / 8];
+		for (int i = 0; i < toreturn.length; i++) {
+			toreturn[i] = Double.longBitsToDouble(util.new LongUnion(
+					bytes.read(i * 8 + 5), bytes.read(i * 8 + 6), bytes.read(i * 8 + 7), bytes.read(i * 8 + 8),
+					bytes.read(i * 8 + 9), bytes.read(i * 8 + 10), bytes.read(i * 8 + 11), bytes.read(i * 8 + 12)
+			).getLong());
+		}
+		return toreturn;
+	}
+
+	static int[] legacyInts(final ByteArray bytes) {
+		final int[] toreturn = new int[(bytes.length() - 5) / 4];
+		for (int i = 0; i < toreturn.length; i++) {
+			toreturn[i] = util.new IntUnion(
+					bytes.read(i * 4 + 5), bytes.read(i * 4 + 6), bytes.read(i * 4 + 7), bytes.read(i * 4 + 8)
+			).getInt();
+		}
+		return toreturn;
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
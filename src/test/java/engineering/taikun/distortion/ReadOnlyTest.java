@@ -0,0 +1,118 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.DistortionFunction;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.api.fn.ReadOnlyFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ReadOnlyTest {
+
+	static Distortion newDistortion() {
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		return new Distortion<>(store, new OptimisticAI(), util, 4);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException {
+		System.out.println("Read only test");
+
+		final Distortion distortion = newDistortion();
+
+		Accounts.open(distortion, false);
+
+		final AtomicInteger inconsistent = new AtomicInteger();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>();
+
+		for (int i = 0; i < 200; i++) {
+			futures.add(distortion.transform(Accounts.transfer(false)));
+
+			futures.add(distortion.transform(new ReadOnlyFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					if (Accounts.total(ephemeral) != Accounts.TOTAL) {
+						inconsistent.incrementAndGet();
+					}
+				}
+			}));
+		}
+
+		// mixed in a batch too
+		final ArrayList<DistortionFunction> batch = new ArrayList<>();
+
+		batch.add(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				ephemeral.put("account0", (Integer) ephemeral.get("account0") - 5);
+				ephemeral.put("account1", (Integer) ephemeral.get("account1") + 5);
+			}
+		});
+
+		batch.add(new ReadOnlyFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				if (Accounts.total(ephemeral) != Accounts.TOTAL) {
+					inconsistent.incrementAndGet();
+				}
+			}
+		});
+
+		futures.add(distortion.transformAll(batch));
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		// writing fails the function, not the engine
+		boolean threw = false;
+		try {
+			distortion.transform(new ReadOnlyFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put("account0", 0);
+				}
+			}).get();
+		} catch (final ExecutionException e) {
+			threw = e.getCause() instanceof UnsupportedOperationException;
+		}
+
+		assert_(threw);
+
+		final int[] total = new int[1];
+
+		distortion.transform(new ReadOnlyFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				total[0] = Accounts.total(ephemeral);
+			}
+		}).get();
+
+		distortion.shutdown();
+
+		final Map stats = distortion.getStats();
+
+		System.out.println(stats);
+
+		assert_(inconsistent.get() == 0);
+		assert_(total[0] == Accounts.TOTAL);
+		assert_((Long) stats.get("read only transactions") >= 202);
+
+		System.out.println("passed");
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -322,6 +322,60 @@ public class SerializationTest {
 			assert_(kv.map.size() == 3);
 		}
 
+		// primitive arrays, byte for byte what they were serialized element at a time
+
+		{
+			Random random = new Random(3);
+
+			for (int length : new int[]{ 0, 10, 255, 256, 500, 65535, 65536, 100_000 }) {
+				short[] short_ar = new short[length];
+				char[] char_ar = new char[length];
+				int[] int_ar = new int[length];
+				long[] long_ar = new long[length];
+				float[] float_ar = new float[length];
+				double[] double_ar = new double[length];
+
+				byte[][][] elements = new byte[6][length][];
+
+				for (int i = 0; i < length; i++) {
+					short_ar[i] = (short) random.nextInt();
+					char_ar[i] = (char) random.nextInt();
+					int_ar[i] = random.nextInt();
+					long_ar[i] = random.nextLong();
+					float_ar[i] = i % 7 == 0 ? Float.intBitsToFloat(0x7FC0_1234) : random.nextFloat(); // odd NaNs
+					double_ar[i] = i % 7 == 0 ? Double.longBitsToDouble(0x7FF8_0000_1234_5678L) : random.nextDouble();
+
+					elements[0][i] = util.new ShortUnion(short_ar[i]).getBytes();
+					elements[1][i] = util.new ShortUnion((short) (char_ar[i] - 32768)).getBytes();
+					elements[2][i] = util.new IntUnion(int_ar[i]).getBytes();
+					elements[3][i] = util.new LongUnion(long_ar[i]).getBytes();
+					elements[4][i] = util.new IntUnion(Float.floatToRawIntBits(float_ar[i])).getBytes();
+					elements[5][i] = util.new LongUnion(Double.doubleToRawLongBits(double_ar[i])).getBytes();
+				}
+
+				Object[] arrays = { short_ar, char_ar, int_ar, long_ar, float_ar, double_ar };
+				byte[] tags = { 0x09, 0x0D, 0x11, 0x15, 0x19, 0x1D };
+
+				for (int i = 0; i < arrays.length; i++) {
+					ByteArray serialized = ctx.serialize(arrays[i]);
+
+					assert_(serialized.equals(legacy(tags[i], length, elements[i])));
+
+					// and back, from something that isn't an ArrayWrapper as well
+					Object unpacked = ctx.unpack(null, serialized);
+					Object unpacked_slice = ctx.unpack(null, util.compose((byte) 0, serialized).slice(1, serialized.length() + 1));
+
+					for (Object object : new Object[]{ unpacked, unpacked_slice }) {
+						assert_(object.getClass() == arrays[i].getClass());
+						assert_(ctx.serialize(object).equals(serialized));
+					}
+				}
+			}
+
+			assert_(Arrays.equals((char[]) ctx.unpack(null, ctx.serialize(new char[]{ 0, 0x7FFF, 0x8000, 0xFFFF })),
+					new char[]{ 0, 0x7FFF, 0x8000, 0xFFFF }));
+		}
+
 		// cold unpack
 
 		dmap.put("a", test_struct);
@@ -610,6 +664,16 @@ public class SerializationTest {
 		System.out.println("passed");
 	}
 
+	static ByteArray legacy(byte tag, int length, byte[][] elements) {
+		if (length < 256) {
+			return util.compose(tag, (byte) (length - 128), elements);
+		} else if (length < 65536) {
+			return util.compose((byte) (tag + 1), util.new ShortUnion((short) (length - 32768)).getBytes(), elements);
+		} else {
+			return util.compose((byte) (tag + 2), util.new IntUnion(length).getBytes(), elements);
+		}
+	}
+
 	public static void assert_(final boolean bool) {
 		if (!bool)
 			throw new RuntimeException();
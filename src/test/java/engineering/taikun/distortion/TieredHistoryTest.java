@@ -0,0 +1,167 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.imp.TieredHistoryKV;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+public class TieredHistoryTest {
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException, IOException {
+		System.out.println("Tiered history test");
+
+		final File directory = Files.createTempDirectory("distortion-tiered").toFile();
+
+		try {
+			run(directory);
+		} finally {
+			MappedHistoryTest.delete(directory);
+		}
+
+		System.out.println("passed");
+	}
+
+	static void run(final File directory) throws InterruptedException, ExecutionException {
+		final TieredHistoryKV[] history = new TieredHistoryKV[1];
+
+		// spilling by hand, merging past 2 runs
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> history[0] = new TieredHistoryKV<>(shim, directory, 1L << 30, 60_000, 16, 2)
+		);
+
+		@SuppressWarnings("unchecked")
+		final TieredHistoryKV<ArrayWrapper, StackToken> kv = history[0];
+
+		final Distortion distortion = MappedHistoryTest.newDistortion(store);
+
+		for (int batch = 0; batch < 10; batch++) {
+			final int first = batch * 100;
+
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					for (int i = first; i < first + 100; i++) {
+						persistent.put("key" + i, i);
+					}
+				}
+			}).get();
+		}
+
+		// moves the low watermark past all of that
+		touch(distortion);
+
+		final long hot_before = kv.hotBytes();
+
+		// the first pass only clears the reference bits
+		kv.spill();
+		assert_(kv.spilled.sum() == 0);
+
+		// with the map's own bookkeeping keys
+		kv.spill();
+		assert_(kv.spilled.sum() >= 1000);
+		assert_(kv.hotBytes() < hot_before / 10);
+		assert_(kv.runCount() == 1);
+
+		// a few come back by being read
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 1000; i += 10) {
+					assert_((Integer) persistent.get("key" + i) == i);
+				}
+
+				assert_(persistent.get("nothing") == null);
+			}
+		}).get();
+
+		assert_(kv.promoted.sum() == 100);
+
+		// some by being written, deleted or updated
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 1; i < 1000; i += 10) {
+					persistent.remove("key" + i);
+				}
+
+				for (int i = 2; i < 1000; i += 10) {
+					persistent.put("key" + i, -i);
+				}
+			}
+		}).get();
+
+		assert_(kv.promoted.sum() >= 300);
+		assert_(kv.shadowedKeys() >= 300);
+
+		// every round brings a few more back and spills them again, for a run each until they're merged
+		for (int round = 0; round < 3; round++) {
+			final int first = 3 + round;
+
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					for (int i = first; i < 1000; i += 10) {
+						assert_((Integer) persistent.get("key" + i) == i);
+					}
+				}
+			}).get();
+
+			touch(distortion);
+			kv.spill();
+			kv.spill();
+		}
+
+		assert_(kv.merges.sum() > 0);
+		assert_(kv.runCount() <= 2);
+
+		// the deleted ones' copies are merged away, the rest have been spilled again since
+		assert_(kv.shadowedKeys() == 0);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < 1000; i++) {
+					final Object value = persistent.get("key" + i);
+
+					if (i % 10 == 1) {
+						assert_(value == null);
+					} else if (i % 10 == 2) {
+						assert_((Integer) value == -i);
+					} else {
+						assert_((Integer) value == i);
+					}
+				}
+			}
+		}).get();
+
+		System.out.println(
+				"spilled " + kv.spilled.sum() + ", promoted " + kv.promoted.sum() + ", merges " + kv.merges.sum()
+						+ ", disk reads " + kv.disk_reads.sum() + ", run bytes " + kv.runBytes()
+		);
+
+		distortion.shutdown();
+		store.shutdown();
+
+		assert_(directory.list().length == 0);
+	}
+
+	static void touch(final Distortion distortion) throws InterruptedException, ExecutionException {
+		for (int i = 0; i < 100; i++) {
+			distortion.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					ephemeral.put("touch", 0);
+				}
+			}).get();
+		}
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}
@@ -0,0 +1,91 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.store.api.DrillingToken;
+import engineering.taikun.distortion.store.imp.PackedToken;
+import engineering.taikun.distortion.store.imp.StackToken;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * PackedToken against StackToken: making tokens the way the shim does (a transaction's next token, its deep token and
+ * the chain behind it), comparing them the way a history's binary search does, and preceeds
+ *
+ * Run it once per kind of token (the first argument, packed or stack): with both in one JVM the second is measured
+ * through call sites the first has already made polymorphic.
+ */
+public class TokenBenchmark {
+
+	public static void main(final String[] args) {
+
+		final boolean packed = args.length == 0 || args[0].equals("packed");
+		final int tokens = args.length > 1 ? Integer.parseInt(args[1]) : 4096; // a power of two
+		final int operations = args.length > 2 ? Integer.parseInt(args[2]) : 10_000_000;
+
+		// warm up, then for real
+		for (int round = 0; round < 2; round++) {
+			final boolean print = round == 1;
+
+			if (packed) {
+				run("PackedToken", new PackedToken(), new PackedToken[tokens], tokens, operations, print);
+			} else {
+				run("StackToken", new StackToken(), new StackToken[tokens], tokens, operations, print);
+			}
+		}
+	}
+
+	static <DT extends DrillingToken<DT>> void run(
+			final String name, final DT root, final DT[] made, final int tokens, final int operations, final boolean print
+	) {
+		// generation: every transaction's token, its deep token, and a couple of chained tokens behind it
+		DT advancing = root;
+		long checksum = 0;
+
+		final long generate_start = System.nanoTime();
+
+		for (int i = 0; i < operations / 4; i++) {
+			advancing = advancing.getNextToken();
+
+			final DT chaining = advancing.getDeepToken();
+			final DT behind = chaining.getNextToken();
+
+			checksum += behind.getNextToken().hashCode();
+		}
+
+		final long generate_time = System.nanoTime() - generate_start;
+
+		// a history's versions: mostly transaction tokens, some chained behind others
+		final Random random = new Random(11);
+		DT token = root;
+
+		for (int i = 0; i < tokens; i++) {
+			token = token.getNextToken();
+			made[i] = random.nextInt(4) == 0 ? token.getDeepToken().getNextToken() : token;
+		}
+
+		Arrays.sort(made);
+
+		final long compare_start = System.nanoTime();
+
+		for (int i = 0; i < operations; i++) {
+			checksum += Arrays.binarySearch(made, made[i & tokens - 1]);
+		}
+
+		final long compare_time = System.nanoTime() - compare_start;
+
+		final long preceeds_start = System.nanoTime();
+
+		for (int i = 0; i < operations; i++) {
+			if (made[i & tokens - 1].preceeds(made[(i * 31 + 7) & tokens - 1])) checksum++;
+		}
+
+		final long preceeds_time = System.nanoTime() - preceeds_start;
+
+		if (print) {
+			System.out.println(
+					name + ": generate " + generate_time / operations + "ns, binary search " + compare_time / operations +
+					"ns, preceeds " + preceeds_time / operations + "ns (" + checksum + ")"
+			);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares per-key version validation against value validation on transactions with large read sets (scans over a few
+ * thousand root keys, each one a separate read to validate)
+ */
+public class ValidationBenchmark {
+
+	public static void main(final String[] args) throws ExecutionException, InterruptedException {
+
+		final int transforms = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+		final int index_size = args.length > 1 ? Integer.parseInt(args[1]) : 2_000;
+
+		// warm up both paths
+		run("warmup", false, transforms / 10, index_size);
+		run("warmup", true, transforms / 10, index_size);
+
+		run("VALUE", false, transforms, index_size);
+		run("VERSION", true, transforms, index_size);
+	}
+
+	static void run(
+			final String name, final boolean versioned, final int transforms, final int index_size
+	) throws ExecutionException, InterruptedException {
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(),
+				versioned ? InMemoryHistoryKV::new : shim -> new ValueOnly(new InMemoryHistoryKV<>(shim)), null
+		);
+
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		final Distortion distortion = new Distortion<>(store, new OptimisticAI(), util, 4);
+
+		distortion.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				for (int i = 0; i < index_size; i++) {
+					ephemeral.put("index" + i, i);
+				}
+			}
+		}).get();
+
+		final ArrayList<Future<?>> futures = new ArrayList<>(transforms);
+
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < transforms; i++) {
+			final int slot = i % 64;
+
+			if (ThreadLocalRandom.current().nextInt(100) < 5) {
+				// the odd writer, so some scans do fail validation
+				futures.add(distortion.transform(new OptimisticFunction() {
+					@Override public void transform(final Map persistent, final Map ephemeral) {
+						final String key = "index" + ThreadLocalRandom.current().nextInt(index_size);
+						ephemeral.put(key, (Integer) ephemeral.get(key) + 1);
+					}
+				}));
+			} else {
+				futures.add(distortion.transform(new OptimisticFunction() {
+					@Override public void transform(final Map persistent, final Map ephemeral) {
+						long sum = 0;
+						for (int i = 0; i < index_size; i++) {
+							sum += (Integer) ephemeral.get("index" + i);
+						}
+
+						ephemeral.put("sum" + slot, sum);
+					}
+				}));
+			}
+		}
+
+		for (final Future<?> future : futures) {
+			future.get();
+		}
+
+		final long elapsed = System.nanoTime() - start;
+
+		distortion.shutdown();
+
+		System.out.println(name);
+		System.out.println("elapsed ms: " + elapsed / 1_000_000);
+		System.out.println("transforms/s: " + transforms * 1_000_000_000L / elapsed);
+		System.out.println(distortion.getStats());
+	}
+
+	/**
+	 * Hides the versions of the wrapped store, so the shim falls back to value validation
+	 */
+	static class ValueOnly implements HistoryKV<ArrayWrapper, ArrayWrapper, StackToken> {
+		final InMemoryHistoryKV<ArrayWrapper, StackToken> kv;
+
+		ValueOnly(final InMemoryHistoryKV<ArrayWrapper, StackToken> kv) {
+			this.kv = kv;
+		}
+
+		@Override public @Nullable ArrayWrapper read(final ByteArray key, final StackToken token) throws ExpiredReadException {
+			return this.kv.read(key, token);
+		}
+
+		@Override public void write(final Map<? extends ByteArray, ArrayWrapper> values, final StackToken token) {
+			this.kv.write(values, token);
+		}
+
+		@Override public void shutdown() {
+			this.kv.shutdown();
+		}
+	}
+}
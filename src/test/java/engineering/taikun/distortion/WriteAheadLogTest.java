@@ -0,0 +1,291 @@
+package engineering.taikun.distortion;
+
+import engineering.taikun.distortion.ai.imp.OptimisticAI;
+import engineering.taikun.distortion.api.fn.OptimisticFunction;
+import engineering.taikun.distortion.serialization.api.ByteArray;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapper;
+import engineering.taikun.distortion.serialization.imp.ArrayWrapperFactory;
+import engineering.taikun.distortion.store.api.KV.ExpiredReadException;
+import engineering.taikun.distortion.store.imp.InMemoryHistoryKV;
+import engineering.taikun.distortion.store.imp.MappedHistoryKV;
+import engineering.taikun.distortion.store.imp.OffHeapHistoryKV;
+import engineering.taikun.distortion.store.imp.StackToken;
+import engineering.taikun.distortion.store.util.DistortionStoreShim;
+import engineering.taikun.distortion.store.util.DistortionStoreShim.HistoryKV;
+import engineering.taikun.distortion.store.util.WriteAheadLog;
+import engineering.taikun.distortion.store.util.WriteAheadLog.SyncPolicy;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class WriteAheadLogTest {
+
+	static DistortionStoreShim<ArrayWrapper, StackToken> newStore(final File directory, final boolean group_commit) {
+		return new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, InMemoryHistoryKV::new, group_commit, 1, null,
+				new WriteAheadLog<>(directory, SyncPolicy.EVERY_COMMIT)
+		);
+	}
+
+	static Distortion newDistortion(final DistortionStoreShim<ArrayWrapper, StackToken> store) {
+		final SerializationUtil<ArrayWrapper> util = new SerializationUtil<>(new ArrayWrapperFactory(), (short) 32);
+
+		return new Distortion<>(store, new OptimisticAI(), util, 4);
+	}
+
+	@Test
+	public static void main() throws InterruptedException, ExecutionException, IOException {
+		System.out.println("Write-ahead log test");
+
+		final File directory = Files.createTempDirectory("distortion-wal").toFile();
+
+		try {
+			restart(new File(directory, "restart"), false);
+			restart(new File(directory, "group"), true);
+			torn(new File(directory, "torn"));
+			failed(new File(directory, "failed"));
+			checkpoint(new File(directory, "checkpoint"), new File(directory, "checkpoint-copy"));
+		} finally {
+			MappedHistoryTest.delete(directory);
+		}
+
+		System.out.println("passed");
+	}
+
+	static void restart(final File directory, final boolean group_commit)
+			throws InterruptedException, ExecutionException {
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> first_store = newStore(directory, group_commit);
+		final Distortion first = newDistortion(first_store);
+
+		Accounts.open(first, true);
+		Accounts.transfers(first, 500, true);
+
+		final int[] before = Accounts.balances(first, true);
+
+		first.shutdown();
+		first_store.shutdown();
+
+		// the in-memory history is gone, the log brings it back
+		final DistortionStoreShim<ArrayWrapper, StackToken> second_store = newStore(directory, group_commit);
+		final Distortion second = newDistortion(second_store);
+
+		final int[] after = Accounts.balances(second, true);
+
+		// and carries on from there
+		second.transform(new OptimisticFunction() {
+			@Override public void transform(final Map persistent, final Map ephemeral) {
+				persistent.put("account0", (Integer) persistent.get("account0") - 1);
+				persistent.put("account1", (Integer) persistent.get("account1") + 1);
+			}
+		}).get();
+
+		second.shutdown();
+		second_store.shutdown();
+
+		for (int i = 0; i < Accounts.ACCOUNTS; i++) {
+			assert_(before[i] == after[i]);
+		}
+
+		assert_(Accounts.total(after) == Accounts.TOTAL);
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> third_store = newStore(directory, group_commit);
+		final Distortion third = newDistortion(third_store);
+
+		final int[] last = Accounts.balances(third, true);
+
+		third.shutdown();
+		third_store.shutdown();
+
+		assert_(last[0] == after[0] - 1 && last[1] == after[1] + 1);
+	}
+
+	static void torn(final File directory) throws IOException {
+		final WriteAheadLog<ArrayWrapper> wal = new WriteAheadLog<>(directory, SyncPolicy.OS);
+
+		assert_(wal.replay(ArrayWrapper.UTIL.factory, writes -> { throw new AssertionError(); }) == 0);
+
+		for (int i = 0; i < 10; i++) {
+			wal.append(Collections.singletonMap(key(i), new ArrayWrapper(new byte[]{ (byte) i })));
+		}
+
+		// deletes come back as nulls
+		assert_(wal.append(Collections.singletonMap(key(3), null)) == 11);
+		wal.close();
+
+		// every record is 20 + 8 + 3 + 1 bytes, the delete 20 + 8 + 3, flip a byte in the delete's key
+		try (final RandomAccessFile segment = new RandomAccessFile(new File(directory, "wal-000000"), "rw")) {
+			segment.seek(10 * 32 + 28);
+			segment.writeByte('x');
+		}
+
+		final ArrayList<Map<ByteArray, ArrayWrapper>> replayed = new ArrayList<>();
+		final WriteAheadLog<ArrayWrapper> recovered = new WriteAheadLog<>(directory, SyncPolicy.OS);
+
+		assert_(recovered.replay(ArrayWrapper.UTIL.factory, replayed::add) == 10);
+		assert_(replayed.size() == 10);
+		assert_(replayed.get(9).get(key(9)).equals(new ArrayWrapper(new byte[]{ 9 })));
+		assert_(new File(directory, "wal-000000").length() == 10 * 32);
+
+		// numbering goes on from the last good record
+		assert_(recovered.append(Collections.singletonMap(key(3), null)) == 11);
+		recovered.close();
+
+		replayed.clear();
+		final WriteAheadLog<ArrayWrapper> reopened = new WriteAheadLog<>(directory, SyncPolicy.OS);
+
+		assert_(reopened.replay(ArrayWrapper.UTIL.factory, replayed::add) == 11);
+		assert_(replayed.get(10).containsKey(key(3)) && replayed.get(10).get(key(3)) == null);
+
+		reopened.close();
+	}
+
+	/**
+	 * A commit whose persistent write throws leaves no record behind, so a restart doesn't bring it back
+	 */
+	static void failed(final File directory) throws InterruptedException, ExecutionException {
+		final AtomicBoolean failing = new AtomicBoolean();
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> first_store = new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new, shim -> {
+					final InMemoryHistoryKV<ArrayWrapper, StackToken> history = new InMemoryHistoryKV<>(shim);
+
+					return new HistoryKV<ArrayWrapper, ArrayWrapper, StackToken>() {
+						@Override public ArrayWrapper read(final ByteArray key, final StackToken token)
+								throws ExpiredReadException {
+							return history.read(key, token);
+						}
+
+						@Override public void write(
+								final Map<? extends ByteArray, ArrayWrapper> values, final StackToken token
+						) {
+							if (failing.get())
+								throw new IllegalStateException("Disk on fire");
+
+							history.write(values, token);
+						}
+
+						@Override public void shutdown() {
+							history.shutdown();
+						}
+					};
+				}, false, 1, null, new WriteAheadLog<>(directory, SyncPolicy.EVERY_COMMIT)
+		);
+
+		final Distortion first = newDistortion(first_store);
+
+		Accounts.open(first, true);
+		Accounts.transfers(first, 100, true);
+
+		final int[] before = Accounts.balances(first, true);
+
+		failing.set(true);
+
+		boolean threw = false;
+		try {
+			first.transform(new OptimisticFunction() {
+				@Override public void transform(final Map persistent, final Map ephemeral) {
+					persistent.put("account0", (Integer) persistent.get("account0") - 1);
+					persistent.put("account1", (Integer) persistent.get("account1") + 1);
+				}
+			}).get();
+		} catch (final ExecutionException ignored) {
+			threw = true;
+		}
+
+		first.shutdown();
+		first_store.shutdown();
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> second_store = newStore(directory, false);
+		final Distortion second = newDistortion(second_store);
+
+		final int[] after = Accounts.balances(second, true);
+
+		second.shutdown();
+		second_store.shutdown();
+
+		assert_(threw);
+		assert_(Arrays.equals(before, after));
+	}
+
+	static DistortionStoreShim<ArrayWrapper, StackToken> newMappedStore(final File directory) {
+		return new DistortionStoreShim<>(
+				ArrayWrapper.UTIL, new StackToken(), InMemoryHistoryKV::new,
+				shim -> new MappedHistoryKV<>(
+						shim, OffHeapHistoryKV.copying(ArrayWrapper::new), new File(directory, "history")
+				), false, 1, null,
+				new WriteAheadLog<>(new File(directory, "wal"), SyncPolicy.EVERY_COMMIT, 10, 4096)
+		);
+	}
+
+	/**
+	 * In front of a mapped history the log is cut back as the history syncs, and what it still holds goes on top of
+	 * what the history has
+	 */
+	static void checkpoint(final File directory, final File copy)
+			throws InterruptedException, ExecutionException, IOException {
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> first_store = newMappedStore(directory);
+		final Distortion first = newDistortion(first_store);
+
+		Accounts.open(first, true);
+		Accounts.transfers(first, 500, true);
+
+		final int[] before = Accounts.balances(first, true);
+
+		first.shutdown();
+		first_store.shutdown();
+
+		// all of it's in the history, of the ten or so segments the log went through only its current one is left
+		assert_(new File(directory, "wal").list((dir, name) -> name.matches("wal-\\d+")).length == 1);
+		assert_(!new File(directory, "wal/wal-000000").exists());
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> second_store = newMappedStore(directory);
+		final Distortion second = newDistortion(second_store);
+
+		assert_(Arrays.equals(Accounts.balances(second, true), before));
+
+		Accounts.transfers(second, 200, true);
+
+		final int[] after = Accounts.balances(second, true);
+
+		// what's on disk if it all went down now: the history as of its last sync, the log from its last checkpoint
+		assert_(copy.mkdirs());
+
+		for (final String name : new String[]{ "history", "wal" }) {
+			assert_(new File(copy, name).mkdirs());
+
+			for (final File file : new File(directory, name).listFiles()) {
+				Files.copy(file.toPath(), new File(new File(copy, name), file.getName()).toPath());
+			}
+		}
+
+		second.shutdown();
+		second_store.shutdown();
+
+		final DistortionStoreShim<ArrayWrapper, StackToken> recovered_store = newMappedStore(copy);
+		final Distortion recovered = newDistortion(recovered_store);
+
+		assert_(Arrays.equals(Accounts.balances(recovered, true), after));
+
+		recovered.shutdown();
+		recovered_store.shutdown();
+	}
+
+	static ArrayWrapper key(final int i) {
+		return new ArrayWrapper(new byte[]{ 'k', (byte) (i >> 8), (byte) i });
+	}
+
+	public static void assert_(final boolean bool) {
+		if (!bool) throw new RuntimeException();
+	}
+}